@@ -0,0 +1,496 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.audio.stream.Stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact binary format for {@link BufferPersistenceDTO} as alternative
+ * to BSON, which stores field-names and the meta-data string for every
+ * chunk and needs to copy all audio data through the serializer.
+ *
+ * The file consists of a fixed header, a section with all fields of the
+ * DTO and tables describing the chunks, followed by the audio data of
+ * all chunks as raw blocks:
+ *
+ * <pre>
+ * [int magic][int version][int length of the section]
+ * section:
+ *   positions, flags and disk-settings of the DTO
+ *   [stream as BSON], [timestamps, delta-coded], [meta-data index]
+ *   [int number of chunks, -1 for no buffer]
+ *   [int size of meta-data dictionary][meta-data strings]
+ *   for each chunk: [varint index into the dictionary, 0 for null chunks][varlong delta of timestamp][varint length]
+ *   [int number of lengths of the chunks on disk, -1 for none][varint lengths]
+ * raw data of all chunks
+ * </pre>
+ *
+ * The raw blocks are written and read via gathering/scattering I/O on a
+ * {@link FileChannel}, so the audio data is not encoded by a serializer.
+ * The JDK still copies the heap buffers into temporary direct buffers
+ * for the system call, to avoid this the blocks can be mapped via
+ * {@link #map(File)} and read on demand.
+ *
+ * The lengths of the chunks on disk were added to the end of the section
+ * later, files without them are still read.
+ *
+ * Files are written to a temporary file first and then renamed, so an
+ * existing file is never modified while it may still be mapped.
+ */
+final class BinaryBufferFormat {
+    // "PRBF" for "persisted ring-buffer format"
+    static final int MAGIC = 0x50524246;
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+
+    private BinaryBufferFormat() {
+    }
+
+    /**
+     * @return true if the file starts with the magic of this format
+     */
+    static boolean isBinary(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining()) {
+                if (channel.read(magic) < 0) {
+                    return false;
+                }
+            }
+            return magic.getInt(0) == MAGIC;
+        }
+    }
+
+    static void write(File file, BufferPersistenceDTO dto) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(dto.getNextGet());
+        out.writeInt(dto.getNextAdd());
+        out.writeInt(dto.getFill());
+        out.writeLong(dto.getNextDownloadPosition());
+        out.writeBoolean(dto.isPlaying());
+        out.writeBoolean(dto.isDownloadWhilePaused());
+        out.writeInt(dto.getNumberOfDiskChunks());
+        out.writeInt(dto.getNumberOfDiskFiles());
+        writeString(out, dto.getDataDir() == null ? null : dto.getDataDir().getPath());
+        out.writeLong(dto.getChunkCount());
+
+        writeBytes(out, dto.getStream() == null ? null : BufferPersistence.getMapper().writeValueAsBytes(dto.getStream()));
+        writeTimestamps(out, dto.getTimestamps());
+        writeMetadata(out, dto.getMetadataStarts(), dto.getMetadataValues());
+
+        Chunk[] chunks = dto.getBuffer();
+        ByteBuffer[] buffers;
+        if (chunks == null) {
+            out.writeInt(-1);
+            buffers = new ByteBuffer[2];
+        } else {
+            writeChunkTable(out, chunks);
+
+            buffers = new ByteBuffer[chunks.length + 2];
+            for (int i = 0; i < chunks.length; i++) {
+                buffers[i + 2] = ByteBuffer.wrap(chunks[i] == null ? new byte[0] : chunks[i].getData());
+            }
+        }
+        writeLengths(out, dto.getLengths());
+        out.flush();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(bytes.size());
+        header.flip();
+
+        buffers[0] = header;
+        buffers[1] = ByteBuffer.wrap(bytes.toByteArray());
+
+        // write to a new file and rename it, so a mapping of the previous file stays valid
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // gathering write of the header, the tables and the data of all chunks
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+
+            // the data needs to be on disk before the rename, otherwise
+            // the file may be empty after a crash
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static BufferPersistenceDTO read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Contents contents = readContents(channel, file);
+            if (contents.lengths == null) {
+                return contents.toDTO(null);
+            }
+
+            // scattering read of the data of all chunks
+            ByteBuffer[] data = new ByteBuffer[contents.lengths.length];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = ByteBuffer.allocate(contents.lengths[i]);
+            }
+
+            long remaining = contents.total;
+            while (remaining > 0) {
+                long read = channel.read(data);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of file " + file + ", missing " + remaining + " bytes");
+                }
+                remaining -= read;
+            }
+
+            Chunk[] chunks = new Chunk[data.length];
+            for (int i = 0; i < chunks.length; i++) {
+                if (contents.metaData[i] != null) {
+                    chunks[i] = new Chunk(data[i].array(), contents.metaData[i], contents.timestamps[i]);
+                }
+            }
+
+            return contents.toDTO(chunks);
+        }
+    }
+
+    /**
+     * Read only the header and the tables and map the data of the chunks,
+     * so it can be read on demand.
+     *
+     * @throws IOException If the file is invalid or does not contain chunks
+     */
+    static MappedChunks map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Contents contents = readContents(channel, file);
+            if (contents.lengths == null) {
+                throw new IOException("Could not read buffer from file " + file + ", having: " + contents.toDTO(null));
+            }
+
+            // the mapping stays valid after the channel is closed
+            return new MappedChunks(contents.toDTO(null), contents.metaData, contents.timestamps, contents.lengths,
+                    channel, channel.position());
+        }
+    }
+
+    /**
+     * The fields of the DTO and the table of chunks, the
+     * channel is positioned at the data of the first chunk
+     */
+    private static Contents readContents(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header);
+        header.flip();
+
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Invalid magic in file " + file);
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version + " in file " + file);
+        }
+        int length = header.getInt();
+        if (length < 0 || length > channel.size() - HEADER_SIZE) {
+            throw new IOException("Invalid length " + length + " in file " + file + " with size " + channel.size());
+        }
+
+        ByteBuffer section = ByteBuffer.allocate(length);
+        readFully(channel, section);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(section.array()));
+
+        Contents contents = new Contents();
+        contents.nextGet = in.readInt();
+        contents.nextAdd = in.readInt();
+        contents.fill = in.readInt();
+        contents.builder.nextDownloadPosition(in.readLong());
+        boolean playing = in.readBoolean();
+        boolean downloadWhilePaused = in.readBoolean();
+        int numberOfDiskChunks = in.readInt();
+        int numberOfDiskFiles = in.readInt();
+        String dataDir = readString(in);
+        contents.builder.data(numberOfDiskChunks, numberOfDiskFiles, dataDir == null ? null : new File(dataDir));
+        contents.builder.chunkCount(in.readLong());
+
+        byte[] streamBytes = readBytes(in);
+        Stream stream = streamBytes == null ? null : BufferPersistence.getMapper().readValue(streamBytes, Stream.class);
+        contents.builder.stream(stream, playing, downloadWhilePaused);
+        contents.builder.timestamps(readTimestamps(in));
+
+        int metadataCount = in.readInt();
+        if (metadataCount >= 0) {
+            int[] metadataStarts = new int[metadataCount];
+            String[] metadataValues = new String[metadataCount];
+            for (int i = 0; i < metadataCount; i++) {
+                metadataStarts[i] = in.readInt();
+                metadataValues[i] = readString(in);
+            }
+            contents.builder.metadata(metadataStarts, metadataValues);
+        }
+
+        readChunkTable(in, contents, channel.size() - channel.position(), file);
+
+        // files written before the lengths were added end after the chunk table
+        if (in.available() > 0) {
+            contents.builder.lengths(readLengths(in));
+        }
+
+        return contents;
+    }
+
+    private static void writeChunkTable(DataOutputStream out, Chunk[] chunks) throws IOException {
+        out.writeInt(chunks.length);
+
+        // the meta-data usually only changes with each song, so
+        // store each distinct value once and refer to it by index
+        Map<String, Integer> dictionary = new HashMap<>();
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream tableOut = new DataOutputStream(table);
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringsOut = new DataOutputStream(strings);
+
+        long previous = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk == null) {
+                writeVarLong(tableOut, 0);
+                continue;
+            }
+
+            Integer index = dictionary.get(chunk.getMetaData());
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.put(chunk.getMetaData(), index);
+                writeString(stringsOut, chunk.getMetaData());
+            }
+
+            // 0 is used for null chunks
+            writeVarLong(tableOut, index + 1);
+            writeVarLong(tableOut, zigZag(chunk.getTimestamp() - previous));
+            writeVarLong(tableOut, chunk.getData().length);
+            previous = chunk.getTimestamp();
+        }
+
+        tableOut.flush();
+        stringsOut.flush();
+
+        out.writeInt(dictionary.size());
+        strings.writeTo(out);
+        table.writeTo(out);
+    }
+
+    private static void readChunkTable(DataInputStream in, Contents contents, long available, File file) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return;
+        }
+
+        String[] dictionary = new String[in.readInt()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readString(in);
+        }
+
+        contents.metaData = new String[count];
+        contents.timestamps = new long[count];
+        contents.lengths = new int[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            int index = (int) readVarLong(in) - 1;
+            if (index < 0) {
+                continue;
+            }
+            if (index >= dictionary.length) {
+                throw new IOException("Invalid meta-data index " + index + " for chunk " + i + " in file " + file);
+            }
+            contents.metaData[i] = dictionary[index];
+
+            contents.timestamps[i] = previous + unZigZag(readVarLong(in));
+            previous = contents.timestamps[i];
+
+            long length = readVarLong(in);
+            contents.total += length;
+            if (length < 0 || length > Integer.MAX_VALUE || contents.total > available) {
+                throw new IOException("Invalid length " + length + " for chunk " + i + " in file " + file);
+            }
+            contents.lengths[i] = (int) length;
+        }
+    }
+
+    private static void writeTimestamps(DataOutputStream out, long[] timestamps) throws IOException {
+        if (timestamps == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(timestamps.length);
+        long previous = 0;
+        for (long timestamp : timestamps) {
+            writeVarLong(out, zigZag(timestamp - previous));
+            previous = timestamp;
+        }
+    }
+
+    private static long[] readTimestamps(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+
+        long[] timestamps = new long[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = previous + unZigZag(readVarLong(in));
+            previous = timestamps[i];
+        }
+        return timestamps;
+    }
+
+    private static void writeLengths(DataOutputStream out, int[] lengths) throws IOException {
+        if (lengths == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(lengths.length);
+        for (int length : lengths) {
+            writeVarLong(out, length);
+        }
+    }
+
+    private static int[] readLengths(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            long length = readVarLong(in);
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid length " + length + " for chunk " + i);
+            }
+            lengths[i] = (int) length;
+        }
+        return lengths;
+    }
+
+    private static void writeMetadata(DataOutputStream out, int[] starts, String[] values) throws IOException {
+        if (starts == null || values == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        int count = Math.min(starts.length, values.length);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(starts[i]);
+            writeString(out, values[i]);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("Invalid length " + length + ", only had " + in.available() + " bytes");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid variable-length number");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of file, missing " + buffer.remaining() + " bytes");
+            }
+        }
+    }
+
+    private static class Contents {
+        private final BufferPersistenceDTO.Builder builder = BufferPersistenceDTO.builder();
+        private int nextGet;
+        private int nextAdd;
+        private int fill;
+
+        /**
+         * The table of chunks, null if the DTO did not contain a buffer,
+         * meta-data is null for chunks which were null
+         */
+        private String[] metaData;
+        private long[] timestamps;
+        private int[] lengths;
+        private long total;
+
+        private BufferPersistenceDTO toDTO(Chunk[] chunks) {
+            return builder.buffer(chunks, nextGet, nextAdd, fill).build();
+        }
+    }
+}
@@ -1,11 +1,26 @@
 package org.dstadler.audio.buffer;
 
 import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.dstadler.audio.metrics.LatencyStats;
+import org.dstadler.audio.metrics.MetricsSource;
 import org.dstadler.audio.stream.Stream;
 import org.dstadler.audio.util.RuntimeInterruptedException;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
 import org.dstadler.commons.util.SuppressForbidden;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Implementation of the {@link SeekableRingBuffer} interface which
@@ -19,15 +34,49 @@ import java.io.IOException;
  * This is accepted to avoid a more complex implementation which
  * has other limitations and downsides.
  *
- * Seeking currently iterates the number of steps given to use
- * a simple implementation, there may be more efficient ways of
- * implementing this.
+ * Seeking computes the new read-position directly, so it takes
+ * the same time regardless of how many chunks are skipped.
+ *
+ * A buffer which was persisted in the binary format can be restored via
+ * {@link #fromMappedFile(File, boolean)}, which maps the file and only reads
+ * the data of a chunk when it is needed, so playback can start right away.
+ *
+ * Persisting uses a {@link Snapshot}, which only holds the lock for
+ * recording the positions. Chunks which are overwritten while the
+ * snapshot is open are kept for it, so adding and reading chunks is
+ * not blocked while the data is serialized.
+ *
+ * The fill of the buffer and counters of added, read and overwritten chunks
+ * are available via {@link MetricsSource}. Reads which had to wait for data
+ * and the time between added chunks are recorded in {@link LatencyStats}.
  */
-public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Persistable {
+public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Persistable, MetricsSource {
+    private final static Logger log = LoggerFactory.make();
+
     private static final byte[] EMPTY = new byte[0];
 
+    /**
+     * Creates the threads which read the chunks of a mapped file in the background
+     */
+    private static final ThreadFactory MATERIALIZER_FACTORY = BasicThreadFactory.builder()
+            .daemon(true)
+            .namingPattern("BufferMaterializer-%d")
+            .uncaughtExceptionHandler((t, e) ->
+                    log.log(Level.WARNING, "Had unexpected exception", e))
+            .build();
+
     private final Chunk[] buffer;
 
+    /**
+     * Timestamps of the chunks for finding positions by time
+     */
+    private final TimestampIndex timestamps;
+
+    /**
+     * Positions where the meta-data of the chunks changes
+     */
+    private final MetadataIndex metadata = new MetadataIndex();
+
     /**
      * indicates the next position to read,
      * there is no more data to read if nextGet == nextAdd
@@ -57,10 +106,107 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
      */
     private boolean stop = false;
 
+    /**
+     * If set, the data of overwritten chunks is released to this pool
+     */
+    private final ChunkPool pool;
+
+    /**
+     * The positions of the chunks that were returned by the last read, i.e. by
+     * next(), next(Chunk[]) or drainTo(), and by peek() since then, they are not
+     * released to the pool as the reader may still use them
+     */
+    private final BitSet handedOut;
+
+    /**
+     * Removes the oldest chunks when the buffer holds too much data
+     */
+    private final CapacityLimit limit;
+
+    /**
+     * The number of bytes in the chunks which are counted in fill
+     */
+    private long bytes = 0;
+
+    /**
+     * Slots which were changed since the last call to
+     * {@link #toPersistence(Stream, boolean, boolean, long, boolean)}
+     */
+    private final BitSet changed;
+
+    /**
+     * Snapshots which are currently open
+     */
+    private final List<Snapshot> snapshots = new ArrayList<>();
+
+    /**
+     * Incremented for each snapshot
+     */
+    private long snapshotGeneration = 0;
+
+    /**
+     * When restored via {@link #fromMappedFile(File, boolean)}, the file from which
+     * the data of chunks is read on demand, null when all chunks are available
+     */
+    private MappedChunks mapped;
+
+    /**
+     * The slots where the data of the chunk was not read from the mapped file yet
+     */
+    private BitSet unresolved;
+
+    /**
+     * Counters for metrics
+     */
+    private long chunksAdded = 0;
+    private long chunksRead = 0;
+    private long chunksOverwrittenUnread = 0;
+    private final LatencyStats latencyStats = new LatencyStats();
+
     public BlockingSeekableRingBuffer(int numberOfChunks) {
+        this(numberOfChunks, null);
+    }
+
+    /**
+     * Create a buffer which releases the data of chunks to the given pool
+     * when they are overwritten, so the writer can re-use the arrays.
+     *
+     * See {@link ChunkPool} for the rules about holding on to chunks
+     * which were returned by next() or peek(). When using a pool, the same
+     * chunk must not be added more than once.
+     *
+     * @param numberOfChunks The number of chunks, the buffer can hold numberOfChunks - 1 chunks
+     * @param pool The pool to release data of overwritten chunks to, null to not recycle data
+     */
+    public BlockingSeekableRingBuffer(int numberOfChunks, ChunkPool pool) {
+        this(numberOfChunks, pool, CapacityLimit.NONE);
+    }
+
+    /**
+     * Create a buffer which additionally limits the number of bytes and/or
+     * the time-span of the chunks, the oldest chunks are removed until the
+     * limit holds again, but the newest chunk is always kept.
+     *
+     * numberOfChunks still defines the maximum number of chunks, so it
+     * should be large enough for the smallest chunks that are expected.
+     *
+     * The limit is not persisted, pass it to {@link #fromPersistence(BufferPersistenceDTO, CapacityLimit)}
+     * or {@link #fromMappedFile(File, boolean, CapacityLimit)} again when restoring the buffer.
+     *
+     * @param numberOfChunks The number of chunks, the buffer can hold numberOfChunks - 1 chunks
+     * @param pool The pool to release data of overwritten chunks to, null to not recycle data
+     * @param limit The limit for bytes and time-span of the chunks in the buffer
+     */
+    public BlockingSeekableRingBuffer(int numberOfChunks, ChunkPool pool, CapacityLimit limit) {
         Preconditions.checkArgument(numberOfChunks > 0, "Had chunks: %s", numberOfChunks);
+        Preconditions.checkNotNull(limit);
 
         this.buffer = new Chunk[numberOfChunks];
+        this.timestamps = new TimestampIndex(numberOfChunks);
+        this.pool = pool;
+        this.limit = limit;
+        this.changed = new BitSet(numberOfChunks);
+        this.handedOut = new BitSet(numberOfChunks);
 
         // initialize buffer with empty chunks
         for(int i = 0;i < numberOfChunks;i++) {
@@ -76,12 +222,49 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
      * @param nextGet The position for the next get operation
      * @param nextAdd The position for the next add operation
      * @param fill The current fill value
+     * @param mapped If not null, the data of the chunks is read from here when needed
+     * @param limit The limit for bytes and time-span of the chunks, it is not persisted
      */
-    private BlockingSeekableRingBuffer(Chunk[] buffer, int nextGet, int nextAdd, int fill) {
+    private BlockingSeekableRingBuffer(Chunk[] buffer, int nextGet, int nextAdd, int fill, MappedChunks mapped,
+                                       CapacityLimit limit) {
+        Preconditions.checkNotNull(limit);
+
         this.buffer = buffer;
         this.nextGet = nextGet;
         this.nextAdd = nextAdd;
         this.fill = fill;
+        this.pool = null;
+        this.limit = limit;
+        this.changed = new BitSet(buffer.length);
+        this.handedOut = new BitSet(buffer.length);
+
+        if(mapped != null) {
+            this.mapped = mapped;
+            this.unresolved = new BitSet(buffer.length);
+            for(int i = 0;i < buffer.length;i++) {
+                if(mapped.getLength(i) > 0) {
+                    unresolved.set(i);
+                }
+            }
+            releaseMappingIfResolved();
+        }
+
+        long[] chunkTimestamps = new long[buffer.length];
+        for(int i = 0;i < buffer.length;i++) {
+            chunkTimestamps[i] = buffer[i].getTimestamp();
+        }
+        this.timestamps = new TimestampIndex(chunkTimestamps, Math.floorMod(nextAdd - fill, buffer.length), fill);
+
+        // index the meta-data starting at the oldest chunk, this also
+        // shares the meta-data strings between chunks again
+        for(int i = 0;i < fill;i++) {
+            int pos = Math.floorMod(nextAdd - fill + i, buffer.length);
+            buffer[pos] = withMetaData(buffer[pos], metadata.add(buffer[pos].getMetaData(), i + 1));
+            bytes += length(pos);
+        }
+
+        // the limit may be lower than when the buffer was persisted
+        evict();
     }
 
     @SuppressForbidden(reason = "Uses Object.notify() on purpose here")
@@ -89,13 +272,50 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
     public synchronized void add(Chunk chunk) {
         Preconditions.checkNotNull(chunk);
 
-        buffer[nextAdd] = chunk;
+        addInternal(chunk);
+        latencyStats.recordArrival(System.nanoTime());
+
+        notify();
+    }
+
+    @SuppressForbidden(reason = "Uses Object.notify() on purpose here")
+    @Override
+    public synchronized void addAll(Chunk[] chunks, int off, int len) {
+        Preconditions.checkPositionIndexes(off, off + len, chunks.length);
+        for(int i = off;i < off + len;i++) {
+            Preconditions.checkNotNull(chunks[i]);
+        }
+
+        for(int i = off;i < off + len;i++) {
+            addInternal(chunks[i]);
+        }
+        latencyStats.recordArrival(System.nanoTime());
+
+        // only wake up the reader once for all chunks
+        notify();
+    }
+
+    private void addInternal(Chunk chunk) {
+        release(nextAdd);
+
+        // the oldest chunk drops out of the buffer when it is full
+        if(fill > 0 && fill == buffer.length - 1) {
+            bytes -= length((nextAdd + 1) % buffer.length);
+        }
+        bytes += chunk.getData().length;
+
+        discardMapped(nextAdd);
+        buffer[nextAdd] = withMetaData(chunk, metadata.add(chunk.getMetaData(), Math.min(fill + 1, buffer.length - 1)));
+        timestamps.set(nextAdd, chunk.getTimestamp());
+        changed.set(nextAdd);
 
         nextAdd = (nextAdd + 1) % buffer.length;
         if(nextAdd == nextGet) {
             // we are overwriting the next to read, so we need to move nextGet forward as well
             nextGet = (nextGet + 1) % buffer.length;
+            chunksOverwrittenUnread++;
         }
+        chunksAdded++;
 
         // increase fill until we wrapped around at least once
         // so we know when the buffer is filled up with data
@@ -103,13 +323,245 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
             fill++;
         }
 
-        notify();
+        evict();
+    }
+
+    /**
+     * Remove the oldest chunks until the capacity limit holds again,
+     * the data is released so the memory can actually be reclaimed.
+     */
+    private void evict() {
+        while(fill > 1 && limit.isExceeded(bytes, millisBuffered())) {
+            int oldest = Math.floorMod(nextAdd - fill, buffer.length);
+            bytes -= length(oldest);
+
+            release(oldest);
+            discardMapped(oldest);
+            buffer[oldest] = new Chunk(EMPTY, "", 0);
+            changed.set(oldest);
+
+            fill--;
+
+            // the reader cannot stay on a chunk which was removed
+            if(size() > fill) {
+                nextGet = Math.floorMod(nextAdd - fill, buffer.length);
+                chunksOverwrittenUnread++;
+            }
+        }
+    }
+
+    /**
+     * Release the data of the chunk at the given slot to the pool before it is
+     * overwritten, unless a snapshot keeps it or the reader may still use it.
+     */
+    private void release(int slot) {
+        // the chunks which were handed out by the last read may still be in use by the reader
+        boolean releasable = pool != null && !handedOut.get(slot);
+        handedOut.clear(slot);
+
+        if(!preserveForSnapshots(slot, releasable) && releasable) {
+            pool.release(buffer[slot].getData());
+        }
+    }
+
+    /**
+     * Keep the chunk at the given slot for all open snapshots
+     * before it is overwritten.
+     *
+     * @param releasable If the data can be released to the pool when the last snapshot is closed
+     * @return true if a snapshot keeps the chunk, so its data cannot be released to the pool now
+     */
+    private boolean preserveForSnapshots(int slot, boolean releasable) {
+        boolean preserved = false;
+        for(Snapshot snapshot : snapshots) {
+            preserved |= snapshot.preserve(slot, releasable);
+        }
+
+        return preserved;
+    }
+
+    /**
+     * @return true if another open snapshot still keeps the given chunk
+     */
+    private boolean isPreserved(int slot, Chunk chunk) {
+        for(Snapshot snapshot : snapshots) {
+            if(snapshot.preserved != null && snapshot.preserved[slot] == chunk) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The number of bytes of the chunk at the given slot, also
+     *      if its data was not read from the mapped file yet
+     */
+    private int length(int slot) {
+        if(unresolved != null && unresolved.get(slot)) {
+            return mapped.getLength(slot);
+        }
+
+        return buffer[slot].getData().length;
+    }
+
+    /**
+     * @return The chunk at the given slot, its data is read from the mapped file if necessary
+     */
+    private Chunk resolve(int slot) {
+        if(unresolved != null && unresolved.get(slot)) {
+            buffer[slot] = new Chunk(mapped.read(slot), buffer[slot].getMetaData(), buffer[slot].getTimestamp());
+            unresolved.clear(slot);
+            releaseMappingIfResolved();
+        }
+
+        return buffer[slot];
+    }
+
+    /**
+     * The chunk at the given slot is overwritten, so its data is never needed.
+     */
+    private void discardMapped(int slot) {
+        if(unresolved != null) {
+            unresolved.clear(slot);
+            releaseMappingIfResolved();
+        }
+    }
+
+    private void releaseMappingIfResolved() {
+        if(unresolved.isEmpty()) {
+            unresolved = null;
+            mapped = null;
+        }
+    }
+
+    /**
+     * Read the data of up to the given number of chunks from the mapped file,
+     * starting at the read-position.
+     *
+     * @return false if there are no more chunks to read
+     */
+    private synchronized boolean resolveNext(int max) {
+        if(stop || unresolved == null) {
+            return false;
+        }
+
+        for(int i = 0;i < max && unresolved != null;i++) {
+            int slot = unresolved.nextSetBit(nextGet);
+            resolve(slot >= 0 ? slot : unresolved.nextSetBit(0));
+        }
+
+        return unresolved != null;
+    }
+
+    private long millisBuffered() {
+        if(fill < 2) {
+            return 0;
+        }
+
+        long newest = buffer[Math.floorMod(nextAdd - 1, buffer.length)].getTimestamp();
+        long oldest = buffer[Math.floorMod(nextAdd - fill, buffer.length)].getTimestamp();
+
+        return Math.max(newest - oldest, 0);
+    }
+
+    /**
+     * @return The given chunk or a copy which uses the given instance of the
+     *      meta-data, so the same String is not kept for each chunk
+     */
+    private static Chunk withMetaData(Chunk chunk, String metaData) {
+        if(chunk.getMetaData() == metaData) {
+            return chunk;
+        }
+
+        return new Chunk(chunk.getData(), metaData, chunk.getTimestamp());
     }
 
-    @SuppressForbidden(reason = "Uses Object.wait() on purpose here")
     @Override
     public synchronized Chunk next() {
+        waitForData();
+
+        if(stop) {
+            return null;
+        }
+
+        // fetch item before we increase the pointer
+        Chunk chunk = resolve(nextGet);
+
+        handedOut.clear();
+        handedOut.set(nextGet);
+        nextGet = (nextGet + 1) % buffer.length;
+        chunksRead++;
+
+        return chunk;
+    }
+
+    @Override
+    public synchronized int next(Chunk[] dest) {
+        if(dest.length == 0) {
+            return 0;
+        }
+
+        waitForData();
+
+        if(stop) {
+            return 0;
+        }
+
+        return nextInternal(dest, dest.length);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super Chunk> target, int max) {
+        if(stop || max <= 0) {
+            return 0;
+        }
+
+        Chunk[] chunks = new Chunk[Math.min(max, size())];
+        int count = nextInternal(chunks, chunks.length);
+        target.addAll(Arrays.asList(chunks));
+
+        return count;
+    }
+
+    /**
+     * Copy up to max available chunks into dest and advance nextGet,
+     * copying at most two ranges of the array as the chunks may wrap around.
+     */
+    private int nextInternal(Chunk[] dest, int max) {
+        int count = Math.min(max, size());
+
+        if(unresolved != null) {
+            for(int i = 0;i < count;i++) {
+                resolve((nextGet + i) % buffer.length);
+            }
+        }
+
+        int first = Math.min(count, buffer.length - nextGet);
+        System.arraycopy(buffer, nextGet, dest, 0, first);
+        System.arraycopy(buffer, 0, dest, first, count - first);
+
+        // all chunks of the batch may still be in use by the reader
+        if(count > 0) {
+            handedOut.clear();
+            handedOut.set(nextGet, nextGet + first);
+            handedOut.set(0, count - first);
+        }
+
+        nextGet = (nextGet + count) % buffer.length;
+        chunksRead += count;
+
+        return count;
+    }
+
+    @SuppressForbidden(reason = "Uses Object.wait() on purpose here")
+    private void waitForData() {
+        if(!empty() || stop) {
+            return;
+        }
+
         // wait until data is available
+        long start = System.nanoTime();
         while(empty() && !stop) {
             try {
                 // waiting leaves the synchronized block so other threads
@@ -120,16 +572,17 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
             }
         }
 
-        if(stop) {
-            return null;
+        // waiting until the buffer is closed is not an underrun
+        if(!stop) {
+            latencyStats.recordUnderrun(System.nanoTime() - start);
         }
+    }
 
-        // fetch item before we increase the pointer
-        Chunk chunk = buffer[nextGet];
-
-        nextGet = (nextGet + 1) % buffer.length;
-
-        return chunk;
+    /**
+     * @return Statistics about reads which had to wait for data and the time between added chunks
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
     }
 
     @Override
@@ -138,57 +591,66 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
             return null;
         }
 
-        return buffer[nextGet];
+        handedOut.set(nextGet);
+        return resolve(nextGet);
     }
 
     @Override
     public synchronized int seek(int nrOfChunks) {
-        // this is a very naive initial implementation which actually loops
-        // to step forward/backward as long as possible and counts it's steps
-        int stepped = 0;
+        // compute how far we can move in one step: forward up to the
+        // head of the buffer, backwards until the buffer is full
+        final int stepped;
         if(nrOfChunks > 0) {
-            for(int i = 0;i < nrOfChunks;i++) {
-                if(!incrementNextGet()) {
-                    break;
-                }
-                stepped++;
-            }
-        } else if (nrOfChunks < 0) {
-            for(int i = 0;i > nrOfChunks;i--) {
-                if(!decrementNextGet()) {
-                    break;
-                }
-                stepped--;
-            }
+            stepped = Math.min(nrOfChunks, size());
+        } else {
+            stepped = Math.max(nrOfChunks, -(capacity() - size()));
         }
+
+        nextGet = Math.floorMod(nextGet + stepped, buffer.length);
+
         return stepped;
     }
 
-    private boolean incrementNextGet() {
-        if(empty()) {
-            // cannot increment further
-            return false;
-        }
+    @Override
+    public synchronized int seekTo(int absolutePosition) {
+        return seek(absolutePosition - (fill - size()));
+    }
 
-        // advance by one
-        nextGet = (nextGet + 1) % buffer.length;
-        return true;
+    @Override
+    public synchronized int positionOf(long epochMillis) {
+        return timestamps.positionOf(epochMillis, Math.floorMod(nextAdd - fill, buffer.length), fill);
     }
 
-    private boolean decrementNextGet() {
-        if(full()) {
-            // cannot increment further
-            return false;
-        }
+    @Override
+    public synchronized int seekToTimestamp(long epochMillis) {
+        return seekTo(positionOf(epochMillis));
+    }
 
-        // decrement by one
-        if(nextGet == 0) {
-            nextGet = buffer.length - 1;
-        } else {
-            nextGet = nextGet - 1;
-        }
+    @Override
+    public synchronized int seekToNextMetadataChange() {
+        int position = metadata.nextChange(fill, fill - size());
+        return position < 0 ? 0 : seekTo(position);
+    }
+
+    @Override
+    public synchronized int seekToPreviousMetadataChange() {
+        int position = metadata.previousChange(fill, fill - size());
+        return position < 0 ? 0 : seekTo(position);
+    }
+
+    @Override
+    public synchronized List<MetadataRange> metadataRanges() {
+        return metadata.ranges(fill);
+    }
+
+    @Override
+    public synchronized long bytesBuffered() {
+        return bytes;
+    }
 
-        return true;
+    @Override
+    public synchronized double secondsBuffered() {
+        return millisBuffered() / 1000.0;
     }
 
     @Override
@@ -228,10 +690,18 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
     public synchronized void reset() {
         nextAdd = nextGet;
         fill = 0;
+        bytes = 0;
+        timestamps.reset();
     }
 
     @Override
     public synchronized int bufferedForward() {
+        // the read-position is on one of the available chunks, this
+        // also covers a buffer where chunks were removed via the limit
+        if(size() <= fill) {
+            return size();
+        }
+
         if(nextAdd >= nextGet) {
             return nextAdd - nextGet;
         } else if (fill == buffer.length - 1) {
@@ -243,6 +713,10 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
 
     @Override
     public synchronized int bufferedBackward() {
+        if(size() <= fill) {
+            return fill - size();
+        }
+
         if(nextAdd >= nextGet) {
             return fill - nextAdd + nextGet;
         } else {
@@ -255,10 +729,28 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
         stop = true;
     }
 
+    @Override
+    public synchronized Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        metrics.put("size", size());
+        metrics.put("fill", fill);
+        metrics.put("capacity", capacity());
+        metrics.put("bufferedForward", bufferedForward());
+        metrics.put("bufferedBackward", bufferedBackward());
+        metrics.put("bytesBuffered", bytes);
+        metrics.put("chunksAdded", chunksAdded);
+        metrics.put("chunksRead", chunksRead);
+        metrics.put("chunksOverwrittenUnread", chunksOverwrittenUnread);
+        latencyStats.addTo(metrics);
+        return metrics;
+    }
+
     @Override
     public String toString() {
         return "BlockingSeekableRingBuffer{" +
                 "numberOfChunks=" + (buffer == null ? "<null>" : buffer.length) +
+                ", pool=" + pool +
+                ", limit=" + limit +
                 ", nextGet=" + nextGet +
                 ", nextAdd=" + nextAdd +
                 ", stop=" + stop +
@@ -266,24 +758,380 @@ public class BlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Pe
                 ", size=" + size() +
                 ", empty=" + empty() +
                 ", full=" + full() +
+                ", snapshots=" + snapshots.size() +
+                ", unresolved=" + (unresolved == null ? 0 : unresolved.cardinality()) +
                 '}';
     }
 
+    /**
+     * The chunks are collected via a {@link Snapshot}, so the buffer
+     * is only locked briefly.
+     *
+     * If the buffer uses a {@link ChunkPool}, the data of the chunks is copied,
+     * as the snapshot is closed before the DTO is serialized. Use {@link #snapshot()}
+     * and serialize the DTO before closing it to avoid the copy.
+     */
     @Override
-    public synchronized BufferPersistenceDTO toPersistence(Stream stream, boolean playing, boolean downloadWhilePaused,
+    public BufferPersistenceDTO toPersistence(Stream stream, boolean playing, boolean downloadWhilePaused,
             long chunkCount) {
-        return BufferPersistenceDTO.builder().
-            buffer(buffer, nextGet, nextAdd, fill).
-            stream(stream, playing, downloadWhilePaused).
-            chunkCount(chunkCount).
-            build();
+        try (Snapshot snapshot = snapshot()) {
+            return copyForPool(snapshot.toPersistence(stream, playing, downloadWhilePaused, chunkCount));
+        }
+    }
+
+    /**
+     * Like {@link #toPersistence(Stream, boolean, boolean, long)}, but can include only the
+     * chunks which were added or removed since the previous call of this method, all
+     * other entries of the array of chunks are null. This allows to write only a small
+     * delta for periodic checkpoints, see {@link IncrementalSnapshots}.
+     *
+     * In both cases the changes are tracked anew from now on.
+     *
+     * If the buffer uses a {@link ChunkPool}, the data of the chunks is copied,
+     * see {@link #snapshot(boolean)} for avoiding the copy.
+     *
+     * @param changedOnly If true, only changed chunks are included, otherwise all chunks
+     */
+    public BufferPersistenceDTO toPersistence(Stream stream, boolean playing, boolean downloadWhilePaused,
+            long chunkCount, boolean changedOnly) {
+        try (Snapshot snapshot = snapshot(changedOnly)) {
+            return copyForPool(snapshot.toPersistence(stream, playing, downloadWhilePaused, chunkCount));
+        }
+    }
+
+    /**
+     * The data of the chunks is re-used after the snapshot is closed,
+     * while the DTO may still be serialized later.
+     */
+    private BufferPersistenceDTO copyForPool(BufferPersistenceDTO dto) {
+        if(pool != null) {
+            Chunk[] chunks = dto.getBuffer();
+            for(int i = 0;i < chunks.length;i++) {
+                if(chunks[i] != null) {
+                    chunks[i] = new Chunk(chunks[i].getData().clone(), chunks[i].getMetaData(), chunks[i].getTimestamp());
+                }
+            }
+        }
+
+        return dto;
+    }
+
+    /**
+     * Take a snapshot of the current state of the buffer, it needs to be closed
+     * when it is not used any more, as chunks are kept for it until then.
+     *
+     * @return A snapshot of the positions and chunks at this time
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(this, null);
+    }
+
+    /**
+     * Like {@link #snapshot()}, but can include only the chunks which were added or
+     * removed since the previous call of this method or of
+     * {@link #toPersistence(Stream, boolean, boolean, long, boolean)}, see
+     * {@link IncrementalSnapshots}.
+     *
+     * In both cases the changes are tracked anew from now on.
+     *
+     * @param changedOnly If true, only changed chunks are included, otherwise all chunks
+     * @return A snapshot of the positions and chunks at this time
+     */
+    public synchronized Snapshot snapshot(boolean changedOnly) {
+        Snapshot snapshot = new Snapshot(this, changedOnly ? (BitSet) changed.clone() : null);
+        changed.clear();
+        return snapshot;
     }
 
+    /**
+     * Restore a buffer without a {@link CapacityLimit}, see {@link #fromPersistence(BufferPersistenceDTO, CapacityLimit)}
+     */
     public static BlockingSeekableRingBuffer fromPersistence(BufferPersistenceDTO dto) throws IOException {
+        return fromPersistence(dto, CapacityLimit.NONE);
+    }
+
+    /**
+     * Restore a buffer from the DTO.
+     *
+     * The {@link CapacityLimit} is not part of the persisted state, so the
+     * caller needs to pass the limit again which was used for the original
+     * buffer. The oldest chunks are removed right away if the restored
+     * chunks exceed it.
+     *
+     * @param dto The persisted state of the buffer
+     * @param limit The limit for bytes and time-span of the chunks in the buffer
+     * @return The restored buffer
+     * @throws IOException If the DTO does not contain a buffer
+     */
+    public static BlockingSeekableRingBuffer fromPersistence(BufferPersistenceDTO dto, CapacityLimit limit) throws IOException {
         if(dto.getBuffer() == null) {
             throw new IOException("Could not read buffer from persistent file, having: " + dto);
         }
 
-        return new BlockingSeekableRingBuffer(dto.getBuffer(), dto.getNextGet(), dto.getNextAdd(), dto.getFill());
+        return new BlockingSeekableRingBuffer(dto.getBuffer(), dto.getNextGet(), dto.getNextAdd(), dto.getFill(), null, limit);
+    }
+
+    /**
+     * Restore a buffer from a file which was written with {@link BufferPersistence.Format#BINARY}.
+     *
+     * Only the positions, meta-data and timestamps are read, the file is mapped
+     * into memory and the data of a chunk is only read when the chunk is
+     * returned or persisted, so the buffer is available right away, regardless
+     * of its size.
+     *
+     * The file should not be modified while it is mapped, {@link BufferPersistence}
+     * replaces the file instead of writing to it, so this is safe.
+     *
+     * @param file The file to restore the buffer from
+     * @param readInBackground If true, a background thread reads all remaining chunks,
+     *                         starting at the read-position, so the mapping can be released.
+     * @return The buffer and the other fields of the DTO, the buffer is not included in the DTO
+     * @throws IOException If the file cannot be read or does not contain a buffer
+     */
+    public static Restored fromMappedFile(File file, boolean readInBackground) throws IOException {
+        return fromMappedFile(file, readInBackground, CapacityLimit.NONE);
+    }
+
+    /**
+     * Restore a buffer from a mapped file as in {@link #fromMappedFile(File, boolean)}
+     * and apply the given limit, which is not part of the persisted state.
+     *
+     * @param file The file to restore the buffer from
+     * @param readInBackground If true, a background thread reads all remaining chunks
+     * @param limit The limit for bytes and time-span of the chunks in the buffer
+     * @return The buffer and the other fields of the DTO, the buffer is not included in the DTO
+     * @throws IOException If the file cannot be read or does not contain a buffer
+     */
+    public static Restored fromMappedFile(File file, boolean readInBackground, CapacityLimit limit) throws IOException {
+        MappedChunks mapped = BinaryBufferFormat.map(file);
+
+        Chunk[] chunks = new Chunk[mapped.size()];
+        for(int i = 0;i < chunks.length;i++) {
+            if(mapped.isNull(i)) {
+                throw new IOException("Could not read buffer from file " + file + ", chunk " + i + " is missing");
+            }
+            chunks[i] = new Chunk(EMPTY, mapped.getMetaData(i), mapped.getTimestamp(i));
+        }
+
+        BufferPersistenceDTO dto = mapped.getDTO();
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(chunks, dto.getNextGet(), dto.getNextAdd(),
+                dto.getFill(), mapped, limit);
+
+        if(readInBackground) {
+            MATERIALIZER_FACTORY.newThread(() -> {
+                // only hold the lock for a few chunks at a time
+                //noinspection StatementWithEmptyBody
+                while(buffer.resolveNext(16)) {
+                }
+            }).start();
+        }
+
+        return new Restored(buffer, dto);
+    }
+
+    /**
+     * The result of {@link #fromMappedFile(File, boolean)}
+     */
+    public static class Restored {
+        private final BlockingSeekableRingBuffer buffer;
+        private final BufferPersistenceDTO dto;
+
+        private Restored(BlockingSeekableRingBuffer buffer, BufferPersistenceDTO dto) {
+            this.buffer = buffer;
+            this.dto = dto;
+        }
+
+        public BlockingSeekableRingBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @return The other fields which were persisted, e.g. the stream
+         */
+        public BufferPersistenceDTO getDTO() {
+            return dto;
+        }
+    }
+
+    /**
+     * A consistent view of the buffer at the time it was taken.
+     *
+     * Creating the snapshot only records the positions and a generation
+     * number. The chunks stay in the buffer and a chunk is only moved
+     * into the snapshot if the writer is about to overwrite its slot
+     * while the snapshot is open. Each access to a chunk locks the buffer
+     * only for looking up this single chunk.
+     *
+     * If the buffer uses a {@link ChunkPool}, the snapshot owns the data of
+     * the chunks it keeps and releases it to the pool when it is closed.
+     */
+    public static class Snapshot implements AutoCloseable {
+        private final BlockingSeekableRingBuffer owner;
+        private final long generation;
+        private final int nextGet;
+        private final int nextAdd;
+        private final int fill;
+
+        /**
+         * The slots which are part of this snapshot, null for all
+         */
+        private final BitSet included;
+
+        /**
+         * Chunks which were overwritten in the buffer since the snapshot was taken,
+         * allocated on first use, guarded by the lock of the buffer
+         */
+        private Chunk[] preserved;
+        private int preservedCount = 0;
+
+        /**
+         * The slots in preserved whose data is released to the pool on close,
+         * guarded by the lock of the buffer
+         */
+        private final BitSet releasable = new BitSet();
+        private boolean closed = false;
+
+        // called with the lock of the buffer held
+        private Snapshot(BlockingSeekableRingBuffer owner, BitSet included) {
+            this.owner = owner;
+            this.generation = ++owner.snapshotGeneration;
+            this.nextGet = owner.nextGet;
+            this.nextAdd = owner.nextAdd;
+            this.fill = owner.fill;
+            this.included = included;
+
+            owner.snapshots.add(this);
+        }
+
+        /**
+         * Called with the lock of the buffer held before the slot is overwritten.
+         *
+         * @param releasable If the data can be released to the pool when the snapshot is closed
+         * @return true if the chunk at the slot is now kept by this snapshot
+         */
+        private boolean preserve(int slot, boolean releasable) {
+            if(included != null && !included.get(slot)) {
+                return false;
+            }
+
+            if(preserved == null) {
+                preserved = new Chunk[owner.buffer.length];
+            }
+
+            // the chunk was overwritten before, the current one was added after the snapshot
+            if(preserved[slot] != null) {
+                return false;
+            }
+
+            preserved[slot] = owner.resolve(slot);
+            preservedCount++;
+            this.releasable.set(slot, releasable);
+
+            return true;
+        }
+
+        /**
+         * @param slot The index in the array of chunks
+         * @return The chunk at the given slot at the time of taking the snapshot
+         * @throws IllegalStateException If the snapshot was closed already
+         */
+        public Chunk get(int slot) {
+            Preconditions.checkElementIndex(slot, owner.buffer.length);
+
+            synchronized (owner) {
+                Preconditions.checkState(!closed, "Snapshot %s was closed already", generation);
+
+                if(preserved != null && preserved[slot] != null) {
+                    return preserved[slot];
+                }
+
+                return owner.resolve(slot);
+            }
+        }
+
+        /**
+         * Convert the snapshot into a DTO, entries which are not part of
+         * the snapshot are null.
+         *
+         * The DTO refers to the data of the chunks. If the buffer uses a
+         * {@link ChunkPool}, the data can be re-used for other chunks as soon as
+         * the snapshot is closed, so the DTO needs to be serialized before.
+         */
+        public BufferPersistenceDTO toPersistence(Stream stream, boolean playing, boolean downloadWhilePaused,
+                long chunkCount) {
+            Chunk[] chunks = new Chunk[owner.buffer.length];
+            for(int i = 0;i < chunks.length;i++) {
+                if(included == null || included.get(i)) {
+                    chunks[i] = get(i);
+                }
+            }
+
+            return BufferPersistenceDTO.builder().
+                buffer(chunks, nextGet, nextAdd, fill).
+                stream(stream, playing, downloadWhilePaused).
+                chunkCount(chunkCount).
+                build();
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public int getNextGet() {
+            return nextGet;
+        }
+
+        public int getNextAdd() {
+            return nextAdd;
+        }
+
+        public int getFill() {
+            return fill;
+        }
+
+        /**
+         * @return The number of chunks which were kept because they were overwritten
+         */
+        public int getPreserved() {
+            synchronized (owner) {
+                return preservedCount;
+            }
+        }
+
+        /**
+         * Stop keeping overwritten chunks for this snapshot and release their
+         * data to the pool, unless another open snapshot still keeps them.
+         */
+        @Override
+        public void close() {
+            synchronized (owner) {
+                if(closed) {
+                    return;
+                }
+
+                owner.snapshots.remove(this);
+                for(int slot = releasable.nextSetBit(0); slot >= 0; slot = releasable.nextSetBit(slot + 1)) {
+                    if(!owner.isPreserved(slot, preserved[slot])) {
+                        owner.pool.release(preserved[slot].getData());
+                    }
+                }
+
+                releasable.clear();
+                preserved = null;
+                closed = true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "generation=" + generation +
+                    ", nextGet=" + nextGet +
+                    ", nextAdd=" + nextAdd +
+                    ", fill=" + fill +
+                    ", included=" + (included == null ? "all" : included.cardinality()) +
+                    ", closed=" + closed +
+                    '}';
+        }
     }
 }
@@ -0,0 +1,350 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.audio.util.RuntimeInterruptedException;
+import org.dstadler.commons.util.SuppressForbidden;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A reader of a {@link MultiReaderRingBuffer} with its own read-position.
+ *
+ * It implements the full {@link SeekableRingBuffer} interface, so it can be
+ * used wherever a single buffer is used, e.g. wrapped in a
+ * {@link CountingSeekableRingBufferImpl}. The read-position, size() and
+ * bufferedBackward() are computed for this cursor, fill() and absolute
+ * positions refer to all chunks which are available in the shared buffer,
+ * so a new cursor can also seek back to chunks which were added before.
+ *
+ * Adding chunks via a cursor adds them to the shared buffer, i.e. they
+ * become available to all cursors. reset() and close() only affect this
+ * cursor, use the methods of the {@link MultiReaderRingBuffer} to reset or
+ * close the buffer for all cursors.
+ *
+ * If the writer overwrites the chunk at the read-position of this cursor,
+ * the cursor continues at the oldest chunk which is still available.
+ */
+public class BufferCursor implements SeekableRingBuffer<Chunk> {
+    private final MultiReaderRingBuffer shared;
+
+    /**
+     * Sequence number of the next chunk to read
+     */
+    private long nextGet;
+
+    /**
+     * The number of resets of the shared buffer that were handled already
+     */
+    private long resets;
+
+    /**
+     * The number of chunks that were overwritten before this cursor read them
+     */
+    private long skipped = 0;
+
+    private boolean stop = false;
+
+    BufferCursor(MultiReaderRingBuffer shared, long nextGet) {
+        this.shared = shared;
+        this.nextGet = nextGet;
+        this.resets = shared.getResets();
+    }
+
+    /**
+     * Move the read-position if the writer or a reset of the shared
+     * buffer discarded the chunk at the current read-position.
+     */
+    private void sync() {
+        if(resets != shared.getResets()) {
+            resets = shared.getResets();
+            nextGet = Math.max(nextGet, shared.getFillStart());
+        }
+
+        long oldest = shared.getNextAdd() - shared.capacity();
+        if(nextGet < oldest) {
+            skipped += oldest - nextGet;
+            nextGet = oldest;
+        }
+    }
+
+    @Override
+    public void add(Chunk chunk) {
+        shared.add(chunk);
+    }
+
+    @Override
+    public void addAll(Chunk[] chunks, int off, int len) {
+        shared.addAll(chunks, off, len);
+    }
+
+    @Override
+    public Chunk next() {
+        synchronized (shared) {
+            waitForData();
+
+            if(isStopped()) {
+                return null;
+            }
+
+            return shared.get(nextGet++);
+        }
+    }
+
+    @Override
+    public int next(Chunk[] dest) {
+        if(dest.length == 0) {
+            return 0;
+        }
+
+        synchronized (shared) {
+            waitForData();
+
+            if(isStopped()) {
+                return 0;
+            }
+
+            return nextInternal(dest, dest.length);
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Chunk> target, int max) {
+        synchronized (shared) {
+            if(isStopped() || max <= 0) {
+                return 0;
+            }
+
+            sync();
+
+            Chunk[] chunks = new Chunk[Math.min(max, size())];
+            int count = nextInternal(chunks, chunks.length);
+            target.addAll(List.of(chunks));
+
+            return count;
+        }
+    }
+
+    private int nextInternal(Chunk[] dest, int max) {
+        int count = Math.min(max, size());
+        for(int i = 0;i < count;i++) {
+            dest[i] = shared.get(nextGet++);
+        }
+
+        return count;
+    }
+
+    @SuppressForbidden(reason = "Uses Object.wait() on purpose here")
+    private void waitForData() {
+        sync();
+
+        // wait until data is available
+        while(nextGet >= shared.getNextAdd() && !isStopped()) {
+            try {
+                // waiting leaves the synchronized block so other threads
+                // can do work while we wait here
+                shared.wait(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeInterruptedException(e);
+            }
+
+            sync();
+        }
+    }
+
+    private boolean isStopped() {
+        return stop || shared.isStopped();
+    }
+
+    @Override
+    public Chunk peek() {
+        synchronized (shared) {
+            sync();
+
+            if(empty() || isStopped()) {
+                return null;
+            }
+
+            return shared.get(nextGet);
+        }
+    }
+
+    @Override
+    public int seek(int nrOfChunks) {
+        synchronized (shared) {
+            sync();
+
+            // forward up to the head of the buffer, backwards until the buffer is full
+            final int stepped;
+            if(nrOfChunks > 0) {
+                stepped = Math.min(nrOfChunks, size());
+            } else {
+                stepped = Math.max(nrOfChunks, -(capacity() - size()));
+            }
+
+            nextGet += stepped;
+
+            return stepped;
+        }
+    }
+
+    @Override
+    public int seekTo(int absolutePosition) {
+        synchronized (shared) {
+            return seek(absolutePosition - (fill() - size()));
+        }
+    }
+
+    @Override
+    public int positionOf(long epochMillis) {
+        synchronized (shared) {
+            int fill = fill();
+            return shared.getTimestamps().positionOf(epochMillis, shared.slot(shared.getNextAdd() - fill), fill);
+        }
+    }
+
+    @Override
+    public int seekToTimestamp(long epochMillis) {
+        synchronized (shared) {
+            return seekTo(positionOf(epochMillis));
+        }
+    }
+
+    @Override
+    public int seekToNextMetadataChange() {
+        synchronized (shared) {
+            int fill = fill();
+            int position = shared.getMetadata().nextChange(fill, fill - size());
+            return position < 0 ? 0 : seekTo(position);
+        }
+    }
+
+    @Override
+    public int seekToPreviousMetadataChange() {
+        synchronized (shared) {
+            int fill = fill();
+            int position = shared.getMetadata().previousChange(fill, fill - size());
+            return position < 0 ? 0 : seekTo(position);
+        }
+    }
+
+    @Override
+    public List<MetadataRange> metadataRanges() {
+        synchronized (shared) {
+            return shared.getMetadata().ranges(fill());
+        }
+    }
+
+    /**
+     * Counts all chunks which are available in the shared buffer, see {@link #fill()}.
+     */
+    @Override
+    public long bytesBuffered() {
+        return shared.bytesBuffered();
+    }
+
+    @Override
+    public double secondsBuffered() {
+        return shared.secondsBuffered();
+    }
+
+    @Override
+    public boolean empty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean full() {
+        return size() >= capacity();
+    }
+
+    @Override
+    public int capacity() {
+        return shared.capacity();
+    }
+
+    @Override
+    public int size() {
+        synchronized (shared) {
+            sync();
+
+            return (int) (shared.getNextAdd() - nextGet);
+        }
+    }
+
+    @Override
+    public int fill() {
+        return shared.fill();
+    }
+
+    /**
+     * Skips all unread chunks for this cursor, i.e. it continues
+     * reading at the next chunk that is added.
+     *
+     * Only the read-position of this cursor is moved, the chunks stay
+     * available in the shared buffer, so fill() and seeking backwards
+     * are not affected and other cursors can still use them. Use
+     * {@link MultiReaderRingBuffer#reset()} to discard the chunks for
+     * all cursors.
+     */
+    @Override
+    public void reset() {
+        synchronized (shared) {
+            nextGet = shared.getNextAdd();
+        }
+    }
+
+    @Override
+    public int bufferedForward() {
+        return size();
+    }
+
+    @Override
+    public int bufferedBackward() {
+        synchronized (shared) {
+            return Math.max(fill() - size(), 0);
+        }
+    }
+
+    /**
+     * @return The number of chunks which were overwritten by the writer
+     *      before this cursor could read them
+     */
+    public long getSkipped() {
+        synchronized (shared) {
+            sync();
+
+            return skipped;
+        }
+    }
+
+    /**
+     * Stops this cursor, next() returns null afterwards.
+     *
+     * Other cursors are not affected.
+     */
+    @SuppressForbidden(reason = "Uses Object.notifyAll() on purpose here")
+    @Override
+    public void close() {
+        synchronized (shared) {
+            stop = true;
+
+            shared.notifyAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (shared) {
+            return "BufferCursor{" +
+                    "nextGet=" + nextGet +
+                    ", skipped=" + skipped +
+                    ", stop=" + stop +
+                    ", capacity=" + capacity() +
+                    ", size=" + size() +
+                    ", empty=" + empty() +
+                    ", full=" + full() +
+                    ", shared=" + shared +
+                    '}';
+        }
+    }
+}
@@ -21,6 +21,9 @@ import java.util.logging.Logger;
  * and read it in later again
  *
  * See https://github.com/michel-kraemer/bson4jackson and https://michelkraemer.com/binary-json-with-bson4jackson/
+ *
+ * Alternatively a more compact binary format can be written, see {@link BinaryBufferFormat},
+ * reading detects the format of the file automatically.
  */
 public class BufferPersistence {
     private final static Logger log = LoggerFactory.make();
@@ -34,6 +37,22 @@ public class BufferPersistence {
     }
     private static final ObjectMapper mapper = JsonMapper.builder(fac).build();
 
+    /**
+     * The file-formats which are supported for persisting the buffer
+     */
+    public enum Format {
+        /**
+         * BSON via bson4jackson
+         */
+        BSON,
+
+        /**
+         * Binary format with meta-data and timestamps encoded compactly
+         * and the audio data stored as raw blocks
+         */
+        BINARY
+    }
+
     /**
      * write the data out to the given file
      * @param file The file to write to
@@ -42,9 +61,25 @@ public class BufferPersistence {
      * @throws IOException If the file cannot be opened for writing.
      */
     public static void writeBufferToDisk(File file, BufferPersistenceDTO dto) throws IOException {
-        log.info("Writing " + dto + " to file " + file);
-        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(file))) {
-            mapper.writeValue(stream, dto);
+        writeBufferToDisk(file, dto, Format.BSON);
+    }
+
+    /**
+     * write the data out to the given file in the given format
+     * @param file The file to write to
+     * @param dto The data to serialize out, prepared as DTO to shield from implementation details of the buffer-classes
+     * @param format The file-format to use
+     *
+     * @throws IOException If the file cannot be opened for writing.
+     */
+    public static void writeBufferToDisk(File file, BufferPersistenceDTO dto, Format format) throws IOException {
+        log.info("Writing " + dto + " to file " + file + " as " + format);
+        if (format == Format.BINARY) {
+            BinaryBufferFormat.write(file, dto);
+        } else {
+            try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(file))) {
+                mapper.writeValue(stream, dto);
+            }
         }
         log.fine("Done writing to " + file);
     }
@@ -53,6 +88,9 @@ public class BufferPersistence {
      * read the data from the given file and
      * construct the buffer as it was at the time of writing.
      *
+     * Both formats are supported, files in the binary format are
+     * detected by their header.
+     *
      * @param file The file to read the data from
      * @return A DTO for creating the buffer-object in the state as it was at the time of writing
      *
@@ -60,6 +98,12 @@ public class BufferPersistence {
      */
     public static BufferPersistenceDTO readBufferFromDisk(File file) throws IOException {
         log.info("Reading buffer from file " + file);
+        if (BinaryBufferFormat.isBinary(file)) {
+            final BufferPersistenceDTO dto = BinaryBufferFormat.read(file);
+            log.info("Read " + dto + " from binary file " + file);
+            return dto;
+        }
+
         try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
             final BufferPersistenceDTO dto = mapper.readValue(stream, BufferPersistenceDTO.class);
             log.info("Read " + dto + " from file " + file);
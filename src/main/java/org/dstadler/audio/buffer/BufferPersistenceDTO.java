@@ -36,6 +36,10 @@ public class BufferPersistenceDTO {
 	private int numberOfDiskChunks;
 	private int numberOfDiskFiles;
 	private File dataDir;
+	private long[] timestamps;
+	private int[] metadataStarts;
+	private String[] metadataValues;
+	private int[] lengths;
 
     private long chunkCount;
 
@@ -56,13 +60,18 @@ public class BufferPersistenceDTO {
         this.numberOfDiskChunks = 0;
         this.numberOfDiskFiles = 0;
         this.dataDir = null;
+        this.timestamps = null;
+        this.metadataStarts = null;
+        this.metadataValues = null;
+        this.lengths = null;
 
         this.chunkCount = 0;
     }
 
 	private BufferPersistenceDTO(Chunk[] buffer, int nextGet, int nextAdd, int fill, long nextDownloadPosition,
             Stream stream, boolean playing, boolean downloadWhilePaused, int numberOfDiskChunks, int numberOfDiskFiles,
-            File dataDir, long chunkCount) {
+            File dataDir, long[] timestamps, int[] metadataStarts, String[] metadataValues, int[] lengths,
+            long chunkCount) {
 		// copy the array to be able to continue adding items to the buffer
 		// while the data is written
 		this.buffer = ArrayUtils.clone(buffer);
@@ -79,6 +88,10 @@ public class BufferPersistenceDTO {
         this.numberOfDiskChunks = numberOfDiskChunks;
         this.numberOfDiskFiles = numberOfDiskFiles;
         this.dataDir = dataDir;
+        this.timestamps = timestamps;
+        this.metadataStarts = metadataStarts;
+        this.metadataValues = metadataValues;
+        this.lengths = lengths;
 
         this.chunkCount = chunkCount;
 	}
@@ -127,6 +140,37 @@ public class BufferPersistenceDTO {
 		return dataDir;
 	}
 
+	/**
+	 * @return The timestamps of the chunks which are stored on disk, or null
+	 * 		if the buffer keeps the chunks in the DTO or if they were not persisted
+	 */
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+
+	/**
+	 * @return The positions where the meta-data of the chunks which are stored
+	 * 		on disk changes, or null if they were not persisted
+	 */
+	public int[] getMetadataStarts() {
+		return metadataStarts;
+	}
+
+	/**
+	 * @return The meta-data for each of the positions in {@link #getMetadataStarts()}
+	 */
+	public String[] getMetadataValues() {
+		return metadataValues;
+	}
+
+	/**
+	 * @return The number of bytes of the chunks which are stored on disk, or null
+	 * 		if the buffer keeps the chunks in the DTO or if they were not persisted
+	 */
+	public int[] getLengths() {
+		return lengths;
+	}
+
     public long getChunkCount() {
         return chunkCount;
     }
@@ -145,6 +189,9 @@ public class BufferPersistenceDTO {
 				(numberOfDiskChunks == 0 ? "" : ", numberOfDiskChunks=" + numberOfDiskChunks) +
 				(numberOfDiskFiles == 0 ? "" : ", numberOfDiskFiles=" + numberOfDiskFiles) +
 				(dataDir == null ? "" : ", dataDir=" + dataDir) +
+				(timestamps == null ? "" : ", timestamps=" + timestamps.length) +
+				(metadataStarts == null ? "" : ", metadataStarts=" + metadataStarts.length) +
+				(lengths == null ? "" : ", lengths=" + lengths.length) +
 				", chunkCount=" + chunkCount +
 				'}';
 	}
@@ -168,6 +215,10 @@ public class BufferPersistenceDTO {
         private int numberOfDiskChunks;
         private int numberOfDiskFiles;
         private File dataDir;
+        private long[] timestamps;
+        private int[] metadataStarts;
+        private String[] metadataValues;
+        private int[] lengths;
         private long chunkCount;
 
         private Builder() {
@@ -205,6 +256,25 @@ public class BufferPersistenceDTO {
             return this;
         }
 
+        public Builder timestamps(long[] timestamps) {
+            this.timestamps = timestamps;
+
+            return this;
+        }
+
+        public Builder metadata(int[] metadataStarts, String[] metadataValues) {
+            this.metadataStarts = metadataStarts;
+            this.metadataValues = metadataValues;
+
+            return this;
+        }
+
+        public Builder lengths(int[] lengths) {
+            this.lengths = lengths;
+
+            return this;
+        }
+
         public Builder chunkCount(long chunkCount) {
             this.chunkCount = chunkCount;
 
@@ -213,7 +283,7 @@ public class BufferPersistenceDTO {
 
         public BufferPersistenceDTO build() {
             return new BufferPersistenceDTO(buffer, nextGet, nextAdd, fill, nextDownloadPosition, stream,
-                    playing, downloadWhilePaused, numberOfDiskChunks, numberOfDiskFiles, dataDir, chunkCount);
+                    playing, downloadWhilePaused, numberOfDiskChunks, numberOfDiskFiles, dataDir, timestamps, metadataStarts, metadataValues, lengths, chunkCount);
         }
     }
 }
@@ -0,0 +1,79 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Limits the amount of audio data that is kept in a buffer in addition
+ * to the number of chunks.
+ *
+ * Chunks can have very different sizes depending on the stream, so a limit
+ * of bytes provides a predictable memory budget and a limit of time provides
+ * a predictable time-shift window regardless of the size of the chunks.
+ *
+ * The duration is computed from the timestamps of the oldest and the newest
+ * chunk in the buffer.
+ */
+public class CapacityLimit {
+    /**
+     * Only the number of chunks limits the buffer
+     */
+    public static final CapacityLimit NONE = new CapacityLimit(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private final long maxBytes;
+    private final long maxMillis;
+
+    /**
+     * @param maxBytes The maximum number of bytes of audio data to keep
+     * @param maxMillis The maximum time-span of audio data to keep in milliseconds
+     */
+    public CapacityLimit(long maxBytes, long maxMillis) {
+        Preconditions.checkArgument(maxBytes > 0, "Had max bytes: %s", maxBytes);
+        Preconditions.checkArgument(maxMillis > 0, "Had max millis: %s", maxMillis);
+
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @param maxBytes The maximum number of bytes of audio data to keep
+     * @return A limit which only limits the number of bytes
+     */
+    public static CapacityLimit ofBytes(long maxBytes) {
+        return new CapacityLimit(maxBytes, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSeconds The maximum time-span of audio data to keep in seconds
+     * @return A limit which only limits the time-span of the audio data
+     */
+    public static CapacityLimit ofSeconds(long maxSeconds) {
+        Preconditions.checkArgument(maxSeconds > 0, "Had max seconds: %s", maxSeconds);
+
+        return new CapacityLimit(Long.MAX_VALUE, maxSeconds * 1000);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @param bytes The number of bytes in the buffer
+     * @param millis The time-span of the chunks in the buffer in milliseconds
+     * @return true if the oldest chunk should be removed from the buffer
+     */
+    boolean isExceeded(long bytes, long millis) {
+        return bytes > maxBytes || millis > maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "CapacityLimit{" +
+                "maxBytes=" + maxBytes +
+                ", maxMillis=" + maxMillis +
+                '}';
+    }
+}
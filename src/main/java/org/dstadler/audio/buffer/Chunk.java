@@ -2,6 +2,7 @@ package org.dstadler.audio.buffer;
 
 import com.google.common.base.Preconditions;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -37,10 +38,31 @@ public class Chunk {
         this.timestamp = timestamp;
     }
 
+    /**
+     * Constructor for chunks which provide their data on demand
+     * by overriding {@link #getData()}, {@link #asByteBuffer()}
+     * and {@link #size()}.
+     */
+    protected Chunk(String metaData, long timestamp) {
+        this.data = null;
+        this.metaData= Preconditions.checkNotNull(metaData, "MetaData cannot be null");
+        this.timestamp = timestamp;
+    }
+
     public byte[] getData() {
         return data;
     }
 
+    /**
+     * Provide the data without copying it, e.g. for chunks which
+     * are stored outside of the Java heap.
+     *
+     * @return A read-only view on the data of this chunk
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
     public String getMetaData() {
         return metaData;
     }
@@ -57,23 +79,24 @@ public class Chunk {
     public boolean equals(Object o) {
         if (this == o)
             return true;
-        if (o == null || getClass() != o.getClass())
+        // chunks which provide their data on demand are equal to plain chunks
+        if (!(o instanceof Chunk))
             return false;
 
         Chunk chunk = (Chunk) o;
 
-        return Arrays.equals(data, chunk.data);
+        return Arrays.equals(getData(), chunk.getData());
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(data);
+        return Arrays.hashCode(getData());
     }
 
     @Override
     public String toString() {
         return "Chunk{" +
-                "data=" + data.length + " bytes" +
+                "data=" + size() + " bytes" +
                 ", metaData='" + metaData + '\'' +
                 ", timestamp=" + timestamp +
                 '}';
@@ -0,0 +1,193 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+import org.dstadler.audio.util.MP3FrameParser;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the duration of the audio data in the chunks which were added to a
+ * buffer, as derived from the frame headers by a {@link MP3FrameParser}.
+ *
+ * The durations are kept for the last chunks up to the capacity of the
+ * buffer, so positions in the buffer can be mapped to the chunks, as long as
+ * the buffer drops the oldest chunks first, e.g. also when chunks are removed
+ * because of a {@link CapacityLimit}. The buffer needs to report its fill
+ * via {@link #setFill(int)} after chunks were added. If it reports a different
+ * fill when computing a duration, e.g. because chunks were added to or removed
+ * from it directly or it fetches chunks itself like {@link RangeDownloadingBuffer},
+ * the positions cannot be mapped and the average duration is used for all chunks.
+ *
+ * Chunks which were added before the first frames were found have an
+ * unknown duration unless they are part of an ID3 tag, for those the average
+ * duration of the known chunks is used.
+ *
+ * For each chunk, the sum and number of the known durations of all chunks
+ * added before it are stored, so the duration of a range of chunks is
+ * computed from the difference of two entries without iterating it.
+ */
+final class ChunkDurations {
+    private final MP3FrameParser parser = new MP3FrameParser();
+
+    // the duration of the chunk with index "added % length", NaN if not known
+    private final double[] seconds;
+    private long added;
+
+    // the index of the first chunk which was added, earlier chunks have an unknown duration
+    private long first;
+
+    // sum and number of the known durations of all chunks added before the chunk at the same index
+    private final double[] secondsBefore;
+    private final long[] knownBefore;
+
+    // sum and number of the known durations of all chunks which were added
+    private double totalSeconds;
+    private long totalKnown;
+
+    // the fill of the buffer after the last chunk was added
+    private int fill;
+
+    // sum and number of the known durations which are currently stored
+    private double knownSeconds;
+    private int knownCount;
+
+    /**
+     * @param capacity How many chunks the buffer can hold
+     * @param fill How many chunks are already in the buffer, their duration is not known
+     */
+    ChunkDurations(int capacity, int fill) {
+        Preconditions.checkArgument(capacity > 0, "Capacity needs to be larger than zero, but had: %s", capacity);
+
+        this.seconds = new double[capacity + 1];
+        Arrays.fill(seconds, Double.NaN);
+        this.secondsBefore = new double[capacity + 1];
+        this.knownBefore = new long[capacity + 1];
+        this.added = fill;
+        this.first = fill;
+        this.fill = fill;
+    }
+
+    synchronized void add(Chunk chunk) {
+        double duration = parser.parse(chunk.getData());
+
+        int slot = (int) (added % seconds.length);
+        if (!Double.isNaN(seconds[slot])) {
+            knownSeconds -= seconds[slot];
+            knownCount--;
+
+            // do not keep rounding errors of removed values
+            if (knownCount == 0) {
+                knownSeconds = 0;
+            }
+        }
+
+        secondsBefore[slot] = totalSeconds;
+        knownBefore[slot] = totalKnown;
+
+        // a tag does not contain audio data, but before the stream of frames
+        // was found, the data may be in a format which is not supported
+        if (parser.getFrames() > 0 || parser.isInTag()) {
+            seconds[slot] = duration;
+            knownSeconds += duration;
+            knownCount++;
+            totalSeconds += duration;
+            totalKnown++;
+        } else {
+            seconds[slot] = Double.NaN;
+        }
+
+        added++;
+    }
+
+    /**
+     * Record the fill of the buffer after chunks were added.
+     *
+     * @param fill The number of chunks which are currently in the buffer
+     */
+    synchronized void setFill(int fill) {
+        this.fill = fill;
+    }
+
+    /**
+     * @return The average duration of a chunk in seconds, 0 if the duration
+     *      is not known for any of the chunks
+     */
+    synchronized double secondsPerChunk() {
+        if (knownCount == 0) {
+            return 0;
+        }
+
+        return knownSeconds / knownCount;
+    }
+
+    /**
+     * @param start The absolute position of the first chunk, see {@link SeekableRingBuffer#seekTo(int)}
+     * @param end The absolute position after the last chunk
+     * @param fill The number of chunks which are currently in the buffer
+     * @return The duration of the chunks in the given range in seconds, 0 if the
+     *      duration is not known for any of the chunks
+     */
+    synchronized double durationOf(int start, int end, int fill) {
+        start = Math.max(start, 0);
+        end = Math.min(end, fill);
+
+        double average = secondsPerChunk();
+
+        // the chunks in the buffer are not the ones which were added last
+        if (fill != this.fill || fill > added) {
+            return Math.max(end - start, 0) * average;
+        }
+
+        if (end <= start) {
+            return 0;
+        }
+
+        // only the chunks which were added and are still stored have a known duration
+        long from = Math.max(added - fill + start, Math.max(first, added - seconds.length));
+        long to = added - fill + end;
+        if (from >= to) {
+            return (end - start) * average;
+        }
+
+        double known = secondsBefore(to) - secondsBefore(from);
+        long count = knownBefore(to) - knownBefore(from);
+
+        // the average is used for the chunks with an unknown duration
+        return known + (end - start - count) * average;
+    }
+
+    // index needs to be between the oldest stored chunk and added
+    private double secondsBefore(long index) {
+        return index == added ? totalSeconds : secondsBefore[(int) (index % seconds.length)];
+    }
+
+    private long knownBefore(long index) {
+        return index == added ? totalKnown : knownBefore[(int) (index % seconds.length)];
+    }
+
+    /**
+     * @param fill How many chunks are in the buffer after the reset, their duration is not known
+     */
+    synchronized void reset(int fill) {
+        parser.reset();
+        Arrays.fill(seconds, Double.NaN);
+        added = fill;
+        first = fill;
+        this.fill = fill;
+        knownSeconds = 0;
+        knownCount = 0;
+        totalSeconds = 0;
+        totalKnown = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ChunkDurations{" +
+                "added=" + added +
+                ", fill=" + fill +
+                ", known=" + knownCount +
+                ", secondsPerChunk=" + secondsPerChunk() +
+                ", parser=" + parser +
+                '}';
+    }
+}
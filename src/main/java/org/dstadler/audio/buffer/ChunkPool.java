@@ -0,0 +1,103 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A simple pool of byte-arrays which allows to re-use the data
+ * of chunks which were overwritten in a ring-buffer for reading
+ * the next chunk from a stream.
+ *
+ * Arrays are only handed out for the exact requested size, arrays
+ * of a different size are dropped, as usually a stream always uses
+ * the same size for all chunks.
+ *
+ * Reference-safety: An array is only released to the pool by the
+ * ring-buffer when the chunk is overwritten, i.e. after the writer
+ * lapped the whole buffer since it was added. The buffer does not
+ * release the chunks that were returned by the last read, i.e. by the
+ * last call to next(), next(Chunk[]) or drainTo(), and by peek() since
+ * then, so a reader can safely use all chunks of the current read, but
+ * should not keep references to chunks of earlier reads, it needs to
+ * copy the data in this case.
+ */
+public class ChunkPool {
+    private final int maxPooled;
+    private final Deque<byte[]> pool;
+
+    private long allocated = 0;
+    private long reused = 0;
+
+    /**
+     * @param maxPooled The maximum number of arrays that are kept in the pool,
+     *                  further released arrays are left to the garbage collector
+     */
+    public ChunkPool(int maxPooled) {
+        Preconditions.checkArgument(maxPooled > 0, "Had max pooled: %s", maxPooled);
+
+        this.maxPooled = maxPooled;
+        this.pool = new ArrayDeque<>(maxPooled);
+    }
+
+    /**
+     * Get an array of the given size, either from the pool or newly allocated.
+     * The content of the array is undefined, callers need to overwrite it fully.
+     *
+     * @param size The number of bytes that are required
+     * @return An array of exactly the given size
+     */
+    public synchronized byte[] acquire(int size) {
+        byte[] data;
+        while((data = pool.pollFirst()) != null) {
+            if(data.length == size) {
+                reused++;
+                return data;
+            }
+        }
+
+        allocated++;
+        return new byte[size];
+    }
+
+    /**
+     * Put an array back into the pool, the caller must not
+     * use it afterwards.
+     *
+     * @param data The array to re-use, empty arrays are ignored
+     */
+    public synchronized void release(byte[] data) {
+        if(data.length > 0 && pool.size() < maxPooled) {
+            pool.addFirst(data);
+        }
+    }
+
+    public synchronized int size() {
+        return pool.size();
+    }
+
+    /**
+     * @return How many arrays had to be allocated newly in acquire()
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * @return How many arrays were taken from the pool in acquire()
+     */
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ChunkPool{" +
+                "maxPooled=" + maxPooled +
+                ", size=" + pool.size() +
+                ", allocated=" + allocated +
+                ", reused=" + reused +
+                '}';
+    }
+}
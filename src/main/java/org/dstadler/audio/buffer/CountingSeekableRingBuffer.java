@@ -25,4 +25,30 @@ public interface CountingSeekableRingBuffer extends SeekableRingBuffer<Chunk> {
     double getChunksReadPerSecond();
 
     double getChunksPerSecond();
+
+    /**
+     * @return The average duration of the audio data in one chunk in seconds,
+     *      derived from the frame headers of the data if possible, otherwise
+     *      estimated from {@link #getChunksPerSecond()}
+     */
+    double secondsPerChunk();
+
+    /**
+     * Compute how long it takes to play the chunks in the given range at normal speed.
+     *
+     * @param start The absolute position of the first chunk, see {@link #seekTo(int)}
+     * @param end The absolute position after the last chunk
+     * @return The duration of the audio data in the given range in seconds
+     */
+    double durationOf(int start, int end);
+
+    /**
+     * Compute how long it takes to play the chunks of the given range at normal speed.
+     *
+     * @param range A range of chunks as returned by {@link #metadataRanges()}
+     * @return The duration of the audio data in the given range in seconds
+     */
+    default double durationOf(MetadataRange range) {
+        return durationOf(range.getStart(), range.getEnd());
+    }
 }
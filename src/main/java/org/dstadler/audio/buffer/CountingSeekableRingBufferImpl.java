@@ -1,9 +1,15 @@
 package org.dstadler.audio.buffer;
 
 import com.google.common.base.Preconditions;
-import org.dstadler.commons.metrics.MovingAverage;
+import org.dstadler.audio.metrics.MetricsSource;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -14,8 +20,20 @@ import java.util.concurrent.atomic.AtomicLong;
  *
  * This average is used to estimate how long it takes when the audio
  * data is played at normal speed.
+ *
+ * The rates are computed by a {@link RateEstimator}, so counting does not
+ * lock and querying the rate does not need to walk the whole window.
+ *
+ * The counters and rates are available via {@link MetricsSource}, together
+ * with the metrics of the delegate.
+ *
+ * The frame headers of the added data are parsed by {@link ChunkDurations}, so
+ * for MP3 streams the chunks per second and the buffered seconds are computed
+ * from the actual duration of the audio data instead of the time when the chunks
+ * arrived, which is only a rough estimate for live streams and does not work at
+ * all for downloads.
  */
-public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffer {
+public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffer, MetricsSource {
     private final SeekableRingBuffer<Chunk> delegate;
     private final long start = System.currentTimeMillis();
 
@@ -29,8 +47,10 @@ public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffe
 
     // record timestamps of the last 300 chunks so we can compute how many we do per second
     private static final int DEFAULT_MOVING_WINDOW = 50;
-    private final MovingAverage chunksWrittenPerSecond;
-    private final MovingAverage chunksReadPerSecond;
+    private final RateEstimator chunksWrittenPerSecond;
+    private final RateEstimator chunksReadPerSecond;
+
+    private final ChunkDurations durations;
 
     /**
      * Construct the buffer with the given buffer-instance
@@ -57,21 +77,41 @@ public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffe
         Preconditions.checkNotNull(delegate, "Buffer cannot be null");
         this.delegate = delegate;
 
-        chunksWrittenPerSecond = new MovingAverage(movingWindow);
-        chunksReadPerSecond = new MovingAverage(movingWindow);
+        chunksWrittenPerSecond = new RateEstimator(movingWindow);
+        chunksReadPerSecond = new RateEstimator(movingWindow);
+
+        durations = new ChunkDurations(Math.max(delegate.capacity(), 1), delegate.fill());
     }
 
     @Override
     public void add(Chunk chunk) {
         delegate.add(chunk);
+        durations.add(chunk);
+        durations.setFill(delegate.fill());
 
         bytesWrittenOverall.addAndGet(chunk.size());
         chunksWrittenOverall.addAndGet(1);
 
         // compute how long it takes until we add a certain number of chunks
         // to allow computation of a moving average written chunks per second
-        synchronized (chunksWrittenPerSecond) {
-            chunksWrittenPerSecond.add(chunk.getTimestamp());
+        chunksWrittenPerSecond.add(chunk.getTimestamp());
+    }
+
+    @Override
+    public void addAll(Chunk[] chunks, int off, int len) {
+        delegate.addAll(chunks, off, len);
+
+        long bytes = 0;
+        for(int i = off;i < off + len;i++) {
+            bytes += chunks[i].size();
+            durations.add(chunks[i]);
+        }
+        durations.setFill(delegate.fill());
+        bytesWrittenOverall.addAndGet(bytes);
+        chunksWrittenOverall.addAndGet(len);
+
+        for(int i = off;i < off + len;i++) {
+            chunksWrittenPerSecond.add(chunks[i].getTimestamp());
         }
     }
 
@@ -85,6 +125,10 @@ public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffe
     @Override
     public void addNoStats(Chunk chunk) {
         delegate.add(chunk);
+
+        // the duration is needed to map positions to chunks
+        durations.add(chunk);
+        durations.setFill(delegate.fill());
     }
 
     @Override
@@ -98,13 +142,49 @@ public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffe
         chunksReadOverall.addAndGet(1);
 
         // compute how long it takes between reads
-        synchronized (chunksReadPerSecond) {
-            chunksReadPerSecond.add(System.currentTimeMillis());
-        }
+        chunksReadPerSecond.add(System.currentTimeMillis());
 
         return chunk;
     }
 
+    @Override
+    public int next(Chunk[] dest) {
+        int count = delegate.next(dest);
+
+        countRead(Arrays.asList(dest).subList(0, count));
+
+        return count;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Chunk> target, int max) {
+        List<Chunk> chunks = new ArrayList<>();
+        int count = delegate.drainTo(chunks, max);
+
+        countRead(chunks);
+        target.addAll(chunks);
+
+        return count;
+    }
+
+    private void countRead(List<Chunk> chunks) {
+        if(chunks.isEmpty()) {
+            return;
+        }
+
+        long bytes = 0;
+        for(Chunk chunk : chunks) {
+            bytes += chunk.size();
+        }
+        bytesReadOverall.addAndGet(bytes);
+        chunksReadOverall.addAndGet(chunks.size());
+
+        long now = System.currentTimeMillis();
+        for(int i = 0;i < chunks.size();i++) {
+            chunksReadPerSecond.add(now);
+        }
+    }
+
     @Override
     public Chunk peek() {
         return delegate.peek();
@@ -115,6 +195,60 @@ public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffe
         return delegate.seek(nrOfChunks);
     }
 
+    @Override
+    public int seekTo(int absolutePosition) {
+        return delegate.seekTo(absolutePosition);
+    }
+
+    @Override
+    public int seekToFraction(double fraction) {
+        return delegate.seekToFraction(fraction);
+    }
+
+    @Override
+    public int positionOf(long epochMillis) {
+        return delegate.positionOf(epochMillis);
+    }
+
+    @Override
+    public int seekToTimestamp(long epochMillis) {
+        return delegate.seekToTimestamp(epochMillis);
+    }
+
+    @Override
+    public int seekToNextMetadataChange() {
+        return delegate.seekToNextMetadataChange();
+    }
+
+    @Override
+    public int seekToPreviousMetadataChange() {
+        return delegate.seekToPreviousMetadataChange();
+    }
+
+    @Override
+    public List<MetadataRange> metadataRanges() {
+        return delegate.metadataRanges();
+    }
+
+    @Override
+    public long bytesBuffered() {
+        return delegate.bytesBuffered();
+    }
+
+    /**
+     * @return The duration of the audio data in the buffer if it can be derived
+     *      from the frame headers, otherwise the time-span between the oldest and
+     *      the newest chunk as provided by the delegate
+     */
+    @Override
+    public double secondsBuffered() {
+        if(durations.secondsPerChunk() > 0) {
+            return durations.durationOf(0, delegate.fill(), delegate.fill());
+        }
+
+        return delegate.secondsBuffered();
+    }
+
     @Override
     public boolean empty() {
         return delegate.empty();
@@ -143,6 +277,7 @@ public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffe
     @Override
     public void reset() {
         delegate.reset();
+        durations.reset(delegate.fill());
     }
 
     @Override
@@ -162,20 +297,22 @@ public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffe
 
     @Override
     public double getChunksWrittenPerSecond() {
-        synchronized (chunksWrittenPerSecond) {
-            return computeChunksPerSecond(chunksWrittenPerSecond);
-        }
+        return chunksWrittenPerSecond.getPerSecond();
     }
 
     @Override
     public double getChunksReadPerSecond() {
-        synchronized (chunksReadPerSecond) {
-            return computeChunksPerSecond(chunksReadPerSecond);
-        }
+        return chunksReadPerSecond.getPerSecond();
     }
 
     @Override
     public double getChunksPerSecond() {
+        // the actual duration of the audio data is preferred over the measured rates
+        double secondsPerChunk = durations.secondsPerChunk();
+        if(secondsPerChunk > 0) {
+            return 1 / secondsPerChunk;
+        }
+
         double written = getChunksWrittenPerSecond();
         double read = getChunksReadPerSecond();
 
@@ -198,39 +335,24 @@ public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffe
         return Math.min(written, read);
     }
 
-    private static double computeChunksPerSecond(MovingAverage chunksPerSecond) {
-        if(chunksPerSecond.getFill() == 0) {
-            return 0;
-        }
-
-        // compute the duration of receiving all the chunks
-        // in the sliding window, but exclude time-jumps, e.g
-        // where the Laptop was in Sleep/Hibernate
-        long durationAdjust = 0;
-        long countAdjust = 0;
-        long[] window = chunksPerSecond.getWindow();
-        long prevValue = window[0];
-        for (long value : window) {
-            // only count values up to 5 seconds, larger
-            // times between chunks are very likely stopped
-            // or sleeping applications
-            if(value - prevValue >= 5000) {
-                durationAdjust += (value - prevValue);
-                countAdjust++;
-            }
-            prevValue = value;
+    @Override
+    public double secondsPerChunk() {
+        double secondsPerChunk = durations.secondsPerChunk();
+        if(secondsPerChunk > 0) {
+            return secondsPerChunk;
         }
 
-        long start = chunksPerSecond.getFirst();
-        long end = chunksPerSecond.getLast();
-        double durationInSec = ((double) end - start - durationAdjust)/1000;
+        return 1 / getChunksPerSecond();
+    }
 
-        double chunksInWindow = chunksPerSecond.getFill() - countAdjust;
+    @Override
+    public double durationOf(int start, int end) {
+        int fill = delegate.fill();
+        if(durations.secondsPerChunk() > 0) {
+            return durations.durationOf(start, end, fill);
+        }
 
-        // we have up to 300 items in the moving average,
-        // we get per-second rate by dividing by the number
-        // of seconds it took to receive that many
-        return chunksInWindow / durationInSec;
+        return Math.max(Math.min(end, fill) - Math.max(start, 0), 0) / getChunksPerSecond();
     }
 
     // for testing
@@ -245,6 +367,33 @@ public class CountingSeekableRingBufferImpl implements CountingSeekableRingBuffe
         return ((double) bytesWrittenOverall.get()) * 1000 / time;
     }
 
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics;
+        if(delegate instanceof MetricsSource source) {
+            metrics = source.getMetrics();
+        } else {
+            metrics = new LinkedHashMap<>();
+            metrics.put("size", delegate.size());
+            metrics.put("fill", delegate.fill());
+            metrics.put("capacity", delegate.capacity());
+            metrics.put("bufferedForward", delegate.bufferedForward());
+            metrics.put("bufferedBackward", delegate.bufferedBackward());
+        }
+
+        metrics.put("bytesWrittenOverall", bytesWrittenOverall.get());
+        metrics.put("chunksWrittenOverall", chunksWrittenOverall.get());
+        metrics.put("bytesReadOverall", bytesReadOverall.get());
+        metrics.put("chunksReadOverall", chunksReadOverall.get());
+        metrics.put("bytesWrittenPerSecond", getPerSecond(bytesWrittenOverall));
+        metrics.put("bytesReadPerSecond", getPerSecond(bytesReadOverall));
+        metrics.put("chunksWrittenPerSecond", getChunksWrittenPerSecond());
+        metrics.put("chunksReadPerSecond", getChunksReadPerSecond());
+        metrics.put("chunksPerSecond", getChunksPerSecond());
+        metrics.put("secondsPerChunk", secondsPerChunk());
+        return metrics;
+    }
+
     @Override
     public String toString() {
         //long time = System.currentTimeMillis() - start;
@@ -1,16 +1,27 @@
 package org.dstadler.audio.buffer;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.dstadler.audio.metrics.LatencyStats;
+import org.dstadler.audio.metrics.MetricsSource;
 import org.dstadler.audio.stream.Stream;
 import org.dstadler.audio.util.RuntimeInterruptedException;
 import org.dstadler.commons.logging.jdk.LoggerFactory;
@@ -36,20 +47,73 @@ import com.google.common.base.Preconditions;
  * the current position for reading and writing can be anywhere
  * across the full virtual buffer.
  *
+ * In write-behind mode, the write-buffer is handed to a background
+ * thread when the write-position moves on to the next file and an empty
+ * buffer is used for writing right away, the previous data of this
+ * file is read in the background as well. So adding chunks does not
+ * wait for disk-access. Errors of the background thread are reported
+ * via an IllegalStateException from one of the next calls to add().
+ *
+ * With prefetching enabled via {@link #setPrefetchFraction(double)}, the
+ * next file is read by a background thread as soon as the reader has
+ * passed the given fraction of the current one, and the target file of a
+ * seek() is read before the lock is taken. So next() does not wait for
+ * disk-access during steady playback.
+ *
+ * Files which were read or written recently can be kept in memory via
+ * {@link #setSegmentCacheSize(int, long)}, so seeking back and forth
+ * across the same files does not read them again.
+ *
+ * Only the chunks which changed since the last flush are written. If not
+ * all chunks of a file changed, e.g. when toPersistence() is called
+ * periodically, they are appended to a separate delta-file which is
+ * applied when reading the file. The full file is written again when all
+ * chunks changed or the delta-file grows larger than the file itself.
+ *
+ * With a {@link JournalPolicy}, each added chunk is also appended to a
+ * journal which is forced to disk regularly, also if no chunks are added.
+ * Files are forced to disk as well and the journal starts over whenever all
+ * data is persisted, i.e. when switching to the next file for writing, after
+ * the background write finished with write-behind, and in toPersistence().
+ * When restoring the buffer with a journal, the
+ * chunks of the journal are added again, so at most the chunks since the
+ * last sync of the journal are lost if the process is killed.
+ *
+ * A checksum is stored for each file, so {@link SegmentRecovery} can verify
+ * all files quickly before the buffer is restored.
+ *
+ * The fill of the buffer, counters of added, read and overwritten chunks and
+ * of disk-access are available via {@link MetricsSource}. Reads which had to
+ * wait for data and the time between added chunks are recorded in {@link LatencyStats}.
+ *
  *
  */
-public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Persistable {
+public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Persistable, MetricsSource {
 	private final static Logger log = LoggerFactory.make();
 
 	public static final String FILE_PREFIX = "AudioBuffer-";
 
-	private static final byte[] EMPTY = new byte[0];
+	/**
+	 * How many buffers can be queued for writing in the background, if the
+	 * disk cannot keep up, buffers are written by the calling thread
+	 */
+	private static final int WRITE_BEHIND_QUEUE_SIZE = 4;
+
+	/**
+	 * How long close() waits for writes which are queued in the background
+	 */
+	private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
 
 	private final int numberOfDiskChunks;
 	private final int numberOfDiskFiles;
 	private final int numberOfChunks;
 	private final File dataDir;
 
+	/**
+	 * Reads and writes the files of the buffer
+	 */
+	private final SegmentStore store;
+
 	/**
 	 * Chunk-position of the current in-memory buffers in the overall virtual buffer.
 	 */
@@ -69,10 +133,10 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 	private Chunk[] diskBufferWrite;
 
 	/**
-	 * Indicates if there were writes to the in-memory diskBuffer and it therefore
-	 * needs to be flushed before switching to another buffer
+	 * Indicates which positions of the in-memory diskBuffer were written and
+	 * therefore need to be flushed before switching to another buffer
 	 */
-	private boolean isDirty;
+	private final BitSet dirtySlots = new BitSet();
 
 	/**
 	 * Indicates the next position to read in the virtual buffer.
@@ -91,12 +155,148 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 
 	private int fill = 0;
 
+	/**
+	 * Timestamps of all chunks in the virtual buffer, kept in memory
+	 * so that finding positions by time does not need to read from disk
+	 */
+	private final TimestampIndex timestamps;
+
+	/**
+	 * The number of bytes of all chunks in the virtual buffer, kept in
+	 * memory so that counting the buffered bytes does not need to read from disk
+	 */
+	private final int[] lengths;
+
+	/**
+	 * The number of bytes in the chunks which are counted in fill
+	 */
+	private long bytes = 0;
+
+	/**
+	 * Positions where the meta-data of the chunks changes
+	 */
+	private final MetadataIndex metadata;
+
 	/**
 	 * This enables breaking a blocking wait in next(),
 	 * set via calling close()
 	 */
 	private boolean stop = false;
 
+	/**
+	 * Writes and reads buffers in the background in write-behind mode, null otherwise
+	 */
+	private final ThreadPoolExecutor flusher;
+
+	/**
+	 * Records all added chunks if a journal is used, null otherwise
+	 */
+	private final Journal journal;
+
+	/**
+	 * Set when all data was persisted when switching to the next file
+	 * for writing, so the journal can start over
+	 */
+	private boolean checkpointNeeded;
+
+	/**
+	 * With write-behind, the value of writeBufferSwaps for the buffer which was queued
+	 * for writing last, -1 if there is none, and the positions after the swap. The
+	 * journal can start over with these positions when the background write is done.
+	 */
+	private int checkpointSwap = -1;
+	private int checkpointNextGet;
+	private int checkpointNextAdd;
+	private int checkpointFill;
+	private boolean swapped;
+
+	/**
+	 * Set by the background thread to the value of writeBufferSwaps when a buffer was written
+	 */
+	private volatile int persistedSwap = -1;
+
+	/**
+	 * Forces the journal to disk regularly if no chunks are added, null if not needed
+	 */
+	private final ScheduledThreadPoolExecutor journalSyncer;
+
+	/**
+	 * Set while the chunks of the journal are added again when restoring the buffer
+	 */
+	private boolean replaying;
+
+	/**
+	 * Buffers which were read or written recently, buffers which are queued for
+	 * writing are kept as dirty, so reading them does not use the outdated data of the file
+	 */
+	private final SegmentCache cache = new SegmentCache();
+
+	/**
+	 * The buffer which was queued for writing last
+	 */
+	private Future<?> lastWrite;
+
+	/**
+	 * Reads the previous data for the current write-buffer in the background
+	 */
+	private Future<Chunk[]> pendingLoad;
+
+	/**
+	 * Positions in the write-buffer which were written since it was
+	 * swapped in, the previous data is only used for the other positions
+	 */
+	private boolean[] written;
+
+	/**
+	 * Set by the background thread if writing a buffer fails
+	 */
+	private volatile IllegalStateException writeError;
+
+	/**
+	 * The slots of buffers which could not be written in the background by position,
+	 * they are written again with the next write of the same buffer or in awaitWrites(),
+	 * until then the data is kept as dirty segment in the cache
+	 */
+	private final Map<Integer, BitSet> failedWrites = new ConcurrentHashMap<>();
+
+	/**
+	 * Reads the next buffer for reading in the background, null if prefetching is not enabled
+	 */
+	private ThreadPoolExecutor prefetcher;
+
+	/**
+	 * Fraction of the current read-buffer after which the next one is prefetched,
+	 * negative if prefetching is disabled
+	 */
+	private double prefetchFraction = -1;
+
+	/**
+	 * The buffer which is read ahead for reading, the position in the virtual buffer
+	 * and the value of writeBufferSwaps when reading was started
+	 */
+	private Future<Chunk[]> prefetch;
+	private int prefetchPosition;
+	private int prefetchSwaps;
+
+	/**
+	 * Counts how often the write-position moved to another buffer, a prefetched
+	 * buffer is only used if the writer did not touch it in the meantime
+	 */
+	private int writeBufferSwaps = 0;
+
+	/**
+	 * Counts how often a buffer for reading had to be loaded while holding the lock
+	 */
+	private int synchronousReads = 0;
+
+	/**
+	 * Counters for metrics, chunks replayed from the journal are not counted
+	 */
+	private long chunksAdded = 0;
+	private long chunksRead = 0;
+	private long chunksOverwrittenUnread = 0;
+	private final LatencyStats latencyStats = new LatencyStats();
+
 	/**
 	 * Initialize a new buffer with empty data.
 	 *
@@ -110,6 +310,36 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 	 * @param dataDir The directory where buffers can be persisted.
 	 */
 	public DiskBasedBlockingSeekableRingBuffer(int numberOfDiskChunks, int numberOfDiskFiles, File dataDir) {
+		this(numberOfDiskChunks, numberOfDiskFiles, dataDir, false);
+	}
+
+	/**
+	 * Initialize a new buffer with empty data.
+	 *
+	 * @param numberOfDiskChunks Number of byte-array chunks that are stored on disk
+	 * @param numberOfDiskFiles Into how many files the disk-buffer is split. This also
+	 *                          controls how big the in-memory area needs to be
+	 * @param dataDir The directory where buffers can be persisted.
+	 * @param writeBehind If true, buffers are written to disk by a background thread
+	 */
+	public DiskBasedBlockingSeekableRingBuffer(int numberOfDiskChunks, int numberOfDiskFiles, File dataDir,
+			boolean writeBehind) {
+		this(numberOfDiskChunks, numberOfDiskFiles, dataDir, writeBehind, JournalPolicy.NONE);
+	}
+
+	/**
+	 * Initialize a new buffer with empty data, a journal of a previous
+	 * buffer in the same directory is discarded.
+	 *
+	 * @param numberOfDiskChunks Number of byte-array chunks that are stored on disk
+	 * @param numberOfDiskFiles Into how many files the disk-buffer is split. This also
+	 *                          controls how big the in-memory area needs to be
+	 * @param dataDir The directory where buffers can be persisted.
+	 * @param writeBehind If true, buffers are written to disk by a background thread
+	 * @param journalPolicy If and how often added chunks are written to a journal
+	 */
+	public DiskBasedBlockingSeekableRingBuffer(int numberOfDiskChunks, int numberOfDiskFiles, File dataDir,
+			boolean writeBehind, JournalPolicy journalPolicy) {
 		this.numberOfDiskChunks = numberOfDiskChunks;
 		this.numberOfDiskFiles = numberOfDiskFiles;
 		this.dataDir = dataDir;
@@ -125,10 +355,28 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 				"Had disk chunks: %s and disk blocks: %s", numberOfDiskChunks, numberOfDiskFiles);
 
 		this.numberOfChunks = numberOfDiskChunks / numberOfDiskFiles;
+		this.store = new SegmentStore(dataDir, numberOfDiskChunks, numberOfChunks);
 
 		// initialize buffers with empty data
-		this.diskBufferRead = createEmptyBuffer(numberOfChunks);
-		this.diskBufferWrite = createEmptyBuffer(numberOfChunks);
+		this.diskBufferRead = SegmentStore.createEmptyBuffer(numberOfChunks);
+		this.diskBufferWrite = SegmentStore.createEmptyBuffer(numberOfChunks);
+		this.timestamps = new TimestampIndex(numberOfDiskChunks);
+		this.lengths = new int[numberOfDiskChunks];
+		this.metadata = new MetadataIndex();
+		this.written = new boolean[numberOfChunks];
+		this.flusher = writeBehind ? createExecutor("DiskBufferFlusher-%d") : null;
+
+		if (journalPolicy.isEnabled()) {
+			try {
+				this.journal = store.openJournal(journalPolicy);
+				this.journal.checkpoint(nextGet, nextAdd, fill);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not create journal in " + dataDir, e);
+			}
+		} else {
+			this.journal = null;
+		}
+		this.journalSyncer = startJournalSync();
 	}
 
 	/**
@@ -143,10 +391,16 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 	 * @param nextGet The position for the next get operation
 	 * @param nextAdd The position for the next add operation
 	 * @param fill The current fill value
+	 * @param timestamps The timestamps of the chunks, null to read them from the files on disk
+	 * @param metadataStarts The positions where the meta-data changes, null to read them from the files on disk
+	 * @param metadataValues The meta-data for each of the positions in metadataStarts
+	 * @param lengths The number of bytes of the chunks, null to read them from the files on disk
+	 * @param writeBehind If true, buffers are written to disk by a background thread
+	 * @param journal The journal whose chunks are added again, null if no journal is used
 	 */
 	private DiskBasedBlockingSeekableRingBuffer(int numberOfDiskChunks, int numberOfDiskFiles, File dataDir,
-			int nextGet, int nextAdd, int fill)
-			throws IOException {
+			int nextGet, int nextAdd, int fill, long[] timestamps, int[] metadataStarts, String[] metadataValues,
+			int[] lengths, boolean writeBehind, Journal journal) throws IOException {
 		this.numberOfDiskChunks = numberOfDiskChunks;
 		this.numberOfDiskFiles = numberOfDiskFiles;
 		this.dataDir = dataDir;
@@ -162,6 +416,7 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 				"Had disk chunks: %s and disk blocks: %s", numberOfDiskChunks, numberOfDiskFiles);
 
 		this.numberOfChunks = numberOfDiskChunks / numberOfDiskFiles;
+		this.store = new SegmentStore(dataDir, numberOfDiskChunks, numberOfChunks);
 
 		this.nextGet = nextGet;
 		this.nextAdd = nextAdd;
@@ -184,8 +439,175 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 				nextGet, diskBufferReadPosition, numberOfChunks, numberOfDiskChunks, numberOfDiskFiles);
 
 		// try to read the buffer from disk based on these positions
-		this.diskBufferRead = readBuffer(dataDir, diskBufferReadPosition, numberOfChunks);
-		this.diskBufferWrite = readBuffer(dataDir, diskBufferWritePosition, numberOfChunks);
+		this.diskBufferRead = store.read(diskBufferReadPosition);
+		this.diskBufferWrite = store.read(diskBufferWritePosition);
+		this.written = new boolean[numberOfChunks];
+		this.flusher = writeBehind ? createExecutor("DiskBufferFlusher-%d") : null;
+		this.journal = journal;
+
+		// buffers persisted by older versions did not store the indexes,
+		// so we need to read them from the files on disk
+		boolean hasTimestamps = timestamps != null && timestamps.length == numberOfDiskChunks;
+		boolean hasMetadata = metadataStarts != null && metadataValues != null &&
+				metadataStarts.length == metadataValues.length;
+		boolean hasLengths = lengths != null && lengths.length == numberOfDiskChunks;
+		String[] metaData = new String[numberOfDiskChunks];
+		if (!hasTimestamps || !hasMetadata || !hasLengths) {
+			long[] diskTimestamps = new long[numberOfDiskChunks];
+			int[] diskLengths = new int[numberOfDiskChunks];
+			store.readIndexes(diskTimestamps, metaData, diskLengths);
+			if (!hasTimestamps) {
+				timestamps = diskTimestamps;
+			}
+			if (!hasLengths) {
+				lengths = diskLengths;
+			}
+		}
+
+		int start = Math.floorMod(nextAdd - fill, numberOfDiskChunks);
+		this.timestamps = new TimestampIndex(timestamps, start, fill);
+		this.lengths = lengths.clone();
+		for (int i = 0; i < fill; i++) {
+			bytes += this.lengths[(start + i) % numberOfDiskChunks];
+		}
+		if (hasMetadata) {
+			this.metadata = new MetadataIndex(fill, metadataStarts, metadataValues);
+		} else {
+			this.metadata = new MetadataIndex();
+			for (int i = 0; i < fill; i++) {
+				metadata.add(metaData[(start + i) % numberOfDiskChunks], i + 1);
+			}
+		}
+
+		if (journal != null) {
+			replayJournal();
+		}
+		this.journalSyncer = startJournalSync();
+	}
+
+	/**
+	 * The journal is only checked for syncing when chunks are appended, so
+	 * check it regularly in the background as well to enforce the time limit
+	 * of the {@link JournalPolicy} when no chunks arrive.
+	 *
+	 * @return The executor which runs the check, null if no journal is used
+	 *      or it is synced for every chunk
+	 */
+	private ScheduledThreadPoolExecutor startJournalSync() {
+		if (journal == null || journal.getPolicy().getSyncMillis() == 0) {
+			return null;
+		}
+
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+				BasicThreadFactory.builder()
+						.daemon(true)
+						.namingPattern("DiskBufferJournalSync-%d")
+						.uncaughtExceptionHandler((t, e) ->
+								log.log(Level.WARNING, "Had unexpected exception", e))
+						.build());
+
+		// check more often than required, so the sync is late by a fraction of the limit at most
+		long period = Math.max(journal.getPolicy().getSyncMillis() / 4, 1);
+		executor.scheduleWithFixedDelay(this::syncJournal, period, period, TimeUnit.MILLISECONDS);
+
+		return executor;
+	}
+
+	private synchronized void syncJournal() {
+		if (stop) {
+			return;
+		}
+
+		try {
+			journal.syncIfNeeded();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not sync journal in " + dataDir, e);
+		}
+	}
+
+	/**
+	 * Add the chunks of the journal again and persist them, so that the journal can start over.
+	 */
+	private void replayJournal() throws IOException {
+		replaying = true;
+		try {
+			journal.replay((position, chunk) -> {
+				// stop at chunks which do not continue the buffer
+				if (position != nextAdd) {
+					log.warning("Stopping replay of journal at position " + position + ", expected " + nextAdd);
+					return false;
+				}
+
+				addInternal(chunk);
+				return true;
+			});
+		} finally {
+			replaying = false;
+		}
+
+		persistAll();
+	}
+
+	private static ThreadPoolExecutor createExecutor(String namingPattern) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(WRITE_BEHIND_QUEUE_SIZE),
+				BasicThreadFactory.builder()
+						.daemon(true)
+						.namingPattern(namingPattern)
+						.uncaughtExceptionHandler((t, e) ->
+								log.log(Level.WARNING, "Had unexpected exception", e))
+						.build(),
+				// write or read in the calling thread if the disk cannot keep up
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		// do not keep the thread when the buffer is not used any more
+		executor.allowCoreThreadTimeOut(true);
+
+		return executor;
+	}
+
+	/**
+	 * Enable reading the next buffer in the background before the reader reaches it.
+	 *
+	 * @param fraction When the reader has passed this fraction of the current
+	 *                 buffer, e.g. 0.5 for the middle of it, the next buffer is read.
+	 *                 A negative value disables prefetching, which is the default.
+	 */
+	public synchronized void setPrefetchFraction(double fraction) {
+		Preconditions.checkArgument(fraction <= 1, "Had prefetch fraction: %s", fraction);
+
+		this.prefetchFraction = fraction;
+		if (fraction >= 0 && prefetcher == null) {
+			prefetcher = createExecutor("DiskBufferPrefetch-%d");
+		}
+	}
+
+	/**
+	 * Keep buffers which were read or written recently in memory, so that
+	 * seeking to them again does not need to read them from disk.
+	 *
+	 * The cache is disabled by default, buffers are evicted in least-recently-used
+	 * order when one of the limits is exceeded.
+	 *
+	 * @param maxSegments How many buffers of numberOfDiskChunks / numberOfDiskFiles chunks are kept at most
+	 * @param maxBytes How many bytes of chunk-data are kept at most
+	 */
+	public void setSegmentCacheSize(int maxSegments, long maxBytes) {
+		cache.setLimits(maxSegments, maxBytes);
+	}
+
+	/**
+	 * @return How often a buffer was found in the cache instead of reading it from disk
+	 */
+	public long getCacheHits() {
+		return cache.getHits();
+	}
+
+	/**
+	 * @return How often a buffer had to be read from disk as it was not found in the cache
+	 */
+	public long getCacheMisses() {
+		return cache.getMisses();
 	}
 
 	private int getDiskPosition(int pos) {
@@ -200,55 +622,204 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 	 * @throws java.io.IOException If writing to the file fails.
 	 */
 	private void persistBuffer() throws IOException {
-		if (isDirty) {
-			File bufferFile = new File(dataDir, FILE_PREFIX + diskBufferWritePosition + ".bson");
+		if (!dirtySlots.isEmpty()) {
+			writeSlots(diskBufferWritePosition, diskBufferWrite, dirtySlots);
+			cache.putWritten(diskBufferWritePosition, diskBufferWrite.clone(), false);
 
-			log.info("Writing buffer for position " + diskBufferWritePosition + " to file " + bufferFile);
-			try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(bufferFile))) {
-				BufferPersistence.getMapper().writeValue(stream, diskBufferWrite);
-			}
-			log.fine("Done writing to " + bufferFile);
+			dirtySlots.clear();
+		}
+	}
 
-			isDirty = false;
+	/**
+	 * Write the given positions of the buffer, files need to be on
+	 * disk before the journal can start over.
+	 */
+	private void writeSlots(int diskBufferPosition, Chunk[] buffer, BitSet dirty) throws IOException {
+		store.write(diskBufferPosition, buffer, dirty, journal != null);
+	}
+
+	/**
+	 * Hand the write-buffer to the background thread and continue with an
+	 * empty buffer, the previous data for it is read in the background.
+	 */
+	private void swapWriteBuffer() {
+		// the previous data needs to be complete before the buffer is written
+		applyLoad(true);
+
+		if (!dirtySlots.isEmpty()) {
+			final int position = diskBufferWritePosition;
+			final Chunk[] buffer = diskBufferWrite;
+			final BitSet dirty = (BitSet) dirtySlots.clone();
+
+			final int swap = writeBufferSwaps;
+			cache.putWritten(position, buffer, true);
+			lastWrite = flusher.submit(() -> {
+				// the buffer was loaded via the cache, so it contains the data of a
+				// previous write of it which failed, which is written again now
+				BitSet failed = failedWrites.remove(position);
+				if (failed != null) {
+					dirty.or(failed);
+				}
+
+				try {
+					writeSlots(position, buffer, dirty);
+					cache.markClean(position, buffer);
+
+					// the journal can start over when the next chunk is added
+					persistedSwap = swap;
+				} catch (IOException | RuntimeException e) {
+					// the data stays available in memory, the error is reported via add()
+					// and the write is tried again in awaitWrites()
+					failedWrites.put(position, dirty);
+					writeError = new IllegalStateException("Could not write buffer in the background at position " +
+							position + " to " + dataDir, e);
+				}
+			});
+
+			dirtySlots.clear();
+			swapped = true;
+		}
+
+		diskBufferWritePosition = getDiskPosition(nextAdd);
+		diskBufferWrite = SegmentStore.createEmptyBuffer(numberOfChunks);
+		written = new boolean[numberOfChunks];
+
+		final int position = diskBufferWritePosition;
+		pendingLoad = flusher.submit(() -> loadBuffer(position));
+	}
+
+	/**
+	 * Read a buffer, using the cached data or the data of a queued write if there is one.
+	 */
+	private Chunk[] loadBuffer(int diskBufferPosition) throws IOException {
+		Chunk[] cached = cache.get(diskBufferPosition);
+		if (cached != null) {
+			return cached;
 		}
+
+		long stamp = cache.stamp();
+		Chunk[] buffer = store.read(diskBufferPosition);
+		cache.putRead(diskBufferPosition, buffer.clone(), stamp);
+
+		return buffer;
 	}
 
 	/**
-	 * Fetches data for the given position into the buffer
+	 * Fill the positions of the write-buffer which were not written yet with
+	 * the data that was read in the background.
 	 *
-	 * @throws IOException If reading from the file fails
+	 * @param wait If false, nothing is done if reading is not finished yet
 	 */
-	private static Chunk[] readBuffer(File tempDir, int diskBufferPosition, int numberOfChunks) throws IOException {
-		File bufferFile = new File(tempDir, FILE_PREFIX + diskBufferPosition + ".bson");
+	private void applyLoad(boolean wait) {
+		if (pendingLoad == null || (!wait && !pendingLoad.isDone())) {
+			return;
+		}
 
-		if (!bufferFile.exists()) {
-			log.info("Could not read disk-buffer from " + tempDir);
+		final Chunk[] loaded;
+		try {
+			loaded = pendingLoad.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeInterruptedException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not update current buffers for writing at position " +
+					diskBufferWritePosition + " from " + dataDir, e.getCause());
+		} finally {
+			pendingLoad = null;
+		}
 
-			return createEmptyBuffer(numberOfChunks);
-		} else {
-			if (log.isLoggable(Level.FINE)) {
-				log.fine("Reading buffer from file " + bufferFile);
+		for (int i = 0; i < numberOfChunks; i++) {
+			if (!written[i]) {
+				diskBufferWrite[i] = loaded[i];
+			}
+		}
+	}
+
+	/**
+	 * Wait until all queued buffers are written to disk and write
+	 * buffers again where writing failed in the background.
+	 *
+	 * @throws IllegalStateException If a buffer still cannot be written
+	 */
+	private void awaitWrites() {
+		if (lastWrite != null) {
+			try {
+				// there is only one thread, so all previous writes are done as well
+				lastWrite.get();
+			} catch (InterruptedException e) {
+				throw new RuntimeInterruptedException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Could not write buffers to " + dataDir, e.getCause());
 			}
-			try (InputStream stream = new BufferedInputStream(new FileInputStream(bufferFile))) {
-				Chunk[] buffer = BufferPersistence.getMapper().readValue(stream, Chunk[].class);
-				log.info("Position " + diskBufferPosition + ": read " + buffer.length + " chunks from file " + bufferFile);
-				return buffer;
+		}
+
+		// no write is running now as writes are only queued while holding the lock
+		for (Iterator<Map.Entry<Integer, BitSet>> it = failedWrites.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Integer, BitSet> entry = it.next();
+			int position = entry.getKey();
+
+			// dirty segments are not evicted from the cache
+			Chunk[] buffer = cache.get(position);
+			Preconditions.checkState(buffer != null,
+					"Did not find data of failed write at position %s in the cache", position);
+
+			try {
+				writeSlots(position, buffer, entry.getValue());
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not write buffer at position " + position + " to " + dataDir, e);
 			}
+
+			cache.putWritten(position, buffer, false);
+			it.remove();
 		}
+
+		// all data is on disk now
+		writeError = null;
 	}
 
-	private static Chunk[] createEmptyBuffer(int numberOfChunks) {
-		Chunk[] buffer = new Chunk[numberOfChunks];
-		for(int i = 0; i < numberOfChunks; i++) {
-			buffer[i] = new Chunk(EMPTY, "", 0);
+	/**
+	 * Report an error which happened when writing in the background
+	 */
+	private void checkWriteError() {
+		IllegalStateException error = writeError;
+		if (error != null) {
+			writeError = null;
+			throw error;
 		}
-		return buffer;
 	}
 
 	@SuppressForbidden(reason = "Uses Object.notify() on purpose here")
 	@Override
 	public synchronized void add(Chunk chunk) {
 		Preconditions.checkNotNull(chunk);
+
+		addInternal(chunk);
+		latencyStats.recordArrival(System.nanoTime());
+
+		notify();
+
+		checkWriteError();
+	}
+
+	@SuppressForbidden(reason = "Uses Object.notify() on purpose here")
+	@Override
+	public synchronized void addAll(Chunk[] chunks, int off, int len) {
+		Preconditions.checkPositionIndexes(off, off + len, chunks.length);
+		for(int i = off;i < off + len;i++) {
+			Preconditions.checkNotNull(chunks[i]);
+		}
+
+		for(int i = off;i < off + len;i++) {
+			addInternal(chunks[i]);
+		}
+		latencyStats.recordArrival(System.nanoTime());
+
+		// only wake up the reader once for all chunks
+		notify();
+
+		checkWriteError();
+	}
+
+	private void addInternal(Chunk chunk) {
 		Preconditions.checkState(nextAdd - diskBufferWritePosition >= 0 &&
 				nextAdd - diskBufferWritePosition < numberOfChunks,
 				"Did have invalid positions: %s needs to be in range [0, %s[, " +
@@ -256,8 +827,34 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 				nextAdd - diskBufferWritePosition, numberOfChunks,
 				diskBufferWritePosition, nextAdd, numberOfChunks);
 
+		if (journal != null && !replaying && !stop) {
+			try {
+				journal.append(nextAdd, chunk);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not write to journal at position " + nextAdd + " in " + dataDir, e);
+			}
+		}
+
+		// use the previous data of the write-buffer as soon as it is available
+		applyLoad(false);
+
+		// share the meta-data string with the previous chunks
+		String metaData = metadata.add(chunk.getMetaData(), Math.min(fill + 1, numberOfDiskChunks - 1));
+		if (metaData != chunk.getMetaData()) {
+			chunk = new Chunk(chunk.getData(), metaData, chunk.getTimestamp());
+		}
+
+		// the oldest chunk drops out of the buffer when it is full
+		if (fill > 0 && fill == numberOfDiskChunks - 1) {
+			bytes -= lengths[(nextAdd + 1) % numberOfDiskChunks];
+		}
+		bytes += chunk.getData().length;
+
 		diskBufferWrite[nextAdd - diskBufferWritePosition] = chunk;
-		isDirty = true;
+		written[nextAdd - diskBufferWritePosition] = true;
+		dirtySlots.set(nextAdd - diskBufferWritePosition);
+		timestamps.set(nextAdd, chunk.getTimestamp());
+		lengths[nextAdd] = chunk.getData().length;
 
 		// we may also need to update the read-buffer if we write into the
 		// area that we have in-memory for reading
@@ -280,19 +877,70 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 
 			// we are overwriting the next to read, so we need to move nextGet forward as well
 			nextGet = (nextGet + 1) % numberOfDiskChunks;
+			if (!replaying) {
+				chunksOverwrittenUnread++;
+			}
 
 			checkReadBuffer();
 		}
 
 		checkWriteBuffer();
 
+		if (!replaying) {
+			chunksAdded++;
+		}
+
 		// increase fill until we wrapped around at least once
 		// so we know when the buffer is filled up with data
 		if(fill != (numberOfDiskChunks - 1)) {
 			fill++;
 		}
 
-		notify();
+		if (checkpointNeeded) {
+			checkpointNeeded = false;
+			checkpoint();
+		} else if (swapped) {
+			// all chunks up to here are queued for writing
+			swapped = false;
+			checkpointSwap = writeBufferSwaps;
+			checkpointNextGet = nextGet;
+			checkpointNextAdd = nextAdd;
+			checkpointFill = fill;
+		} else if (checkpointSwap >= 0 && persistedSwap == checkpointSwap && failedWrites.isEmpty()) {
+			checkpointSwap = -1;
+			checkpointAfterWrite();
+		}
+	}
+
+	/**
+	 * Let the journal start over after the buffers which were queued for writing
+	 * are on disk. The chunks which were added to the current write-buffer since
+	 * then are only available in memory, so they are appended to the journal again.
+	 */
+	private void checkpointAfterWrite() {
+		if (journal != null && !replaying && !stop) {
+			try {
+				journal.checkpoint(checkpointNextGet, checkpointNextAdd, checkpointFill);
+				for (int pos = checkpointNextAdd; pos != nextAdd; pos = (pos + 1) % numberOfDiskChunks) {
+					journal.append(pos, diskBufferWrite[pos - diskBufferWritePosition]);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not write checkpoint to journal in " + dataDir, e);
+			}
+		}
+	}
+
+	/**
+	 * Let the journal start over after all data was persisted
+	 */
+	private void checkpoint() {
+		if (journal != null && !replaying && !stop) {
+			try {
+				journal.checkpoint(nextGet, nextAdd, fill);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not write checkpoint to journal in " + dataDir, e);
+			}
+		}
 	}
 
 	/**
@@ -302,8 +950,24 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 		if (nextGet < diskBufferReadPosition ||
 				(nextGet >= (diskBufferReadPosition + numberOfChunks))) {
 			diskBufferReadPosition = getDiskPosition(nextGet);
+
+			// the area which is currently written may not be persisted yet,
+			// so we need to use a copy of the in-memory data in this case
+			if (diskBufferReadPosition == diskBufferWritePosition) {
+				applyLoad(true);
+				diskBufferRead = diskBufferWrite.clone();
+				return;
+			}
+
+			Chunk[] prefetched = takePrefetched(diskBufferReadPosition);
+			if (prefetched != null) {
+				diskBufferRead = prefetched;
+				return;
+			}
+
+			synchronousReads++;
 			try {
-				diskBufferRead = readBuffer(dataDir, diskBufferReadPosition, numberOfChunks);
+				diskBufferRead = loadBuffer(diskBufferReadPosition);
 			} catch (IOException e) {
 				throw new IllegalStateException("Could not fetch buffer for reading at position " +
 						diskBufferReadPosition + " from " + dataDir + " with nextGet: " + nextGet +
@@ -312,16 +976,96 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 		}
 	}
 
+	/**
+	 * Start reading the buffer after the current read-buffer in the background
+	 * when the reader passed the configured fraction of the current one.
+	 */
+	private void prefetchNextBuffer() {
+		if (prefetchFraction < 0 || prefetcher.isShutdown()) {
+			return;
+		}
+
+		// the last buffer may be shorter if the number of chunks is not a multiple of the files
+		int length = Math.min(numberOfChunks, numberOfDiskChunks - diskBufferReadPosition);
+		if (nextGet - diskBufferReadPosition < prefetchFraction * length) {
+			return;
+		}
+
+		int position = diskBufferReadPosition + numberOfChunks;
+		if (position >= numberOfDiskChunks) {
+			position = 0;
+		}
+
+		// the current write-buffer is copied from memory when the reader reaches it
+		if (position == diskBufferReadPosition || position == diskBufferWritePosition ||
+				(prefetch != null && prefetchPosition == position)) {
+			return;
+		}
+
+		final int readPosition = position;
+		setPrefetch(prefetcher.submit(() -> loadBuffer(readPosition)), position, writeBufferSwaps);
+	}
+
+	private void setPrefetch(Future<Chunk[]> future, int position, int swaps) {
+		if (prefetch != null) {
+			prefetch.cancel(false);
+		}
+
+		prefetch = future;
+		prefetchPosition = position;
+		prefetchSwaps = swaps;
+	}
+
+	/**
+	 * Use the buffer which was read ahead, if it was read for the given position
+	 * and the writer did not touch it since reading was started.
+	 *
+	 * @return The prefetched buffer or null if it cannot be used
+	 */
+	private Chunk[] takePrefetched(int diskBufferPosition) {
+		final Future<Chunk[]> future = prefetch;
+		prefetch = null;
+		if (future == null) {
+			return null;
+		}
+
+		if (prefetchPosition != diskBufferPosition || prefetchSwaps != writeBufferSwaps) {
+			future.cancel(false);
+			return null;
+		}
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeInterruptedException(e);
+		} catch (ExecutionException e) {
+			// the buffer is read again by the caller, which reports the error if it persists
+			log.log(Level.WARNING, "Could not prefetch buffer at position " + diskBufferPosition +
+					" from " + dataDir, e.getCause());
+			return null;
+		}
+	}
+
 	/**
 	 * Check if the next add position is outside the chunks that we have available
 	 */
 	private void checkWriteBuffer() {
 		if (nextAdd < diskBufferWritePosition ||
 				(nextAdd >= (diskBufferWritePosition + numberOfChunks))) {
+			writeBufferSwaps++;
+
+			if (flusher != null && !flusher.isShutdown()) {
+				swapWriteBuffer();
+				return;
+			}
+
 			try {
-				// make sure a dirty buffer is persisted
+				// make sure a dirty buffer is persisted, after close() the
+				// previous data may still need to be applied
+				applyLoad(true);
 				try {
 					persistBuffer();
+					checkpointNeeded = true;
 				} finally {
 					// make sure to adjust disk-buffer write position even if writing does fail
 					// e.g. reading thread may be interrupted by switching streams at the same time
@@ -330,7 +1074,7 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 
 				// we read the previous chunk to keep the previous data if
 				// we seek away and thus flush the memory-buffer to disk again
-				diskBufferWrite = readBuffer(dataDir, diskBufferWritePosition, numberOfChunks);
+				diskBufferWrite = loadBuffer(diskBufferWritePosition);
 			} catch (IOException e) {
 				throw new IllegalStateException("Could not update current buffers for writing at position " +
 						diskBufferWritePosition + " from " + dataDir, e);
@@ -338,24 +1082,52 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 		}
 	}
 
-	@SuppressForbidden(reason = "Uses Object.wait() on purpose here")
 	@Override
 	public synchronized Chunk next() {
-		// wait until data is available
-		while(empty() && !stop) {
-			try {
-				// waiting leaves the synchronized block so other threads
-				// can do work while we wait here
-				wait(100);
-			} catch (InterruptedException e) {
-				throw new RuntimeInterruptedException(e);
-			}
-		}
+		waitForData();
 
 		if(stop) {
 			return null;
 		}
 
+		return nextInternal();
+	}
+
+	@Override
+	public synchronized int next(Chunk[] dest) {
+		if(dest.length == 0) {
+			return 0;
+		}
+
+		waitForData();
+
+		if(stop) {
+			return 0;
+		}
+
+		int count = Math.min(dest.length, size());
+		for(int i = 0;i < count;i++) {
+			dest[i] = nextInternal();
+		}
+
+		return count;
+	}
+
+	@Override
+	public synchronized int drainTo(Collection<? super Chunk> target, int max) {
+		if(stop || max <= 0) {
+			return 0;
+		}
+
+		int count = Math.min(max, size());
+		for(int i = 0;i < count;i++) {
+			target.add(nextInternal());
+		}
+
+		return count;
+	}
+
+	private Chunk nextInternal() {
 		Preconditions.checkState(nextGet - diskBufferReadPosition >= 0 &&
 						nextGet - diskBufferReadPosition < numberOfChunks,
 				"Did have invalid positions: Read-pos: %s, nextGet: %s, numberOfChunks: %s",
@@ -365,13 +1137,46 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 		Chunk chunk = diskBufferRead[nextGet - diskBufferReadPosition];
 
 		nextGet = (nextGet + 1) % numberOfDiskChunks;
+		chunksRead++;
 
 		// make sure we fetch more from disk if necessary
 		checkReadBuffer();
+		prefetchNextBuffer();
 
 		return chunk;
 	}
 
+	@SuppressForbidden(reason = "Uses Object.wait() on purpose here")
+	private void waitForData() {
+		if(!empty() || stop) {
+			return;
+		}
+
+		// wait until data is available
+		long start = System.nanoTime();
+		while(empty() && !stop) {
+			try {
+				// waiting leaves the synchronized block so other threads
+				// can do work while we wait here
+				wait(100);
+			} catch (InterruptedException e) {
+				throw new RuntimeInterruptedException(e);
+			}
+		}
+
+		// waiting until the buffer is closed is not an underrun
+		if(!stop) {
+			latencyStats.recordUnderrun(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return Statistics about reads which had to wait for data and the time between added chunks
+	 */
+	public LatencyStats getLatencyStats() {
+		return latencyStats;
+	}
+
 	@Override
 	public synchronized Chunk peek() {
 		if(empty() || stop) {
@@ -387,58 +1192,116 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 	}
 
 	@Override
-	public synchronized int seek(int nrOfChunks) {
-		// this is a very naive initial implementation which actually loops
-		// to step forward/backward as long as possible and counts it's steps
-		int stepped = 0;
+	public int seek(int nrOfChunks) {
+		preloadForSeek(nrOfChunks);
+
+		synchronized (this) {
+			final int stepped = stepsForSeek(nrOfChunks);
+
+			nextGet = Math.floorMod(nextGet + stepped, numberOfDiskChunks);
+
+			// make sure we fetch more from disk if necessary,
+			// this uses the buffer from preloadForSeek() if possible
+			checkReadBuffer();
+			prefetchNextBuffer();
+
+			return stepped;
+		}
+	}
+
+	private int stepsForSeek(int nrOfChunks) {
+		// compute how far we can move in one step: forward up to the
+		// head of the buffer, backwards until the buffer is full
 		if(nrOfChunks > 0) {
-			for(int i = 0;i < nrOfChunks;i++) {
-				if(!incrementNextGet()) {
-					break;
-				}
-				stepped++;
+			return Math.min(nrOfChunks, size());
+		} else {
+			return Math.max(nrOfChunks, -(capacity() - size()));
+		}
+	}
+
+	/**
+	 * If prefetching is enabled and a seek moves to another buffer, read
+	 * the target buffer without holding the lock, so that neither adding
+	 * chunks nor the seek itself needs to wait for the disk.
+	 */
+	private void preloadForSeek(int nrOfChunks) {
+		final int position;
+		final int swaps;
+		synchronized (this) {
+			if (prefetchFraction < 0) {
+				return;
 			}
-		} else if (nrOfChunks < 0) {
-			for(int i = 0;i > nrOfChunks;i--) {
-				if(!decrementNextGet()) {
-					break;
-				}
-				stepped--;
+
+			position = getDiskPosition(Math.floorMod(nextGet + stepsForSeek(nrOfChunks), numberOfDiskChunks));
+			if (position == diskBufferReadPosition || position == diskBufferWritePosition ||
+					(prefetch != null && prefetchPosition == position)) {
+				return;
 			}
+
+			swaps = writeBufferSwaps;
 		}
 
-		// make sure we fetch more from disk if necessary
-		checkReadBuffer();
+		final Chunk[] buffer;
+		try {
+			buffer = loadBuffer(position);
+		} catch (IOException | RuntimeException e) {
+			// seek() reads the buffer again and reports the error if it persists
+			log.log(Level.WARNING, "Could not preload buffer at position " + position + " from " + dataDir, e);
+			return;
+		}
 
-		// TODO: check for switch to different read and write buffer
-		return stepped;
+		synchronized (this) {
+			setPrefetch(CompletableFuture.completedFuture(buffer), position, swaps);
+		}
 	}
 
-	private boolean incrementNextGet() {
-		if(empty()) {
-			// cannot increment further
-			return false;
-		}
+	@Override
+	public synchronized int seekTo(int absolutePosition) {
+		return seek(absolutePosition - (fill - size()));
+	}
 
-		// advance by one
-		nextGet = (nextGet + 1) % numberOfDiskChunks;
-		return true;
+	@Override
+	public synchronized int positionOf(long epochMillis) {
+		return timestamps.positionOf(epochMillis, Math.floorMod(nextAdd - fill, numberOfDiskChunks), fill);
 	}
 
-	private boolean decrementNextGet() {
-		if(full()) {
-			// cannot increment further
-			return false;
-		}
+	@Override
+	public synchronized int seekToTimestamp(long epochMillis) {
+		return seekTo(positionOf(epochMillis));
+	}
 
-		// decrement by one
-		if(nextGet == 0) {
-			nextGet = numberOfDiskChunks - 1;
-		} else {
-			nextGet--;
+	@Override
+	public synchronized int seekToNextMetadataChange() {
+		int position = metadata.nextChange(fill, fill - size());
+		return position < 0 ? 0 : seekTo(position);
+	}
+
+	@Override
+	public synchronized int seekToPreviousMetadataChange() {
+		int position = metadata.previousChange(fill, fill - size());
+		return position < 0 ? 0 : seekTo(position);
+	}
+
+	@Override
+	public synchronized List<MetadataRange> metadataRanges() {
+		return metadata.ranges(fill);
+	}
+
+	@Override
+	public synchronized long bytesBuffered() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized double secondsBuffered() {
+		if (fill < 2) {
+			return 0;
 		}
 
-		return true;
+		long newest = timestamps.get(Math.floorMod(nextAdd - 1, numberOfDiskChunks));
+		long oldest = timestamps.get(Math.floorMod(nextAdd - fill, numberOfDiskChunks));
+
+		return Math.max(newest - oldest, 0) / 1000.0;
 	}
 
 	@Override
@@ -478,8 +1341,16 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 	public synchronized void reset() {
 		nextAdd = nextGet;
 		fill = 0;
+		bytes = 0;
+		timestamps.reset();
 
 		checkWriteBuffer();
+
+		// the chunks in the journal are discarded as well
+		checkpointNeeded = false;
+		checkpointSwap = -1;
+		swapped = false;
+		checkpoint();
 	}
 
 	@Override
@@ -503,8 +1374,81 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 	}
 
 	@Override
-	public synchronized void close() {
-		stop = true;
+	public void close() {
+		final ThreadPoolExecutor prefetching;
+		synchronized (this) {
+			stop = true;
+			prefetching = prefetcher;
+		}
+
+		// wait outside the lock, so readers and writers are not blocked
+		// while the background threads finish their work;
+		// queued writes are still executed, later buffers are written synchronously
+		shutdown(flusher);
+		shutdown(prefetching);
+		if (journalSyncer != null) {
+			// the check does nothing after stop is set
+			journalSyncer.shutdownNow();
+		}
+
+		synchronized (this) {
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Could not close journal in " + dataDir, e);
+				}
+			}
+		}
+	}
+
+	private void shutdown(ThreadPoolExecutor executor) {
+		if (executor == null) {
+			return;
+		}
+
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				log.warning("Background tasks did not finish after " + SHUTDOWN_TIMEOUT_SECONDS + " seconds in " + dataDir);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeInterruptedException(e);
+		}
+	}
+
+	/**
+	 * @return How often a buffer for reading had to be loaded by the reader
+	 *      itself because it was not prefetched
+	 */
+	synchronized int getSynchronousReads() {
+		return synchronousReads;
+	}
+
+	/**
+	 * @return The journal of the buffer, null if no journal is used
+	 */
+	synchronized Journal getJournal() {
+		return journal;
+	}
+
+	@Override
+	public synchronized Map<String, Number> getMetrics() {
+		Map<String, Number> metrics = new LinkedHashMap<>();
+		metrics.put("size", size());
+		metrics.put("fill", fill);
+		metrics.put("capacity", capacity());
+		metrics.put("bufferedForward", bufferedForward());
+		metrics.put("bufferedBackward", bufferedBackward());
+		metrics.put("chunksAdded", chunksAdded);
+		metrics.put("chunksRead", chunksRead);
+		metrics.put("chunksOverwrittenUnread", chunksOverwrittenUnread);
+		metrics.put("cacheHits", cache.getHits());
+		metrics.put("cacheMisses", cache.getMisses());
+		metrics.put("synchronousReads", synchronousReads);
+		metrics.put("writeBufferSwaps", writeBufferSwaps);
+		latencyStats.addTo(metrics);
+		return metrics;
 	}
 
 	@Override
@@ -513,7 +1457,12 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
 				"dataDir=" + dataDir +
 				", diskBufferRead=" + (diskBufferRead == null ? "<null>" : diskBufferRead.length) +
 				", diskBufferWrite=" + (diskBufferWrite == null ? "<null>" : diskBufferWrite.length) +
-				", isDirty=" + isDirty +
+				", isDirty=" + !dirtySlots.isEmpty() +
+				", writeBehind=" + (flusher != null) +
+				", journal=" + journal +
+				", cache=" + cache +
+				", prefetchFraction=" + prefetchFraction +
+				", synchronousReads=" + synchronousReads +
 				", numberOfDiskChunks=" + numberOfDiskChunks +
 				", diskBufferReadPosition=" + diskBufferReadPosition +
 				", diskBufferWritePosition=" + diskBufferWritePosition +
@@ -534,26 +1483,112 @@ public class DiskBasedBlockingSeekableRingBuffer implements SeekableRingBuffer<C
             long chunkCount) {
 		// make sure any dirty writes are done
 		try {
-			persistBuffer();
+			persistAll();
 		} catch (IOException e) {
 			throw new IllegalStateException("With temp-dir: " + dataDir, e);
 		}
+		checkWriteError();
+
+		List<MetadataRange> ranges = metadata.ranges(fill);
+		int[] metadataStarts = new int[ranges.size()];
+		String[] metadataValues = new String[ranges.size()];
+		for (int i = 0; i < ranges.size(); i++) {
+			metadataStarts[i] = ranges.get(i).getStart();
+			metadataValues[i] = ranges.get(i).getMetaData();
+		}
 
-		// only persist nextGet/nextAdd, we can re-create the positions and buffers from that
+		// only persist nextGet/nextAdd and the indexes, we can re-create the positions and buffers from that
 		return BufferPersistenceDTO.builder().
             buffer(null, nextGet, nextAdd, fill).
             stream(stream, playing, downloadWhilePaused).
             data(numberOfDiskChunks, numberOfDiskFiles, dataDir).
+            timestamps(timestamps.toArray()).
+            metadata(metadataStarts, metadataValues).
+            lengths(lengths.clone()).
             chunkCount(chunkCount).
             build();
 	}
 
+	/**
+	 * Persist all data and let the journal start over.
+	 */
+	private void persistAll() throws IOException {
+		applyLoad(true);
+		awaitWrites();
+		persistBuffer();
+
+		// a checkpoint after the background write is not needed any more
+		checkpointSwap = -1;
+		swapped = false;
+
+		if (journal != null && !stop) {
+			journal.checkpoint(nextGet, nextAdd, fill);
+		} else {
+			// a journal of an earlier buffer or of this buffer after close() would
+			// restore outdated positions, the files contain all data now
+			store.deleteJournal();
+		}
+	}
+
 	public static DiskBasedBlockingSeekableRingBuffer fromPersistence(BufferPersistenceDTO dto) throws IOException {
+		return fromPersistence(dto, false);
+	}
+
+	/**
+	 * @param dto The persisted state of the buffer
+	 * @param writeBehind If true, buffers are written to disk by a background thread
+	 * @return The buffer in the state that it was persisted
+	 * @throws IOException If reading the buffer from disk fails
+	 */
+	public static DiskBasedBlockingSeekableRingBuffer fromPersistence(BufferPersistenceDTO dto, boolean writeBehind)
+			throws IOException {
+		return fromPersistence(dto, writeBehind, JournalPolicy.NONE);
+	}
+
+	/**
+	 * Restore the buffer and add the chunks which were recorded in the journal
+	 * since the last time all data was persisted.
+	 *
+	 * The positions stored in the journal are used if they differ from the ones
+	 * in the dto, i.e. if the journal started over after the dto was created.
+	 *
+	 * @param dto The persisted state of the buffer
+	 * @param writeBehind If true, buffers are written to disk by a background thread
+	 * @param journalPolicy If and how often added chunks are written to a journal
+	 * @return The buffer in the state that it was persisted, including the chunks of the journal
+	 * @throws IOException If reading the buffer or the journal from disk fails
+	 */
+	public static DiskBasedBlockingSeekableRingBuffer fromPersistence(BufferPersistenceDTO dto, boolean writeBehind,
+			JournalPolicy journalPolicy) throws IOException {
 		if(dto.getDataDir() == null || dto.getNumberOfDiskFiles() <= 0 || dto.getNumberOfDiskChunks() <= 0) {
 			throw new IOException("Could not read buffer from persistent file, having: " + dto);
 		}
 
+		if (journalPolicy.isEnabled()) {
+			int numberOfChunks = dto.getNumberOfDiskChunks() / dto.getNumberOfDiskFiles();
+			Journal journal = new SegmentStore(dto.getDataDir(), dto.getNumberOfDiskChunks(), numberOfChunks).
+					openJournal(journalPolicy);
+			try {
+				if (journal.hasState() && (journal.getNextGet() != dto.getNextGet() ||
+						journal.getNextAdd() != dto.getNextAdd() || journal.getFill() != dto.getFill())) {
+					// the indexes of the dto do not match the positions of the journal,
+					// so they are read from the files
+					return new DiskBasedBlockingSeekableRingBuffer(dto.getNumberOfDiskChunks(), dto.getNumberOfDiskFiles(),
+							dto.getDataDir(), journal.getNextGet(), journal.getNextAdd(), journal.getFill(),
+							null, null, null, null, writeBehind, journal);
+				}
+
+				return new DiskBasedBlockingSeekableRingBuffer(dto.getNumberOfDiskChunks(), dto.getNumberOfDiskFiles(),
+						dto.getDataDir(), dto.getNextGet(), dto.getNextAdd(), dto.getFill(), dto.getTimestamps(),
+						dto.getMetadataStarts(), dto.getMetadataValues(), dto.getLengths(), writeBehind, journal);
+			} catch (IOException | RuntimeException e) {
+				journal.close();
+				throw e;
+			}
+		}
+
 		return new DiskBasedBlockingSeekableRingBuffer(dto.getNumberOfDiskChunks(), dto.getNumberOfDiskFiles(), dto.getDataDir(),
-						dto.getNextGet(), dto.getNextAdd(), dto.getFill());
+						dto.getNextGet(), dto.getNextAdd(), dto.getFill(), dto.getTimestamps(),
+						dto.getMetadataStarts(), dto.getMetadataValues(), dto.getLengths(), writeBehind, null);
 	}
 }
@@ -0,0 +1,215 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+import org.dstadler.audio.stream.Stream;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes periodic checkpoints of a {@link BlockingSeekableRingBuffer} as
+ * one base snapshot followed by delta files which only contain the chunks
+ * that changed since the previous checkpoint, so checkpointing a large
+ * buffer does not rewrite all of its data every time.
+ *
+ * After a number of deltas, or when the deltas together are larger than
+ * the base, the next checkpoint writes a new base snapshot ("compaction").
+ * Each base starts a new generation, the files are named
+ * <code>Snapshot-&lt;generation&gt;.base</code> and
+ * <code>Snapshot-&lt;generation&gt;-&lt;sequence&gt;.delta</code>.
+ * Files of older generations are only removed after a new base was written,
+ * so an interrupted checkpoint still leaves a consistent snapshot.
+ *
+ * The files use {@link BufferPersistence.Format#BINARY}, which stores chunks
+ * that are not included in a delta with only one byte and writes each file
+ * to a temporary file first and renames it afterwards.
+ *
+ * The first checkpoint of a new instance always writes a base as changes
+ * can only be tracked from then on.
+ */
+public class IncrementalSnapshots {
+    private final static Logger log = LoggerFactory.make();
+
+    private static final Pattern FILE_PATTERN = Pattern.compile("Snapshot-(\\d+)(?:\\.base|-(\\d+)\\.delta)");
+
+    private final File dir;
+    private final int maxDeltas;
+
+    private int generation;
+    private int deltas = 0;
+    private long baseBytes = 0;
+    private long deltaBytes = 0;
+    private boolean needsBase = true;
+
+    /**
+     * @param dir The directory where the snapshot files are stored
+     * @param maxDeltas The number of delta files after which a new base snapshot is written
+     */
+    public IncrementalSnapshots(File dir, int maxDeltas) {
+        Preconditions.checkNotNull(dir);
+        Preconditions.checkArgument(maxDeltas >= 0, "Had max deltas: %s", maxDeltas);
+
+        this.dir = dir;
+        this.maxDeltas = maxDeltas;
+        this.generation = latestGeneration();
+    }
+
+    /**
+     * Write either a new base snapshot or a delta with the changes since
+     * the previous checkpoint.
+     *
+     * If writing fails, the next checkpoint writes a new base snapshot.
+     *
+     * @param buffer The buffer to persist, it should always be the same instance
+     * @throws IOException If writing the file fails
+     */
+    public synchronized void checkpoint(BlockingSeekableRingBuffer buffer, Stream stream, boolean playing,
+            boolean downloadWhilePaused, long chunkCount) throws IOException {
+        boolean base = needsBase || deltas >= maxDeltas || deltaBytes > baseBytes;
+
+        // changes are not tracked any more after this call, so we need
+        // a new base if writing fails
+        needsBase = true;
+
+        // the file is written while the snapshot is open, so the data of
+        // the chunks is not re-used via a ChunkPool in the meantime
+        try (BlockingSeekableRingBuffer.Snapshot snapshot = buffer.snapshot(!base)) {
+            BufferPersistenceDTO dto = snapshot.toPersistence(stream, playing, downloadWhilePaused, chunkCount);
+            if (base) {
+                writeFile(baseFile(generation + 1), dto);
+
+                generation++;
+                deltas = 0;
+                deltaBytes = 0;
+                baseBytes = baseFile(generation).length();
+
+                deleteOlderGenerations();
+            } else {
+                File file = deltaFile(generation, deltas + 1);
+                writeFile(file, dto);
+
+                deltas++;
+                deltaBytes += file.length();
+            }
+        }
+
+        needsBase = false;
+    }
+
+    /**
+     * @return true if a base snapshot exists in the directory
+     */
+    public boolean hasSnapshot() {
+        return latestGeneration() > 0;
+    }
+
+    /**
+     * Read the latest base snapshot and apply all its deltas.
+     *
+     * @return A DTO with all chunks and the positions of the last checkpoint
+     * @throws IOException If no snapshot exists or reading the files fails
+     */
+    public BufferPersistenceDTO read() throws IOException {
+        int latest = latestGeneration();
+        if (latest <= 0) {
+            throw new IOException("Could not find a snapshot in " + dir);
+        }
+
+        BufferPersistenceDTO dto = BufferPersistence.readBufferFromDisk(baseFile(latest));
+        if (dto.getBuffer() == null) {
+            throw new IOException("Could not read buffer from snapshot, having: " + dto);
+        }
+
+        Chunk[] chunks = dto.getBuffer();
+        int count = 0;
+        for (int sequence = 1; deltaFile(latest, sequence).exists(); sequence++) {
+            dto = BufferPersistence.readBufferFromDisk(deltaFile(latest, sequence));
+            if (dto.getBuffer() == null || dto.getBuffer().length != chunks.length) {
+                throw new IOException("Delta " + sequence + " does not match the snapshot with " + chunks.length +
+                        " chunks, having: " + dto);
+            }
+
+            for (int i = 0; i < chunks.length; i++) {
+                if (dto.getBuffer()[i] != null) {
+                    chunks[i] = dto.getBuffer()[i];
+                }
+            }
+            count++;
+        }
+
+        log.info("Read snapshot " + latest + " with " + count + " deltas from " + dir);
+
+        return BufferPersistenceDTO.builder().
+                buffer(chunks, dto.getNextGet(), dto.getNextAdd(), dto.getFill()).
+                stream(dto.getStream(), dto.isPlaying(), dto.isDownloadWhilePaused()).
+                chunkCount(dto.getChunkCount()).
+                build();
+    }
+
+    private void writeFile(File file, BufferPersistenceDTO dto) throws IOException {
+        // the binary format writes to a temporary file and renames it already
+        BufferPersistence.writeBufferToDisk(file, dto, BufferPersistence.Format.BINARY);
+    }
+
+    private void deleteOlderGenerations() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            Matcher matcher = FILE_PATTERN.matcher(file.getName());
+            if (matcher.matches() && Integer.parseInt(matcher.group(1)) < generation && !file.delete()) {
+                log.warning("Could not delete old snapshot file " + file);
+            }
+        }
+    }
+
+    private int latestGeneration() {
+        int latest = 0;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = FILE_PATTERN.matcher(file.getName());
+                if (matcher.matches() && matcher.group(2) == null) {
+                    latest = Math.max(latest, Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+
+        return latest;
+    }
+
+    private File baseFile(int generation) {
+        return new File(dir, "Snapshot-" + generation + ".base");
+    }
+
+    private File deltaFile(int generation, int sequence) {
+        return new File(dir, "Snapshot-" + generation + "-" + sequence + ".delta");
+    }
+
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    public synchronized int getDeltas() {
+        return deltas;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IncrementalSnapshots{" +
+                "dir=" + dir +
+                ", maxDeltas=" + maxDeltas +
+                ", generation=" + generation +
+                ", deltas=" + deltas +
+                ", baseBytes=" + baseBytes +
+                ", deltaBytes=" + deltaBytes +
+                '}';
+    }
+}
@@ -0,0 +1,335 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the chunks which were added to a
+ * {@link DiskBasedBlockingSeekableRingBuffer} since its files were
+ * last persisted completely.
+ *
+ * The file starts with a header which holds the positions of the buffer
+ * at the last checkpoint, followed by one record for each added chunk:
+ *
+ * <pre>
+ * [int length][int crc32][int epoch][int position][long timestamp][int length of meta-data][meta-data][data]
+ * </pre>
+ *
+ * A checkpoint writes a new header with an increased epoch and starts
+ * appending records at the beginning again, records of earlier epochs
+ * are ignored when replaying. Replaying stops at the first record with
+ * an invalid length or checksum, e.g. if writing was interrupted.
+ *
+ * The file is pre-sized to avoid growing it on every append.
+ *
+ * This class is not thread-safe, the buffer needs to synchronize access.
+ */
+class Journal implements AutoCloseable {
+    private final static Logger log = LoggerFactory.make();
+
+    public static final String FILE_NAME = "AudioBuffer.journal";
+
+    private static final int MAGIC = 0x4a524e4c;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 28;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int RECORD_FIXED_SIZE = 20;
+
+    /**
+     * Receives the records of the journal when replaying it.
+     */
+    interface RecordConsumer {
+        /**
+         * @return false to stop replaying
+         */
+        boolean accept(int position, Chunk chunk);
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final JournalPolicy policy;
+
+    private int epoch;
+    private long offset = HEADER_SIZE;
+
+    private boolean hasState;
+    private int nextGet;
+    private int nextAdd;
+    private int fill;
+
+    private int unsynced = 0;
+    private long lastSync = System.currentTimeMillis();
+
+    /**
+     * Open the journal and read the header of an existing file, nothing is written.
+     *
+     * @param file The file to use for the journal
+     * @param initialSize The size which the file is extended to
+     * @param policy How often the journal is forced to disk
+     * @throws IOException If the file cannot be opened
+     */
+    Journal(File file, long initialSize, JournalPolicy policy) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+
+        readHeader();
+
+        if (raf.length() < initialSize) {
+            raf.setLength(initialSize);
+        }
+    }
+
+    private void readHeader() throws IOException {
+        if (raf.length() < HEADER_SIZE) {
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            log.warning("Ignoring journal with invalid header at " + file);
+            return;
+        }
+
+        int headerEpoch = header.getInt();
+        int headerNextGet = header.getInt();
+        int headerNextAdd = header.getInt();
+        int headerFill = header.getInt();
+        if (header.getInt() != crc(header.array(), 0, HEADER_SIZE - 4)) {
+            log.warning("Ignoring journal with invalid checksum of the header at " + file);
+            return;
+        }
+
+        epoch = headerEpoch;
+        nextGet = headerNextGet;
+        nextAdd = headerNextAdd;
+        fill = headerFill;
+        hasState = true;
+    }
+
+    /**
+     * @return true if the file contained a valid header, i.e.
+     *      getNextGet(), getNextAdd() and getFill() can be used
+     */
+    boolean hasState() {
+        return hasState;
+    }
+
+    int getNextGet() {
+        return nextGet;
+    }
+
+    int getNextAdd() {
+        return nextAdd;
+    }
+
+    int getFill() {
+        return fill;
+    }
+
+    /**
+     * Pass all valid records of the current epoch to the consumer,
+     * subsequent appends continue after the last valid record.
+     *
+     * @param consumer Receives the records in the order they were appended
+     * @return The number of records which were accepted by the consumer
+     * @throws IOException If reading the file fails
+     */
+    int replay(RecordConsumer consumer) throws IOException {
+        if (!hasState) {
+            return 0;
+        }
+
+        int count = 0;
+        long length = raf.length();
+        long pos = HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (pos + RECORD_HEADER_SIZE <= length) {
+            recordHeader.clear();
+            channel.read(recordHeader, pos);
+            recordHeader.flip();
+
+            int size = recordHeader.getInt();
+            int checksum = recordHeader.getInt();
+            if (size < RECORD_FIXED_SIZE || pos + RECORD_HEADER_SIZE + size > length) {
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(size);
+            channel.read(record, pos + RECORD_HEADER_SIZE);
+            if (record.hasRemaining() || checksum != crc(record.array(), 0, size)) {
+                break;
+            }
+            record.flip();
+
+            if (record.getInt() != epoch) {
+                break;
+            }
+
+            int position = record.getInt();
+            long timestamp = record.getLong();
+            int metaDataLength = record.getInt();
+            if (metaDataLength < 0 || metaDataLength > record.remaining()) {
+                break;
+            }
+
+            byte[] metaData = new byte[metaDataLength];
+            record.get(metaData);
+            byte[] data = new byte[record.remaining()];
+            record.get(data);
+
+            if (!consumer.accept(position, new Chunk(data, new String(metaData, StandardCharsets.UTF_8), timestamp))) {
+                break;
+            }
+
+            count++;
+            pos += RECORD_HEADER_SIZE + size;
+        }
+
+        offset = pos;
+
+        log.info("Replayed " + count + " chunks from journal " + file);
+
+        return count;
+    }
+
+    /**
+     * Append a record for the chunk which was added at the given position.
+     */
+    void append(int position, Chunk chunk) throws IOException {
+        byte[] metaData = chunk.getMetaData().getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_FIXED_SIZE + metaData.length + chunk.getData().length;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + size);
+        record.position(RECORD_HEADER_SIZE);
+        record.putInt(epoch);
+        record.putInt(position);
+        record.putLong(chunk.getTimestamp());
+        record.putInt(metaData.length);
+        record.put(metaData);
+        record.put(chunk.getData());
+
+        record.putInt(0, size);
+        record.putInt(4, crc(record.array(), RECORD_HEADER_SIZE, size));
+        record.flip();
+
+        writeFully(record, offset);
+        offset += record.limit();
+
+        unsynced++;
+        long now = System.currentTimeMillis();
+        if (policy.isSyncNeeded(unsynced, now - lastSync)) {
+            sync(now);
+        }
+    }
+
+    /**
+     * Record the positions of the buffer after all its data was persisted,
+     * records which were appended before are not replayed any more.
+     */
+    void checkpoint(int nextGet, int nextAdd, int fill) throws IOException {
+        epoch++;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(epoch);
+        header.putInt(nextGet);
+        header.putInt(nextAdd);
+        header.putInt(fill);
+        header.putInt(crc(header.array(), 0, HEADER_SIZE - 4));
+        header.flip();
+
+        writeFully(header, 0);
+        sync(System.currentTimeMillis());
+
+        this.nextGet = nextGet;
+        this.nextAdd = nextAdd;
+        this.fill = fill;
+        this.hasState = true;
+        this.offset = HEADER_SIZE;
+    }
+
+    /**
+     * Force the journal to disk if the policy requires it because of the time
+     * since the last sync, e.g. when no chunks were appended for some time.
+     */
+    void syncIfNeeded() throws IOException {
+        long now = System.currentTimeMillis();
+        if (unsynced > 0 && channel.isOpen() && policy.isSyncNeeded(unsynced, now - lastSync)) {
+            sync(now);
+        }
+    }
+
+    JournalPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return The number of bytes which are used by the records of the current epoch
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The number of records which were appended since the journal was last forced to disk
+     */
+    int getUnsynced() {
+        return unsynced;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+    }
+
+    private void sync(long now) throws IOException {
+        channel.force(false);
+
+        unsynced = 0;
+        lastSync = now;
+    }
+
+    private static int crc(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (unsynced > 0 && channel.isOpen()) {
+            sync(System.currentTimeMillis());
+        }
+
+        raf.close();
+    }
+
+    @Override
+    public String toString() {
+        return "Journal{" +
+                "file=" + file +
+                ", policy=" + policy +
+                ", epoch=" + epoch +
+                ", offset=" + offset +
+                ", unsynced=" + unsynced +
+                '}';
+    }
+}
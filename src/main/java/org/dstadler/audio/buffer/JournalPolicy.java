@@ -0,0 +1,70 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Controls if and how often the journal of a {@link DiskBasedBlockingSeekableRingBuffer}
+ * is forced to disk.
+ *
+ * Each added chunk is appended to the journal right away, but forcing the file
+ * to disk is only done after a number of chunks or after some time has passed,
+ * so that multiple chunks are committed together. Chunks which were added after
+ * the last sync can be lost on power loss, but not when the process is killed.
+ */
+public class JournalPolicy {
+    /**
+     * No journal is written, chunks are only persisted when the buffer
+     * switches to another file or toPersistence() is called
+     */
+    public static final JournalPolicy NONE = new JournalPolicy();
+
+    private final int syncChunks;
+    private final long syncMillis;
+
+    private JournalPolicy() {
+        this.syncChunks = 0;
+        this.syncMillis = 0;
+    }
+
+    /**
+     * @param syncChunks Force the journal to disk after this number of chunks
+     * @param syncMillis Force the journal to disk if this number of milliseconds
+     *                   passed since the last sync
+     */
+    public JournalPolicy(int syncChunks, long syncMillis) {
+        Preconditions.checkArgument(syncChunks > 0, "Had sync chunks: %s", syncChunks);
+        Preconditions.checkArgument(syncMillis >= 0, "Had sync millis: %s", syncMillis);
+
+        this.syncChunks = syncChunks;
+        this.syncMillis = syncMillis;
+    }
+
+    public boolean isEnabled() {
+        return syncChunks > 0;
+    }
+
+    public int getSyncChunks() {
+        return syncChunks;
+    }
+
+    public long getSyncMillis() {
+        return syncMillis;
+    }
+
+    /**
+     * @param chunks The number of chunks which were appended since the last sync
+     * @param millis The number of milliseconds since the last sync
+     * @return true if the journal should be forced to disk now
+     */
+    boolean isSyncNeeded(int chunks, long millis) {
+        return chunks >= syncChunks || millis >= syncMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "JournalPolicy{" +
+                "syncChunks=" + syncChunks +
+                ", syncMillis=" + syncMillis +
+                '}';
+    }
+}
@@ -0,0 +1,475 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+import org.dstadler.audio.util.RuntimeInterruptedException;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Implementation of the {@link SeekableRingBuffer} interface which
+ * uses {@link Chunk} as data object and does not use any locks.
+ *
+ * It is intended for the common case of one thread which adds chunks,
+ * e.g. reading from a live stream, and one thread which reads chunks,
+ * e.g. for playing the audio.
+ *
+ * Read- and write-position are kept as ever increasing sequence numbers
+ * which are published via volatile fields, the slot in the array is
+ * computed via a bit-mask as the array-size is always a power of two.
+ *
+ * If the writer overwrites the next chunk to read, it moves the
+ * read-position forward via compare-and-set, the reader does the same
+ * when advancing, so a chunk is never returned after it was skipped.
+ *
+ * A reader which waits for data in next() is parked and
+ * woken up as soon as a new chunk is added or close() is called.
+ *
+ * Timestamps and the start of the current meta-data are kept in arrays
+ * parallel to the slots, so the reader can find positions by time or by
+ * changes of the meta-data via binary search without any locking.
+ *
+ * Calling add() and reset() from more than one thread or next() and
+ * seek() from more than one thread at the same time does not block
+ * or fail, but the resulting positions are not well-defined then.
+ */
+public class LockFreeSeekableRingBuffer implements SeekableRingBuffer<Chunk> {
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final VarHandle NEXT_GET;
+    static {
+        try {
+            NEXT_GET = MethodHandles.lookup().findVarHandle(LockFreeSeekableRingBuffer.class, "nextGet", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Chunk[] buffer;
+    private final int mask;
+    private final int capacity;
+
+    /**
+     * Timestamps of the chunks for finding positions by time, only
+     * modified by the writer and published together with nextAdd
+     */
+    private final TimestampIndex timestamps;
+
+    /**
+     * For each slot the sequence number of the first chunk of the run of chunks
+     * with the same meta-data, only modified by the writer and published
+     * together with nextAdd. The values never decrease with the sequence number.
+     */
+    private final long[] metadataStarts;
+
+    /**
+     * Sequence number of the next chunk to read, there is no more
+     * data to read if nextGet == nextAdd
+     *
+     * Only modified via NEXT_GET as it is moved by the reader and the writer
+     */
+    private volatile long nextGet = 0;
+
+    /**
+     * Sequence number of the next chunk to write, only modified by the writer.
+     */
+    private volatile long nextAdd = 0;
+
+    /**
+     * Sequence number of the first add after construction or
+     * the last reset(), used for computing fill()
+     */
+    private volatile long fillStart = 0;
+
+    /**
+     * The number of bytes in the chunks which are counted in fill(),
+     * only modified by the writer.
+     */
+    private volatile long bytes = 0;
+
+    /**
+     * Threads which currently wait in next() for a chunk to be added.
+     */
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * This enables breaking the blocking wait in next(),
+     * set via calling close()
+     */
+    private volatile boolean stop = false;
+
+    /**
+     * Create the buffer, it can hold numberOfChunks - 1 chunks
+     * to provide the same capacity as {@link BlockingSeekableRingBuffer}.
+     *
+     * @param numberOfChunks The number of chunks, internally this is
+     *                       rounded up to the next power of two
+     */
+    public LockFreeSeekableRingBuffer(int numberOfChunks) {
+        Preconditions.checkArgument(numberOfChunks > 0 && numberOfChunks <= (1 << 30),
+                "Had chunks: %s", numberOfChunks);
+
+        int length = Math.max(1, Integer.highestOneBit(numberOfChunks - 1) << 1);
+
+        this.buffer = new Chunk[length];
+        this.mask = length - 1;
+        this.capacity = numberOfChunks - 1;
+        this.timestamps = new TimestampIndex(length);
+        this.metadataStarts = new long[length];
+
+        // initialize buffer with empty chunks
+        for(int i = 0;i < length;i++) {
+            this.buffer[i] = new Chunk(EMPTY, "", 0);
+        }
+    }
+
+    @Override
+    public void add(Chunk chunk) {
+        Preconditions.checkNotNull(chunk);
+
+        addInternal(chunk);
+
+        if(!waiters.isEmpty()) {
+            waiters.forEach(LockSupport::unpark);
+        }
+    }
+
+    @Override
+    public void addAll(Chunk[] chunks, int off, int len) {
+        Preconditions.checkPositionIndexes(off, off + len, chunks.length);
+        for(int i = off;i < off + len;i++) {
+            Preconditions.checkNotNull(chunks[i]);
+        }
+
+        // publish chunk by chunk so the slot of a chunk which the reader
+        // can still access is never overwritten, but wake up the reader only once
+        for(int i = off;i < off + len;i++) {
+            addInternal(chunks[i]);
+        }
+
+        if(!waiters.isEmpty()) {
+            waiters.forEach(LockSupport::unpark);
+        }
+    }
+
+    private void addInternal(Chunk chunk) {
+        // concurrent calls to add() or reset() can leave nextAdd behind nextGet,
+        // continue at the read-position in this case so the chunk is readable at once
+        long add = Math.max(nextAdd, nextGet);
+        int slot = (int) (add & mask);
+
+        // share the meta-data and its start with the previous chunk if it is the same
+        Chunk previous = add > fillStart ? buffer[(int) ((add - 1) & mask)] : null;
+        if(previous != null && previous.getMetaData().equals(chunk.getMetaData())) {
+            if(previous.getMetaData() != chunk.getMetaData()) {
+                chunk = new Chunk(chunk.getData(), previous.getMetaData(), chunk.getTimestamp());
+            }
+            metadataStarts[slot] = metadataStarts[(int) ((add - 1) & mask)];
+        } else {
+            metadataStarts[slot] = add;
+        }
+
+        // the oldest chunk drops out of the buffer when it is full, its slot
+        // is not overwritten here as the array is larger than the capacity
+        long dropped = add - fillStart >= capacity && capacity > 0 ?
+                buffer[(int) ((add - capacity) & mask)].getData().length : 0;
+        bytes = bytes - dropped + chunk.getData().length;
+
+        buffer[slot] = chunk;
+        timestamps.set(slot, chunk.getTimestamp());
+
+        // the volatile write publishes the chunk to the reader
+        nextAdd = add + 1;
+
+        // we are overwriting the next to read, so we need to move nextGet forward as well
+        long get;
+        while((add + 1) - (get = nextGet) > capacity) {
+            if(NEXT_GET.compareAndSet(this, get, get + 1)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public Chunk next() {
+        while(true) {
+            long get = nextGet;
+            if(stop) {
+                return null;
+            }
+
+            if(get >= nextAdd) {
+                awaitChunk();
+                continue;
+            }
+
+            // fetch item before we increase the pointer, if the writer
+            // moved the position in the meantime we try again
+            Chunk chunk = buffer[(int) (get & mask)];
+            if(NEXT_GET.compareAndSet(this, get, get + 1)) {
+                return chunk;
+            }
+        }
+    }
+
+    @Override
+    public int next(Chunk[] dest) {
+        if(dest.length == 0) {
+            return 0;
+        }
+
+        while(true) {
+            if(stop) {
+                return 0;
+            }
+
+            if(empty()) {
+                awaitChunk();
+                continue;
+            }
+
+            int count = nextInternal(dest, dest.length);
+            if(count > 0) {
+                return count;
+            }
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Chunk> target, int max) {
+        if(stop || max <= 0) {
+            return 0;
+        }
+
+        Chunk[] chunks = new Chunk[Math.min(max, size())];
+        int count = nextInternal(chunks, chunks.length);
+        target.addAll(Arrays.asList(chunks).subList(0, count));
+
+        return count;
+    }
+
+    /**
+     * Copy up to max available chunks into dest and advance nextGet, if
+     * the writer moves nextGet in the meantime we retry with the new position.
+     */
+    private int nextInternal(Chunk[] dest, int max) {
+        while(true) {
+            long get = nextGet;
+            int count = Math.min(max, size(get));
+            for(int i = 0;i < count;i++) {
+                dest[i] = buffer[(int) ((get + i) & mask)];
+            }
+
+            if(count == 0 || NEXT_GET.compareAndSet(this, get, get + count)) {
+                return count;
+            }
+        }
+    }
+
+    private void awaitChunk() {
+        Thread current = Thread.currentThread();
+        waiters.add(current);
+        try {
+            // check again after registering so that we do not miss
+            // a chunk that was added in the meantime
+            while(empty() && !stop) {
+                LockSupport.park(this);
+
+                if(Thread.interrupted()) {
+                    throw new RuntimeInterruptedException(new InterruptedException("Interrupted while waiting for data"));
+                }
+            }
+        } finally {
+            waiters.remove(current);
+        }
+    }
+
+    @Override
+    public Chunk peek() {
+        if(empty() || stop) {
+            return null;
+        }
+
+        return buffer[(int) (nextGet & mask)];
+    }
+
+    @Override
+    public int seek(int nrOfChunks) {
+        while(true) {
+            long get = nextGet;
+            int size = size(get);
+
+            // forward up to the head of the buffer, backwards until the buffer is full
+            final int stepped;
+            if(nrOfChunks > 0) {
+                stepped = Math.min(nrOfChunks, size);
+            } else {
+                stepped = Math.max(nrOfChunks, -(capacity - size));
+            }
+
+            if(stepped == 0 || NEXT_GET.compareAndSet(this, get, get + stepped)) {
+                return stepped;
+            }
+        }
+    }
+
+    @Override
+    public int positionOf(long epochMillis) {
+        long add = nextAdd;
+        int fill = (int) Math.min(Math.max(add - fillStart, 0), capacity);
+
+        return timestamps.positionOf(epochMillis, (int) ((add - fill) & mask), fill);
+    }
+
+    @Override
+    public int seekToNextMetadataChange() {
+        long add = nextAdd;
+        long get = nextGet;
+
+        // the first chunk after the read-position where a new run of meta-data starts
+        long low = get + 1;
+        long high = add - 1;
+        long found = -1;
+        while(low <= high) {
+            long mid = (low + high) >>> 1;
+            if(metadataStarts[(int) (mid & mask)] > get) {
+                found = mid;
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        return found < 0 ? 0 : seek((int) (found - get));
+    }
+
+    @Override
+    public int seekToPreviousMetadataChange() {
+        long add = nextAdd;
+        long get = nextGet;
+        long oldest = add - Math.min(Math.max(add - fillStart, 0), capacity);
+        if(get <= oldest || get > add) {
+            return 0;
+        }
+
+        // the start of the run which contains the chunk before the read-position
+        long start = Math.max(metadataStarts[(int) ((get - 1) & mask)], oldest);
+
+        return seek((int) (start - get));
+    }
+
+    @Override
+    public List<MetadataRange> metadataRanges() {
+        long add = nextAdd;
+        long oldest = add - Math.min(Math.max(add - fillStart, 0), capacity);
+
+        // collect the runs backwards from the newest chunk
+        List<MetadataRange> ranges = new ArrayList<>();
+        long end = add;
+        while(end > oldest) {
+            int slot = (int) ((end - 1) & mask);
+            long start = Math.max(Math.min(metadataStarts[slot], end - 1), oldest);
+            ranges.add(new MetadataRange((int) (start - oldest), (int) (end - oldest), buffer[slot].getMetaData()));
+            end = start;
+        }
+
+        Collections.reverse(ranges);
+        return ranges;
+    }
+
+    @Override
+    public long bytesBuffered() {
+        return bytes;
+    }
+
+    @Override
+    public double secondsBuffered() {
+        long add = nextAdd;
+        int fill = (int) Math.min(Math.max(add - fillStart, 0), capacity);
+        if(fill < 2) {
+            return 0;
+        }
+
+        long newest = timestamps.get((int) ((add - 1) & mask));
+        long oldest = timestamps.get((int) ((add - fill) & mask));
+
+        return Math.max(newest - oldest, 0) / 1000.0;
+    }
+
+    @Override
+    public boolean empty() {
+        return nextGet >= nextAdd;
+    }
+
+    @Override
+    public boolean full() {
+        return size() >= capacity;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public int size() {
+        return size(nextGet);
+    }
+
+    private int size(long get) {
+        return (int) Math.min(Math.max(nextAdd - get, 0), capacity);
+    }
+
+    @Override
+    public int fill() {
+        return (int) Math.min(Math.max(nextAdd - fillStart, 0), capacity);
+    }
+
+    @Override
+    public void reset() {
+        long get = nextGet;
+        fillStart = get;
+        nextAdd = get;
+        bytes = 0;
+        timestamps.reset();
+    }
+
+    @Override
+    public int bufferedForward() {
+        return size();
+    }
+
+    @Override
+    public int bufferedBackward() {
+        return Math.max(fill() - size(), 0);
+    }
+
+    @Override
+    public void close() {
+        stop = true;
+
+        waiters.forEach(LockSupport::unpark);
+    }
+
+    @Override
+    public String toString() {
+        return "LockFreeSeekableRingBuffer{" +
+                "numberOfChunks=" + buffer.length +
+                ", nextGet=" + nextGet +
+                ", nextAdd=" + nextAdd +
+                ", stop=" + stop +
+                ", capacity=" + capacity() +
+                ", size=" + size() +
+                ", empty=" + empty() +
+                ", full=" + full() +
+                '}';
+    }
+}
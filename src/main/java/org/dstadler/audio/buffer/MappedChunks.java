@@ -0,0 +1,119 @@
+package org.dstadler.audio.buffer;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The chunks of a file in the format of {@link BinaryBufferFormat}, where
+ * only the meta-data, timestamps and lengths were read and the data is
+ * memory-mapped and only copied when a chunk is read via {@link #read(int)}.
+ *
+ * A single mapping is limited to 2GB, so the data is mapped in multiple
+ * slabs if necessary, a chunk is always contained in a single slab.
+ *
+ * Reading is thread-safe as it only uses absolute access to the mapping.
+ */
+final class MappedChunks {
+    private static final long MAX_SLAB_SIZE = Integer.MAX_VALUE;
+
+    private final BufferPersistenceDTO dto;
+    private final String[] metaData;
+    private final long[] timestamps;
+    private final int[] lengths;
+
+    private final MappedByteBuffer[] slabs;
+    private final int[] slabOfChunk;
+    private final int[] offsets;
+
+    /**
+     * @param dto The other fields of the DTO, without chunks
+     * @param metaData The meta-data of the chunks, null for chunks which were null
+     * @param timestamps The timestamps of the chunks
+     * @param lengths The length of the data of the chunks
+     * @param channel The channel to map the data from
+     * @param position The position of the data of the first chunk in the file
+     * @throws IOException If mapping the file fails
+     */
+    MappedChunks(BufferPersistenceDTO dto, String[] metaData, long[] timestamps, int[] lengths,
+            FileChannel channel, long position) throws IOException {
+        this.dto = dto;
+        this.metaData = metaData;
+        this.timestamps = timestamps;
+        this.lengths = lengths;
+        this.slabOfChunk = new int[lengths.length];
+        this.offsets = new int[lengths.length];
+
+        List<MappedByteBuffer> mapped = new ArrayList<>();
+        long start = position;
+        long size = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            if (size + lengths[i] > MAX_SLAB_SIZE) {
+                mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, start, size));
+                start += size;
+                size = 0;
+            }
+
+            slabOfChunk[i] = mapped.size();
+            offsets[i] = (int) size;
+            size += lengths[i];
+        }
+        if (size > 0) {
+            mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, start, size));
+        }
+
+        this.slabs = mapped.toArray(new MappedByteBuffer[0]);
+    }
+
+    /**
+     * @return The fields of the DTO without the chunks
+     */
+    BufferPersistenceDTO getDTO() {
+        return dto;
+    }
+
+    int size() {
+        return lengths.length;
+    }
+
+    /**
+     * @return true if the chunk at the given index was null when it was written
+     */
+    boolean isNull(int index) {
+        return metaData[index] == null;
+    }
+
+    String getMetaData(int index) {
+        return metaData[index];
+    }
+
+    long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    int getLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * @return A copy of the data of the chunk at the given index
+     */
+    byte[] read(int index) {
+        byte[] data = new byte[lengths[index]];
+        if (data.length > 0) {
+            slabs[slabOfChunk[index]].get(offsets[index], data);
+        }
+
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedChunks{" +
+                "chunks=" + lengths.length +
+                ", slabs=" + slabs.length +
+                '}';
+    }
+}
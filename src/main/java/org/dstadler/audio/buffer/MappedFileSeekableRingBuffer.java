@@ -0,0 +1,723 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+import org.dstadler.audio.stream.Stream;
+import org.dstadler.audio.util.RuntimeInterruptedException;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+import org.dstadler.commons.util.SuppressForbidden;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of the {@link SeekableRingBuffer} interface which
+ * stores the chunks in one preallocated file which is accessed via
+ * memory-mapping.
+ *
+ * The file consists of a small header with the size of the buffer and the
+ * current positions, followed by one slot of fixed size for each chunk,
+ * holding the length of the data, the timestamp, the meta-data and the
+ * data itself. Meta-data is stored with up to {@link #METADATA_SIZE} bytes,
+ * longer values are truncated in the file.
+ *
+ * Adding and reading chunks only copies bytes from and to the mapped
+ * memory, there is no serialization step and the operating system
+ * writes the data to disk in the background. As the positions are updated
+ * in the header whenever they change, the buffer can be recovered from the
+ * file alone, e.g. after the application crashed, by creating it again
+ * with the same number of chunks and slot size.
+ *
+ * Positions are handled in the same way as in {@link BlockingSeekableRingBuffer},
+ * i.e. it can hold numberOfChunks - 1 chunks.
+ */
+public class MappedFileSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Persistable {
+    private final static Logger log = LoggerFactory.make();
+
+    public static final String FILE_NAME = "AudioBuffer.mapped";
+
+    /**
+     * The maximum number of bytes of meta-data which are stored
+     * in the file for each chunk
+     */
+    public static final int METADATA_SIZE = 256;
+
+    private static final int MAGIC = 0x4155444d;
+    private static final int VERSION = 2;
+
+    /**
+     * magic, version, numberOfChunks, slotSize, nextGet, nextAdd, fill
+     */
+    private static final int HEADER_SIZE = 7 * Integer.BYTES;
+    private static final int POSITIONS_OFFSET = 4 * Integer.BYTES;
+
+    /**
+     * length, timestamp and meta-data stored in front of the data of each slot
+     */
+    private static final int SLOT_HEADER_SIZE = Integer.BYTES + Long.BYTES + Short.BYTES + METADATA_SIZE;
+
+    /**
+     * A single mapping is limited to 2GB, so we use multiple slabs if necessary
+     */
+    private static final int MAX_SLAB_SIZE = Integer.MAX_VALUE;
+
+    private final File dataDir;
+    private final int numberOfChunks;
+    private final int slotSize;
+    private final int slotsPerSlab;
+
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] slabs;
+
+    /**
+     * Meta-data of the chunks, shared with the meta-data index
+     */
+    private final String[] metaData;
+
+    /**
+     * Timestamps of the chunks for finding positions by time
+     */
+    private final TimestampIndex timestampIndex;
+
+    /**
+     * Positions where the meta-data of the chunks changes
+     */
+    private final MetadataIndex metadataIndex;
+
+    /**
+     * The encoded form of the meta-data which was added last,
+     * meta-data changes rarely, so this avoids encoding it for every chunk
+     */
+    private String lastMetaData = "";
+    private byte[] lastMetaDataBytes = new byte[0];
+
+    /**
+     * indicates the next position to read,
+     * there is no more data to read if nextGet == nextAdd
+     * this is always in the range [0, numberOfChunks[
+     */
+    private int nextGet = 0;
+
+    /**
+     * indicates the next position to write,
+     * this is always in the range [0, numberOfChunks[
+     */
+    private int nextAdd = 0;
+
+    /**
+     * indicates how many elements in the buffer
+     * are populated, see {@link BlockingSeekableRingBuffer}
+     */
+    private int fill = 0;
+
+    /**
+     * The number of bytes in the chunks which are counted in fill
+     */
+    private long bytes = 0;
+
+    /**
+     * This enables breaking the blocking wait in next(),
+     * set via calling close()
+     */
+    private boolean stop = false;
+
+    /**
+     * Create the buffer with slots of {@link Chunk#CHUNK_SIZE} bytes.
+     *
+     * @param numberOfChunks The number of slots in the buffer
+     * @param dataDir The directory where the file is created, an existing file
+     *      is recovered if it has the same number of chunks and slot size
+     * @throws IOException If the file cannot be created
+     */
+    public MappedFileSeekableRingBuffer(int numberOfChunks, File dataDir) throws IOException {
+        this(numberOfChunks, Chunk.CHUNK_SIZE, dataDir);
+    }
+
+    /**
+     * Create the buffer and preallocate the file for all slots.
+     *
+     * If the file exists already and holds a buffer with the same number of chunks
+     * and slot size, the chunks and positions stored in it are recovered, otherwise
+     * the file is overwritten. Invalid positions in an otherwise matching file
+     * only discard the positions, not the chunks.
+     *
+     * @param numberOfChunks The number of slots in the buffer
+     * @param slotSize The maximum number of bytes of a single chunk
+     * @param dataDir The directory where the file is created, an existing file
+     *      is recovered if it has the same number of chunks and slot size
+     * @throws IOException If the file cannot be created
+     */
+    public MappedFileSeekableRingBuffer(int numberOfChunks, int slotSize, File dataDir) throws IOException {
+        this(dataDir, numberOfChunks, slotSize, true);
+    }
+
+    /**
+     * @param slotSize The expected slot size, 0 to use the one stored in an existing file
+     * @param create If the file should be created if it does not exist or does not
+     *      match the expected number of chunks and slot size, otherwise an
+     *      IOException is thrown in this case
+     */
+    private MappedFileSeekableRingBuffer(File dataDir, int numberOfChunks, int slotSize, boolean create) throws IOException {
+        Preconditions.checkArgument(numberOfChunks > 0, "Had chunks: %s", numberOfChunks);
+        Preconditions.checkArgument(!create || (slotSize > 0 && slotSize <= MAX_SLAB_SIZE - SLOT_HEADER_SIZE),
+                "Had slot size: %s", slotSize);
+        checkDataDir(dataDir);
+
+        File file = new File(dataDir, FILE_NAME);
+        if (!create && !file.exists()) {
+            throw new IOException("Could not find file " + file);
+        }
+
+        final boolean recover;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            String invalid = checkFile(raf, numberOfChunks, slotSize);
+            if (invalid != null && !create) {
+                throw new IOException("Could not recover buffer from file " + file + ": " + invalid);
+            }
+            recover = invalid == null;
+
+            this.dataDir = dataDir;
+            this.numberOfChunks = numberOfChunks;
+            if (recover) {
+                raf.seek(3 * Integer.BYTES);
+                this.slotSize = raf.readInt();
+            } else {
+                // truncate first so that no data of a different buffer is kept
+                this.slotSize = slotSize;
+                raf.setLength(0);
+                raf.setLength(fileLength(numberOfChunks, slotSize));
+            }
+            this.slotsPerSlab = Math.min(numberOfChunks, MAX_SLAB_SIZE / (this.slotSize + SLOT_HEADER_SIZE));
+
+            this.header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            this.slabs = mapSlabs(raf.getChannel());
+
+            if (recover) {
+                String invalidPositions = checkPositions(header, numberOfChunks);
+                if (invalidPositions != null && !create) {
+                    throw new IOException("Could not recover buffer from file " + file + ": " + invalidPositions);
+                }
+                if (invalidPositions != null) {
+                    // the chunks are still valid, only start with an empty buffer
+                    log.warning("Resetting positions of buffer in file " + file + ": " + invalidPositions);
+                    writePositions();
+                }
+            }
+        }
+
+        this.metaData = new String[numberOfChunks];
+        Arrays.fill(metaData, "");
+        this.timestampIndex = new TimestampIndex(numberOfChunks);
+        this.metadataIndex = new MetadataIndex();
+
+        if (recover) {
+            this.nextGet = header.getInt(POSITIONS_OFFSET);
+            this.nextAdd = header.getInt(POSITIONS_OFFSET + Integer.BYTES);
+            this.fill = header.getInt(POSITIONS_OFFSET + 2 * Integer.BYTES);
+
+            // the reader may have seeked back before the oldest chunk, i.e. into
+            // slots which were never written, continue at the oldest chunk then
+            if (Math.floorMod(nextAdd - nextGet, numberOfChunks) > fill) {
+                nextGet = Math.floorMod(nextAdd - fill, numberOfChunks);
+                writePositions();
+            }
+
+            // re-build the indexes from the slots, starting with the oldest chunk
+            int start = Math.floorMod(nextAdd - fill, numberOfChunks);
+            for (int i = 0; i < fill; i++) {
+                int pos = (start + i) % numberOfChunks;
+                ByteBuffer slot = slot(pos);
+                long timestamp = slot.getLong(Integer.BYTES);
+                metaData[pos] = metadataIndex.add(readMetaData(slot), i + 1);
+                timestampIndex.set(pos, timestamp);
+                bytes += length(pos);
+            }
+        } else {
+            header.putInt(0, MAGIC);
+            header.putInt(Integer.BYTES, VERSION);
+            header.putInt(2 * Integer.BYTES, numberOfChunks);
+            header.putInt(3 * Integer.BYTES, slotSize);
+            writePositions();
+        }
+    }
+
+    private static long fileLength(int numberOfChunks, int slotSize) {
+        return HEADER_SIZE + (long) numberOfChunks * (slotSize + SLOT_HEADER_SIZE);
+    }
+
+    /**
+     * @param slotSize The expected slot size, 0 to accept any
+     * @return null if the file contains a buffer with the given number of chunks
+     *      and slot size, otherwise a description of the problem
+     */
+    private static String checkFile(RandomAccessFile raf, int numberOfChunks, int slotSize) throws IOException {
+        if (raf.length() < HEADER_SIZE) {
+            return "File is too small, had " + raf.length() + " bytes";
+        }
+
+        raf.seek(0);
+        int magic = raf.readInt();
+        int version = raf.readInt();
+        if (magic != MAGIC || version != VERSION) {
+            return "File is not a buffer of version " + VERSION;
+        }
+
+        int chunks = raf.readInt();
+        if (chunks != numberOfChunks) {
+            return "File has " + chunks + " chunks, but expected " + numberOfChunks;
+        }
+
+        int size = raf.readInt();
+        if (size <= 0 || (slotSize > 0 && size != slotSize) || raf.length() != fileLength(numberOfChunks, size)) {
+            return "File has invalid length " + raf.length() + " for slot size " + size;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return null if the positions in the header are in the range of the
+     *      buffer, otherwise a description of the problem
+     */
+    private static String checkPositions(ByteBuffer header, int numberOfChunks) {
+        int get = header.getInt(POSITIONS_OFFSET);
+        int add = header.getInt(POSITIONS_OFFSET + Integer.BYTES);
+        int fill = header.getInt(POSITIONS_OFFSET + 2 * Integer.BYTES);
+        if (get < 0 || get >= numberOfChunks || add < 0 || add >= numberOfChunks || fill < 0 || fill >= numberOfChunks) {
+            return "Invalid positions nextGet: " + get + ", nextAdd: " + add + ", fill: " + fill;
+        }
+
+        return null;
+    }
+
+    private static void checkDataDir(File dataDir) {
+        Preconditions.checkNotNull(dataDir, "Need a valid temporary directory");
+        Preconditions.checkState((dataDir.exists() || dataDir.mkdirs()) && dataDir.isDirectory(),
+                "Invalid temporary directory provided: %s, exists: %s, isDirectory: %s",
+                dataDir, dataDir.exists(), dataDir.isDirectory());
+    }
+
+    private MappedByteBuffer[] mapSlabs(FileChannel channel) throws IOException {
+        int slabSize = slotsPerSlab * (slotSize + SLOT_HEADER_SIZE);
+        int numberOfSlabs = (numberOfChunks + slotsPerSlab - 1) / slotsPerSlab;
+
+        // the mappings stay valid after the channel is closed
+        MappedByteBuffer[] mapped = new MappedByteBuffer[numberOfSlabs];
+        for (int i = 0; i < numberOfSlabs; i++) {
+            int slots = Math.min(slotsPerSlab, numberOfChunks - i * slotsPerSlab);
+            mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) i * slabSize, (long) slots * (slotSize + SLOT_HEADER_SIZE));
+        }
+        return mapped;
+    }
+
+    private void writePositions() {
+        header.putInt(POSITIONS_OFFSET, nextGet);
+        header.putInt(POSITIONS_OFFSET + Integer.BYTES, nextAdd);
+        header.putInt(POSITIONS_OFFSET + 2 * Integer.BYTES, fill);
+    }
+
+    @SuppressForbidden(reason = "Uses Object.notify() on purpose here")
+    @Override
+    public synchronized void add(Chunk chunk) {
+        checkChunk(chunk);
+
+        addInternal(chunk);
+        writePositions();
+
+        notify();
+    }
+
+    @SuppressForbidden(reason = "Uses Object.notify() on purpose here")
+    @Override
+    public synchronized void addAll(Chunk[] chunks, int off, int len) {
+        Preconditions.checkPositionIndexes(off, off + len, chunks.length);
+        for(int i = off;i < off + len;i++) {
+            checkChunk(chunks[i]);
+        }
+
+        for(int i = off;i < off + len;i++) {
+            addInternal(chunks[i]);
+        }
+        writePositions();
+
+        // only wake up the reader once for all chunks
+        notify();
+    }
+
+    private void checkChunk(Chunk chunk) {
+        Preconditions.checkNotNull(chunk);
+        Preconditions.checkArgument(chunk.getData().length <= slotSize,
+                "Chunk with %s bytes does not fit into slots of %s bytes", chunk.getData().length, slotSize);
+    }
+
+    private void addInternal(Chunk chunk) {
+        // the oldest chunk drops out of the buffer when it is full
+        if(fill > 0 && fill == numberOfChunks - 1) {
+            bytes -= length((nextAdd + 1) % numberOfChunks);
+        }
+
+        byte[] data = chunk.getData();
+        bytes += data.length;
+        byte[] meta = encodeMetaData(chunk.getMetaData());
+        slot(nextAdd).putInt(data.length).putLong(chunk.getTimestamp()).
+                putShort((short) meta.length).put(meta).
+                position(SLOT_HEADER_SIZE).put(data);
+        metaData[nextAdd] = metadataIndex.add(chunk.getMetaData(), Math.min(fill + 1, numberOfChunks - 1));
+        timestampIndex.set(nextAdd, chunk.getTimestamp());
+
+        nextAdd = (nextAdd + 1) % numberOfChunks;
+        if(nextAdd == nextGet) {
+            // we are overwriting the next to read, so we need to move nextGet forward as well
+            nextGet = (nextGet + 1) % numberOfChunks;
+        }
+
+        // increase fill until we wrapped around at least once
+        // so we know when the buffer is filled up with data
+        if(fill != (numberOfChunks - 1)) {
+            fill++;
+        }
+    }
+
+    /**
+     * @return The meta-data as UTF-8, truncated to at most {@link #METADATA_SIZE}
+     *      bytes without splitting a character
+     */
+    private byte[] encodeMetaData(String value) {
+        if (!value.equals(lastMetaData)) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > METADATA_SIZE) {
+                int length = METADATA_SIZE;
+                // do not cut in the middle of a multi-byte sequence
+                while (length > 0 && (bytes[length] & 0xc0) == 0x80) {
+                    length--;
+                }
+                bytes = Arrays.copyOf(bytes, length);
+            }
+
+            lastMetaData = value;
+            lastMetaDataBytes = bytes;
+        }
+
+        return lastMetaDataBytes;
+    }
+
+    private static String readMetaData(ByteBuffer slot) {
+        int length = Math.min(Math.max(slot.getShort(Integer.BYTES + Long.BYTES), 0), METADATA_SIZE);
+        byte[] bytes = new byte[length];
+        slot.get(Integer.BYTES + Long.BYTES + Short.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return A buffer which covers the whole slot at the given position,
+     *      including length, timestamp and meta-data
+     */
+    private ByteBuffer slot(int pos) {
+        ByteBuffer slab = slabs[pos / slotsPerSlab];
+        int offset = (pos % slotsPerSlab) * (slotSize + SLOT_HEADER_SIZE);
+        return slab.slice(offset, slotSize + SLOT_HEADER_SIZE);
+    }
+
+    private Chunk toChunk(int pos) {
+        ByteBuffer slot = slot(pos);
+        long timestamp = slot.getLong(Integer.BYTES);
+
+        byte[] data = new byte[length(pos)];
+        slot.get(SLOT_HEADER_SIZE, data);
+        return new Chunk(data, metaData[pos], timestamp);
+    }
+
+    /**
+     * @return The number of bytes of data in the slot at the given position
+     */
+    private int length(int pos) {
+        // slots which were never written contain only zeros
+        return Math.min(Math.max(slot(pos).getInt(0), 0), slotSize);
+    }
+
+    @Override
+    public synchronized Chunk next() {
+        waitForData();
+
+        if(stop) {
+            return null;
+        }
+
+        // fetch item before we increase the pointer
+        Chunk chunk = toChunk(nextGet);
+
+        nextGet = (nextGet + 1) % numberOfChunks;
+        writePositions();
+
+        return chunk;
+    }
+
+    @Override
+    public synchronized int next(Chunk[] dest) {
+        if(dest.length == 0) {
+            return 0;
+        }
+
+        waitForData();
+
+        if(stop) {
+            return 0;
+        }
+
+        return nextInternal(dest, dest.length);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super Chunk> target, int max) {
+        if(stop || max <= 0) {
+            return 0;
+        }
+
+        int count = Math.min(max, size());
+        for(int i = 0;i < count;i++) {
+            target.add(toChunk(nextGet));
+            nextGet = (nextGet + 1) % numberOfChunks;
+        }
+        writePositions();
+
+        return count;
+    }
+
+    private int nextInternal(Chunk[] dest, int max) {
+        int count = Math.min(max, size());
+        for(int i = 0;i < count;i++) {
+            dest[i] = toChunk(nextGet);
+            nextGet = (nextGet + 1) % numberOfChunks;
+        }
+        writePositions();
+
+        return count;
+    }
+
+    @SuppressForbidden(reason = "Uses Object.wait() on purpose here")
+    private void waitForData() {
+        // wait until data is available
+        while(empty() && !stop) {
+            try {
+                // waiting leaves the synchronized block so other threads
+                // can do work while we wait here
+                wait(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeInterruptedException(e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized Chunk peek() {
+        if(empty() || stop) {
+            return null;
+        }
+
+        return toChunk(nextGet);
+    }
+
+    @Override
+    public synchronized int seek(int nrOfChunks) {
+        // compute how far we can move in one step: forward up to the
+        // head of the buffer, backwards until the buffer is full
+        final int stepped;
+        if(nrOfChunks > 0) {
+            stepped = Math.min(nrOfChunks, size());
+        } else {
+            stepped = Math.max(nrOfChunks, -(capacity() - size()));
+        }
+
+        nextGet = Math.floorMod(nextGet + stepped, numberOfChunks);
+        writePositions();
+
+        return stepped;
+    }
+
+    @Override
+    public synchronized int seekTo(int absolutePosition) {
+        return seek(absolutePosition - (fill - size()));
+    }
+
+    @Override
+    public synchronized int positionOf(long epochMillis) {
+        return timestampIndex.positionOf(epochMillis, Math.floorMod(nextAdd - fill, numberOfChunks), fill);
+    }
+
+    @Override
+    public synchronized int seekToTimestamp(long epochMillis) {
+        return seekTo(positionOf(epochMillis));
+    }
+
+    @Override
+    public synchronized int seekToNextMetadataChange() {
+        int position = metadataIndex.nextChange(fill, fill - size());
+        return position < 0 ? 0 : seekTo(position);
+    }
+
+    @Override
+    public synchronized int seekToPreviousMetadataChange() {
+        int position = metadataIndex.previousChange(fill, fill - size());
+        return position < 0 ? 0 : seekTo(position);
+    }
+
+    @Override
+    public synchronized List<MetadataRange> metadataRanges() {
+        return metadataIndex.ranges(fill);
+    }
+
+    @Override
+    public synchronized long bytesBuffered() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized double secondsBuffered() {
+        if(fill < 2) {
+            return 0;
+        }
+
+        long newest = slot(Math.floorMod(nextAdd - 1, numberOfChunks)).getLong(Integer.BYTES);
+        long oldest = slot(Math.floorMod(nextAdd - fill, numberOfChunks)).getLong(Integer.BYTES);
+
+        return Math.max(newest - oldest, 0) / 1000.0;
+    }
+
+    @Override
+    public synchronized boolean empty() {
+        //if head and tail are equal, we are empty
+        return nextAdd == nextGet;
+    }
+
+    @Override
+    public synchronized boolean full() {
+        // If tail is ahead of the head by 1, we are full
+        return ((nextAdd + 1) % numberOfChunks) == nextGet;
+    }
+
+    @Override
+    public int capacity() {
+        // minus one because we cannot use all buffer-elements due
+        // to head == tail meaning empty and (head - 1) == tail meaning full
+        return numberOfChunks - 1;
+    }
+
+    @Override
+    public synchronized int size() {
+        if(nextAdd >= nextGet) {
+            return nextAdd - nextGet;
+        } else {
+            return numberOfChunks - (nextGet - nextAdd);
+        }
+    }
+
+    @Override
+    public synchronized int fill() {
+        return fill;
+    }
+
+    @Override
+    public synchronized void reset() {
+        nextAdd = nextGet;
+        fill = 0;
+        bytes = 0;
+        timestampIndex.reset();
+        writePositions();
+    }
+
+    @Override
+    public synchronized int bufferedForward() {
+        return size();
+    }
+
+    @Override
+    public synchronized int bufferedBackward() {
+        // fill stops growing at capacity, so it can be less than size() if the
+        // writer wrapped around past unread data
+        return Math.max(fill - size(), 0);
+    }
+
+    /**
+     * Write all changes in the mapped file to the disk.
+     */
+    public synchronized void flush() {
+        writePositions();
+
+        header.force();
+        for (MappedByteBuffer slab : slabs) {
+            slab.force();
+        }
+    }
+
+    /**
+     * Stops waiting readers, the mapping of the file is released
+     * when the buffer is garbage collected.
+     */
+    @Override
+    public synchronized void close() {
+        stop = true;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileSeekableRingBuffer{" +
+                "dataDir=" + dataDir +
+                ", numberOfChunks=" + numberOfChunks +
+                ", slotSize=" + slotSize +
+                ", slabs=" + slabs.length +
+                ", nextGet=" + nextGet +
+                ", nextAdd=" + nextAdd +
+                ", stop=" + stop +
+                ", capacity=" + capacity() +
+                ", size=" + size() +
+                ", empty=" + empty() +
+                ", full=" + full() +
+                '}';
+    }
+
+    /**
+     * Only the location of the file is stored in the DTO, the chunks,
+     * meta-data and positions are read from the file when restoring.
+     */
+    @Override
+    public synchronized BufferPersistenceDTO toPersistence(Stream stream, boolean playing, boolean downloadWhilePaused,
+            long chunkCount) {
+        flush();
+
+        return BufferPersistenceDTO.builder().
+            buffer(null, nextGet, nextAdd, fill).
+            stream(stream, playing, downloadWhilePaused).
+            data(numberOfChunks, 1, dataDir).
+            chunkCount(chunkCount).
+            build();
+    }
+
+    /**
+     * Restore the buffer from the file which is referenced by the DTO.
+     *
+     * The positions stored in the header of the file are used, as they are
+     * updated whenever they change, while the ones in the DTO may be outdated
+     * if the buffer was used after the DTO was created.
+     *
+     * @param dto The DTO as created by {@link #toPersistence(Stream, boolean, boolean, long)}
+     * @return The restored buffer
+     * @throws IOException If the file does not exist or does not contain a buffer
+     *      with the number of chunks stored in the DTO
+     */
+    public static MappedFileSeekableRingBuffer fromPersistence(BufferPersistenceDTO dto) throws IOException {
+        if(dto.getDataDir() == null || dto.getNumberOfDiskChunks() <= 0) {
+            throw new IOException("Could not read buffer from persistent file, having: " + dto);
+        }
+
+        return new MappedFileSeekableRingBuffer(dto.getDataDir(), dto.getNumberOfDiskChunks(), 0, false);
+    }
+}
@@ -0,0 +1,162 @@
+package org.dstadler.audio.buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of the positions in a ring-buffer where the meta-data of the
+ * chunks changes, e.g. when a new song starts.
+ *
+ * Chunks are counted via an ever increasing sequence number, only
+ * the sequence number of the first chunk of each meta-data value is
+ * stored together with the value, so consecutive chunks with the same
+ * meta-data share one entry and one String instance.
+ *
+ * Positions in the methods are relative to the oldest chunk in the buffer,
+ * the buffer provides the current fill to map them to sequence numbers.
+ *
+ * This class is not thread-safe, the buffer needs to synchronize access.
+ */
+class MetadataIndex {
+    private final List<Transition> transitions = new ArrayList<>();
+
+    /**
+     * Index of the first transition which is still relevant, older
+     * entries are removed in larger steps to avoid copying the list
+     */
+    private int head = 0;
+
+    /**
+     * Sequence number of the next chunk that is added
+     */
+    private long nextSeq = 0;
+
+    MetadataIndex() {
+    }
+
+    /**
+     * Create the index with the given transitions, e.g. when restoring
+     * a buffer from persistence.
+     *
+     * @param fill The number of chunks in the buffer
+     * @param starts The positions of the transitions, sorted ascending
+     * @param metaData The meta-data for each of the transitions
+     */
+    MetadataIndex(int fill, int[] starts, String[] metaData) {
+        for(int i = 0;i < starts.length;i++) {
+            transitions.add(new Transition(starts[i], metaData[i]));
+        }
+        nextSeq = fill;
+    }
+
+    /**
+     * Record the meta-data of a newly added chunk.
+     *
+     * @param metaData The meta-data of the chunk
+     * @param fill The fill of the buffer after the chunk was added
+     * @return An instance equal to metaData which is shared with the previous
+     *      chunks if they have the same meta-data
+     */
+    String add(String metaData, int fill) {
+        final String canonical;
+        if(transitions.size() > head && transitions.get(transitions.size() - 1).metaData.equals(metaData)) {
+            canonical = transitions.get(transitions.size() - 1).metaData;
+        } else {
+            transitions.add(new Transition(nextSeq, metaData));
+            canonical = metaData;
+        }
+        nextSeq++;
+
+        // remove transitions where all chunks were overwritten, always keep the
+        // last one which covers the oldest chunk
+        long oldest = nextSeq - fill;
+        while(transitions.size() - head > 1 && transitions.get(head + 1).seq <= oldest) {
+            head++;
+        }
+        if(head > 16 && head > transitions.size() / 2) {
+            transitions.subList(0, head).clear();
+            head = 0;
+        }
+
+        return canonical;
+    }
+
+    /**
+     * @param fill The current fill of the buffer
+     * @param position The current read-position
+     * @return The position of the first change of meta-data after the
+     *      given position or -1 if there is none
+     */
+    int nextChange(int fill, int position) {
+        long oldest = nextSeq - fill;
+        int idx = firstAfter(oldest + position);
+
+        return idx < transitions.size() ? (int) (transitions.get(idx).seq - oldest) : -1;
+    }
+
+    /**
+     * @param fill The current fill of the buffer
+     * @param position The current read-position
+     * @return The position of the last change of meta-data before the given position,
+     *      0 if it happened before the oldest chunk or -1 if position is 0
+     */
+    int previousChange(int fill, int position) {
+        if(position <= 0 || fill == 0) {
+            return -1;
+        }
+
+        long oldest = nextSeq - fill;
+        int idx = firstAfter(oldest + position - 1) - 1;
+
+        return (int) Math.max(transitions.get(idx).seq - oldest, 0);
+    }
+
+    /**
+     * @param fill The current fill of the buffer
+     * @return The ranges of chunks with the same meta-data, ordered by position
+     */
+    List<MetadataRange> ranges(int fill) {
+        long oldest = nextSeq - fill;
+
+        List<MetadataRange> ranges = new ArrayList<>();
+        for(int i = head;i < transitions.size();i++) {
+            Transition transition = transitions.get(i);
+            long start = Math.max(transition.seq, oldest);
+            long end = i + 1 < transitions.size() ? transitions.get(i + 1).seq : nextSeq;
+            if(end > start) {
+                ranges.add(new MetadataRange((int) (start - oldest), (int) (end - oldest), transition.metaData));
+            }
+        }
+
+        return ranges;
+    }
+
+    /**
+     * @return The index of the first transition with a sequence number larger
+     *      than the given one, transitions.size() if there is none
+     */
+    private int firstAfter(long seq) {
+        int low = head;
+        int high = transitions.size();
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(transitions.get(mid).seq <= seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private static final class Transition {
+        private final long seq;
+        private final String metaData;
+
+        private Transition(long seq, String metaData) {
+            this.seq = seq;
+            this.metaData = metaData;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.dstadler.audio.buffer;
+
+/**
+ * Describes a range of chunks in a {@link SeekableRingBuffer} which
+ * all have the same meta-data, e.g. one song or one advertisement.
+ *
+ * Positions are absolute positions in the buffer as used by
+ * {@link SeekableRingBuffer#seekTo(int)}, i.e. 0 is the oldest
+ * chunk that is available.
+ */
+public class MetadataRange {
+    private final int start;
+    private final int end;
+    private final String metaData;
+
+    public MetadataRange(int start, int end, String metaData) {
+        this.start = start;
+        this.end = end;
+        this.metaData = metaData;
+    }
+
+    /**
+     * @return The position of the first chunk with this meta-data
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return The position after the last chunk with this meta-data
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    public String getMetaData() {
+        return metaData;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+
+        MetadataRange that = (MetadataRange) o;
+
+        return start == that.start && end == that.end && metaData.equals(that.metaData);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = start;
+        result = 31 * result + end;
+        result = 31 * result + metaData.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataRange{" +
+                "start=" + start +
+                ", end=" + end +
+                ", metaData='" + metaData + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,251 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+import org.dstadler.commons.util.SuppressForbidden;
+
+/**
+ * A ring-buffer which is filled by one writer and read by any
+ * number of readers, each of them using a separate {@link BufferCursor}
+ * with its own read-position.
+ *
+ * This allows to download a stream once and e.g. play, record and
+ * re-stream it at the same time, every reader can seek independently.
+ *
+ * Positions are kept as ever increasing sequence numbers, the writer
+ * does not track the cursors. A cursor which falls behind so far that
+ * the chunk at its read-position was overwritten continues at the
+ * oldest chunk which is still available, the number of skipped chunks
+ * is reported via {@link BufferCursor#getSkipped()}.
+ *
+ * All access is synchronized on the instance of this class, cursors
+ * wait on it for new chunks.
+ */
+public class MultiReaderRingBuffer implements AutoCloseable {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Chunk[] buffer;
+    private final int capacity;
+
+    /**
+     * Timestamps of the chunks for finding positions by time
+     */
+    private final TimestampIndex timestamps;
+
+    /**
+     * Positions where the meta-data of the chunks changes
+     */
+    private final MetadataIndex metadata = new MetadataIndex();
+
+    /**
+     * Sequence number of the next chunk to write
+     */
+    private long nextAdd = 0;
+
+    /**
+     * Sequence number of the first add after construction or
+     * the last reset(), used for computing fill()
+     */
+    private long fillStart = 0;
+
+    /**
+     * The number of bytes in the chunks which are counted in fill()
+     */
+    private long bytes = 0;
+
+    /**
+     * Counts calls to reset(), so cursors can discard unread chunks
+     */
+    private long resets = 0;
+
+    /**
+     * Stops all cursors, set via calling close()
+     */
+    private boolean stop = false;
+
+    /**
+     * Create the buffer, cursors can access up to numberOfChunks - 1 chunks
+     * to provide the same capacity as {@link BlockingSeekableRingBuffer}.
+     *
+     * @param numberOfChunks The number of chunks in the buffer
+     */
+    public MultiReaderRingBuffer(int numberOfChunks) {
+        Preconditions.checkArgument(numberOfChunks > 1, "Had chunks: %s", numberOfChunks);
+
+        this.buffer = new Chunk[numberOfChunks];
+        this.capacity = numberOfChunks - 1;
+        this.timestamps = new TimestampIndex(numberOfChunks);
+
+        // initialize buffer with empty chunks
+        for(int i = 0;i < numberOfChunks;i++) {
+            this.buffer[i] = new Chunk(EMPTY, "", 0);
+        }
+    }
+
+    /**
+     * Create a new cursor which starts reading at the chunk
+     * which is added next, i.e. at the live position.
+     *
+     * @return A new cursor for reading from this buffer
+     */
+    public synchronized BufferCursor newCursor() {
+        return new BufferCursor(this, nextAdd);
+    }
+
+    /**
+     * Add a chunk which becomes available for all cursors.
+     *
+     * @param chunk The chunk to add
+     */
+    @SuppressForbidden(reason = "Uses Object.notifyAll() on purpose here")
+    public synchronized void add(Chunk chunk) {
+        Preconditions.checkNotNull(chunk);
+
+        addInternal(chunk);
+
+        notifyAll();
+    }
+
+    /**
+     * Add a number of chunks, waiting cursors are only woken up once.
+     *
+     * @param chunks The array of chunks to add
+     * @param off The index of the first chunk in the array to add
+     * @param len The number of chunks to add
+     */
+    @SuppressForbidden(reason = "Uses Object.notifyAll() on purpose here")
+    public synchronized void addAll(Chunk[] chunks, int off, int len) {
+        Preconditions.checkPositionIndexes(off, off + len, chunks.length);
+        for(int i = off;i < off + len;i++) {
+            Preconditions.checkNotNull(chunks[i]);
+        }
+
+        for(int i = off;i < off + len;i++) {
+            addInternal(chunks[i]);
+        }
+
+        notifyAll();
+    }
+
+    private void addInternal(Chunk chunk) {
+        int slot = slot(nextAdd);
+
+        // share the meta-data string with the previous chunks
+        String metaData = metadata.add(chunk.getMetaData(), (int) Math.min(nextAdd + 1 - fillStart, capacity));
+        buffer[slot] = metaData == chunk.getMetaData() ? chunk : new Chunk(chunk.getData(), metaData, chunk.getTimestamp());
+        timestamps.set(slot, chunk.getTimestamp());
+
+        // the oldest chunk drops out of the buffer when it is full
+        if(nextAdd - fillStart >= capacity) {
+            bytes -= get(nextAdd - capacity).getData().length;
+        }
+        bytes += chunk.getData().length;
+
+        nextAdd++;
+    }
+
+    /**
+     * @return The number of chunks that cursors can access at most
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return How many chunks are stored in the buffer, the same
+     *      as capacity() after the writer wrapped around once
+     */
+    public synchronized int fill() {
+        return (int) Math.min(nextAdd - fillStart, capacity);
+    }
+
+    /**
+     * @return The number of bytes of audio data in the chunks
+     *      which are counted in fill()
+     */
+    public synchronized long bytesBuffered() {
+        return bytes;
+    }
+
+    /**
+     * @return The time-span between the oldest and the newest chunk which
+     *      are counted in fill() in seconds, 0 if there are less than two chunks
+     */
+    public synchronized double secondsBuffered() {
+        int fill = fill();
+        if(fill < 2) {
+            return 0;
+        }
+
+        long newest = timestamps.get(slot(nextAdd - 1));
+        long oldest = timestamps.get(slot(nextAdd - fill));
+
+        return Math.max(newest - oldest, 0) / 1000.0;
+    }
+
+    /**
+     * Discard all chunks for all cursors.
+     */
+    public synchronized void reset() {
+        fillStart = nextAdd;
+        bytes = 0;
+        resets++;
+        timestamps.reset();
+    }
+
+    /**
+     * Stop all cursors, next() returns null afterwards.
+     */
+    @SuppressForbidden(reason = "Uses Object.notifyAll() on purpose here")
+    @Override
+    public synchronized void close() {
+        stop = true;
+
+        notifyAll();
+    }
+
+    // methods used by BufferCursor, the caller needs to hold the lock
+
+    Chunk get(long seq) {
+        return buffer[slot(seq)];
+    }
+
+    long getNextAdd() {
+        return nextAdd;
+    }
+
+    long getFillStart() {
+        return fillStart;
+    }
+
+    long getResets() {
+        return resets;
+    }
+
+    boolean isStopped() {
+        return stop;
+    }
+
+    TimestampIndex getTimestamps() {
+        return timestamps;
+    }
+
+    MetadataIndex getMetadata() {
+        return metadata;
+    }
+
+    int slot(long seq) {
+        return (int) Math.floorMod(seq, (long) buffer.length);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MultiReaderRingBuffer{" +
+                "numberOfChunks=" + buffer.length +
+                ", nextAdd=" + nextAdd +
+                ", fillStart=" + fillStart +
+                ", stop=" + stop +
+                ", capacity=" + capacity +
+                ", fill=" + fill() +
+                '}';
+    }
+}
@@ -0,0 +1,598 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+import org.dstadler.audio.stream.Stream;
+import org.dstadler.audio.util.RuntimeInterruptedException;
+import org.dstadler.commons.util.SuppressForbidden;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Implementation of the {@link SeekableRingBuffer} interface which
+ * stores the audio data of the chunks outside of the Java heap.
+ *
+ * The payload is copied into fixed-size slots of preallocated
+ * direct {@link ByteBuffer}s, meta-data and timestamp are kept in
+ * side arrays, so the heap usage does not grow with the number
+ * of buffered bytes and the garbage collector does not need to
+ * copy the audio data around.
+ *
+ * Chunks returned from next() and peek() do not copy the data to the heap,
+ * {@link Chunk#asByteBuffer()} provides a read-only view on the data in the
+ * slot. The data is only copied when {@link Chunk#getData()} is called or
+ * when the slot is overwritten while the chunk is still referenced by
+ * the reader, so the chunk keeps its data in any case.
+ *
+ * Chunks which are larger than the slots are kept on the heap instead.
+ *
+ * Positions are handled in the same way as in {@link BlockingSeekableRingBuffer},
+ * i.e. it can hold numberOfChunks - 1 chunks.
+ */
+public class OffHeapSeekableRingBuffer implements SeekableRingBuffer<Chunk>, Persistable {
+    /**
+     * Direct buffers are limited to 2GB, so we use multiple slabs if necessary
+     */
+    private static final int MAX_SLAB_SIZE = Integer.MAX_VALUE;
+
+    private final int numberOfChunks;
+    private final int slotSize;
+    private final int slotsPerSlab;
+
+    private final ByteBuffer[] slabs;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final String[] metaData;
+
+    /**
+     * The data of chunks which do not fit into the slots, null for all other slots
+     */
+    private final byte[][] spilled;
+
+    /**
+     * The chunks which were handed out for the slots, so the data can be
+     * copied before the slot is overwritten if the reader still uses it
+     */
+    private final WeakReference<SlotChunk>[] views;
+
+    /**
+     * Timestamps of the chunks for finding positions by time
+     */
+    private final TimestampIndex timestampIndex;
+
+    /**
+     * Positions where the meta-data of the chunks changes
+     */
+    private final MetadataIndex metadataIndex = new MetadataIndex();
+
+    /**
+     * indicates the next position to read,
+     * there is no more data to read if nextGet == nextAdd
+     * this is always in the range [0, numberOfChunks[
+     */
+    private int nextGet = 0;
+
+    /**
+     * indicates the next position to write,
+     * this is always in the range [0, numberOfChunks[
+     */
+    private int nextAdd = 0;
+
+    /**
+     * indicates how many elements in the buffer
+     * are populated, see {@link BlockingSeekableRingBuffer}
+     */
+    private int fill = 0;
+
+    /**
+     * The number of bytes in the chunks which are counted in fill
+     */
+    private long bytes = 0;
+
+    /**
+     * This enables breaking the blocking wait in next(),
+     * set via calling close()
+     */
+    private boolean stop = false;
+
+    /**
+     * Create the buffer with slots of {@link Chunk#CHUNK_SIZE} bytes.
+     *
+     * @param numberOfChunks The number of slots in the buffer
+     */
+    public OffHeapSeekableRingBuffer(int numberOfChunks) {
+        this(numberOfChunks, Chunk.CHUNK_SIZE);
+    }
+
+    /**
+     * Create the buffer and allocate all off-heap memory up-front.
+     *
+     * @param numberOfChunks The number of slots in the buffer
+     * @param slotSize The maximum number of bytes of a single chunk
+     */
+    @SuppressWarnings("unchecked")
+    public OffHeapSeekableRingBuffer(int numberOfChunks, int slotSize) {
+        Preconditions.checkArgument(numberOfChunks > 0, "Had chunks: %s", numberOfChunks);
+        Preconditions.checkArgument(slotSize > 0, "Had slot size: %s", slotSize);
+
+        this.numberOfChunks = numberOfChunks;
+        this.slotSize = slotSize;
+        this.slotsPerSlab = Math.min(numberOfChunks, MAX_SLAB_SIZE / slotSize);
+
+        int numberOfSlabs = (numberOfChunks + slotsPerSlab - 1) / slotsPerSlab;
+        this.slabs = new ByteBuffer[numberOfSlabs];
+        for(int i = 0;i < numberOfSlabs;i++) {
+            int slots = Math.min(slotsPerSlab, numberOfChunks - i * slotsPerSlab);
+            this.slabs[i] = ByteBuffer.allocateDirect(slots * slotSize);
+        }
+
+        this.lengths = new int[numberOfChunks];
+        this.timestamps = new long[numberOfChunks];
+        this.metaData = new String[numberOfChunks];
+        this.spilled = new byte[numberOfChunks][];
+        this.views = new WeakReference[numberOfChunks];
+        this.timestampIndex = new TimestampIndex(numberOfChunks);
+
+        // initialize buffer with empty chunks
+        for(int i = 0;i < numberOfChunks;i++) {
+            this.metaData[i] = "";
+        }
+    }
+
+    @SuppressForbidden(reason = "Uses Object.notify() on purpose here")
+    @Override
+    public synchronized void add(Chunk chunk) {
+        Preconditions.checkNotNull(chunk);
+
+        addInternal(chunk);
+
+        notify();
+    }
+
+    @SuppressForbidden(reason = "Uses Object.notify() on purpose here")
+    @Override
+    public synchronized void addAll(Chunk[] chunks, int off, int len) {
+        Preconditions.checkPositionIndexes(off, off + len, chunks.length);
+        for(int i = off;i < off + len;i++) {
+            Preconditions.checkNotNull(chunks[i]);
+        }
+
+        for(int i = off;i < off + len;i++) {
+            addInternal(chunks[i]);
+        }
+
+        // only wake up the reader once for all chunks
+        notify();
+    }
+
+    private void addInternal(Chunk chunk) {
+        // the oldest chunk drops out of the buffer when it is full
+        if(fill > 0 && fill == numberOfChunks - 1) {
+            bytes -= lengths[(nextAdd + 1) % numberOfChunks];
+        }
+        bytes += chunk.getData().length;
+
+        store(nextAdd, chunk);
+        metaData[nextAdd] = metadataIndex.add(chunk.getMetaData(), Math.min(fill + 1, numberOfChunks - 1));
+        timestampIndex.set(nextAdd, chunk.getTimestamp());
+
+        nextAdd = (nextAdd + 1) % numberOfChunks;
+        if(nextAdd == nextGet) {
+            // we are overwriting the next to read, so we need to move nextGet forward as well
+            nextGet = (nextGet + 1) % numberOfChunks;
+        }
+
+        // increase fill until we wrapped around at least once
+        // so we know when the buffer is filled up with data
+        if(fill != (numberOfChunks - 1)) {
+            fill++;
+        }
+    }
+
+    private void store(int pos, Chunk chunk) {
+        // a reader may still use the chunk which was handed out for this slot
+        WeakReference<SlotChunk> view = views[pos];
+        if(view != null) {
+            SlotChunk slotChunk = view.get();
+            if(slotChunk != null) {
+                slotChunk.detach();
+            }
+            views[pos] = null;
+        }
+
+        byte[] data = chunk.getData();
+        if(data.length > slotSize) {
+            spilled[pos] = data.clone();
+        } else {
+            spilled[pos] = null;
+            slot(pos).put(data);
+        }
+        lengths[pos] = data.length;
+        timestamps[pos] = chunk.getTimestamp();
+        metaData[pos] = chunk.getMetaData();
+    }
+
+    /**
+     * @return A buffer which covers the whole slot at the given position
+     */
+    private ByteBuffer slot(int pos) {
+        ByteBuffer slab = slabs[pos / slotsPerSlab];
+        int offset = (pos % slotsPerSlab) * slotSize;
+        return slab.slice(offset, slotSize);
+    }
+
+    /**
+     * @return The chunk at the given position, the data is not copied
+     */
+    private Chunk toChunk(int pos) {
+        if(spilled[pos] != null) {
+            return new Chunk(spilled[pos], metaData[pos], timestamps[pos]);
+        }
+
+        // re-use the chunk if it was handed out already, e.g. via peek()
+        WeakReference<SlotChunk> view = views[pos];
+        SlotChunk slotChunk = view == null ? null : view.get();
+        if(slotChunk == null) {
+            slotChunk = new SlotChunk(pos);
+            views[pos] = new WeakReference<>(slotChunk);
+        }
+
+        return slotChunk;
+    }
+
+    /**
+     * @return A copy of the chunk at the given position which does not depend on the slot
+     */
+    private Chunk copyOf(int pos) {
+        if(spilled[pos] != null) {
+            return new Chunk(spilled[pos], metaData[pos], timestamps[pos]);
+        }
+
+        byte[] data = new byte[lengths[pos]];
+        slot(pos).get(data);
+        return new Chunk(data, metaData[pos], timestamps[pos]);
+    }
+
+    @Override
+    public synchronized Chunk next() {
+        waitForData();
+
+        if(stop) {
+            return null;
+        }
+
+        // fetch item before we increase the pointer
+        Chunk chunk = toChunk(nextGet);
+
+        nextGet = (nextGet + 1) % numberOfChunks;
+
+        return chunk;
+    }
+
+    @Override
+    public synchronized int next(Chunk[] dest) {
+        if(dest.length == 0) {
+            return 0;
+        }
+
+        waitForData();
+
+        if(stop) {
+            return 0;
+        }
+
+        return nextInternal(dest, dest.length);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super Chunk> target, int max) {
+        if(stop || max <= 0) {
+            return 0;
+        }
+
+        int count = Math.min(max, size());
+        for(int i = 0;i < count;i++) {
+            target.add(toChunk(nextGet));
+            nextGet = (nextGet + 1) % numberOfChunks;
+        }
+
+        return count;
+    }
+
+    private int nextInternal(Chunk[] dest, int max) {
+        int count = Math.min(max, size());
+        for(int i = 0;i < count;i++) {
+            dest[i] = toChunk(nextGet);
+            nextGet = (nextGet + 1) % numberOfChunks;
+        }
+
+        return count;
+    }
+
+    @SuppressForbidden(reason = "Uses Object.wait() on purpose here")
+    private void waitForData() {
+        // wait until data is available
+        while(empty() && !stop) {
+            try {
+                // waiting leaves the synchronized block so other threads
+                // can do work while we wait here
+                wait(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeInterruptedException(e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized Chunk peek() {
+        if(empty() || stop) {
+            return null;
+        }
+
+        return toChunk(nextGet);
+    }
+
+    /**
+     * Provide the data of the next chunk without copying it to the heap,
+     * the same as peek().asByteBuffer().
+     *
+     * The returned buffer is only valid until the slot is overwritten by
+     * newer data, so the caller should consume it before calling add()
+     * again, the read-position can be advanced via seek(1) afterwards.
+     *
+     * @return A read-only view on the data of the next chunk or null if
+     *      the buffer is empty or closed
+     */
+    public synchronized ByteBuffer peekData() {
+        Chunk chunk = peek();
+        return chunk == null ? null : chunk.asByteBuffer();
+    }
+
+    @Override
+    public synchronized int seek(int nrOfChunks) {
+        // compute how far we can move in one step: forward up to the
+        // head of the buffer, backwards until the buffer is full
+        final int stepped;
+        if(nrOfChunks > 0) {
+            stepped = Math.min(nrOfChunks, size());
+        } else {
+            stepped = Math.max(nrOfChunks, -(capacity() - size()));
+        }
+
+        nextGet = Math.floorMod(nextGet + stepped, numberOfChunks);
+
+        return stepped;
+    }
+
+    @Override
+    public synchronized int seekTo(int absolutePosition) {
+        return seek(absolutePosition - (fill - size()));
+    }
+
+    @Override
+    public synchronized int positionOf(long epochMillis) {
+        return timestampIndex.positionOf(epochMillis, Math.floorMod(nextAdd - fill, numberOfChunks), fill);
+    }
+
+    @Override
+    public synchronized int seekToTimestamp(long epochMillis) {
+        return seekTo(positionOf(epochMillis));
+    }
+
+    @Override
+    public synchronized int seekToNextMetadataChange() {
+        int position = metadataIndex.nextChange(fill, fill - size());
+        return position < 0 ? 0 : seekTo(position);
+    }
+
+    @Override
+    public synchronized int seekToPreviousMetadataChange() {
+        int position = metadataIndex.previousChange(fill, fill - size());
+        return position < 0 ? 0 : seekTo(position);
+    }
+
+    @Override
+    public synchronized List<MetadataRange> metadataRanges() {
+        return metadataIndex.ranges(fill);
+    }
+
+    @Override
+    public synchronized long bytesBuffered() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized double secondsBuffered() {
+        if(fill < 2) {
+            return 0;
+        }
+
+        long newest = timestamps[Math.floorMod(nextAdd - 1, numberOfChunks)];
+        long oldest = timestamps[Math.floorMod(nextAdd - fill, numberOfChunks)];
+
+        return Math.max(newest - oldest, 0) / 1000.0;
+    }
+
+    @Override
+    public synchronized boolean empty() {
+        //if head and tail are equal, we are empty
+        return nextAdd == nextGet;
+    }
+
+    @Override
+    public synchronized boolean full() {
+        // If tail is ahead of the head by 1, we are full
+        return ((nextAdd + 1) % numberOfChunks) == nextGet;
+    }
+
+    @Override
+    public int capacity() {
+        // minus one because we cannot use all buffer-elements due
+        // to head == tail meaning empty and (head - 1) == tail meaning full
+        return numberOfChunks - 1;
+    }
+
+    @Override
+    public synchronized int size() {
+        if(nextAdd >= nextGet) {
+            return nextAdd - nextGet;
+        } else {
+            return numberOfChunks - (nextGet - nextAdd);
+        }
+    }
+
+    @Override
+    public synchronized int fill() {
+        return fill;
+    }
+
+    @Override
+    public synchronized void reset() {
+        nextAdd = nextGet;
+        fill = 0;
+        bytes = 0;
+        timestampIndex.reset();
+    }
+
+    @Override
+    public synchronized int bufferedForward() {
+        return size();
+    }
+
+    @Override
+    public synchronized int bufferedBackward() {
+        // the read position may be outside of the filled range, e.g. for
+        // a restored buffer, so never report negative values
+        return Math.max(fill - size(), 0);
+    }
+
+    /**
+     * Stops waiting readers, the off-heap memory is released
+     * when the buffer is garbage collected.
+     */
+    @Override
+    public synchronized void close() {
+        stop = true;
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapSeekableRingBuffer{" +
+                "numberOfChunks=" + numberOfChunks +
+                ", slotSize=" + slotSize +
+                ", slabs=" + slabs.length +
+                ", nextGet=" + nextGet +
+                ", nextAdd=" + nextAdd +
+                ", stop=" + stop +
+                ", capacity=" + capacity() +
+                ", size=" + size() +
+                ", empty=" + empty() +
+                ", full=" + full() +
+                '}';
+    }
+
+    /**
+     * Note: The data of all chunks is copied to the heap for persisting.
+     */
+    @Override
+    public synchronized BufferPersistenceDTO toPersistence(Stream stream, boolean playing, boolean downloadWhilePaused,
+            long chunkCount) {
+        Chunk[] buffer = new Chunk[numberOfChunks];
+        for(int i = 0;i < numberOfChunks;i++) {
+            buffer[i] = copyOf(i);
+        }
+
+        return BufferPersistenceDTO.builder().
+            buffer(buffer, nextGet, nextAdd, fill).
+            stream(stream, playing, downloadWhilePaused).
+            chunkCount(chunkCount).
+            build();
+    }
+
+    public static OffHeapSeekableRingBuffer fromPersistence(BufferPersistenceDTO dto) throws IOException {
+        Chunk[] buffer = dto.getBuffer();
+        if(buffer == null) {
+            throw new IOException("Could not read buffer from persistent file, having: " + dto);
+        }
+
+        // larger chunks are kept on the heap
+        OffHeapSeekableRingBuffer offHeap = new OffHeapSeekableRingBuffer(buffer.length);
+
+        for(int i = 0;i < buffer.length;i++) {
+            offHeap.store(i, buffer[i]);
+        }
+
+        // index the available chunks starting with the oldest one
+        int start = Math.floorMod(dto.getNextAdd() - dto.getFill(), buffer.length);
+        for(int i = 0;i < dto.getFill();i++) {
+            int pos = (start + i) % buffer.length;
+            offHeap.timestampIndex.set(pos, buffer[pos].getTimestamp());
+            offHeap.metaData[pos] = offHeap.metadataIndex.add(buffer[pos].getMetaData(), i + 1);
+            offHeap.bytes += offHeap.lengths[pos];
+        }
+
+        offHeap.nextGet = dto.getNextGet();
+        offHeap.nextAdd = dto.getNextAdd();
+        offHeap.fill = dto.getFill();
+
+        return offHeap;
+    }
+
+    /**
+     * A chunk which provides the data of a slot without copying it.
+     *
+     * All access to the slot is done while holding the lock of the buffer,
+     * the data is copied to the heap before the slot is overwritten.
+     */
+    private final class SlotChunk extends Chunk {
+        private final int pos;
+        private final int length;
+
+        // the data after it was copied to the heap, null while it is read from the slot
+        private byte[] data;
+
+        private SlotChunk(int pos) {
+            super(metaData[pos], timestamps[pos]);
+            this.pos = pos;
+            this.length = lengths[pos];
+        }
+
+        @Override
+        public byte[] getData() {
+            synchronized (OffHeapSeekableRingBuffer.this) {
+                detach();
+                return data;
+            }
+        }
+
+        /**
+         * The returned buffer is only valid until the slot is overwritten
+         * by newer data, use {@link #getData()} to keep the data longer.
+         */
+        @Override
+        public ByteBuffer asByteBuffer() {
+            synchronized (OffHeapSeekableRingBuffer.this) {
+                if(data != null) {
+                    return ByteBuffer.wrap(data).asReadOnlyBuffer();
+                }
+
+                return slot(pos).limit(length).asReadOnlyBuffer();
+            }
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        private void detach() {
+            if(data == null) {
+                data = new byte[length];
+                slot(pos).get(data);
+            }
+        }
+    }
+}
@@ -8,13 +8,22 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.dstadler.audio.download.RangeDownload;
 import org.dstadler.audio.download.RangeDownloadFile;
 import org.dstadler.audio.download.RangeDownloadHTTP;
+import org.dstadler.audio.metrics.LatencyStats;
+import org.dstadler.audio.metrics.MetricsSource;
+import org.dstadler.audio.metrics.Timer;
 import org.dstadler.audio.stream.Stream;
 import org.dstadler.commons.logging.jdk.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,8 +37,13 @@ import java.util.regex.Pattern;
  * with more whenever necessary.
  *
  * Pre-filling in a separate thread can be added later.
+ *
+ * The download-position, counters of downloaded data, retries and restarted
+ * downloads and the time spent downloading are available via {@link MetricsSource}.
+ * Reads which had to download data synchronously and the time between downloaded
+ * batches of chunks are recorded in {@link LatencyStats}.
  */
-public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persistable {
+public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persistable, MetricsSource {
     private final static Logger log = LoggerFactory.make();
 
     private final static Pattern WINDOWS_FILE = Pattern.compile("file://[A-Z]:\\\\.*");
@@ -47,6 +61,17 @@ public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persis
 
     private long nextDownloadPos = 0;
 
+    /**
+     * Counters for metrics
+     */
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong downloadedChunks = new AtomicLong();
+    private final AtomicLong downloadRetries = new AtomicLong();
+    private final AtomicLong downloadRestarts = new AtomicLong();
+    private final AtomicLong downloadFailures = new AtomicLong();
+    private final Timer downloadTimer = new Timer();
+    private final LatencyStats latencyStats = new LatencyStats();
+
     /**
      * Create a buffer for downloading an audio-stream via the given URL.
      *
@@ -119,8 +144,10 @@ public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persis
             } catch (IOException e) {
                 retries++;
                 if(retries >= 10) {
+                    downloadFailures.incrementAndGet();
                     throw e;
                 }
+                downloadRetries.incrementAndGet();
 
                 log.warning(("Retry %,d: Failed to download, buffer: %,d bytes, chunkSize: %,d, bufferedChunks: %,d, " +
                         "min: %,d, max: %,d from position %,d: length: %,d: %s").formatted(
@@ -189,8 +216,11 @@ public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persis
                 nextDownloadPosBefore = this.nextDownloadPos;
             }
 
+            long start = System.nanoTime();
             byte[] bytes = download.readRange(nextDownloadPosBefore,
                     (int) Math.min((long) chunkSize * toDownload, download.getLength() - nextDownloadPosBefore));
+            downloadTimer.record(System.nanoTime() - start);
+            downloadedBytes.addAndGet(bytes.length);
 
             // now synchronize again to verify if the buffer changed in the meantime
             synchronized (this) {
@@ -199,18 +229,25 @@ public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persis
                             nextDownloadPos + " but expected " + nextDownloadPosBefore + ": " + this);
 
                     // restart downloading
+                    downloadRestarts.incrementAndGet();
                     continue;
                 }
 
+                Chunk[] chunks = new Chunk[toDownload];
                 int count = 0;
                 for (; count < toDownload && count * chunkSize < bytes.length; count++) {
                     Pair<String, Long> metaData = getMetadata(this.nextDownloadPos + (long) count * chunkSize);
-                    buffer.add(new Chunk(Arrays.copyOfRange(bytes, count * chunkSize,
+                    chunks[count] = new Chunk(Arrays.copyOfRange(bytes, count * chunkSize,
                             Math.min(bytes.length, (count + 1) * chunkSize)),
                             metaData == null ? "" : metaData.getKey(),
-                            metaData == null ? 0L : metaData.getValue()));
+                            metaData == null ? 0L : metaData.getValue());
                 }
 
+                // add all chunks at once to avoid locking the buffer for each chunk
+                buffer.addAll(chunks, 0, count);
+                downloadedChunks.addAndGet(count);
+                latencyStats.recordArrival(System.nanoTime());
+
                 // advance the download-position by the exact number of bytes that
                 // were actually read
                 this.nextDownloadPos += bytes.length;
@@ -227,17 +264,51 @@ public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persis
         return metaDataFun.apply(((double)pos)/download.getLength());
     }
 
+    /**
+     * @return The meta-data and timestamp for the chunk at the given absolute position
+     */
+    private Pair<String, Long> getMetadataAt(int position) {
+        Pair<String, Long> metaData = getMetadata((long) position * chunkSize);
+        return metaData == null ? Pair.of("", 0L) : metaData;
+    }
+
     @Override
     public void add(Chunk chunk) {
         throw new UnsupportedOperationException("This implementation does not support adding chunks, " +
                 "it only downloads from '" + download + "'");
     }
 
+    @Override
+    public void addAll(Chunk[] chunks, int off, int len) {
+        throw new UnsupportedOperationException("This implementation does not support adding chunks, " +
+                "it only downloads from '" + download + "'");
+    }
+
     @Override
     public Chunk next() {
+        fillupForNext();
+
+        return buffer.next();
+    }
+
+    @Override
+    public int next(Chunk[] dest) {
+        fillupForNext();
+
+        return buffer.next(dest);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Chunk> target, int max) {
+        // only return what is available without downloading more data
+        return buffer.drainTo(target, max);
+    }
+
+    private void fillupForNext() {
         // buffer.empty() indicates that we should fetch more data
         // empty() indicates that we cannot fetch more data anymore
         if(buffer.empty() && !empty()) {
+            long start = System.nanoTime();
             try {
                 log.info("Filling buffer for next() with download-position at %,d, length %,d, buffer: %s".formatted(
                         nextDownloadPos, download.getLength(), buffer));
@@ -246,6 +317,9 @@ public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persis
                         chunks, nextDownloadPos, download.getLength(), buffer));
             } catch (IOException e) {
                 throw new IllegalStateException("Failed to fill-up buffer", e);
+            } finally {
+                // the reader waits for the download, also if it fails
+                latencyStats.recordUnderrun(System.nanoTime() - start);
             }
         }
 
@@ -253,8 +327,14 @@ public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persis
         if(empty()) {
             close();
         }
+    }
 
-        return buffer.next();
+    /**
+     * @return Statistics about reads which had to download data synchronously
+     *      and the time between downloaded batches of chunks
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
     }
 
     @Override
@@ -323,11 +403,127 @@ public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persis
         return nrOfChunks;
     }
 
+    @Override
+    public synchronized int seekTo(int absolutePosition) {
+        // synchronized so that fill() and size() are consistent with the seek
+        return SeekableRingBuffer.super.seekTo(absolutePosition);
+    }
+
+    /**
+     * The timestamps are taken from the meta-data callback without downloading
+     * any data, they are expected to increase with the position in the file.
+     */
+    @Override
+    public int positionOf(long epochMillis) {
+        int low = 0;
+        int high = capacity() - 1;
+        int found = 0;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(getMetadataAt(mid).getValue() <= epochMillis) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * The meta-data is taken from the meta-data callback without downloading
+     * any data, the positions after the read-position are checked one by one.
+     */
+    @Override
+    public synchronized int seekToNextMetadataChange() {
+        int position = fill() - size();
+        String metaData = getMetadataAt(position).getKey();
+        for(int next = position + 1;next < capacity();next++) {
+            if(!metaData.equals(getMetadataAt(next).getKey())) {
+                return seekTo(next);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * The meta-data is taken from the meta-data callback without downloading
+     * any data, the positions before the read-position are checked one by one.
+     */
+    @Override
+    public synchronized int seekToPreviousMetadataChange() {
+        int position = fill() - size();
+        if(position <= 0) {
+            return 0;
+        }
+
+        // go to the start of the run which contains the chunk before the read-position
+        String metaData = getMetadataAt(position - 1).getKey();
+        int start = position - 1;
+        while(start > 0 && metaData.equals(getMetadataAt(start - 1).getKey())) {
+            start--;
+        }
+
+        return seekTo(start);
+    }
+
+    /**
+     * The ranges cover the whole file, the meta-data is taken from the
+     * meta-data callback for each position without downloading any data.
+     */
+    @Override
+    public List<MetadataRange> metadataRanges() {
+        List<MetadataRange> ranges = new ArrayList<>();
+        int start = 0;
+        String metaData = null;
+        for(int position = 0;position < capacity();position++) {
+            String current = getMetadataAt(position).getKey();
+            if(metaData != null && !metaData.equals(current)) {
+                ranges.add(new MetadataRange(start, position, metaData));
+                start = position;
+            }
+            metaData = current;
+        }
+
+        if(metaData != null) {
+            ranges.add(new MetadataRange(start, capacity(), metaData));
+        }
+
+        return ranges;
+    }
+
     private void seekInternal(long newPosition) {
         nextDownloadPos = newPosition;
         buffer.reset();
     }
 
+    /**
+     * The whole file is available for reading, see {@link #fill()}.
+     */
+    @Override
+    public long bytesBuffered() {
+        return download.getLength();
+    }
+
+    /**
+     * The time-span is computed from the timestamps which the meta-data
+     * function provides for the first and the last chunk of the file.
+     */
+    @Override
+    public double secondsBuffered() {
+        int chunks = capacity();
+        if(chunks < 2) {
+            return 0;
+        }
+
+        long newest = getMetadataAt(chunks - 1).getValue();
+        long oldest = getMetadataAt(0).getValue();
+
+        return Math.max(newest - oldest, 0) / 1000.0;
+    }
+
     @Override
     public synchronized boolean empty() {
         // only report the buffer as empty if we have downloaded everything
@@ -390,6 +586,29 @@ public class RangeDownloadingBuffer implements SeekableRingBuffer<Chunk>, Persis
         }
     }
 
+    @Override
+    public synchronized Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        metrics.put("size", size());
+        metrics.put("capacity", capacity());
+        metrics.put("bufferedForward", bufferedForward());
+        metrics.put("bufferedBackward", bufferedBackward());
+        metrics.put("downloadPosition", nextDownloadPos);
+        metrics.put("downloadLength", download.getLength());
+        metrics.put("downloadedBytes", downloadedBytes.get());
+        metrics.put("downloadedChunks", downloadedChunks.get());
+        metrics.put("retries", downloadRetries.get());
+        metrics.put("restarts", downloadRestarts.get());
+        metrics.put("failures", downloadFailures.get());
+        downloadTimer.addTo(metrics, "download");
+        latencyStats.addTo(metrics);
+
+        // the rate while downloading, not including the time between downloads
+        long millis = downloadTimer.getTotalMillis();
+        metrics.put("downloadBytesPerSecond", millis == 0 ? 0 : ((double) downloadedBytes.get()) * 1000 / millis);
+        return metrics;
+    }
+
     @Override
     public String toString() {
         return "RangeDownloadingBuffer{" +
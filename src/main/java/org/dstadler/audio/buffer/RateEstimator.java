@@ -0,0 +1,116 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Computes how many events per second happened over a moving window of
+ * the last timestamps, e.g. how many chunks were written to or read from a
+ * buffer.
+ *
+ * Intervals of 5 seconds or more between two consecutive timestamps are
+ * excluded from the duration and the count, they very likely are caused
+ * by a stopped or sleeping application.
+ *
+ * Instead of walking the whole window for every query, the sum and number
+ * of these large intervals are kept as running values which are updated
+ * when a timestamp is added or drops out of the window, so both adding and
+ * querying are O(1), do not allocate and do not lock.
+ *
+ * Concurrent calls to {@link #add(long)} may lead to a slightly inaccurate
+ * rate while they overlap, but the running values are always updated with
+ * the exact values that are stored in the window, so they do not drift over
+ * time.
+ */
+final class RateEstimator {
+    /**
+     * Intervals of this length or more are excluded
+     */
+    static final long MAX_INTERVAL = 5000;
+
+    private final int window;
+
+    // the timestamps and the length of the large interval before each of them, 0 for normal intervals
+    private final AtomicLongArray timestamps;
+    private final AtomicLongArray gaps;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong gapDuration = new AtomicLong();
+    private final AtomicInteger gapCount = new AtomicInteger();
+
+    /**
+     * @param window How many timestamps are used for computing the rate
+     */
+    RateEstimator(int window) {
+        Preconditions.checkArgument(window > 0, "Window needs to be larger than zero, but had: %s", window);
+
+        this.window = window;
+        this.timestamps = new AtomicLongArray(window);
+        this.gaps = new AtomicLongArray(window);
+    }
+
+    void add(long timestamp) {
+        long sequence = count.getAndIncrement();
+        int slot = (int) (sequence % window);
+
+        long gap = 0;
+        if (sequence > 0) {
+            long interval = timestamp - timestamps.get((int) ((sequence - 1) % window));
+            if (interval >= MAX_INTERVAL) {
+                gap = interval;
+            }
+        }
+
+        timestamps.set(slot, timestamp);
+        updateGap(slot, gap);
+
+        // the interval before the oldest timestamp in the window is not counted any more
+        if (sequence + 1 >= window) {
+            updateGap((int) ((sequence + 1) % window), 0);
+        }
+    }
+
+    private void updateGap(int slot, long gap) {
+        long previous = gaps.getAndSet(slot, gap);
+        if (previous != gap) {
+            gapDuration.addAndGet(gap - previous);
+            gapCount.addAndGet(Long.signum(gap) - Long.signum(previous));
+        }
+    }
+
+    /**
+     * @return The number of timestamps per second in the current window, 0 if
+     *      no timestamp was added and infinite if the window does not cover
+     *      any time, never NaN
+     */
+    double getPerSecond() {
+        long sequence = count.get();
+        if (sequence == 0) {
+            return 0;
+        }
+
+        int fill = (int) Math.min(sequence, window);
+        long first = timestamps.get((int) ((sequence - fill) % window));
+        long last = timestamps.get((int) ((sequence - 1) % window));
+
+        // the duration can be negative if the clock jumped back, concurrent
+        // updates could temporarily lead to a count of zero
+        double durationInSec = ((double) last - first - gapDuration.get()) / 1000;
+        double countInWindow = Math.max(1, fill - gapCount.get());
+
+        return countInWindow / durationInSec;
+    }
+
+    @Override
+    public String toString() {
+        return "RateEstimator{" +
+                "window=" + window +
+                ", count=" + count.get() +
+                ", gapDuration=" + gapDuration.get() +
+                ", gapCount=" + gapCount.get() +
+                '}';
+    }
+}
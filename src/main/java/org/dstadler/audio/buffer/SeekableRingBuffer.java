@@ -1,7 +1,11 @@
 package org.dstadler.audio.buffer;
 
+import com.google.common.base.Preconditions;
 import org.dstadler.audio.util.RuntimeInterruptedException;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * An interface for a specialized RingBuffer which allows to step
  * forward/backward in the stored elements as long as elements are
@@ -23,6 +27,27 @@ public interface SeekableRingBuffer<T> extends AutoCloseable {
      */
     void add(T chunk);
 
+    /**
+     * Add a number of chunks from the given array in one operation,
+     * the result is the same as calling add() for each of the chunks,
+     * but implementations can avoid locking and signalling a waiting
+     * reader for every single chunk.
+     *
+     * @param chunks The array of chunks to add
+     * @param off The index of the first chunk in the array to add
+     * @param len The number of chunks to add
+     * @throws IndexOutOfBoundsException If off and len do not describe a valid range in the array
+     * @throws UnsupportedOperationException If the implementation does not support adding chunks
+     *          e.g. when an external data source is underlying this buffer
+     */
+    default void addAll(T[] chunks, int off, int len) {
+        Preconditions.checkPositionIndexes(off, off + len, chunks.length);
+
+        for(int i = off;i < off + len;i++) {
+            add(chunks[i]);
+        }
+    }
+
     /**
      * Fetch the next chunk from the ring-buffer and advance the read-position.
      *
@@ -38,6 +63,65 @@ public interface SeekableRingBuffer<T> extends AutoCloseable {
      */
     T next();
 
+    /**
+     * Fetch as many chunks as are available without blocking, up to the
+     * length of the given array, and advance the read-position accordingly.
+     *
+     * This call blocks in the same way as {@link #next()} if no chunk is available.
+     *
+     * @param dest The array where the chunks are stored, starting at index 0
+     * @return The number of chunks stored in dest, 0 if dest has length 0, if the
+     *      buffer was closed or is exhausted.
+     * @throws RuntimeInterruptedException If waiting is interrupted
+     * @throws IllegalStateException If the buffer cannot be filled
+     */
+    default int next(T[] dest) {
+        if(dest.length == 0) {
+            return 0;
+        }
+
+        T chunk = next();
+        if(chunk == null) {
+            return 0;
+        }
+
+        dest[0] = chunk;
+        int count = 1;
+        while(count < dest.length && !empty()) {
+            chunk = next();
+            if(chunk == null) {
+                break;
+            }
+            dest[count++] = chunk;
+        }
+
+        return count;
+    }
+
+    /**
+     * Move up to max chunks which are available without blocking into the
+     * given collection and advance the read-position accordingly.
+     *
+     * In contrast to {@link #next()} this call never waits for new chunks.
+     *
+     * @param target The collection to add the chunks to
+     * @param max The maximum number of chunks to fetch
+     * @return The number of chunks that were added to the collection
+     */
+    default int drainTo(Collection<? super T> target, int max) {
+        int count = 0;
+        while(count < max && !empty()) {
+            T chunk = next();
+            if(chunk == null) {
+                break;
+            }
+            target.add(chunk);
+            count++;
+        }
+
+        return count;
+    }
+
     /**
      * Fetch the next chunk from the buffer if possible, return null otherwise.
      * This does not advance the read-position, so a subsequent peek() or next()
@@ -70,6 +154,111 @@ public interface SeekableRingBuffer<T> extends AutoCloseable {
      */
     int seek(int nrOfChunks);
 
+    /**
+     * Go to the given absolute position in the buffer, where 0 is the
+     * oldest chunk that is available and fill() is the position after
+     * the chunk that was added last.
+     *
+     * Positions outside the available range are limited to the start
+     * or end of the buffer in the same way as for {@link #seek(int)}.
+     *
+     * @param absolutePosition The position to move the read-position to
+     *
+     * @return The number of chunks that were actually seeked, negative
+     *      values indicate seeking backwards, see {@link #seek(int)}.
+     */
+    default int seekTo(int absolutePosition) {
+        return seek(absolutePosition - (fill() - size()));
+    }
+
+    /**
+     * Go to the position at the given fraction of the available data,
+     * e.g. 0.0 for the oldest chunk, 0.5 for the middle of the buffer
+     * and 1.0 for the position after the newest chunk.
+     *
+     * @param fraction A value in the range [0.0, 1.0]
+     *
+     * @return The number of chunks that were actually seeked, negative
+     *      values indicate seeking backwards, see {@link #seek(int)}.
+     * @throws IllegalArgumentException If the fraction is outside of [0.0, 1.0]
+     */
+    default int seekToFraction(double fraction) {
+        Preconditions.checkArgument(fraction >= 0 && fraction <= 1,
+                "Fraction needs to be in the range [0.0, 1.0], but had: %s", fraction);
+
+        return seekTo((int) (fraction * fill()));
+    }
+
+    /**
+     * Find the position of the chunk which was received at the given point
+     * in time, i.e. the last chunk with a timestamp at or before the given time.
+     *
+     * The position can be used with {@link #seekTo(int)}, 0 is the oldest chunk
+     * that is available.
+     *
+     * @param epochMillis The point in time in milliseconds since the epoch
+     *
+     * @return The absolute position of the chunk, 0 if all chunks are newer
+     *      or if the buffer is empty
+     */
+    int positionOf(long epochMillis);
+
+    /**
+     * Go to the chunk which was received at the given point in time,
+     * see {@link #positionOf(long)}.
+     *
+     * @param epochMillis The point in time in milliseconds since the epoch
+     *
+     * @return The number of chunks that were actually seeked, negative
+     *      values indicate seeking backwards, see {@link #seek(int)}.
+     */
+    default int seekToTimestamp(long epochMillis) {
+        return seekTo(positionOf(epochMillis));
+    }
+
+    /**
+     * Go forward to the first chunk after the current read-position which
+     * has different meta-data, e.g. to skip to the next song.
+     *
+     * @return The number of chunks that were seeked, 0 if there is no
+     *      change of meta-data after the current read-position
+     */
+    int seekToNextMetadataChange();
+
+    /**
+     * Go backwards to the last chunk before the current read-position where
+     * the meta-data changed, i.e. to the start of the current song or to the
+     * start of the previous song if the read-position is at the start of a song.
+     *
+     * If the change happened before the oldest available chunk, the read-position
+     * is moved to the oldest chunk.
+     *
+     * @return The number of chunks that were seeked as negative number, 0 if the
+     *      read-position is at the oldest chunk already
+     */
+    int seekToPreviousMetadataChange();
+
+    /**
+     * Provides the ranges of chunks with the same meta-data which
+     * are currently available in the buffer.
+     *
+     * @return The list of ranges ordered by position, empty if the buffer is empty
+     */
+    List<MetadataRange> metadataRanges();
+
+    /**
+     * @return The number of bytes of audio data in the chunks which are
+     *      currently available in the buffer, see {@link #fill()}
+     */
+    long bytesBuffered();
+
+    /**
+     * @return The time-span between the oldest and the newest chunk which
+     *      are currently available in the buffer in seconds, 0 if the buffer
+     *      holds less than two chunks
+     */
+    double secondsBuffered();
+
     /**
      * @return true if there are no elements in the buffer, false if next() is
      *      able to read an element without blocking or throwing an exception..
@@ -0,0 +1,196 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of decoded segments of a disk-based buffer, so
+ * that seeking back and forth does not read the same files again.
+ *
+ * Segments are evicted in least-recently-used order when the number
+ * of segments or the number of bytes exceeds the configured limits.
+ *
+ * Dirty segments hold data which is newer than the file on disk, e.g.
+ * while it is queued for writing. They are never evicted and are
+ * returned even if the cache is disabled, until they are marked as clean.
+ *
+ * Segments are identified by their position in the virtual buffer. The
+ * cache takes ownership of arrays that are added, get() returns a copy
+ * so the caller can modify it.
+ *
+ * This class is thread-safe as segments are read and written by
+ * background threads.
+ */
+class SegmentCache {
+	private static class Segment {
+		private final Chunk[] chunks;
+		private final long bytes;
+		private boolean dirty;
+
+		private Segment(Chunk[] chunks, boolean dirty) {
+			this.chunks = chunks;
+			this.dirty = dirty;
+
+			long sum = 0;
+			for (Chunk chunk : chunks) {
+				sum += chunk.size();
+			}
+			this.bytes = sum;
+		}
+	}
+
+	// access-order to find the least recently used segment
+	private final Map<Integer, Segment> segments = new LinkedHashMap<>(16, 0.75f, true);
+
+	private int maxSegments = 0;
+	private long maxBytes = 0;
+
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Incremented whenever data is written, so segments which were read
+	 * from disk concurrently are not added with outdated data
+	 */
+	private long writes = 0;
+
+	/**
+	 * Set the limits of the cache, a limit of zero disables caching of clean segments.
+	 *
+	 * @param maxSegments How many segments are kept at most
+	 * @param maxBytes How many bytes of chunk-data are kept at most
+	 */
+	synchronized void setLimits(int maxSegments, long maxBytes) {
+		Preconditions.checkArgument(maxSegments >= 0, "Had max segments: %s", maxSegments);
+		Preconditions.checkArgument(maxBytes >= 0, "Had max bytes: %s", maxBytes);
+
+		this.maxSegments = maxSegments;
+		this.maxBytes = maxBytes;
+
+		evict();
+	}
+
+	/**
+	 * @return A copy of the chunks of the segment or null if it is not cached
+	 */
+	synchronized Chunk[] get(int position) {
+		Segment segment = segments.get(position);
+		if (segment == null) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return segment.chunks.clone();
+	}
+
+	/**
+	 * @return A value to pass to putRead() when reading a segment from disk
+	 */
+	synchronized long stamp() {
+		return writes;
+	}
+
+	/**
+	 * Add a segment which was read from disk, unless the segment is cached
+	 * already or data was written since stamp() was called.
+	 */
+	synchronized void putRead(int position, Chunk[] chunks, long stamp) {
+		if (stamp != writes || segments.containsKey(position)) {
+			return;
+		}
+
+		putInternal(position, new Segment(chunks, false));
+	}
+
+	/**
+	 * Add a segment which was written to disk or is queued for writing.
+	 *
+	 * @param dirty If true, the segment is kept until markClean() is called
+	 */
+	synchronized void putWritten(int position, Chunk[] chunks, boolean dirty) {
+		writes++;
+
+		putInternal(position, new Segment(chunks, dirty));
+	}
+
+	private void putInternal(int position, Segment segment) {
+		Segment previous = segments.put(position, segment);
+		if (previous != null) {
+			bytes -= previous.bytes;
+		}
+		bytes += segment.bytes;
+
+		evict();
+	}
+
+	/**
+	 * Mark a dirty segment as clean after it was written to disk. Nothing
+	 * is done if the segment was replaced in the meantime.
+	 */
+	synchronized void markClean(int position, Chunk[] chunks) {
+		Segment segment = segments.get(position);
+		if (segment != null && segment.chunks == chunks) {
+			segment.dirty = false;
+
+			evict();
+		}
+	}
+
+	/**
+	 * Remove clean segments in least-recently-used order until the limits are met.
+	 */
+	private void evict() {
+		Iterator<Segment> it = segments.values().iterator();
+		while (it.hasNext() && (segments.size() > maxSegments || bytes > maxBytes)) {
+			Segment segment = it.next();
+			if (!segment.dirty) {
+				bytes -= segment.bytes;
+				it.remove();
+			}
+		}
+	}
+
+	synchronized int getDirty() {
+		int dirty = 0;
+		for (Segment segment : segments.values()) {
+			if (segment.dirty) {
+				dirty++;
+			}
+		}
+		return dirty;
+	}
+
+	synchronized int size() {
+		return segments.size();
+	}
+
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SegmentCache{" +
+				"segments=" + segments.size() +
+				", dirty=" + getDirty() +
+				", bytes=" + bytes +
+				", maxSegments=" + maxSegments +
+				", maxBytes=" + maxBytes +
+				", hits=" + hits +
+				", misses=" + misses +
+				'}';
+	}
+}
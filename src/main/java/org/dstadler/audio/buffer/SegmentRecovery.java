@@ -0,0 +1,442 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Verifies the files of a {@link DiskBasedBlockingSeekableRingBuffer} before
+ * the buffer is restored, so a file which was truncated or corrupted, e.g. by
+ * an unclean shutdown, is detected right away and not only when the reader
+ * reaches it.
+ *
+ * The buffer writes a checksum-file next to each file, verifying a file
+ * only needs to compute the CRC32 of its content. Files without a matching
+ * checksum, e.g. written by older versions or when the process was stopped
+ * between writing the file and the checksum, are parsed fully instead and
+ * the checksum is written again if the file is valid.
+ *
+ * Files which cannot be read are moved to the directory "quarantine", so
+ * these chunks are read as empty chunks afterwards. Delta-files are checked
+ * entry by entry and truncated after the last valid entry. The chunks of the
+ * delta-file are still applied to a file which was quarantined.
+ *
+ * The files are verified in parallel by the given number of threads.
+ *
+ * Usage:
+ * <pre>
+ * SegmentRecovery.Result result = SegmentRecovery.recover(dto, Runtime.getRuntime().availableProcessors());
+ * DiskBasedBlockingSeekableRingBuffer buffer = DiskBasedBlockingSeekableRingBuffer.fromPersistence(result.getDTO());
+ * </pre>
+ */
+public class SegmentRecovery {
+    private final static Logger log = LoggerFactory.make();
+
+    public static final String QUARANTINE_DIR = "quarantine";
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final File dataDir;
+    private final int numberOfDiskChunks;
+    private final int numberOfChunks;
+
+    /**
+     * The timestamps of all chunks, filled by the threads for their files,
+     * 0 for chunks which are not available
+     */
+    private final long[] timestamps;
+
+    /**
+     * The timestamps stored in the DTO, null if they need to be read from the files
+     */
+    private final long[] dtoTimestamps;
+
+    private SegmentRecovery(BufferPersistenceDTO dto) {
+        this.dataDir = dto.getDataDir();
+        this.numberOfDiskChunks = dto.getNumberOfDiskChunks();
+        this.numberOfChunks = numberOfDiskChunks / dto.getNumberOfDiskFiles();
+        this.timestamps = new long[numberOfDiskChunks];
+        this.dtoTimestamps = dto.getTimestamps() != null && dto.getTimestamps().length == numberOfDiskChunks ?
+                dto.getTimestamps() : null;
+    }
+
+    /**
+     * Verify all files of the buffer described by the given DTO and
+     * quarantine or repair invalid ones.
+     *
+     * @param dto The persisted state of a {@link DiskBasedBlockingSeekableRingBuffer}
+     * @param threads The number of files to verify in parallel
+     * @return The outcome of the verification, including the DTO to use for restoring the buffer
+     * @throws IOException If the DTO does not describe a disk-based buffer or files cannot be moved
+     */
+    public static Result recover(BufferPersistenceDTO dto, int threads) throws IOException {
+        Preconditions.checkArgument(threads > 0, "Had threads: %s", threads);
+        if (dto.getDataDir() == null || dto.getNumberOfDiskFiles() <= 0 ||
+                dto.getNumberOfDiskChunks() <= dto.getNumberOfDiskFiles()) {
+            throw new IOException("Could not recover buffer from persistent file, having: " + dto);
+        }
+
+        return new SegmentRecovery(dto).run(dto, threads);
+    }
+
+    private Result run(BufferPersistenceDTO dto, int threads) throws IOException {
+        long start = System.currentTimeMillis();
+
+        List<Callable<Segment>> tasks = new ArrayList<>();
+        for (int pos = 0; pos < numberOfDiskChunks; pos += numberOfChunks) {
+            final int position = pos;
+            tasks.add(() -> verify(position));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()),
+                BasicThreadFactory.builder()
+                        .daemon(true)
+                        .namingPattern("SegmentRecovery-%d")
+                        .build());
+
+        List<Integer> quarantined = new ArrayList<>();
+        List<Integer> repaired = new ArrayList<>();
+        try {
+            for (Future<Segment> future : executor.invokeAll(tasks)) {
+                Segment segment = future.get();
+                if (segment.quarantined) {
+                    quarantined.add(segment.position);
+                }
+                if (segment.repaired) {
+                    repaired.add(segment.position);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while verifying files in " + dataDir, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not verify files in " + dataDir, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the indexes of the DTO are outdated when chunks were removed,
+        // the buffer reads them from the files in this case
+        BufferPersistenceDTO result = dto;
+        if (!quarantined.isEmpty() || !repaired.isEmpty()) {
+            result = BufferPersistenceDTO.builder().
+                    buffer(null, dto.getNextGet(), dto.getNextAdd(), dto.getFill()).
+                    nextDownloadPosition(dto.getNextDownloadPosition()).
+                    stream(dto.getStream(), dto.isPlaying(), dto.isDownloadWhilePaused()).
+                    data(dto.getNumberOfDiskChunks(), dto.getNumberOfDiskFiles(), dto.getDataDir()).
+                    chunkCount(dto.getChunkCount()).
+                    build();
+        }
+
+        long oldest = Long.MAX_VALUE;
+        long newest = Long.MIN_VALUE;
+        int first = Math.floorMod(dto.getNextAdd() - dto.getFill(), numberOfDiskChunks);
+        for (int i = 0; i < dto.getFill(); i++) {
+            long timestamp = timestamps[(first + i) % numberOfDiskChunks];
+            if (timestamp > 0) {
+                oldest = Math.min(oldest, timestamp);
+                newest = Math.max(newest, timestamp);
+            }
+        }
+
+        Result recovery = new Result(result, tasks.size(), quarantined, repaired,
+                oldest == Long.MAX_VALUE ? 0 : oldest, newest == Long.MIN_VALUE ? 0 : newest,
+                System.currentTimeMillis() - start);
+        log.info("Verified files in " + dataDir + ": " + recovery);
+
+        return recovery;
+    }
+
+    private Segment verify(int position) throws IOException {
+        Segment segment = new Segment(position);
+        File bufferFile = bufferFile(dataDir, position);
+        File checksumFile = checksumFile(dataDir, position);
+
+        if (bufferFile.exists()) {
+            boolean checksumMatches = checksumMatches(bufferFile, checksumFile);
+            if (checksumMatches && dtoTimestamps != null) {
+                int length = Math.min(numberOfChunks, numberOfDiskChunks - position);
+                System.arraycopy(dtoTimestamps, position, timestamps, position, length);
+            } else {
+                try {
+                    Chunk[] chunks = parse(bufferFile);
+                    setTimestamps(position, chunks);
+
+                    if (!checksumMatches) {
+                        log.info("Writing missing or outdated checksum for " + bufferFile);
+                        writeChecksum(dataDir, position, checksum(bufferFile), bufferFile.length(), false);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.log(Level.WARNING, "Moving invalid file " + bufferFile + " to " + QUARANTINE_DIR, e);
+                    quarantine(bufferFile);
+                    if (checksumFile.exists()) {
+                        quarantine(checksumFile);
+                    }
+                    segment.quarantined = true;
+                }
+            }
+        }
+
+        File deltaFile = deltaFile(dataDir, position);
+        if (deltaFile.exists()) {
+            segment.repaired = verifyDelta(position, deltaFile);
+        }
+
+        return segment;
+    }
+
+    private Chunk[] parse(File bufferFile) throws IOException {
+        final Chunk[] chunks;
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(bufferFile))) {
+            chunks = BufferPersistence.getMapper().readValue(stream, Chunk[].class);
+        }
+
+        if (chunks == null || chunks.length != numberOfChunks) {
+            throw new IOException("Expected " + numberOfChunks + " chunks in file " + bufferFile + ", but had " +
+                    (chunks == null ? null : chunks.length));
+        }
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] == null || chunks[i].getData() == null || chunks[i].getMetaData() == null) {
+                throw new IOException("Invalid chunk " + i + " in file " + bufferFile + ": " + chunks[i]);
+            }
+        }
+
+        return chunks;
+    }
+
+    private void setTimestamps(int position, Chunk[] chunks) {
+        for (int i = 0; i < chunks.length && position + i < numberOfDiskChunks; i++) {
+            timestamps[position + i] = chunks[i].getTimestamp();
+        }
+    }
+
+    /**
+     * Check the entries of the delta-file and truncate it after the last valid one.
+     *
+     * @return true if the file was truncated
+     */
+    private boolean verifyDelta(int position, File deltaFile) throws IOException {
+        long length = deltaFile.length();
+        long valid = 0;
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(deltaFile)))) {
+            while (valid + 16 <= length) {
+                int slot = stream.readInt();
+                long timestamp = stream.readLong();
+                int metaDataLength = stream.readInt();
+                if (slot < 0 || slot >= numberOfChunks || metaDataLength < 0 ||
+                        valid + 20 + metaDataLength > length) {
+                    break;
+                }
+                stream.skipNBytes(metaDataLength);
+
+                int dataLength = stream.readInt();
+                long end = valid + 20 + metaDataLength + dataLength;
+                if (dataLength < 0 || end > length) {
+                    break;
+                }
+                stream.skipNBytes(dataLength);
+
+                if (position + slot < numberOfDiskChunks) {
+                    timestamps[position + slot] = timestamp;
+                }
+                valid = end;
+            }
+        }
+
+        if (valid == length) {
+            return false;
+        }
+
+        log.warning("Truncating delta-file " + deltaFile + " from " + length + " to " + valid + " bytes");
+        try (RandomAccessFile raf = new RandomAccessFile(deltaFile, "rw")) {
+            raf.setLength(valid);
+        }
+
+        return true;
+    }
+
+    private void quarantine(File file) throws IOException {
+        File dir = new File(dataDir, QUARANTINE_DIR);
+        if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+
+        Files.move(file.toPath(), new File(dir, file.getName() + "." + System.currentTimeMillis()).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static boolean checksumMatches(File bufferFile, File checksumFile) throws IOException {
+        if (!checksumFile.exists()) {
+            return false;
+        }
+
+        final long expected;
+        final long expectedLength;
+        try (DataInputStream stream = new DataInputStream(new FileInputStream(checksumFile))) {
+            expected = stream.readLong();
+            expectedLength = stream.readLong();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not read checksum from " + checksumFile, e);
+            return false;
+        }
+
+        return expectedLength == bufferFile.length() && expected == checksum(bufferFile);
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Store the checksum of the given file of a {@link DiskBasedBlockingSeekableRingBuffer}.
+     */
+    static void writeChecksum(File dataDir, int position, long crc, long length, boolean sync) throws IOException {
+        FileOutputStream out = new FileOutputStream(checksumFile(dataDir, position));
+        try (DataOutputStream stream = new DataOutputStream(out)) {
+            stream.writeLong(crc);
+            stream.writeLong(length);
+
+            if (sync) {
+                stream.flush();
+                out.getFD().sync();
+            }
+        }
+    }
+
+    private static File bufferFile(File dataDir, int position) {
+        return new File(dataDir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + position + ".bson");
+    }
+
+    private static File deltaFile(File dataDir, int position) {
+        return new File(dataDir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + position + ".delta");
+    }
+
+    static File checksumFile(File dataDir, int position) {
+        return new File(dataDir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + position + ".crc");
+    }
+
+    private static class Segment {
+        private final int position;
+        private boolean quarantined;
+        private boolean repaired;
+
+        private Segment(int position) {
+            this.position = position;
+        }
+    }
+
+    /**
+     * The outcome of {@link #recover(BufferPersistenceDTO, int)}
+     */
+    public static class Result {
+        private final BufferPersistenceDTO dto;
+        private final int files;
+        private final List<Integer> quarantined;
+        private final List<Integer> repaired;
+        private final long oldestTimestamp;
+        private final long newestTimestamp;
+        private final long duration;
+
+        private Result(BufferPersistenceDTO dto, int files, List<Integer> quarantined, List<Integer> repaired,
+                long oldestTimestamp, long newestTimestamp, long duration) {
+            this.dto = dto;
+            this.files = files;
+            this.quarantined = Collections.unmodifiableList(quarantined);
+            this.repaired = Collections.unmodifiableList(repaired);
+            this.oldestTimestamp = oldestTimestamp;
+            this.newestTimestamp = newestTimestamp;
+            this.duration = duration;
+        }
+
+        /**
+         * @return The DTO to use for restoring the buffer, the indexes are
+         *      removed if chunks were lost, so they are read from the files
+         */
+        public BufferPersistenceDTO getDTO() {
+            return dto;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        /**
+         * @return The positions of the files which were moved to the quarantine-directory
+         */
+        public List<Integer> getQuarantined() {
+            return quarantined;
+        }
+
+        /**
+         * @return The positions of the files where invalid entries were removed from the delta-file
+         */
+        public List<Integer> getRepaired() {
+            return repaired;
+        }
+
+        public boolean isValid() {
+            return quarantined.isEmpty() && repaired.isEmpty();
+        }
+
+        /**
+         * @return The timestamp of the oldest chunk which is still available, 0 if there is none
+         */
+        public long getOldestTimestamp() {
+            return oldestTimestamp;
+        }
+
+        /**
+         * @return The timestamp of the newest chunk which is still available, 0 if there is none
+         */
+        public long getNewestTimestamp() {
+            return newestTimestamp;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "files=" + files +
+                    ", quarantined=" + quarantined +
+                    ", repaired=" + repaired +
+                    ", oldestTimestamp=" + oldestTimestamp +
+                    ", newestTimestamp=" + newestTimestamp +
+                    ", duration=" + duration + "ms" +
+                    '}';
+        }
+    }
+}
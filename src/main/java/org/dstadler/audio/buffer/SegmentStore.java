@@ -0,0 +1,270 @@
+package org.dstadler.audio.buffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+
+/**
+ * The files of a {@link DiskBasedBlockingSeekableRingBuffer}.
+ *
+ * The chunks of the virtual buffer are stored in segments of numberOfChunks
+ * chunks, each segment is identified by the position of its first chunk.
+ * A segment is written as BSON file together with a checksum, see
+ * {@link SegmentRecovery}. Chunks which changed since the file was written
+ * can be appended to a delta-file instead, which is applied when the
+ * segment is read.
+ *
+ * The journal of the buffer is stored in the same directory.
+ *
+ * This class does not keep any state besides the location and layout of
+ * the files, the caller needs to make sure that a segment is not written
+ * by more than one thread at the same time.
+ */
+class SegmentStore {
+	private final static Logger log = LoggerFactory.make();
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final File dataDir;
+	private final int numberOfDiskChunks;
+	private final int numberOfChunks;
+
+	/**
+	 * @param dataDir The directory where the files are stored
+	 * @param numberOfDiskChunks The number of chunks of the virtual buffer
+	 * @param numberOfChunks The number of chunks of one segment
+	 */
+	SegmentStore(File dataDir, int numberOfDiskChunks, int numberOfChunks) {
+		this.dataDir = dataDir;
+		this.numberOfDiskChunks = numberOfDiskChunks;
+		this.numberOfChunks = numberOfChunks;
+	}
+
+	/**
+	 * Read the segment at the given position including the changes of its delta-file.
+	 *
+	 * @return The chunks of the segment, empty chunks if the segment was never written
+	 * @throws IOException If reading from the file fails
+	 */
+	Chunk[] read(int position) throws IOException {
+		File bufferFile = bufferFile(position);
+		File deltaFile = deltaFile(position);
+
+		final Chunk[] buffer;
+		if (!bufferFile.exists()) {
+			log.info("Could not read disk-buffer from " + dataDir);
+
+			buffer = createEmptyBuffer(numberOfChunks);
+		} else {
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Reading buffer from file " + bufferFile);
+			}
+			try (InputStream stream = new BufferedInputStream(new FileInputStream(bufferFile))) {
+				buffer = BufferPersistence.getMapper().readValue(stream, Chunk[].class);
+				log.info("Position " + position + ": read " + buffer.length + " chunks from file " + bufferFile);
+			}
+		}
+
+		if (deltaFile.exists()) {
+			readDelta(deltaFile, buffer);
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Write the given positions of the segment, either by appending them to the
+	 * delta-file or by writing the full segment if this is cheaper.
+	 *
+	 * @param position The position of the segment
+	 * @param buffer All chunks of the segment
+	 * @param dirty The positions in the segment which changed since it was written
+	 * @param sync If true, the data is forced to disk before this method returns
+	 * @throws IOException If writing the files fails
+	 */
+	void write(int position, Chunk[] buffer, BitSet dirty, boolean sync) throws IOException {
+		File bufferFile = bufferFile(position);
+		File deltaFile = deltaFile(position);
+
+		// the last buffer is shorter if the number of chunks is not a multiple of the files
+		int length = Math.min(numberOfChunks, numberOfDiskChunks - position);
+		if (dirty.cardinality() < length && bufferFile.exists() && deltaFile.length() < bufferFile.length()) {
+			writeDelta(deltaFile, buffer, dirty, sync);
+			return;
+		}
+
+		writeBuffer(position, buffer, sync);
+
+		// the full buffer contains the data of the delta-file as well, so it
+		// is only removed after the new file replaced the previous one
+		if (deltaFile.exists() && !deltaFile.delete()) {
+			throw new IOException("Could not delete delta-file " + deltaFile);
+		}
+	}
+
+	/**
+	 * Read timestamps, meta-data and lengths of all chunks from the segments, segments which
+	 * cannot be read are skipped, as the buffer reports errors when reading them.
+	 */
+	void readIndexes(long[] timestamps, String[] metaData, int[] lengths) {
+		Arrays.fill(metaData, "");
+		for (int pos = 0; pos < numberOfDiskChunks; pos += numberOfChunks) {
+			final Chunk[] buffer;
+			try {
+				buffer = read(pos);
+			} catch (IOException e) {
+				// the index is only used for finding positions by time, so
+				// we do not fail here, the buffer reports errors when reading
+				log.log(Level.WARNING, "Could not read indexes at position " + pos + " from " + dataDir, e);
+				continue;
+			}
+
+			for (int i = 0; i < buffer.length && pos + i < numberOfDiskChunks; i++) {
+				timestamps[pos + i] = buffer[i].getTimestamp();
+				metaData[pos + i] = buffer[i].getMetaData();
+				lengths[pos + i] = buffer[i].getData().length;
+			}
+		}
+	}
+
+	/**
+	 * Open the journal in the directory, existing entries are kept for replaying them.
+	 */
+	Journal openJournal(JournalPolicy journalPolicy) throws IOException {
+		// pre-size for the chunks of one file, the journal starts over when switching files
+		return new Journal(new File(dataDir, Journal.FILE_NAME),
+				(long) numberOfChunks * (Chunk.CHUNK_SIZE + 64), journalPolicy);
+	}
+
+	/**
+	 * Remove the journal, e.g. because all of its chunks are stored in the segments.
+	 */
+	void deleteJournal() throws IOException {
+		File journalFile = new File(dataDir, Journal.FILE_NAME);
+		if (journalFile.exists() && !journalFile.delete()) {
+			throw new IOException("Could not delete journal " + journalFile);
+		}
+	}
+
+	static Chunk[] createEmptyBuffer(int numberOfChunks) {
+		Chunk[] buffer = new Chunk[numberOfChunks];
+		for(int i = 0; i < numberOfChunks; i++) {
+			buffer[i] = new Chunk(EMPTY, "", 0);
+		}
+		return buffer;
+	}
+
+	private File bufferFile(int position) {
+		return new File(dataDir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + position + ".bson");
+	}
+
+	private File deltaFile(int position) {
+		return new File(dataDir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + position + ".delta");
+	}
+
+	private static void writeDelta(File deltaFile, Chunk[] buffer, BitSet dirty, boolean sync) throws IOException {
+		log.info("Appending " + dirty.cardinality() + " chunks to file " + deltaFile);
+		FileOutputStream out = new FileOutputStream(deltaFile, true);
+		try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(out))) {
+			for (int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1)) {
+				Chunk chunk = buffer[slot];
+				byte[] metaData = chunk.getMetaData().getBytes(StandardCharsets.UTF_8);
+
+				stream.writeInt(slot);
+				stream.writeLong(chunk.getTimestamp());
+				stream.writeInt(metaData.length);
+				stream.write(metaData);
+				stream.writeInt(chunk.getData().length);
+				stream.write(chunk.getData());
+			}
+
+			if (sync) {
+				stream.flush();
+				out.getFD().sync();
+			}
+		}
+	}
+
+	/**
+	 * Apply the chunks of the delta-file to the buffer, the last entry for a position wins.
+	 */
+	private static void readDelta(File deltaFile, Chunk[] buffer) throws IOException {
+		int count = 0;
+		try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(deltaFile)))) {
+			while (true) {
+				final int slot;
+				try {
+					slot = stream.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+
+				try {
+					long timestamp = stream.readLong();
+					byte[] metaData = new byte[stream.readInt()];
+					stream.readFully(metaData);
+					byte[] data = new byte[stream.readInt()];
+					stream.readFully(data);
+
+					if (slot >= 0 && slot < buffer.length) {
+						buffer[slot] = new Chunk(data, new String(metaData, StandardCharsets.UTF_8), timestamp);
+						count++;
+					}
+				} catch (EOFException e) {
+					// an incomplete entry at the end, e.g. if the process was killed while writing
+					log.warning("Ignoring incomplete entry for position " + slot + " at the end of " + deltaFile);
+					break;
+				}
+			}
+		}
+
+		log.info("Applied " + count + " chunks from file " + deltaFile);
+	}
+
+	/**
+	 * Write the segment to a temporary file and move it over the previous file,
+	 * so a crash while writing never leaves a partially written segment.
+	 */
+	private void writeBuffer(int position, Chunk[] buffer, boolean sync) throws IOException {
+		File bufferFile = bufferFile(position);
+		File tmpFile = new File(dataDir, bufferFile.getName() + ".tmp");
+
+		log.info("Writing buffer for position " + position + " to file " + bufferFile);
+		CRC32 crc = new CRC32();
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try (OutputStream stream = new BufferedOutputStream(new CheckedOutputStream(out, crc))) {
+			BufferPersistence.getMapper().writeValue(stream, buffer);
+
+			// the data needs to be on disk before the rename, otherwise
+			// the file may be empty after a crash
+			stream.flush();
+			out.getFD().sync();
+		}
+
+		Files.move(tmpFile.toPath(), bufferFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// allows to verify the file quickly on startup, a missing or outdated
+		// checksum is re-computed by SegmentRecovery
+		SegmentRecovery.writeChecksum(dataDir, position, crc.getValue(), bufferFile.length(), sync);
+		log.fine("Done writing to " + bufferFile);
+	}
+}
@@ -0,0 +1,630 @@
+package org.dstadler.audio.buffer;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.dstadler.audio.util.RuntimeInterruptedException;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+import org.dstadler.commons.util.ExecutorUtil;
+import org.dstadler.commons.util.SuppressForbidden;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of the {@link SeekableRingBuffer} interface which keeps
+ * the newest chunks in memory and older chunks on disk.
+ *
+ * The buffer is split into segments of a fixed number of chunks. The
+ * segment which is currently written and the segments before it up to
+ * the given number of "hot" segments stay in memory, so reading near
+ * the live position does not need any disk access.
+ *
+ * When the writer moves on to the next segment, older segments are written
+ * to disk by a background thread and dropped from memory afterwards.
+ * Seeking back beyond the hot segments reads the segment from disk when
+ * a chunk of it is accessed, one such "cold" segment is kept in memory
+ * for reading.
+ *
+ * Chunks are stored in the same format as by {@link DiskBasedBlockingSeekableRingBuffer}.
+ */
+public class TieredSeekableRingBuffer implements SeekableRingBuffer<Chunk> {
+    private final static Logger log = LoggerFactory.make();
+
+    public static final String FILE_PREFIX = "TieredBuffer-";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int numberOfChunks;
+    private final int chunksPerSegment;
+    private final int hotSegments;
+    private final File dataDir;
+
+    /**
+     * In-memory data of the segments, null if the segment is only
+     * stored on disk or was never written
+     */
+    private final Chunk[][] segments;
+
+    /**
+     * Set if the file of the segment holds the current data
+     */
+    private final boolean[] onDisk;
+
+    /**
+     * Set while a background write of the segment is queued
+     */
+    private final boolean[] spilling;
+
+    /**
+     * Incremented whenever the writer enters a segment, so a background
+     * write which started before does not drop the segment from memory
+     */
+    private final long[] versions;
+
+    /**
+     * The segment which was read from disk last, -1 if none
+     */
+    private int coldIndex = -1;
+    private Chunk[] coldSegment;
+
+    /**
+     * The segment which contains nextAdd, -1 before the first add
+     */
+    private int writeSegment = -1;
+
+    /**
+     * Timestamps of all chunks, kept in memory so that finding
+     * positions by time does not need to read from disk
+     */
+    private final TimestampIndex timestamps;
+
+    /**
+     * The number of bytes of all chunks, kept in memory so that
+     * counting the buffered bytes does not need to read from disk
+     */
+    private final int[] lengths;
+
+    /**
+     * The number of bytes in the chunks which are counted in fill
+     */
+    private long bytes = 0;
+
+    /**
+     * Positions where the meta-data of the chunks changes
+     */
+    private final MetadataIndex metadata = new MetadataIndex();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+            BasicThreadFactory.builder()
+                    .daemon(true)
+                    .namingPattern("TieredBuffer-%d")
+                    .uncaughtExceptionHandler((t, e) ->
+                            log.log(Level.WARNING, "Had unexpected exception", e))
+                    .build());
+
+    /**
+     * indicates the next position to read,
+     * there is no more data to read if nextGet == nextAdd
+     * this is always in the range [0, numberOfChunks[
+     */
+    private int nextGet = 0;
+
+    /**
+     * indicates the next position to write,
+     * this is always in the range [0, numberOfChunks[
+     */
+    private int nextAdd = 0;
+
+    private int fill = 0;
+
+    /**
+     * This enables breaking the blocking wait in next(),
+     * set via calling close()
+     */
+    private boolean stop = false;
+
+    /**
+     * @param numberOfChunks The overall number of chunks, the buffer can hold numberOfChunks - 1 chunks
+     * @param chunksPerSegment How many chunks are stored in one file on disk
+     * @param hotSegments How many of the newest segments are kept in memory,
+     *                    including the one which is currently written
+     * @param dataDir The directory where the segments are stored
+     */
+    public TieredSeekableRingBuffer(int numberOfChunks, int chunksPerSegment, int hotSegments, File dataDir) {
+        Preconditions.checkNotNull(dataDir, "Need a valid temporary directory");
+        Preconditions.checkState((dataDir.exists() || dataDir.mkdirs()) && dataDir.isDirectory(),
+                "Invalid temporary directory provided: %s, exists: %s, isDirectory: %s",
+                dataDir, dataDir.exists(), dataDir.isDirectory());
+
+        Preconditions.checkArgument(numberOfChunks > 1, "Had chunks: %s", numberOfChunks);
+        Preconditions.checkArgument(chunksPerSegment > 0 && chunksPerSegment < numberOfChunks,
+                "Had chunks per segment: %s and chunks: %s", chunksPerSegment, numberOfChunks);
+        Preconditions.checkArgument(hotSegments > 0, "Had hot segments: %s", hotSegments);
+
+        this.numberOfChunks = numberOfChunks;
+        this.chunksPerSegment = chunksPerSegment;
+        this.hotSegments = hotSegments;
+        this.dataDir = dataDir;
+
+        int numberOfSegments = (numberOfChunks + chunksPerSegment - 1) / chunksPerSegment;
+        this.segments = new Chunk[numberOfSegments][];
+        this.onDisk = new boolean[numberOfSegments];
+        this.spilling = new boolean[numberOfSegments];
+        this.versions = new long[numberOfSegments];
+        this.timestamps = new TimestampIndex(numberOfChunks);
+        this.lengths = new int[numberOfChunks];
+    }
+
+    @SuppressForbidden(reason = "Uses Object.notify() on purpose here")
+    @Override
+    public synchronized void add(Chunk chunk) {
+        Preconditions.checkNotNull(chunk);
+
+        addInternal(chunk);
+
+        notify();
+    }
+
+    @SuppressForbidden(reason = "Uses Object.notify() on purpose here")
+    @Override
+    public synchronized void addAll(Chunk[] chunks, int off, int len) {
+        Preconditions.checkPositionIndexes(off, off + len, chunks.length);
+        for(int i = off;i < off + len;i++) {
+            Preconditions.checkNotNull(chunks[i]);
+        }
+
+        for(int i = off;i < off + len;i++) {
+            addInternal(chunks[i]);
+        }
+
+        // only wake up the reader once for all chunks
+        notify();
+    }
+
+    private void addInternal(Chunk chunk) {
+        // share the meta-data string with the previous chunks
+        String metaData = metadata.add(chunk.getMetaData(), Math.min(fill + 1, numberOfChunks - 1));
+        if (metaData != chunk.getMetaData()) {
+            chunk = new Chunk(chunk.getData(), metaData, chunk.getTimestamp());
+        }
+
+        // the oldest chunk drops out of the buffer when it is full
+        if(fill > 0 && fill == numberOfChunks - 1) {
+            bytes -= lengths[(nextAdd + 1) % numberOfChunks];
+        }
+        bytes += chunk.getData().length;
+
+        segmentForWrite(nextAdd / chunksPerSegment)[nextAdd % chunksPerSegment] = chunk;
+        timestamps.set(nextAdd, chunk.getTimestamp());
+        lengths[nextAdd] = chunk.getData().length;
+
+        nextAdd = (nextAdd + 1) % numberOfChunks;
+        if(nextAdd == nextGet) {
+            // we are overwriting the next to read, so we need to move nextGet forward as well
+            nextGet = (nextGet + 1) % numberOfChunks;
+        }
+
+        // increase fill until we wrapped around at least once
+        // so we know when the buffer is filled up with data
+        if(fill != (numberOfChunks - 1)) {
+            fill++;
+        }
+    }
+
+    /**
+     * Provide the in-memory data of the segment which is written,
+     * when the writer enters a new segment, older segments are
+     * written to disk in the background.
+     */
+    private Chunk[] segmentForWrite(int segment) {
+        if (segment != writeSegment) {
+            writeSegment = segment;
+
+            // the data on disk and a running background write are outdated now
+            versions[segment]++;
+
+            // the segment still holds the oldest chunks of the buffer,
+            // so we need to read it back if it was dropped from memory,
+            // before the file on disk is marked as outdated
+            if (segments[segment] == null) {
+                segments[segment] = coldIndex == segment ? coldSegment : readSegment(segment);
+            }
+            onDisk[segment] = false;
+            if (coldIndex == segment) {
+                coldIndex = -1;
+                coldSegment = null;
+            }
+
+            spillSegments();
+        }
+
+        return segments[segment];
+    }
+
+    /**
+     * Queue writing all in-memory segments which are not hot any more
+     */
+    private void spillSegments() {
+        if (writer.isShutdown()) {
+            return;
+        }
+
+        for (int segment = 0; segment < segments.length; segment++) {
+            if (segments[segment] == null || spilling[segment] ||
+                    Math.floorMod(writeSegment - segment, segments.length) < hotSegments) {
+                continue;
+            }
+
+            final int spillSegment = segment;
+            final long version = versions[segment];
+            final Chunk[] data = segments[segment];
+
+            spilling[segment] = true;
+            writer.submit(() -> spill(spillSegment, version, data));
+        }
+    }
+
+    /**
+     * Write the segment to disk and drop it from memory if the writer did
+     * not enter the segment again in the meantime.
+     *
+     * This is executed in the background thread without holding the lock.
+     */
+    private void spill(int segment, long version, Chunk[] data) {
+        File file = getFile(segment);
+        try {
+            try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(file))) {
+                BufferPersistence.getMapper().writeValue(stream, data);
+            }
+        } catch (IOException | RuntimeException e) {
+            // keep the segment in memory, it is tried again when the writer moves on
+            log.log(Level.WARNING, "Could not write segment " + segment + " to " + file, e);
+
+            synchronized (this) {
+                spilling[segment] = false;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            spilling[segment] = false;
+            if (versions[segment] == version) {
+                onDisk[segment] = true;
+                segments[segment] = null;
+            }
+        }
+    }
+
+    private File getFile(int segment) {
+        return new File(dataDir, FILE_PREFIX + segment + ".bson");
+    }
+
+    /**
+     * Read the data of a segment from disk, a segment which was
+     * never written to disk is returned as empty chunks.
+     */
+    private Chunk[] readSegment(int segment) {
+        if (!onDisk[segment]) {
+            return createEmptySegment();
+        }
+
+        File file = getFile(segment);
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Reading segment " + segment + " from file " + file);
+        }
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            return BufferPersistence.getMapper().readValue(stream, Chunk[].class);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Could not read segment " + segment + " from " + file, e);
+        }
+    }
+
+    private Chunk[] createEmptySegment() {
+        Chunk[] data = new Chunk[chunksPerSegment];
+        for(int i = 0;i < chunksPerSegment;i++) {
+            data[i] = new Chunk(EMPTY, "", 0);
+        }
+        return data;
+    }
+
+    /**
+     * Get the chunk at the given position, reading the segment
+     * from disk if it is not available in memory.
+     */
+    private Chunk chunkAt(int pos) {
+        int segment = pos / chunksPerSegment;
+
+        Chunk[] data = segments[segment];
+        if (data == null) {
+            if (coldIndex != segment) {
+                coldSegment = readSegment(segment);
+                coldIndex = segment;
+            }
+            data = coldSegment;
+        }
+
+        return data[pos % chunksPerSegment];
+    }
+
+    /**
+     * Wait until all segments which are not hot any more are written
+     * to disk and dropped from memory.
+     */
+    public void flush() {
+        try {
+            writer.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptedException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The number of segments which are currently held in memory,
+     *      not including the segment which was read from disk last
+     */
+    public synchronized int getSegmentsInMemory() {
+        int count = 0;
+        for (Chunk[] segment : segments) {
+            if (segment != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized Chunk next() {
+        waitForData();
+
+        if(stop) {
+            return null;
+        }
+
+        Chunk chunk = chunkAt(nextGet);
+        nextGet = (nextGet + 1) % numberOfChunks;
+
+        return chunk;
+    }
+
+    @Override
+    public synchronized int next(Chunk[] dest) {
+        if(dest.length == 0) {
+            return 0;
+        }
+
+        waitForData();
+
+        if(stop) {
+            return 0;
+        }
+
+        int count = Math.min(dest.length, size());
+        for(int i = 0;i < count;i++) {
+            dest[i] = chunkAt(nextGet);
+            nextGet = (nextGet + 1) % numberOfChunks;
+        }
+
+        return count;
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super Chunk> target, int max) {
+        if(stop || max <= 0) {
+            return 0;
+        }
+
+        int count = Math.min(max, size());
+        for(int i = 0;i < count;i++) {
+            target.add(chunkAt(nextGet));
+            nextGet = (nextGet + 1) % numberOfChunks;
+        }
+
+        return count;
+    }
+
+    @SuppressForbidden(reason = "Uses Object.wait() on purpose here")
+    private void waitForData() {
+        // wait until data is available
+        while(empty() && !stop) {
+            try {
+                // waiting leaves the synchronized block so other threads
+                // can do work while we wait here
+                wait(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeInterruptedException(e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized Chunk peek() {
+        if(empty() || stop) {
+            return null;
+        }
+
+        return chunkAt(nextGet);
+    }
+
+    @Override
+    public synchronized int seek(int nrOfChunks) {
+        // compute how far we can move in one step: forward up to the
+        // head of the buffer, backwards until the buffer is full
+        final int stepped;
+        if(nrOfChunks > 0) {
+            stepped = Math.min(nrOfChunks, size());
+        } else {
+            stepped = Math.max(nrOfChunks, -(capacity() - size()));
+        }
+
+        nextGet = Math.floorMod(nextGet + stepped, numberOfChunks);
+
+        return stepped;
+    }
+
+    @Override
+    public synchronized int seekTo(int absolutePosition) {
+        return seek(absolutePosition - (fill - size()));
+    }
+
+    @Override
+    public synchronized int positionOf(long epochMillis) {
+        return timestamps.positionOf(epochMillis, Math.floorMod(nextAdd - fill, numberOfChunks), fill);
+    }
+
+    @Override
+    public synchronized int seekToTimestamp(long epochMillis) {
+        return seekTo(positionOf(epochMillis));
+    }
+
+    @Override
+    public synchronized int seekToNextMetadataChange() {
+        int position = metadata.nextChange(fill, fill - size());
+        return position < 0 ? 0 : seekTo(position);
+    }
+
+    @Override
+    public synchronized int seekToPreviousMetadataChange() {
+        int position = metadata.previousChange(fill, fill - size());
+        return position < 0 ? 0 : seekTo(position);
+    }
+
+    @Override
+    public synchronized List<MetadataRange> metadataRanges() {
+        return metadata.ranges(fill);
+    }
+
+    @Override
+    public synchronized long bytesBuffered() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized double secondsBuffered() {
+        if(fill < 2) {
+            return 0;
+        }
+
+        long newest = timestamps.get(Math.floorMod(nextAdd - 1, numberOfChunks));
+        long oldest = timestamps.get(Math.floorMod(nextAdd - fill, numberOfChunks));
+
+        return Math.max(newest - oldest, 0) / 1000.0;
+    }
+
+    @Override
+    public synchronized boolean empty() {
+        //if head and tail are equal, we are empty
+        return nextAdd == nextGet;
+    }
+
+    @Override
+    public synchronized boolean full() {
+        // If tail is ahead of the head by 1, we are full
+        return ((nextAdd + 1) % numberOfChunks) == nextGet;
+    }
+
+    @Override
+    public int capacity() {
+        // minus one because we cannot use all buffer-elements due
+        // to head == tail meaning empty and (head - 1) == tail meaning full
+        return numberOfChunks - 1;
+    }
+
+    @Override
+    public synchronized int size() {
+        if(nextAdd >= nextGet) {
+            return nextAdd - nextGet;
+        } else {
+            return numberOfChunks - (nextGet - nextAdd);
+        }
+    }
+
+    @Override
+    public synchronized int fill() {
+        return fill;
+    }
+
+    @Override
+    public synchronized void reset() {
+        nextAdd = nextGet;
+        fill = 0;
+        bytes = 0;
+        timestamps.reset();
+    }
+
+    @Override
+    public synchronized int bufferedForward() {
+        // the read-position is on one of the available chunks
+        if(size() <= fill) {
+            return size();
+        }
+
+        if(nextAdd >= nextGet) {
+            return nextAdd - nextGet;
+        } else if (fill == numberOfChunks - 1) {
+            return fill - nextGet + nextAdd + 1;
+        } else {
+            return fill - nextAdd;
+        }
+    }
+
+    @Override
+    public synchronized int bufferedBackward() {
+        if(size() <= fill) {
+            return fill - size();
+        }
+
+        if(nextAdd >= nextGet) {
+            return fill - nextAdd + nextGet;
+        } else {
+            return nextGet - nextAdd - 1;
+        }
+    }
+
+    /**
+     * Stops blocking reads and the background thread, segments
+     * are not written to disk any more afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            stop = true;
+        }
+
+        // wait outside the lock as running writes need to acquire it
+        ExecutorUtil.shutdownAndAwaitTermination(writer, 10_000);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TieredSeekableRingBuffer{" +
+                "dataDir=" + dataDir +
+                ", numberOfChunks=" + numberOfChunks +
+                ", chunksPerSegment=" + chunksPerSegment +
+                ", hotSegments=" + hotSegments +
+                ", writeSegment=" + writeSegment +
+                ", coldIndex=" + coldIndex +
+                ", nextGet=" + nextGet +
+                ", nextAdd=" + nextAdd +
+                ", stop=" + stop +
+                ", capacity=" + capacity() +
+                ", size=" + size() +
+                ", empty=" + empty() +
+                ", full=" + full() +
+                '}';
+    }
+}
@@ -0,0 +1,94 @@
+package org.dstadler.audio.buffer;
+
+/**
+ * Index of the timestamps of the chunks in a ring-buffer which allows
+ * to find the chunk for a point in time via binary search.
+ *
+ * The index is kept parallel to the slots of the ring-buffer. Timestamps
+ * are stored as running maximum, so the index stays sorted even if the
+ * timestamps of added chunks are not strictly increasing, e.g. when the
+ * system clock is adjusted.
+ *
+ * This class is not thread-safe, the buffer needs to synchronize access.
+ */
+class TimestampIndex {
+    private final long[] timestamps;
+
+    private long last = Long.MIN_VALUE;
+
+    TimestampIndex(int length) {
+        this.timestamps = new long[length];
+    }
+
+    /**
+     * Create the index with the given timestamps, e.g. when restoring
+     * a buffer from persistence.
+     */
+    TimestampIndex(long[] timestamps, int start, int count) {
+        this.timestamps = timestamps.clone();
+
+        // re-compute the running maximum to also handle unsorted input
+        for(int i = 0;i < count;i++) {
+            int slot = slot(start, i);
+            last = Math.max(last, this.timestamps[slot]);
+            this.timestamps[slot] = last;
+        }
+    }
+
+    /**
+     * Record the timestamp of a chunk which is stored at the given slot.
+     */
+    void set(int slot, long timestamp) {
+        last = Math.max(last, timestamp);
+        timestamps[slot] = last;
+    }
+
+    /**
+     * @return The timestamp which is recorded for the given slot, never less
+     *      than the ones of the chunks which were added before
+     */
+    long get(int slot) {
+        return timestamps[slot];
+    }
+
+    /**
+     * Restart the running maximum, should be called when the buffer is reset.
+     */
+    void reset() {
+        last = Long.MIN_VALUE;
+    }
+
+    /**
+     * Find the chunk which was "on air" at the given time.
+     *
+     * @param timestamp The point in time in milliseconds since the epoch
+     * @param start The slot of the oldest chunk in the buffer
+     * @param count How many chunks are available, starting at start
+     * @return The position relative to start of the last chunk with a timestamp
+     *      at or before the given time, 0 if all chunks are newer or count is 0
+     */
+    int positionOf(long timestamp, int start, int count) {
+        int low = 0;
+        int high = count - 1;
+        int found = 0;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(timestamps[slot(start, mid)] <= timestamp) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return found;
+    }
+
+    long[] toArray() {
+        return timestamps.clone();
+    }
+
+    private int slot(int start, int pos) {
+        return (start + pos) % timestamps.length;
+    }
+}
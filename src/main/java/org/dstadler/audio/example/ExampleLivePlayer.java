@@ -1,6 +1,7 @@
 package org.dstadler.audio.example;
 
 import org.dstadler.audio.buffer.BlockingSeekableRingBuffer;
+import org.dstadler.audio.buffer.ChunkPool;
 import org.dstadler.audio.buffer.CountingSeekableRingBuffer;
 import org.dstadler.audio.buffer.CountingSeekableRingBufferImpl;
 import org.dstadler.audio.buffer.RangeDownloadingBuffer;
@@ -39,8 +40,10 @@ public class ExampleLivePlayer {
 
         // The ring-buffer handles decoupling of downloading the audio and playing.
         // It will buffer up to chunkSize*bufferedChunks bytes in memory and will
-        // download more data whenever needed
-        CountingSeekableRingBuffer buffer = new CountingSeekableRingBufferImpl(new BlockingSeekableRingBuffer(3000));
+        // download more data whenever needed.
+        // Overwritten chunks are released to the pool and re-used by the reader
+        ChunkPool pool = new ChunkPool(10);
+        CountingSeekableRingBuffer buffer = new CountingSeekableRingBufferImpl(new BlockingSeekableRingBuffer(3000, pool));
 
         // play audio in a separate thread
         AudioWriter audioWriter = new AudioWriter(buffer, () -> shouldStop = true, () -> shouldStop);
@@ -50,7 +53,7 @@ public class ExampleLivePlayer {
         //int seeked = -1;
 
         // then read and populate the buffer continuously
-        try (StreamReader reader = new StreamReader(60_000, () -> shouldStop)) {
+        try (StreamReader reader = new StreamReader(60_000, () -> shouldStop, pool)) {
             reader.connectAndRead(url, buffer);
         }
 
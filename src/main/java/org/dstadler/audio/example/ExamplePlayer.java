@@ -95,27 +95,15 @@ public class ExamplePlayer {
     private static int seek(RangeDownloadingBuffer buffer, AudioWriter audioWriter, double percentage) throws IOException {
         log.info("Seeking to " + (percentage*100) + "%");
 
-        int availableChunks = buffer.fill();
-        int availableBackwardChunks = availableChunks - buffer.size();
-
-        // compute where we need to seek to based on the available number of chunks
-        // and the current read-position
-        double nrOfChunks = percentage * availableChunks;
-        int nrOfChunksRounded = (int)(percentage * availableChunks);
-
-        // when we need to seek backwards, this will become negative
-        final int chunksToSeek = nrOfChunksRounded - availableBackwardChunks;
-
-        // ask the buffer to seek that man chunks forward or backwards
-        log.info("Seeking " + chunksToSeek + " chunks in the buffer");
-        int seeked = buffer.seek(chunksToSeek);
+        // let the buffer compute how many chunks it needs to seek
+        // forward or backwards to reach the given percentage
+        int seeked = buffer.seekToFraction(percentage);
 
         log.info("Clearing piped-buffer");
         audioWriter.clearBuffer();
 
-        log.info("Seeking " + seeked + " chunks, had request of " + chunksToSeek + " and " + nrOfChunksRounded +
-                "/" + nrOfChunks + " chunks because of percentage " + percentage + " and available chunks: " + availableChunks +
-                " and available backwards: " + availableBackwardChunks + ": " + buffer);
+        log.info("Seeked " + seeked + " chunks because of percentage " + percentage +
+                " and available chunks: " + buffer.fill() + ": " + buffer);
         return seeked;
     }
 
@@ -15,6 +15,7 @@ import org.apache.hc.core5.http.ProtocolVersion;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.util.Timeout;
 import org.dstadler.audio.buffer.Chunk;
+import org.dstadler.audio.buffer.ChunkPool;
 import org.dstadler.audio.buffer.SeekableRingBuffer;
 import org.dstadler.commons.http5.HttpClientWrapper5;
 import org.dstadler.commons.logging.jdk.LoggerFactory;
@@ -45,10 +46,24 @@ public class StreamReader implements AutoCloseable {
 
     protected final CloseableHttpClient httpClient;
     private final BooleanSupplier shouldStop;
+    private final ChunkPool pool;
 
     private String currentMetaData = "";
 
     public StreamReader(int timeoutMs, BooleanSupplier shouldStop) {
+        this(timeoutMs, shouldStop, null);
+    }
+
+    /**
+     * Create a reader which takes the arrays for the chunks from the given pool,
+     * usually this is the same pool that the buffer releases overwritten chunks to,
+     * see {@link org.dstadler.audio.buffer.BlockingSeekableRingBuffer#BlockingSeekableRingBuffer(int, ChunkPool)}
+     *
+     * @param timeoutMs The timeout for connecting to the stream
+     * @param shouldStop Checked regularly to stop reading
+     * @param pool The pool to take arrays from, null to allocate a new array for every chunk
+     */
+    public StreamReader(int timeoutMs, BooleanSupplier shouldStop, ChunkPool pool) {
         RequestConfig reqConfig = RequestConfig.custom()
                 //.setSocketTimeout(timeoutMs)
                 .setConnectTimeout(Timeout.ofMilliseconds(timeoutMs))
@@ -62,6 +77,7 @@ public class StreamReader implements AutoCloseable {
         // finally create the HttpClient instance
         this.httpClient = builder.build();
         this.shouldStop = shouldStop;
+        this.pool = pool;
     }
 
     /**
@@ -148,23 +164,34 @@ public class StreamReader implements AutoCloseable {
 
 
     protected byte[] readResponse(CloseableHttpResponse response, InputStream content) throws IOException {
-        // read data-chunk, for now we allocate a new byte[] every time, if churn becomes a problem we can
-        // change this to only re-allocate on size-change as usually always 16384 bytes are used here
+        // read data-chunk, the array is taken from the pool if one is set, usually
+        // always the same size is used here, so arrays of overwritten chunks can be re-used
         final Header icyMetaint = response.getFirstHeader("icy-metaint");
         final byte[] bytes;
         if(icyMetaint != null) {
             int bytesToRead = Integer.parseInt(icyMetaint.getValue());
-            bytes = IOUtils.readFully(content, bytesToRead);
+            bytes = allocate(bytesToRead);
+            IOUtils.readFully(content, bytes);
 
             // read/skip metadata
             readMetadata(content);
         } else {
-            bytes = new byte[CHUNK_SIZE];
-            IOUtils.read(content, bytes);
+            bytes = allocate(CHUNK_SIZE);
+            int read = IOUtils.read(content, bytes);
+
+            // a pooled array still contains data of an earlier chunk, keep
+            // the remainder empty as for a newly allocated array
+            if(pool != null && read < bytes.length) {
+                Arrays.fill(bytes, read, bytes.length, (byte) 0);
+            }
         }
         return bytes;
     }
 
+    private byte[] allocate(int size) {
+        return pool == null ? new byte[size] : pool.acquire(size);
+    }
+
     protected void readMetadata(InputStream content) throws IOException {
         byte headerByte = (byte) content.read();
         int icyBytes = headerByte * 16;
@@ -0,0 +1,138 @@
+package org.dstadler.audio.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative long values with a fixed amount of memory,
+ * similar to an HdrHistogram.
+ *
+ * Values below 64 are counted exactly, larger values are counted in 32
+ * buckets per power of two, so percentiles are reported with a relative
+ * error of at most about 3% over the whole range of long values, using
+ * less than 2000 counters.
+ *
+ * Recording is thread-safe and does not lock, reading while values are
+ * recorded may see some of the concurrent values only partially.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    // exact buckets below 64 and 32 buckets for each power of two from 2^6 to 2^62
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value The value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+
+        counts.incrementAndGet(index(value));
+        count.increment();
+        total.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS +
+                (int) (value >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    /**
+     * @return The largest value which is counted in the bucket with the given index
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int magnitude = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + SUB_BUCKET_BITS;
+        long top = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        int shift = magnitude - (SUB_BUCKET_BITS - 1);
+
+        // the last bucket would overflow
+        if (magnitude == 62 && top == SUB_BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+
+        return ((top + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return The average of all recorded values, 0 if nothing was recorded
+     */
+    public double getMean() {
+        long recorded = count.sum();
+        if (recorded == 0) {
+            return 0;
+        }
+
+        return ((double) total.sum()) / recorded;
+    }
+
+    /**
+     * @param percentile The percentile in the range [0, 100]
+     * @return The value at or below which the given percentage of the recorded
+     *      values are, never larger than the maximum, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100,
+                "Percentile needs to be in the range [0, 100], but had: %s", percentile);
+
+        long recorded = count.sum();
+        if (recorded == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+
+        // values recorded concurrently may not be visible in the buckets yet
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram{" +
+                "count=" + getCount() +
+                ", mean=" + getMean() +
+                ", p50=" + getValueAtPercentile(50) +
+                ", p99=" + getValueAtPercentile(99) +
+                ", max=" + getMax() +
+                '}';
+    }
+}
@@ -0,0 +1,167 @@
+package org.dstadler.audio.metrics;
+
+import com.google.common.base.Preconditions;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * A {@link MetricsSink} which registers one MBean per source, the
+ * metrics are provided as read-only attributes, so they can be
+ * charted with any JMX-based monitoring tool.
+ *
+ * The MBeans are named <code>&lt;domain&gt;:type=Metrics,name=&lt;name&gt;</code>,
+ * registering the same name again replaces the previous source.
+ */
+public class JmxMetricsSink implements MetricsSink {
+    public static final String DEFAULT_DOMAIN = "org.dstadler.audio";
+
+    private final MBeanServer server;
+    private final String domain;
+
+    /**
+     * Register MBeans in the platform MBean server with the default domain
+     */
+    public JmxMetricsSink() {
+        this(ManagementFactory.getPlatformMBeanServer(), DEFAULT_DOMAIN);
+    }
+
+    /**
+     * @param server The MBean server to register the MBeans in
+     * @param domain The domain of the names of the MBeans
+     */
+    public JmxMetricsSink(MBeanServer server, String domain) {
+        Preconditions.checkNotNull(server);
+        Preconditions.checkNotNull(domain);
+
+        this.server = server;
+        this.domain = domain;
+    }
+
+    /**
+     * @return The name of the MBean for the given name of a source
+     */
+    public ObjectName getObjectName(String name) {
+        try {
+            return new ObjectName(domain + ":type=Metrics,name=" + ObjectName.quote(name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Invalid name for metrics: " + name, e);
+        }
+    }
+
+    @Override
+    public synchronized void register(String name, MetricsSource source) {
+        Preconditions.checkNotNull(source);
+
+        ObjectName objectName = getObjectName(name);
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+
+            server.registerMBean(new MetricsMBean(name, source), objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics for " + name, e);
+        }
+    }
+
+    @Override
+    public synchronized void unregister(String name) {
+        try {
+            server.unregisterMBean(getObjectName(name));
+        } catch (InstanceNotFoundException e) {
+            // nothing registered for this name
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not unregister metrics for " + name, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JmxMetricsSink{" +
+                "domain='" + domain + '\'' +
+                '}';
+    }
+
+    /**
+     * Exposes the metrics of a source as attributes, the available attributes
+     * are taken from the metrics at the time of registration.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        private final MetricsSource source;
+        private final MBeanInfo info;
+
+        private MetricsMBean(String name, MetricsSource source) {
+            this.source = source;
+
+            Map<String, Number> metrics = source.getMetrics();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[metrics.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> entry : metrics.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(entry.getKey(),
+                        entry.getValue() == null ? Number.class.getName() : entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+
+            this.info = new MBeanInfo(source.getClass().getName(), "Metrics of " + name,
+                    attributes, null, null, null);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Map<String, Number> metrics = source.getMetrics();
+            if (!metrics.containsKey(attribute)) {
+                throw new AttributeNotFoundException("Metric " + attribute + " is not available");
+            }
+
+            return metrics.get(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            // read the source only once for all attributes
+            Map<String, Number> metrics = source.getMetrics();
+
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (metrics.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, metrics.get(attribute)));
+                }
+            }
+
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only, cannot set " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName),
+                    "Metrics do not provide operations, cannot invoke " + actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.dstadler.audio.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics about reading from a buffer, to find out if and how long the
+ * reader had to wait for data, e.g. when audio playback drops out.
+ *
+ * An underrun is a read which found no data and had to wait until data was
+ * added or downloaded, the time it was blocked is recorded in a {@link Histogram}
+ * in microseconds.
+ *
+ * The time between chunks arriving in the buffer is recorded as well, together
+ * with a jitter which is computed like the inter-arrival jitter of RTP in RFC 3550,
+ * i.e. a running average of how much consecutive intervals differ.
+ *
+ * All methods are thread-safe and do not lock.
+ */
+public class LatencyStats {
+    private final LongAdder underruns = new LongAdder();
+    private final Histogram blocked = new Histogram();
+    private final Histogram interArrival = new Histogram();
+
+    // nano-time of the last arrival, Long.MIN_VALUE before the first one
+    private final AtomicLong lastArrival = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong lastInterval = new AtomicLong(-1);
+
+    // jitter in nanoseconds, stored as the bits of a double
+    private final AtomicLong jitter = new AtomicLong(Double.doubleToLongBits(0));
+
+    /**
+     * Record a read which had to wait for data.
+     *
+     * @param blockedNanos How long the read was blocked in nanoseconds
+     */
+    public void recordUnderrun(long blockedNanos) {
+        underruns.increment();
+        blocked.record(TimeUnit.NANOSECONDS.toMicros(blockedNanos));
+    }
+
+    /**
+     * Record that data arrived in the buffer, chunks which are added together are
+     * recorded as one arrival.
+     *
+     * @param nanoTime The current time as returned by {@link System#nanoTime()}
+     */
+    public void recordArrival(long nanoTime) {
+        long previous = lastArrival.getAndSet(nanoTime);
+        if (previous == Long.MIN_VALUE) {
+            return;
+        }
+
+        long interval = nanoTime - previous;
+        interArrival.record(TimeUnit.NANOSECONDS.toMicros(interval));
+
+        long previousInterval = lastInterval.getAndSet(interval);
+        if (previousInterval < 0) {
+            return;
+        }
+
+        // J = J + (|D| - J) / 16
+        double difference = Math.abs(interval - previousInterval);
+        jitter.getAndUpdate(bits -> {
+            double value = Double.longBitsToDouble(bits);
+            return Double.doubleToLongBits(value + (difference - value) / 16);
+        });
+    }
+
+    /**
+     * @return How often a read had to wait for data
+     */
+    public long getUnderruns() {
+        return underruns.sum();
+    }
+
+    /**
+     * @return The time reads were blocked in microseconds
+     */
+    public Histogram getBlocked() {
+        return blocked;
+    }
+
+    /**
+     * @return The time between arrivals of data in microseconds
+     */
+    public Histogram getInterArrival() {
+        return interArrival;
+    }
+
+    /**
+     * @return The current inter-arrival jitter in milliseconds
+     */
+    public double getJitterMillis() {
+        return Double.longBitsToDouble(jitter.get()) / 1_000_000;
+    }
+
+    /**
+     * Add the statistics to the given metrics, times are reported in milliseconds
+     *
+     * @param metrics The map to add to
+     */
+    public void addTo(Map<String, Number> metrics) {
+        metrics.put("underruns", getUnderruns());
+        metrics.put("blockedTotalMillis", blocked.getTotal() / 1000);
+        metrics.put("blockedP50Millis", blocked.getValueAtPercentile(50) / 1000.0);
+        metrics.put("blockedP99Millis", blocked.getValueAtPercentile(99) / 1000.0);
+        metrics.put("blockedMaxMillis", blocked.getMax() / 1000.0);
+        metrics.put("interArrivalP50Millis", interArrival.getValueAtPercentile(50) / 1000.0);
+        metrics.put("interArrivalP99Millis", interArrival.getValueAtPercentile(99) / 1000.0);
+        metrics.put("interArrivalMaxMillis", interArrival.getMax() / 1000.0);
+        metrics.put("jitterMillis", getJitterMillis());
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyStats{" +
+                "underruns=" + getUnderruns() +
+                ", blocked=" + blocked +
+                ", interArrival=" + interArrival +
+                ", jitterMillis=" + getJitterMillis() +
+                '}';
+    }
+}
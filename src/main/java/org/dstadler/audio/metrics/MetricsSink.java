@@ -0,0 +1,27 @@
+package org.dstadler.audio.metrics;
+
+/**
+ * Pluggable target for publishing metrics of buffers and downloads,
+ * e.g. via JMX with {@link JmxMetricsSink} or by pushing the values
+ * to some monitoring system.
+ *
+ * A source is usually registered once per buffer or download when it
+ * is created and unregistered when it is closed.
+ */
+public interface MetricsSink {
+    /**
+     * Start publishing the metrics of the given source.
+     *
+     * @param name A name which identifies the source, e.g. "download" or "buffer"
+     * @param source The source to read the values from
+     */
+    void register(String name, MetricsSource source);
+
+    /**
+     * Stop publishing the metrics which were registered with the given name,
+     * does nothing if nothing is registered for it.
+     *
+     * @param name The name which was used in {@link #register(String, MetricsSource)}
+     */
+    void unregister(String name);
+}
@@ -0,0 +1,19 @@
+package org.dstadler.audio.metrics;
+
+import java.util.Map;
+
+/**
+ * Implemented by buffers and downloads which provide metrics, e.g.
+ * gauges like the current fill of a buffer, counters like the number
+ * of chunks read so far or values of a {@link Timer}.
+ *
+ * The values are read on demand by a {@link MetricsSink}, so providing
+ * metrics does not cost anything while nobody looks at them.
+ */
+public interface MetricsSource {
+    /**
+     * @return The current values keyed by the name of the metric, the
+     *      same names are returned on every call, in a stable order
+     */
+    Map<String, Number> getMetrics();
+}
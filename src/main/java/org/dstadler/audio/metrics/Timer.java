@@ -0,0 +1,73 @@
+package org.dstadler.audio.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how often and how long an operation took, e.g. downloading
+ * a range of a file.
+ *
+ * Recording is thread-safe and does not lock.
+ */
+public class Timer {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param durationNanos How long the operation took in nanoseconds
+     */
+    public void record(long durationNanos) {
+        count.increment();
+        totalNanos.add(durationNanos);
+        maxNanos.accumulateAndGet(durationNanos, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos.sum());
+    }
+
+    public long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+    /**
+     * @return The average duration in milliseconds, 0 if nothing was recorded
+     */
+    public double getMeanMillis() {
+        long recorded = count.sum();
+        if (recorded == 0) {
+            return 0;
+        }
+
+        return ((double) totalNanos.sum()) / recorded / 1_000_000;
+    }
+
+    /**
+     * Add the values of this timer to the given metrics
+     *
+     * @param metrics The map to add to
+     * @param name The prefix of the names of the metrics
+     */
+    public void addTo(Map<String, Number> metrics, String name) {
+        metrics.put(name + "Count", getCount());
+        metrics.put(name + "TotalMillis", getTotalMillis());
+        metrics.put(name + "MaxMillis", getMaxMillis());
+        metrics.put(name + "MeanMillis", getMeanMillis());
+    }
+
+    @Override
+    public String toString() {
+        return "Timer{" +
+                "count=" + getCount() +
+                ", totalMillis=" + getTotalMillis() +
+                ", maxMillis=" + getMaxMillis() +
+                '}';
+    }
+}
@@ -0,0 +1,335 @@
+package org.dstadler.audio.util;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Parses the frame headers of an MPEG audio stream (MP3, but also Layer I
+ * and II) to compute the exact duration of the audio data, independent of
+ * how fast the data is received.
+ *
+ * The data is passed in as it arrives, e.g. one chunk at a time, frames and
+ * headers may span multiple calls to {@link #parse(byte[], int, int)}. The
+ * duration of a frame is reported for the call in which its header is
+ * complete.
+ *
+ * A leading ID3v2 tag is skipped. Before a stream is accepted, two
+ * consecutive frames with the same version, layer and sample-rate are
+ * required, so random data which looks like a frame header is not
+ * taken as audio. If the next header is not found where the previous frame
+ * ends, the parser searches for the next valid pair of frames again.
+ *
+ * If the following header is part of the same data, it is checked right
+ * away, so a header which turns out to be invalid does not cause the
+ * parser to skip over the actual start of the stream.
+ *
+ * Free-format streams are not supported as the frame length cannot be
+ * derived from the header.
+ */
+public class MP3FrameParser {
+    private static final int MPEG_1 = 3;
+    private static final int MPEG_2 = 2;
+    private static final int MPEG_2_5 = 0;
+
+    private static final int LAYER_1 = 3;
+    private static final int LAYER_2 = 2;
+    private static final int LAYER_3 = 1;
+
+    // bitrates in kbit/s by [MPEG 1 or MPEG 2/2.5][layer I, II, III][index]
+    private static final int[][][] BITRATES = {
+            {
+                    { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448, 0 },
+                    { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384, 0 },
+                    { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0 },
+            },
+            {
+                    { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256, 0 },
+                    { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0 },
+                    { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0 },
+            },
+    };
+
+    // sample-rates in Hz by [version][index]
+    private static final int[][] SAMPLE_RATES = {
+            { 11025, 12000, 8000 },
+            null,
+            { 22050, 24000, 16000 },
+            { 44100, 48000, 32000 },
+    };
+
+    private static final int HEADER_SIZE = 4;
+    private static final int ID3_HEADER_SIZE = 10;
+
+    // bytes of a header which were not complete at the end of the previous data
+    private final byte[] pending = new byte[ID3_HEADER_SIZE];
+    private int pendingLength;
+
+    // bytes of the current frame or tag which still need to be skipped
+    private long skip;
+
+    // the header of the frame which is currently skipped, 0 if searching for a header
+    private int current;
+
+    // the first frame of a possible stream which is not confirmed yet
+    private int candidate;
+
+    private boolean synced;
+    private boolean tagAllowed = true;
+    private boolean inTag;
+
+    private long frames;
+    private double seconds;
+
+    /**
+     * Parse the given data.
+     *
+     * @param data The next bytes of the stream
+     * @return The duration in seconds of the frames whose headers were completed
+     *      by the given data
+     */
+    public double parse(byte[] data) {
+        return parse(data, 0, data.length);
+    }
+
+    /**
+     * Parse the given range of data.
+     *
+     * @param data The next bytes of the stream
+     * @param off The offset of the first byte to parse
+     * @param len The number of bytes to parse
+     * @return The duration in seconds of the frames whose headers were completed
+     *      by the given data
+     */
+    public synchronized double parse(byte[] data, int off, int len) {
+        Preconditions.checkPositionIndexes(off, off + len, data.length);
+
+        double parsed = 0;
+        int pos = off;
+        int end = off + len;
+        while (pos < end) {
+            if (skip > 0) {
+                int count = (int) Math.min(skip, end - pos);
+                pos += count;
+                skip -= count;
+                continue;
+            }
+
+            pending[pendingLength++] = data[pos++];
+            if (pendingLength < HEADER_SIZE) {
+                continue;
+            }
+
+            if (tagAllowed && pending[0] == 'I' && pending[1] == 'D' && pending[2] == '3') {
+                if (pendingLength == ID3_HEADER_SIZE) {
+                    skipTag();
+                }
+                continue;
+            }
+
+            parsed += nextHeader(data, pos, end);
+        }
+
+        seconds += parsed;
+        return parsed;
+    }
+
+    private void skipTag() {
+        // the size is stored as "syncsafe" integer with 7 bits per byte
+        long size = (pending[6] & 0x7f) << 21 | (pending[7] & 0x7f) << 14 |
+                (pending[8] & 0x7f) << 7 | (pending[9] & 0x7f);
+
+        // a footer is indicated by a flag
+        if ((pending[5] & 0x10) != 0) {
+            size += ID3_HEADER_SIZE;
+        }
+
+        skip = size;
+        pendingLength = 0;
+        inTag = true;
+    }
+
+    private double nextHeader(byte[] data, int pos, int end) {
+        int header = toInt(pending, 0);
+
+        // the stream needs to keep the same format, otherwise search for the
+        // next stream, which may start right here
+        if (current != 0 && (frameLength(header) == 0 || !matches(header, current))) {
+            synced = false;
+            candidate = 0;
+            current = 0;
+        }
+
+        boolean valid = frameLength(header) > 0 &&
+                (synced || candidate != 0 || followedByFrame(header, data, pos, end));
+        if (!valid) {
+            // move on by one byte
+            System.arraycopy(pending, 1, pending, 0, HEADER_SIZE - 1);
+            pendingLength = HEADER_SIZE - 1;
+            return 0;
+        }
+
+        tagAllowed = false;
+        inTag = false;
+        pendingLength = 0;
+        skip = frameLength(header) - HEADER_SIZE;
+        current = header;
+
+        if (synced) {
+            frames++;
+            return duration(header);
+        }
+
+        if (candidate == 0) {
+            // wait for the next frame before accepting the stream
+            candidate = header;
+            return 0;
+        }
+
+        // two consecutive frames were found
+        synced = true;
+        frames += 2;
+        double duration = duration(candidate) + duration(header);
+        candidate = 0;
+        return duration;
+    }
+
+    /**
+     * @return false if the data contains the position of the next header after the
+     *      given one and there is no matching header, true otherwise
+     */
+    private static boolean followedByFrame(int header, byte[] data, int pos, int end) {
+        long next = (long) pos + frameLength(header) - HEADER_SIZE;
+        if (next + HEADER_SIZE > end) {
+            // cannot check yet
+            return true;
+        }
+
+        int nextHeader = toInt(data, (int) next);
+        return frameLength(nextHeader) > 0 && matches(nextHeader, header);
+    }
+
+    private static int toInt(byte[] data, int pos) {
+        return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16 |
+                (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+    }
+
+    private static boolean matches(int header, int previous) {
+        // version, layer and sample-rate need to be the same
+        return (header & 0x001e0c00) == (previous & 0x001e0c00);
+    }
+
+    /**
+     * @return The length of the frame in bytes including the header, or 0
+     *      if the given value is not a valid frame header
+     */
+    static int frameLength(int header) {
+        // 11 bits of frame-sync
+        if ((header & 0xffe00000) != 0xffe00000) {
+            return 0;
+        }
+
+        int version = version(header);
+        int layer = layer(header);
+        int bitrateIndex = (header >>> 12) & 0xf;
+        int sampleRateIndex = (header >>> 10) & 0x3;
+        if (version == 1 || layer == 0 || sampleRateIndex == 3) {
+            return 0;
+        }
+
+        int bitrate = BITRATES[version == MPEG_1 ? 0 : 1][LAYER_1 - layer][bitrateIndex] * 1000;
+        if (bitrate == 0) {
+            return 0;
+        }
+
+        int sampleRate = SAMPLE_RATES[version][sampleRateIndex];
+        int padding = (header >>> 9) & 0x1;
+
+        if (layer == LAYER_1) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        }
+        if (layer == LAYER_3 && version != MPEG_1) {
+            return 72 * bitrate / sampleRate + padding;
+        }
+        return 144 * bitrate / sampleRate + padding;
+    }
+
+    /**
+     * @return The duration of the frame with the given valid header in seconds
+     */
+    static double duration(int header) {
+        int version = version(header);
+        int layer = layer(header);
+
+        final int samples;
+        if (layer == LAYER_1) {
+            samples = 384;
+        } else if (layer == LAYER_3 && (version == MPEG_2 || version == MPEG_2_5)) {
+            samples = 576;
+        } else {
+            samples = 1152;
+        }
+
+        return ((double) samples) / SAMPLE_RATES[version][(header >>> 10) & 0x3];
+    }
+
+    private static int version(int header) {
+        return (header >>> 19) & 0x3;
+    }
+
+    private static int layer(int header) {
+        return (header >>> 17) & 0x3;
+    }
+
+    /**
+     * @return true if a stream of frames was found and the parser currently
+     *      follows it from frame to frame
+     */
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * @return true if an ID3 tag was found at the start of the stream and
+     *      no frame was found after it yet
+     */
+    public synchronized boolean isInTag() {
+        return inTag;
+    }
+
+    /**
+     * @return The number of frames which were found so far
+     */
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return The duration of all frames which were found so far in seconds
+     */
+    public synchronized double getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * Start over as if no data was parsed yet, e.g. when a new stream is started.
+     */
+    public synchronized void reset() {
+        pendingLength = 0;
+        skip = 0;
+        current = 0;
+        candidate = 0;
+        synced = false;
+        tagAllowed = true;
+        inTag = false;
+        frames = 0;
+        seconds = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MP3FrameParser{" +
+                "synced=" + synced +
+                ", frames=" + frames +
+                ", seconds=" + seconds +
+                '}';
+    }
+}
@@ -7,6 +7,9 @@ import org.dstadler.commons.testing.ThreadTestHelper;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public abstract class AbstractBlockingSeekableRingBufferTester {
@@ -353,6 +356,329 @@ public abstract class AbstractBlockingSeekableRingBufferTester {
         assertEquals(9, buffer.fill());
     }
 
+    @Test
+    public void testAddAll() {
+        Chunk[] chunks = new Chunk[15];
+        for(byte i = 0;i < 15;i++) {
+            chunks[i] = new Chunk(new byte[] { i }, "", 0);
+        }
+
+        buffer.addAll(chunks, 0, 0);
+        assertTrue(buffer.empty());
+        assertEquals(0, buffer.fill());
+
+        buffer.addAll(chunks, 2, 3);
+        assertEquals(3, buffer.size());
+        assertEquals(3, buffer.fill());
+        assertArrayEquals(new byte[] { 2 }, buffer.peek().getData());
+
+        buffer.addAll(chunks, 5, 10);
+        assertTrue(buffer.full());
+        assertEquals(9, buffer.size());
+        assertEquals(9, buffer.fill());
+        for(byte i = 6;i < 15;i++) {
+            assertArrayEquals(new byte[] { i }, buffer.next().getData());
+        }
+        assertTrue(buffer.empty());
+
+        assertThrows(IndexOutOfBoundsException.class, () -> buffer.addAll(chunks, 10, 10));
+        assertThrows(IndexOutOfBoundsException.class, () -> buffer.addAll(chunks, -1, 2));
+
+        chunks[1] = null;
+        assertThrows(NullPointerException.class, () -> buffer.addAll(chunks, 0, 3));
+        assertTrue(buffer.empty(), "No chunk should be added if one of them is null");
+    }
+
+    @Test
+    public void testNextArray() {
+        for(byte i = 0;i < 5;i++) {
+            buffer.add(new Chunk(new byte[] { i }, "", 0));
+        }
+
+        assertEquals(0, buffer.next(new Chunk[0]));
+
+        Chunk[] dest = new Chunk[3];
+        assertEquals(3, buffer.next(dest));
+        for(byte i = 0;i < 3;i++) {
+            assertArrayEquals(new byte[] { i }, dest[i].getData());
+        }
+        assertEquals(2, buffer.size());
+        assertEquals(3, buffer.bufferedBackward());
+
+        assertEquals(2, buffer.next(dest));
+        assertArrayEquals(new byte[] { 3 }, dest[0].getData());
+        assertArrayEquals(new byte[] { 4 }, dest[1].getData());
+        assertTrue(buffer.empty());
+        assertEquals(5, buffer.bufferedBackward());
+
+        // chunks wrap around at the end of the buffer
+        for(byte i = 0;i < 15;i++) {
+            buffer.add(new Chunk(new byte[] { i }, "", 0));
+        }
+        dest = new Chunk[20];
+        assertEquals(9, buffer.next(dest));
+        for(byte i = 0;i < 9;i++) {
+            assertArrayEquals(new byte[] { (byte)(i + 6) }, dest[i].getData());
+        }
+        assertNull(dest[9]);
+
+        buffer.add(CHUNK_1);
+        buffer.close();
+        assertEquals(0, buffer.next(dest));
+    }
+
+    @Test
+    public void testDrainTo() {
+        List<Chunk> chunks = new ArrayList<>();
+        assertEquals(0, buffer.drainTo(chunks, 5), "Should not block on empty buffer");
+        assertTrue(chunks.isEmpty());
+
+        for(byte i = 0;i < 5;i++) {
+            buffer.add(new Chunk(new byte[] { i }, "", 0));
+        }
+
+        assertEquals(0, buffer.drainTo(chunks, 0));
+        assertEquals(3, buffer.drainTo(chunks, 3));
+        assertEquals(3, chunks.size());
+        assertEquals(2, buffer.size());
+
+        assertEquals(2, buffer.drainTo(chunks, Integer.MAX_VALUE));
+        assertEquals(5, chunks.size());
+        for(byte i = 0;i < 5;i++) {
+            assertArrayEquals(new byte[] { i }, chunks.get(i).getData());
+        }
+        assertTrue(buffer.empty());
+        assertEquals(5, buffer.bufferedBackward());
+
+        assertEquals(-5, buffer.seek(-5), "Drained chunks are still available for seeking backwards");
+        buffer.close();
+        assertEquals(0, buffer.drainTo(chunks, 5));
+    }
+
+    @Test
+    public void testSeekLargeNumbers() {
+        for(byte i = 0;i < 15;i++) {
+            buffer.add(new Chunk(new byte[] { i }, "", 0));
+        }
+        assertEquals(3, buffer.seek(3));
+
+        assertEquals(6, buffer.seek(Integer.MAX_VALUE), "Can seek forward up to the head");
+        assertTrue(buffer.empty());
+        assertEquals(-9, buffer.seek(Integer.MIN_VALUE), "Can seek backwards up to full()");
+        assertTrue(buffer.full());
+        assertArrayEquals(new byte[] { 6 }, buffer.peek().getData());
+    }
+
+    @Test
+    public void testSeekTo() {
+        for(byte i = 0;i < 15;i++) {
+            buffer.add(new Chunk(new byte[] { i }, "", 0));
+        }
+        assertArrayEquals(new byte[] { 6 }, buffer.peek().getData());
+
+        assertEquals(4, buffer.seekTo(4));
+        assertArrayEquals(new byte[] { 10 }, buffer.peek().getData());
+        assertEquals(5, buffer.size());
+
+        assertEquals(0, buffer.seekTo(4), "Already at this position");
+        assertArrayEquals(new byte[] { 10 }, buffer.peek().getData());
+
+        assertEquals(-4, buffer.seekTo(0));
+        assertArrayEquals(new byte[] { 6 }, buffer.peek().getData());
+        assertTrue(buffer.full());
+
+        assertEquals(9, buffer.seekTo(9));
+        assertTrue(buffer.empty());
+
+        assertEquals(0, buffer.seekTo(100), "Cannot seek after the head");
+        assertTrue(buffer.empty());
+
+        assertEquals(-9, buffer.seekTo(-5), "Seeking before the start stops at the oldest chunk");
+        assertArrayEquals(new byte[] { 6 }, buffer.peek().getData());
+    }
+
+    @Test
+    public void testSeekToFraction() {
+        for(byte i = 0;i < 15;i++) {
+            buffer.add(new Chunk(new byte[] { i }, "", 0));
+        }
+
+        assertEquals(4, buffer.seekToFraction(0.5));
+        assertArrayEquals(new byte[] { 10 }, buffer.peek().getData());
+
+        assertEquals(5, buffer.seekToFraction(1.0));
+        assertTrue(buffer.empty());
+
+        assertEquals(-9, buffer.seekToFraction(0.0));
+        assertArrayEquals(new byte[] { 6 }, buffer.peek().getData());
+
+        assertThrows(IllegalArgumentException.class, () -> buffer.seekToFraction(-0.1));
+        assertThrows(IllegalArgumentException.class, () -> buffer.seekToFraction(1.1));
+    }
+
+    @Test
+    public void testPositionOf() {
+        assertEquals(0, buffer.positionOf(12345L), "Empty buffer");
+
+        for(byte i = 0;i < 15;i++) {
+            buffer.add(new Chunk(new byte[] { i }, "", i * 1000L));
+        }
+
+        // the oldest available chunk is 6
+        assertEquals(0, buffer.positionOf(0));
+        assertEquals(0, buffer.positionOf(6000));
+        assertEquals(1, buffer.positionOf(7000));
+        assertEquals(1, buffer.positionOf(7999));
+        assertEquals(4, buffer.positionOf(10500));
+        assertEquals(8, buffer.positionOf(14000));
+        assertEquals(8, buffer.positionOf(Long.MAX_VALUE));
+
+        // looking up positions does not change the read-position
+        assertArrayEquals(new byte[] { 6 }, buffer.peek().getData());
+    }
+
+    @Test
+    public void testPositionOfUnsortedTimestamps() {
+        buffer.add(new Chunk(new byte[] { 1 }, "", 1000));
+        buffer.add(new Chunk(new byte[] { 2 }, "", 3000));
+        buffer.add(new Chunk(new byte[] { 3 }, "", 2000));
+        buffer.add(new Chunk(new byte[] { 4 }, "", 4000));
+
+        assertEquals(0, buffer.positionOf(2500));
+        assertEquals(2, buffer.positionOf(3000));
+        assertEquals(3, buffer.positionOf(4000));
+
+        // after reset, older timestamps are indexed again
+        buffer.reset();
+        buffer.add(new Chunk(new byte[] { 5 }, "", 100));
+        buffer.add(new Chunk(new byte[] { 6 }, "", 200));
+        assertEquals(0, buffer.positionOf(150));
+        assertEquals(1, buffer.positionOf(200));
+    }
+
+    @Test
+    public void testSeekToTimestamp() {
+        for(byte i = 0;i < 15;i++) {
+            buffer.add(new Chunk(new byte[] { i }, "", i * 1000L));
+        }
+
+        assertEquals(4, buffer.seekToTimestamp(10000));
+        assertArrayEquals(new byte[] { 10 }, buffer.peek().getData());
+
+        assertEquals(-4, buffer.seekToTimestamp(6500));
+        assertArrayEquals(new byte[] { 6 }, buffer.peek().getData());
+
+        assertEquals(8, buffer.seekToTimestamp(Long.MAX_VALUE));
+        assertArrayEquals(new byte[] { 14 }, buffer.peek().getData());
+
+        assertEquals(-8, buffer.seekToTimestamp(0));
+        assertArrayEquals(new byte[] { 6 }, buffer.peek().getData());
+    }
+
+    @Test
+    public void testBytesAndSecondsBuffered() {
+        assertEquals(0, buffer.bytesBuffered());
+        assertEquals(0, buffer.secondsBuffered(), 0.001);
+
+        buffer.add(new Chunk(new byte[5], "", 1000));
+        assertEquals(5, buffer.bytesBuffered());
+        assertEquals(0, buffer.secondsBuffered(), 0.001, "Needs at least two chunks");
+
+        for(int i = 0;i < 15;i++) {
+            buffer.add(new Chunk(new byte[i + 1], "", 2000 + i * 1000L));
+        }
+
+        // the available chunks are 6 to 14 with 7 to 15 bytes
+        assertEquals(99, buffer.bytesBuffered());
+        assertEquals(8.0, buffer.secondsBuffered(), 0.001);
+
+        // reading and seeking does not change the available chunks
+        assertNotNull(buffer.next());
+        assertEquals(-1, buffer.seek(-1));
+        assertEquals(99, buffer.bytesBuffered());
+        assertEquals(8.0, buffer.secondsBuffered(), 0.001);
+
+        buffer.reset();
+        assertEquals(0, buffer.bytesBuffered());
+        assertEquals(0, buffer.secondsBuffered(), 0.001);
+
+        buffer.add(new Chunk(new byte[3], "", 20000));
+        buffer.add(new Chunk(new byte[4], "", 22500));
+        assertEquals(7, buffer.bytesBuffered());
+        assertEquals(2.5, buffer.secondsBuffered(), 0.001);
+    }
+
+    private void addSongs() {
+        for(byte i = 0;i < 15;i++) {
+            buffer.add(new Chunk(new byte[] { i }, i < 5 ? "A" : i < 10 ? "B" : "C", 0));
+        }
+    }
+
+    @Test
+    public void testMetadataRanges() {
+        assertEquals(List.of(), buffer.metadataRanges());
+
+        // the oldest available chunk is 6
+        addSongs();
+
+        assertEquals(List.of(new MetadataRange(0, 4, "B"), new MetadataRange(4, 9, "C")),
+                buffer.metadataRanges());
+
+        buffer.reset();
+        assertEquals(List.of(), buffer.metadataRanges());
+
+        buffer.add(new Chunk(new byte[] { 1 }, "C", 0));
+        buffer.add(new Chunk(new byte[] { 2 }, "D", 0));
+        assertEquals(List.of(new MetadataRange(0, 1, "C"), new MetadataRange(1, 2, "D")),
+                buffer.metadataRanges());
+    }
+
+    @Test
+    public void testSeekToNextMetadataChange() {
+        assertEquals(0, buffer.seekToNextMetadataChange(), "Empty buffer");
+
+        addSongs();
+
+        assertEquals(4, buffer.seekToNextMetadataChange());
+        assertArrayEquals(new byte[] { 10 }, buffer.peek().getData());
+
+        assertEquals(0, buffer.seekToNextMetadataChange(), "No more changes");
+        assertArrayEquals(new byte[] { 10 }, buffer.peek().getData());
+    }
+
+    @Test
+    public void testSeekToPreviousMetadataChange() {
+        assertEquals(0, buffer.seekToPreviousMetadataChange(), "Empty buffer");
+
+        addSongs();
+
+        assertEquals(6, buffer.seek(6));
+        assertArrayEquals(new byte[] { 12 }, buffer.peek().getData());
+
+        // first go to the start of the current song
+        assertEquals(-2, buffer.seekToPreviousMetadataChange());
+        assertArrayEquals(new byte[] { 10 }, buffer.peek().getData());
+
+        // then to the start of the previous one, which is only partially available
+        assertEquals(-4, buffer.seekToPreviousMetadataChange());
+        assertArrayEquals(new byte[] { 6 }, buffer.peek().getData());
+
+        assertEquals(0, buffer.seekToPreviousMetadataChange(), "At oldest chunk");
+    }
+
+    @Test
+    public void testMetadataIsShared() {
+        for(byte i = 0;i < 3;i++) {
+            //noinspection StringOperationCanBeSimplified
+            buffer.add(new Chunk(new byte[] { i }, new String("song"), 0));
+        }
+
+        Chunk first = buffer.next();
+        assertEquals("song", first.getMetaData());
+        assertSame(first.getMetaData(), buffer.next().getMetaData());
+        assertSame(first.getMetaData(), buffer.next().getMetaData());
+    }
+
     @Test
     public void testToString() {
         TestHelpers.ToStringTest(buffer);
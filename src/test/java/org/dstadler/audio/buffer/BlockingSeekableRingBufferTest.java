@@ -4,7 +4,12 @@ import org.dstadler.audio.stream.Stream;
 import org.dstadler.commons.testing.TestHelpers;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -67,6 +72,259 @@ public class BlockingSeekableRingBufferTest extends AbstractBlockingSeekableRing
         }
     }
 
+    @Test
+    public void testChunkPool() {
+        ChunkPool pool = new ChunkPool(5);
+        try (BlockingSeekableRingBuffer localBuffer = new BlockingSeekableRingBuffer(10, pool)) {
+            for (byte i = 0; i < 10; i++) {
+                byte[] data = pool.acquire(1);
+                data[0] = i;
+                localBuffer.add(new Chunk(data, "", 0));
+            }
+            assertEquals(0, pool.getReused());
+            assertEquals(0, pool.size());
+
+            // the first chunk was skipped as the buffer is full
+            assertEquals(1, localBuffer.next().getData()[0]);
+
+            // the next add overwrites the first chunk, its data is released to the pool
+            localBuffer.add(new Chunk(pool.acquire(1), "", 0));
+            assertEquals(1, pool.size());
+
+            // the next add overwrites the chunk returned by next(), it is not recycled
+            localBuffer.add(new Chunk(pool.acquire(1), "", 0));
+            assertEquals(0, pool.size());
+            assertEquals(1, pool.getReused());
+
+            localBuffer.add(new Chunk(pool.acquire(1), "", 0));
+            assertEquals(1, pool.size());
+
+            byte[] reused = pool.acquire(1);
+            assertEquals(2, pool.getReused());
+            assertEquals(2, reused[0], "Should re-use the data of the overwritten chunk");
+
+            TestHelpers.ToStringTest(localBuffer);
+        }
+    }
+
+    @Test
+    public void testChunkPoolPersistence() {
+        ChunkPool pool = new ChunkPool(20);
+        try (BlockingSeekableRingBuffer localBuffer = new BlockingSeekableRingBuffer(10, pool)) {
+            for (byte i = 0; i < 9; i++) {
+                byte[] data = pool.acquire(1);
+                data[0] = i;
+                localBuffer.add(new Chunk(data, "", 0));
+            }
+
+            BufferPersistenceDTO dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+
+            // the snapshot is closed now, arrays of overwritten chunks are re-used
+            for (int i = 0; i < 30; i++) {
+                byte[] data = pool.acquire(1);
+                data[0] = 100;
+                localBuffer.add(new Chunk(data, "", 0));
+            }
+
+            // the DTO still holds the data at the time it was created
+            for (int i = 0; i < 9; i++) {
+                assertEquals(i, dto.getBuffer()[i].getData()[0], "Failed at " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testChunkPoolBatchRead() {
+        ChunkPool pool = new ChunkPool(20);
+        try (BlockingSeekableRingBuffer localBuffer = new BlockingSeekableRingBuffer(10, pool)) {
+            // start in the middle, so the batch wraps around the end of the array
+            for (byte i = 0; i < 6; i++) {
+                localBuffer.add(new Chunk(new byte[] { i }, "", 0));
+            }
+            assertEquals(6, localBuffer.next(new Chunk[6]));
+
+            for (byte i = 0; i < 9; i++) {
+                byte[] data = pool.acquire(1);
+                data[0] = i;
+                localBuffer.add(new Chunk(data, "", 0));
+            }
+
+            Chunk[] batch = new Chunk[5];
+            assertEquals(5, localBuffer.next(batch));
+            Chunk peeked = localBuffer.peek();
+            assertEquals(5, peeked.getData()[0]);
+
+            // keep writing like a stream reader which re-uses arrays from the pool
+            for (int i = 0; i < 30; i++) {
+                byte[] data = pool.acquire(1);
+                data[0] = 100;
+                localBuffer.add(new Chunk(data, "", 0));
+            }
+
+            // the chunks of the last read and the peeked chunk are not recycled
+            for (int i = 0; i < batch.length; i++) {
+                assertEquals(i, batch[i].getData()[0], "At " + i);
+            }
+            assertEquals(5, peeked.getData()[0]);
+
+            // the same applies for drainTo()
+            List<Chunk> drained = new ArrayList<>();
+            assertEquals(9, localBuffer.drainTo(drained, 20));
+            for (int i = 0; i < 30; i++) {
+                byte[] data = pool.acquire(1);
+                data[0] = 50;
+                localBuffer.add(new Chunk(data, "", 0));
+            }
+            for (Chunk chunk : drained) {
+                assertEquals(100, chunk.getData()[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testCapacityLimitBytes() {
+        ChunkPool pool = new ChunkPool(5);
+        try (BlockingSeekableRingBuffer localBuffer = new BlockingSeekableRingBuffer(100, pool, CapacityLimit.ofBytes(10))) {
+            assertEquals(0, localBuffer.bytesBuffered());
+
+            localBuffer.add(new Chunk(new byte[4], "", 0));
+            localBuffer.add(new Chunk(new byte[4], "", 0));
+            assertEquals(8, localBuffer.bytesBuffered());
+            assertEquals(2, localBuffer.fill());
+
+            // the oldest chunk is removed as the limit would be exceeded
+            localBuffer.add(new Chunk(new byte[] { 1, 2, 3 }, "", 0));
+            assertEquals(7, localBuffer.bytesBuffered());
+            assertEquals(2, localBuffer.fill());
+            assertEquals(2, localBuffer.size());
+            assertEquals(2, localBuffer.bufferedForward());
+            assertEquals(0, localBuffer.bufferedBackward());
+            assertEquals(1, pool.size(), "Data of the removed chunk should be released");
+
+            assertEquals(4, localBuffer.next().getData().length);
+            assertEquals(1, localBuffer.bufferedForward());
+            assertEquals(1, localBuffer.bufferedBackward());
+
+            // a large chunk removes all others, but is kept itself
+            localBuffer.add(new Chunk(new byte[20], "", 0));
+            assertEquals(20, localBuffer.bytesBuffered());
+            assertEquals(1, localBuffer.fill());
+            assertEquals(1, localBuffer.size(), "Reader should be moved to the oldest available chunk");
+            assertEquals(20, localBuffer.next().getData().length);
+            assertTrue(localBuffer.empty());
+
+            localBuffer.reset();
+            assertEquals(0, localBuffer.bytesBuffered());
+        }
+    }
+
+    @Test
+    public void testCapacityLimitSeconds() {
+        try (BlockingSeekableRingBuffer localBuffer = new BlockingSeekableRingBuffer(100, null, CapacityLimit.ofSeconds(5))) {
+            assertEquals(0, localBuffer.secondsBuffered(), 0.001);
+
+            for (byte i = 0; i < 10; i++) {
+                localBuffer.add(new Chunk(new byte[] { i }, "", i * 1000L));
+            }
+
+            // chunks 4 to 9 span 5 seconds
+            assertEquals(6, localBuffer.fill());
+            assertEquals(6, localBuffer.size());
+            assertEquals(5.0, localBuffer.secondsBuffered(), 0.001);
+            assertEquals(6, localBuffer.bytesBuffered());
+            assertArrayEquals(new byte[] { 4 }, localBuffer.peek().getData());
+
+            assertEquals(3, localBuffer.positionOf(7500));
+            assertEquals(6, localBuffer.metadataRanges().get(0).getEnd());
+
+            // the chunk count still limits the buffer as well
+            try (BlockingSeekableRingBuffer small = new BlockingSeekableRingBuffer(4, null, CapacityLimit.ofSeconds(5))) {
+                for (byte i = 0; i < 10; i++) {
+                    small.add(new Chunk(new byte[] { i }, "", i * 1000L));
+                }
+
+                assertEquals(3, small.fill());
+                assertEquals(2.0, small.secondsBuffered(), 0.001);
+            }
+        }
+    }
+
+    @Test
+    public void testCapacityLimitPersistence() throws IOException {
+        try (BlockingSeekableRingBuffer localBuffer = new BlockingSeekableRingBuffer(100, null, CapacityLimit.ofSeconds(5))) {
+            for (byte i = 0; i < 10; i++) {
+                localBuffer.add(new Chunk(new byte[] { i }, "", i * 1000L));
+            }
+
+            final BufferPersistenceDTO dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+
+            // the limit is applied again when it is passed in
+            try (BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromPersistence(dto, CapacityLimit.ofSeconds(5))) {
+                assertEquals(6, back.fill());
+                back.add(new Chunk(new byte[] { 10 }, "", 10000L));
+                assertEquals(6, back.fill());
+                assertEquals(5.0, back.secondsBuffered(), 0.001);
+                assertArrayEquals(new byte[] { 5 }, back.peek().getData());
+            }
+
+            // a smaller limit removes the oldest chunks right away
+            try (BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromPersistence(dto, CapacityLimit.ofBytes(3))) {
+                assertEquals(3, back.fill());
+                assertEquals(3, back.size());
+                assertArrayEquals(new byte[] { 7 }, back.peek().getData());
+            }
+
+            // without a limit, only the number of chunks limits the restored buffer
+            try (BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromPersistence(dto)) {
+                back.add(new Chunk(new byte[] { 10 }, "", 10000L));
+                assertEquals(7, back.fill());
+            }
+
+            File file = File.createTempFile("BlockingSeekableRingBuffer", ".bin");
+            try {
+                BufferPersistence.writeBufferToDisk(file, dto, BufferPersistence.Format.BINARY);
+
+                BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromMappedFile(file, false,
+                        CapacityLimit.ofBytes(2)).getBuffer();
+                assertEquals(2, back.fill());
+                assertArrayEquals(new byte[] { 8 }, back.next().getData());
+            } finally {
+                assertTrue(file.delete());
+            }
+        }
+    }
+
+    @Test
+    public void testBytesAndSecondsBuffered() {
+        try (BlockingSeekableRingBuffer localBuffer = new BlockingSeekableRingBuffer(10)) {
+            for (byte i = 0; i < 15; i++) {
+                localBuffer.add(new Chunk(new byte[] { i, i }, "", i * 500L));
+            }
+
+            assertEquals(18, localBuffer.bytesBuffered());
+            assertEquals(4.0, localBuffer.secondsBuffered(), 0.001);
+
+            assertThrows(NullPointerException.class,
+                    () -> new BlockingSeekableRingBuffer(10, null, null));
+        }
+    }
+
+    @Test
+    public void testPersistenceMetadata() throws IOException {
+        try (BlockingSeekableRingBuffer localBuffer = new BlockingSeekableRingBuffer(10)) {
+            for (byte i = 0; i < 15; i++) {
+                localBuffer.add(new Chunk(new byte[]{i}, i < 10 ? "B" : "C", 0));
+            }
+
+            final BufferPersistenceDTO dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+
+            try (BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromPersistence(dto)) {
+                assertEquals(List.of(new MetadataRange(0, 4, "B"), new MetadataRange(4, 9, "C")),
+                        back.metadataRanges());
+            }
+        }
+    }
+
 	@Test
     public void testToStringBuffer() {
         try (BlockingSeekableRingBuffer localBuffer = new BlockingSeekableRingBuffer(10)) {
@@ -94,6 +352,314 @@ public class BlockingSeekableRingBufferTest extends AbstractBlockingSeekableRing
         }
     }
 
+    @Test
+    public void testPersistenceChangedOnly() {
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(5, null, CapacityLimit.ofBytes(3));
+        buffer.add(new Chunk(new byte[] {1}, "", 1));
+        buffer.add(new Chunk(new byte[] {2}, "", 2));
+
+        Chunk[] chunks = buffer.toPersistence(null, false, false, 0, true).getBuffer();
+        assertEquals(5, chunks.length);
+        assertEquals(1, chunks[0].getTimestamp());
+        assertEquals(2, chunks[1].getTimestamp());
+        assertNull(chunks[2]);
+
+        // nothing changed
+        assertArrayEquals(new Chunk[5], buffer.toPersistence(null, false, false, 0, true).getBuffer());
+
+        // the oldest chunk is removed because of the limit
+        buffer.add(new Chunk(new byte[] {3, 3}, "", 3));
+        chunks = buffer.toPersistence(null, false, false, 0, true).getBuffer();
+        assertEquals(0, chunks[0].getData().length);
+        assertNull(chunks[1]);
+        assertEquals(3, chunks[2].getTimestamp());
+
+        // all chunks are included otherwise and tracking starts anew
+        buffer.add(new Chunk(new byte[] {4}, "", 4));
+        chunks = buffer.toPersistence(null, false, false, 0, false).getBuffer();
+        assertEquals(4, chunks[3].getTimestamp());
+        assertNotNull(chunks[4]);
+        assertArrayEquals(new Chunk[5], buffer.toPersistence(null, false, false, 0, true).getBuffer());
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(10);
+        for (int i = 0; i < 5; i++) {
+            buffer.add(new Chunk(new byte[] {(byte) i}, "", i));
+        }
+        buffer.next();
+
+        BlockingSeekableRingBuffer.Snapshot snapshot = buffer.snapshot();
+        assertEquals(1, snapshot.getGeneration());
+        assertEquals(1, snapshot.getNextGet());
+        assertEquals(5, snapshot.getNextAdd());
+        assertEquals(5, snapshot.getFill());
+        TestHelpers.ToStringTest(snapshot);
+        assertTrue(buffer.toString().contains("snapshots=1"), "Had: " + buffer);
+
+        // overwrite all slots, some of them twice
+        for (int i = 5; i < 25; i++) {
+            buffer.add(new Chunk(new byte[] {(byte) i}, "", i));
+        }
+        assertEquals(10, snapshot.getPreserved());
+        assertEquals(2, snapshot.get(2).getTimestamp());
+
+        BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromPersistence(
+                snapshot.toPersistence(null, false, false, 0));
+        assertEquals(5, back.fill());
+        assertEquals(4, back.size());
+        for (int i = 1; i < 5; i++) {
+            assertEquals(i, back.next().getTimestamp());
+        }
+
+        snapshot.close();
+        assertThrows(IllegalStateException.class, () -> snapshot.get(0));
+        assertThrows(IndexOutOfBoundsException.class, () -> snapshot.get(10));
+        assertTrue(buffer.toString().contains("snapshots=0"), "Had: " + buffer);
+
+        // nothing is kept after closing
+        buffer.add(new Chunk(new byte[] {1}, "", 1));
+        assertEquals(10, snapshot.getPreserved());
+
+        try (BlockingSeekableRingBuffer.Snapshot next = buffer.snapshot()) {
+            assertEquals(2, next.getGeneration());
+        }
+    }
+
+    @Test
+    public void testSnapshotWithChunkPool() {
+        ChunkPool pool = new ChunkPool(5);
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(3, pool);
+        buffer.add(new Chunk(pool.acquire(1), "", 1));
+        buffer.add(new Chunk(pool.acquire(1), "", 2));
+
+        try (BlockingSeekableRingBuffer.Snapshot snapshot = buffer.snapshot()) {
+            // the data of chunks which are kept for the snapshot are not re-used
+            buffer.add(new Chunk(pool.acquire(1), "", 3));
+            buffer.add(new Chunk(pool.acquire(1), "", 4));
+            assertEquals(0, pool.size());
+
+            // chunks which were added after the snapshot are released
+            buffer.add(new Chunk(pool.acquire(1), "", 5));
+            buffer.add(new Chunk(pool.acquire(1), "", 6));
+            assertEquals(1, pool.size());
+
+            assertEquals(1, snapshot.get(0).getTimestamp());
+            assertEquals(2, snapshot.get(1).getTimestamp());
+
+            // the DTO refers to the kept data without copying it
+            assertSame(snapshot.get(0).getData(),
+                    snapshot.toPersistence(null, false, false, 0).getBuffer()[0].getData());
+        }
+
+        // the kept data is released when the snapshot is closed
+        assertEquals(3, pool.size());
+    }
+
+    @Test
+    public void testOverlappingSnapshotsWithChunkPool() {
+        ChunkPool pool = new ChunkPool(5);
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(3, pool);
+        buffer.add(new Chunk(pool.acquire(1), "", 1));
+        buffer.add(new Chunk(pool.acquire(1), "", 2));
+
+        BlockingSeekableRingBuffer.Snapshot first = buffer.snapshot();
+        BlockingSeekableRingBuffer.Snapshot second = buffer.snapshot();
+
+        // overwrites the first chunk, it is kept by both snapshots
+        buffer.add(new Chunk(pool.acquire(1), "", 3));
+        buffer.add(new Chunk(pool.acquire(1), "", 4));
+        assertEquals(0, pool.size());
+
+        // the data is still used by the second snapshot
+        first.close();
+        assertEquals(0, pool.size());
+        assertEquals(1, second.get(0).getTimestamp());
+
+        second.close();
+        assertEquals(1, pool.size());
+
+        // closing again does not release the data twice
+        second.close();
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testSnapshotKeepsDataHandedOutToReader() {
+        ChunkPool pool = new ChunkPool(5);
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(3, pool);
+        buffer.add(new Chunk(pool.acquire(1), "", 1));
+        buffer.add(new Chunk(pool.acquire(1), "", 2));
+        Chunk read = buffer.next();
+
+        try (BlockingSeekableRingBuffer.Snapshot snapshot = buffer.snapshot()) {
+            buffer.add(new Chunk(pool.acquire(1), "", 3));
+            buffer.add(new Chunk(pool.acquire(1), "", 4));
+            assertSame(read, snapshot.get(0));
+        }
+
+        // the reader may still use the data, so it is not released
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testSnapshotWhileAdding() throws Throwable {
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(1000);
+
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            long timestamp = 0;
+            while (!stop.get()) {
+                buffer.add(new Chunk(new byte[] {1}, "meta" + (timestamp / 100), timestamp++));
+            }
+        }, "SnapshotWriter");
+        writer.start();
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromPersistence(
+                        buffer.toPersistence(null, false, false, 0));
+
+                // all chunks are from the time of the snapshot, i.e. consecutive,
+                // nothing was read, so all of them are still available for reading
+                int fill = back.fill();
+                assertEquals(fill, back.size());
+                long previous = -1;
+                for (int c = 0; c < fill; c++) {
+                    long timestamp = back.next().getTimestamp();
+                    assertTrue(previous == -1 || timestamp == previous + 1,
+                            "Had " + timestamp + " after " + previous + " at " + c + " of " + fill);
+                    previous = timestamp;
+                }
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+
+        assertTrue(buffer.toString().contains("snapshots=0"), "Had: " + buffer);
+    }
+
+    @Test
+    public void testFromMappedFile() throws IOException {
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(50);
+        for (int i = 0; i < 80; i++) {
+            buffer.add(new Chunk(new byte[] {(byte) i, 1, 2}, "meta" + (i / 10), i));
+        }
+
+        Stream stream = new Stream();
+        stream.setUrl("url1");
+
+        File file = File.createTempFile("BlockingSeekableRingBuffer", ".bin");
+        try {
+            BufferPersistence.writeBufferToDisk(file, buffer.toPersistence(stream, true, false, 80),
+                    BufferPersistence.Format.BINARY);
+
+            BlockingSeekableRingBuffer.Restored restored = BlockingSeekableRingBuffer.fromMappedFile(file, false);
+            assertEquals("url1", restored.getDTO().getStream().getUrl());
+            assertTrue(restored.getDTO().isPlaying());
+            assertEquals(80, restored.getDTO().getChunkCount());
+            assertNull(restored.getDTO().getBuffer());
+
+            BlockingSeekableRingBuffer back = restored.getBuffer();
+            assertTrue(back.toString().contains("unresolved=50"), "Had: " + back);
+
+            // only positions, meta-data and timestamps are needed for these
+            assertEquals(buffer.fill(), back.fill());
+            assertEquals(buffer.size(), back.size());
+            assertEquals(buffer.bytesBuffered(), back.bytesBuffered());
+            assertEquals(buffer.metadataRanges(), back.metadataRanges());
+            assertEquals(buffer.positionOf(65), back.positionOf(65));
+            assertTrue(back.toString().contains("unresolved=50"), "Had: " + back);
+
+            assertEquals(buffer.peek(), back.peek());
+            assertEquals(buffer.next(), back.next());
+            assertTrue(back.toString().contains("unresolved=49"), "Had: " + back);
+
+            Chunk[] chunks = new Chunk[5];
+            assertEquals(5, back.next(chunks));
+            for (Chunk chunk : chunks) {
+                assertEquals(buffer.next(), chunk);
+                assertEquals("meta" + (chunk.getTimestamp() / 10), chunk.getMetaData());
+            }
+            assertTrue(back.toString().contains("unresolved=44"), "Had: " + back);
+
+            // overwritten chunks are not read
+            for (int i = 80; i < 90; i++) {
+                Chunk chunk = new Chunk(new byte[] {(byte) i}, "meta" + (i / 10), i);
+                buffer.add(chunk);
+                back.add(chunk);
+            }
+            assertTrue(back.toString().contains("unresolved=40"), "Had: " + back);
+            assertEquals(buffer.bytesBuffered(), back.bytesBuffered());
+
+            // persisting reads all remaining chunks
+            BlockingSeekableRingBuffer again = BlockingSeekableRingBuffer.fromPersistence(
+                    back.toPersistence(stream, true, false, 90));
+            assertTrue(back.toString().contains("unresolved=0"), "Had: " + back);
+
+            while (!buffer.empty()) {
+                Chunk chunk = buffer.next();
+                assertEquals(chunk, back.next());
+                assertEquals(chunk, again.next());
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testFromMappedFileInBackground() throws Exception {
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(500);
+        for (int i = 0; i < 400; i++) {
+            buffer.add(new Chunk(new byte[] {(byte) i, 1, 2}, "meta", i));
+        }
+
+        File file = File.createTempFile("BlockingSeekableRingBuffer", ".bin");
+        try {
+            BufferPersistence.writeBufferToDisk(file, buffer.toPersistence(null, false, false, 0),
+                    BufferPersistence.Format.BINARY);
+
+            BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromMappedFile(file, true).getBuffer();
+            for (int i = 0; i < 100 && !back.toString().contains("unresolved=0"); i++) {
+                Thread.sleep(50);
+            }
+            assertTrue(back.toString().contains("unresolved=0"), "Had: " + back);
+
+            // the file is not needed any more
+            assertTrue(file.delete());
+            while (!buffer.empty()) {
+                assertEquals(buffer.next(), back.next());
+            }
+        } finally {
+            assertTrue(!file.exists() || file.delete());
+        }
+    }
+
+    @Test
+    public void testFromMappedFileInvalid() throws IOException {
+        File file = File.createTempFile("BlockingSeekableRingBuffer", ".bin");
+        try {
+            // BSON is not supported
+            BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(10);
+            BufferPersistence.writeBufferToDisk(file, buffer.toPersistence(null, false, false, 0));
+            assertThrows(IOException.class, () -> BlockingSeekableRingBuffer.fromMappedFile(file, false));
+
+            // no buffer
+            BufferPersistence.writeBufferToDisk(file, BufferPersistenceDTO.builder().build(),
+                    BufferPersistence.Format.BINARY);
+            assertThrows(IOException.class, () -> BlockingSeekableRingBuffer.fromMappedFile(file, false));
+
+            // only changed chunks
+            BufferPersistence.writeBufferToDisk(file, buffer.toPersistence(null, false, false, 0, true),
+                    BufferPersistence.Format.BINARY);
+            assertThrows(IOException.class, () -> BlockingSeekableRingBuffer.fromMappedFile(file, false));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
     @Test
     public void testFailedToRead() {
         BufferPersistenceDTO dto = BufferPersistenceDTO.builder().build();
@@ -112,4 +678,81 @@ public class BlockingSeekableRingBufferTest extends AbstractBlockingSeekableRing
         assertThrows(IllegalArgumentException.class,
                 () -> new BlockingSeekableRingBuffer(Integer.MIN_VALUE));
     }
+
+    @Test
+    public void testMetrics() {
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(10);
+        for (int i = 0; i < 5; i++) {
+            buffer.add(new Chunk(new byte[] { (byte) i, 2 }, "", i));
+        }
+        assertNotNull(buffer.next());
+        assertEquals(2, buffer.next(new Chunk[2]));
+
+        Map<String, Number> metrics = buffer.getMetrics();
+        assertEquals(2, metrics.get("size"));
+        assertEquals(5, metrics.get("fill"));
+        assertEquals(9, metrics.get("capacity"));
+        assertEquals(2, metrics.get("bufferedForward"));
+        assertEquals(3, metrics.get("bufferedBackward"));
+        assertEquals(10L, metrics.get("bytesBuffered"));
+        assertEquals(5L, metrics.get("chunksAdded"));
+        assertEquals(3L, metrics.get("chunksRead"));
+        assertEquals(0L, metrics.get("chunksOverwrittenUnread"));
+
+        // overwrite the two unread and some read chunks
+        for (int i = 0; i < 9; i++) {
+            buffer.add(new Chunk(new byte[] { (byte) i, 2 }, "", i));
+        }
+
+        metrics = buffer.getMetrics();
+        assertEquals(9, metrics.get("size"));
+        assertEquals(14L, metrics.get("chunksAdded"));
+        assertEquals(2L, metrics.get("chunksOverwrittenUnread"));
+    }
+
+    @Test
+    public void testMetricsWithLimit() {
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(10, null, CapacityLimit.ofBytes(3));
+        buffer.add(new Chunk(new byte[] { 1, 2 }, "", 1));
+        buffer.add(new Chunk(new byte[] { 3, 4 }, "", 2));
+
+        // the first chunk was removed before it was read
+        assertEquals(1L, buffer.getMetrics().get("chunksOverwrittenUnread"));
+        assertEquals(1, buffer.getMetrics().get("size"));
+    }
+
+    @Test
+    public void testLatencyStats() throws InterruptedException {
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(10);
+        buffer.add(new Chunk(new byte[] { 1 }, "", 1));
+        buffer.addAll(new Chunk[] { new Chunk(new byte[] { 2 }, "", 2), new Chunk(new byte[] { 3 }, "", 3) }, 0, 2);
+
+        // reading available data is not an underrun
+        assertEquals(3, buffer.next(new Chunk[5]));
+        assertEquals(0, buffer.getLatencyStats().getUnderruns());
+        assertEquals(1, buffer.getLatencyStats().getInterArrival().getCount());
+
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            buffer.add(new Chunk(new byte[] { 4 }, "", 4));
+        });
+        writer.start();
+
+        assertEquals(4, buffer.next().getData()[0]);
+        writer.join();
+
+        assertEquals(1, buffer.getLatencyStats().getUnderruns());
+        assertTrue(buffer.getLatencyStats().getBlocked().getMax() >= 150_000,
+                "Had: " + buffer.getLatencyStats());
+        assertEquals(1L, buffer.getMetrics().get("underruns"));
+
+        // a reader which is released by closing the buffer is not counted
+        buffer.close();
+        assertNull(buffer.next());
+        assertEquals(1, buffer.getLatencyStats().getUnderruns());
+    }
 }
@@ -0,0 +1,280 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BufferCursorTest extends AbstractBlockingSeekableRingBufferTester {
+    @Override
+    protected SeekableRingBuffer<Chunk> getBlockingSeekableRingBuffer() {
+        return new MultiReaderRingBuffer(10).newCursor();
+    }
+
+    @Test
+    public void testIndependentCursors() {
+        MultiReaderRingBuffer shared = new MultiReaderRingBuffer(10);
+        BufferCursor cursor1 = shared.newCursor();
+        BufferCursor cursor2 = shared.newCursor();
+
+        for(byte i = 0;i < 5;i++) {
+            shared.add(new Chunk(new byte[] { i }, "", 0));
+        }
+
+        assertEquals(5, cursor1.size());
+        assertEquals(5, cursor2.size());
+
+        assertEquals(0, cursor1.next().getData()[0]);
+        assertEquals(1, cursor1.next().getData()[0]);
+        assertEquals(3, cursor1.size());
+        assertEquals(5, cursor2.size(), "Reading via one cursor does not affect the other one");
+
+        assertEquals(3, cursor2.seek(3));
+        assertEquals(3, cursor2.next().getData()[0]);
+        assertEquals(2, cursor1.next().getData()[0]);
+
+        // seeking backwards is possible for each cursor
+        assertEquals(-3, cursor1.seek(-3));
+        assertEquals(0, cursor1.next().getData()[0]);
+
+        // a new cursor starts at the live position, but can seek back to the chunks
+        // which were added before
+        BufferCursor cursor3 = shared.newCursor();
+        assertTrue(cursor3.empty());
+        assertEquals(5, cursor3.fill());
+        assertEquals(5, cursor3.bufferedBackward());
+        assertEquals(5, shared.fill());
+
+        // adding via a cursor makes the chunk available to all cursors
+        cursor3.add(new Chunk(new byte[] { 5 }, "", 0));
+        assertEquals(1, cursor3.size());
+        assertEquals(2, cursor2.size());
+        assertEquals(5, cursor1.size());
+
+        TestHelpers.ToStringTest(shared);
+        TestHelpers.ToStringTest(cursor1);
+    }
+
+    @Test
+    public void testLaggingCursorSkips() {
+        MultiReaderRingBuffer shared = new MultiReaderRingBuffer(10);
+        BufferCursor fast = shared.newCursor();
+        BufferCursor slow = shared.newCursor();
+
+        for(byte i = 0;i < 15;i++) {
+            shared.add(new Chunk(new byte[] { i }, "", 0));
+            assertEquals(i, fast.next().getData()[0]);
+        }
+
+        // the slow cursor lost the chunks that were overwritten
+        assertEquals(9, slow.size());
+        assertEquals(6, slow.getSkipped());
+        assertEquals(6, slow.next().getData()[0]);
+        assertEquals(0, fast.getSkipped());
+
+        // only the chunks that are still available can be reached
+        assertEquals(-1, slow.seek(-10));
+        assertEquals(6, slow.next().getData()[0]);
+        assertEquals(6, slow.getSkipped());
+    }
+
+    @Test
+    public void testCloseAndReset() {
+        MultiReaderRingBuffer shared = new MultiReaderRingBuffer(10);
+        BufferCursor cursor1 = shared.newCursor();
+        BufferCursor cursor2 = shared.newCursor();
+
+        shared.add(new Chunk(new byte[] { 1 }, "", 0));
+        shared.add(new Chunk(new byte[] { 2 }, "", 0));
+
+        // reset of a cursor only moves its read-position
+        cursor1.reset();
+        assertTrue(cursor1.empty());
+        assertEquals(2, cursor1.fill());
+        assertEquals(2, cursor1.bufferedBackward());
+        assertEquals(2, cursor2.size());
+        assertEquals(2, cursor2.fill());
+
+        // close of a cursor does not affect the other one
+        cursor1.close();
+        assertNull(cursor1.next());
+        assertEquals(1, cursor2.next().getData()[0]);
+
+        // reset of the shared buffer discards the chunks for all cursors
+        shared.reset();
+        assertTrue(cursor2.empty());
+        assertEquals(0, cursor2.fill());
+        assertEquals(0, shared.fill());
+
+        shared.add(new Chunk(new byte[] { 3 }, "", 0));
+        assertEquals(3, cursor2.next().getData()[0]);
+
+        // close of the shared buffer stops all cursors
+        shared.add(new Chunk(new byte[] { 4 }, "", 0));
+        shared.close();
+        assertNull(cursor2.next());
+        assertNull(cursor2.peek());
+    }
+
+    // reset() of a cursor only moves the read-position, so the following tests
+    // of the base class use the reset of the shared buffer to discard the chunks
+
+    private static final Chunk CHUNK = new Chunk(new byte[] { 1, 2, 3 }, "", 0);
+
+    @Test
+    @Override
+    public void testSizes() {
+        MultiReaderRingBuffer shared = new MultiReaderRingBuffer(10);
+        BufferCursor cursor = shared.newCursor();
+
+        cursor.add(CHUNK);
+        assertEquals(1, cursor.fill());
+
+        cursor.reset();
+        assertTrue(cursor.empty());
+        assertEquals(0, cursor.size());
+        assertEquals(1, cursor.fill());
+
+        shared.reset();
+        assertTrue(cursor.empty());
+        assertFalse(cursor.full());
+        assertEquals(9, cursor.capacity());
+        assertEquals(0, cursor.size());
+        assertEquals(0, cursor.fill());
+
+        for(int i = 0;i < 8;i++) {
+            cursor.add(CHUNK);
+            assertFalse(cursor.full());
+            assertEquals(i+1, cursor.size());
+            assertEquals(i+1, cursor.fill());
+        }
+
+        cursor.add(CHUNK);
+        cursor.add(CHUNK);
+        assertTrue(cursor.full());
+        assertEquals(9, cursor.size());
+        assertEquals(9, cursor.fill());
+    }
+
+    @Test
+    @Override
+    public void testPositionOfUnsortedTimestamps() {
+        MultiReaderRingBuffer shared = new MultiReaderRingBuffer(10);
+        BufferCursor cursor1 = shared.newCursor();
+        BufferCursor cursor2 = shared.newCursor();
+
+        cursor1.add(new Chunk(new byte[] { 1 }, "", 1000));
+        cursor1.add(new Chunk(new byte[] { 2 }, "", 3000));
+        cursor1.add(new Chunk(new byte[] { 3 }, "", 2000));
+        cursor1.add(new Chunk(new byte[] { 4 }, "", 4000));
+
+        assertEquals(0, cursor1.positionOf(2500));
+        assertEquals(2, cursor1.positionOf(3000));
+        assertEquals(3, cursor1.positionOf(4000));
+
+        // the reset of a cursor keeps the timestamps for all cursors, they
+        // also stay sorted for chunks which are added afterwards
+        cursor1.reset();
+        cursor1.add(new Chunk(new byte[] { 5 }, "", 3500));
+        assertEquals(2, cursor1.positionOf(3500));
+        assertEquals(0, cursor2.positionOf(2500));
+        assertEquals(4, cursor2.positionOf(4000));
+
+        // after a reset of the shared buffer, older timestamps are indexed again
+        shared.reset();
+        cursor1.add(new Chunk(new byte[] { 5 }, "", 100));
+        cursor1.add(new Chunk(new byte[] { 6 }, "", 200));
+        assertEquals(0, cursor1.positionOf(150));
+        assertEquals(1, cursor1.positionOf(200));
+        assertEquals(1, cursor2.positionOf(200));
+    }
+
+    @Test
+    @Override
+    public void testBytesAndSecondsBuffered() {
+        MultiReaderRingBuffer shared = new MultiReaderRingBuffer(10);
+        BufferCursor cursor = shared.newCursor();
+
+        for(int i = 0;i < 15;i++) {
+            cursor.add(new Chunk(new byte[i + 1], "", 2000 + i * 1000L));
+        }
+        assertEquals(99, cursor.bytesBuffered());
+        assertEquals(8.0, cursor.secondsBuffered(), 0.001);
+        assertEquals(99, shared.bytesBuffered());
+
+        // the chunks stay available in the shared buffer
+        cursor.reset();
+        assertEquals(99, cursor.bytesBuffered());
+        assertEquals(8.0, cursor.secondsBuffered(), 0.001);
+
+        shared.reset();
+        assertEquals(0, cursor.bytesBuffered());
+        assertEquals(0, cursor.secondsBuffered(), 0.001);
+
+        cursor.add(new Chunk(new byte[3], "", 20000));
+        cursor.add(new Chunk(new byte[4], "", 22500));
+        assertEquals(7, shared.bytesBuffered());
+        assertEquals(2.5, shared.secondsBuffered(), 0.001);
+    }
+
+    @Test
+    @Override
+    public void testMetadataRanges() {
+        MultiReaderRingBuffer shared = new MultiReaderRingBuffer(10);
+        BufferCursor cursor = shared.newCursor();
+
+        for(byte i = 0;i < 15;i++) {
+            cursor.add(new Chunk(new byte[] { i }, i < 5 ? "A" : i < 10 ? "B" : "C", 0));
+        }
+        assertEquals(List.of(new MetadataRange(0, 4, "B"), new MetadataRange(4, 9, "C")),
+                cursor.metadataRanges());
+
+        // a new cursor sees the ranges which were added before
+        assertEquals(cursor.metadataRanges(), shared.newCursor().metadataRanges());
+
+        cursor.reset();
+        assertEquals(List.of(new MetadataRange(0, 4, "B"), new MetadataRange(4, 9, "C")),
+                cursor.metadataRanges());
+
+        shared.reset();
+        assertEquals(List.of(), cursor.metadataRanges());
+
+        cursor.add(new Chunk(new byte[] { 1 }, "C", 0));
+        cursor.add(new Chunk(new byte[] { 2 }, "D", 0));
+        assertEquals(List.of(new MetadataRange(0, 1, "C"), new MetadataRange(1, 2, "D")),
+                cursor.metadataRanges());
+    }
+
+    @Test
+    public void testNewCursorSeeksIntoHistory() {
+        MultiReaderRingBuffer shared = new MultiReaderRingBuffer(10);
+        for(byte i = 0;i < 5;i++) {
+            shared.add(new Chunk(new byte[] { i }, "", i * 1000L));
+        }
+
+        BufferCursor cursor = shared.newCursor();
+        assertEquals(-3, cursor.seekToTimestamp(2000));
+        assertEquals(2, cursor.next().getData()[0]);
+
+        assertEquals(-3, cursor.seekTo(0));
+        assertEquals(0, cursor.next().getData()[0]);
+    }
+
+    @Test
+    public void testCounting() {
+        MultiReaderRingBuffer shared = new MultiReaderRingBuffer(10);
+        try (CountingSeekableRingBuffer counting = new CountingSeekableRingBufferImpl(shared.newCursor())) {
+            shared.add(new Chunk(new byte[] { 1, 2, 3 }, "", 0));
+
+            assertNotNull(counting.next());
+            assertTrue(counting.empty());
+        }
+    }
+
+    @Test
+    public void testInvalidConstructor() {
+        assertThrows(IllegalArgumentException.class, () -> new MultiReaderRingBuffer(1));
+    }
+}
@@ -33,6 +33,7 @@ public class BufferPersistenceDTOTest {
         assertEquals(0, dto.getNumberOfDiskChunks());
         assertEquals(0, dto.getNumberOfDiskFiles());
         assertNull(dto.getDataDir());
+        assertNull(dto.getTimestamps());
 
         TestHelpers.ToStringTest(dto);
     }
@@ -76,7 +77,9 @@ public class BufferPersistenceDTOTest {
                 buffer(null, 1, 1, 1).
                 stream(stream, false, false).
                 data(1, 1, new File(".")).
+                timestamps(new long[] { 1, 2 }).
                 build();
+        assertArrayEquals(new long[] { 1, 2 }, dto.getTimestamps());
         TestHelpers.ToStringTest(dto);
 
         assertEquals(1, dto.getNumberOfDiskChunks());
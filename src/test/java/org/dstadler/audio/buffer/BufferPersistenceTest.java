@@ -6,12 +6,17 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.util.logging.Logger;
 
 import static org.dstadler.audio.buffer.Chunk.CHUNK_SIZE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class BufferPersistenceTest {
@@ -171,6 +176,154 @@ class BufferPersistenceTest {
         }
     }
 
+    @Test
+    void testWriteReadBinary() throws IOException {
+        File file = File.createTempFile("BufferPersistence", ".bin");
+        try {
+            Stream stream = new Stream();
+            stream.setUrl("url1");
+            stream.setStreamType(Stream.StreamType.download);
+
+            Chunk[] chunks = new Chunk[] {
+                    new Chunk(new byte[] {1,2,3,4,5}, "meta data", 12345L),
+                    new Chunk(new byte[] {6,7}, "meta data", 12340L),
+                    null,
+                    new Chunk(new byte[0], "other \u00e4 data", 0L),
+                    new Chunk(new byte[] {8}, "", Long.MAX_VALUE),
+            };
+
+            BufferPersistenceDTO dto = BufferPersistenceDTO.builder().
+                    buffer(chunks, 1, 4, 3).
+                    nextDownloadPosition(83746L).
+                    stream(stream, true, true).
+                    data(100, 10, new File("data")).
+                    timestamps(new long[] {5000, 4000, -1, 6000}).
+                    metadata(new int[] {0, 3}, new String[] {"first", null}).
+                    lengths(new int[] {3, 0, 70000, 1}).
+                    chunkCount(3843).
+                    build();
+
+            BufferPersistence.writeBufferToDisk(file, dto, BufferPersistence.Format.BINARY);
+
+            assertTrue(BinaryBufferFormat.isBinary(file));
+            final BufferPersistenceDTO back = BufferPersistence.readBufferFromDisk(file);
+
+            assertArrayEquals(chunks, back.getBuffer());
+            assertEquals(1, back.getNextGet());
+            assertEquals(4, back.getNextAdd());
+            assertEquals(3, back.getFill());
+            assertEquals(83746L, back.getNextDownloadPosition());
+            assertEquals("url1", back.getStream().getUrl());
+            assertEquals(Stream.StreamType.download, back.getStream().getStreamType());
+            assertTrue(back.isPlaying());
+            assertTrue(back.isDownloadWhilePaused());
+            assertEquals(100, back.getNumberOfDiskChunks());
+            assertEquals(10, back.getNumberOfDiskFiles());
+            assertEquals(new File("data"), back.getDataDir());
+            assertArrayEquals(new long[] {5000, 4000, -1, 6000}, back.getTimestamps());
+            assertArrayEquals(new int[] {0, 3}, back.getMetadataStarts());
+            assertArrayEquals(new String[] {"first", null}, back.getMetadataValues());
+            assertArrayEquals(new int[] {3, 0, 70000, 1}, back.getLengths());
+            assertEquals(3843, back.getChunkCount());
+
+            // null values are kept
+            BufferPersistence.writeBufferToDisk(file, BufferPersistenceDTO.builder().build(), BufferPersistence.Format.BINARY);
+
+            final BufferPersistenceDTO empty = BufferPersistence.readBufferFromDisk(file);
+            assertNull(empty.getBuffer());
+            assertNull(empty.getStream());
+            assertNull(empty.getDataDir());
+            assertNull(empty.getTimestamps());
+            assertNull(empty.getMetadataStarts());
+            assertNull(empty.getMetadataValues());
+            assertNull(empty.getLengths());
+
+            // BSON is still read
+            BufferPersistence.writeBufferToDisk(file, dto, BufferPersistence.Format.BSON);
+            assertFalse(BinaryBufferFormat.isBinary(file));
+            assertArrayEquals(chunks, BufferPersistence.readBufferFromDisk(file).getBuffer());
+        } finally {
+            assertTrue(!file.exists() || file.delete());
+        }
+    }
+
+    @Test
+    void testReadBinaryInvalid() throws IOException {
+        File file = File.createTempFile("BufferPersistence", ".bin");
+        try {
+            assertFalse(BinaryBufferFormat.isBinary(file));
+
+            BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(10);
+            buffer.add(new Chunk(new byte[] {1,2,3,4,5}, "meta data", 12345L));
+            BufferPersistence.writeBufferToDisk(file, buffer.toPersistence(new Stream(), false, false, 0),
+                    BufferPersistence.Format.BINARY);
+
+            // unknown version
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(4);
+                raf.writeInt(BinaryBufferFormat.VERSION + 1);
+            }
+            assertThrows(IOException.class, () -> BufferPersistence.readBufferFromDisk(file));
+
+            // truncated data
+            BufferPersistence.writeBufferToDisk(file, buffer.toPersistence(new Stream(), false, false, 0),
+                    BufferPersistence.Format.BINARY);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(raf.length() - 1);
+            }
+            assertThrows(IOException.class, () -> BufferPersistence.readBufferFromDisk(file));
+
+            // truncated header
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(20);
+            }
+            assertThrows(IOException.class, () -> BufferPersistence.readBufferFromDisk(file));
+        } finally {
+            assertTrue(!file.exists() || file.delete());
+        }
+    }
+
+    @Test
+    void testMicroBenchmarkFormats() throws IOException {
+        File file = File.createTempFile("BufferPersistence", ".bin");
+        try (BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(5000)) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 5000; i++) {
+                byte[] data = new byte[CHUNK_SIZE];
+                for (int d = 0; d < CHUNK_SIZE; d++) {
+                    data[d] = (byte) d;
+                }
+                buffer.add(new Chunk(data, "meta data " + (i / 100), now + i * 26L));
+            }
+
+            Stream stream = new Stream();
+            stream.setUrl("url1");
+            BufferPersistenceDTO dto = buffer.toPersistence(stream, false, false, 0);
+
+            for (BufferPersistence.Format format : BufferPersistence.Format.values()) {
+                long writeTime = 0;
+                long readTime = 0;
+                for (int i = 0; i < 5; i++) {
+                    long start = System.nanoTime();
+                    BufferPersistence.writeBufferToDisk(file, dto, format);
+                    writeTime += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    BufferPersistenceDTO back = BufferPersistence.readBufferFromDisk(file);
+                    readTime += System.nanoTime() - start;
+
+                    assertEquals(dto.getBuffer().length, back.getBuffer().length);
+                    assertEquals(dto.getBuffer()[4998], back.getBuffer()[4998]);
+                }
+
+                log.info("Format " + format + ": " + Files.size(file.toPath()) + " bytes, " +
+                        "writing took " + writeTime / 5 / 1_000_000 + "ms, reading took " + readTime / 5 / 1_000_000 + "ms on average");
+            }
+        } finally {
+            assertTrue(!file.exists() || file.delete());
+        }
+    }
+
     @Test
     void testInvalidStartPosition() throws IOException {
         File tempPersist = File.createTempFile("RangeDownloadingBuffer", ".bin");
@@ -212,5 +365,6 @@ class BufferPersistenceTest {
     @Test
     void testPrivateConstructor() throws Exception {
         org.dstadler.commons.testing.PrivateConstructorCoverage.executePrivateConstructor(BufferPersistence.class);
+        org.dstadler.commons.testing.PrivateConstructorCoverage.executePrivateConstructor(BinaryBufferFormat.class);
     }
 }
@@ -0,0 +1,33 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CapacityLimitTest {
+    @Test
+    public void testLimits() {
+        CapacityLimit limit = new CapacityLimit(100, 2000);
+        assertEquals(100, limit.getMaxBytes());
+        assertEquals(2000, limit.getMaxMillis());
+        assertFalse(limit.isExceeded(100, 2000));
+        assertTrue(limit.isExceeded(101, 0));
+        assertTrue(limit.isExceeded(0, 2001));
+
+        assertEquals(Long.MAX_VALUE, CapacityLimit.ofBytes(5).getMaxMillis());
+        assertEquals(5, CapacityLimit.ofBytes(5).getMaxBytes());
+        assertEquals(5000, CapacityLimit.ofSeconds(5).getMaxMillis());
+        assertEquals(Long.MAX_VALUE, CapacityLimit.ofSeconds(5).getMaxBytes());
+        assertFalse(CapacityLimit.NONE.isExceeded(Long.MAX_VALUE, Long.MAX_VALUE));
+
+        TestHelpers.ToStringTest(limit);
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> new CapacityLimit(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new CapacityLimit(1, 0));
+        assertThrows(IllegalArgumentException.class, () -> CapacityLimit.ofSeconds(0));
+    }
+}
@@ -0,0 +1,62 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkPoolTest {
+    @Test
+    public void testAcquireRelease() {
+        ChunkPool pool = new ChunkPool(2);
+        assertEquals(0, pool.size());
+
+        byte[] data = pool.acquire(10);
+        assertEquals(10, data.length);
+        assertEquals(1, pool.getAllocated());
+        assertEquals(0, pool.getReused());
+
+        pool.release(data);
+        assertEquals(1, pool.size());
+
+        assertSame(data, pool.acquire(10));
+        assertEquals(1, pool.getAllocated());
+        assertEquals(1, pool.getReused());
+        assertEquals(0, pool.size());
+
+        TestHelpers.ToStringTest(pool);
+    }
+
+    @Test
+    public void testMaxPooled() {
+        ChunkPool pool = new ChunkPool(2);
+        pool.release(new byte[10]);
+        pool.release(new byte[10]);
+        pool.release(new byte[10]);
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void testDifferentSize() {
+        ChunkPool pool = new ChunkPool(2);
+        pool.release(new byte[10]);
+
+        // arrays of a different size are dropped
+        assertEquals(20, pool.acquire(20).length);
+        assertEquals(0, pool.size());
+        assertEquals(1, pool.getAllocated());
+        assertEquals(0, pool.getReused());
+    }
+
+    @Test
+    public void testEmptyIsIgnored() {
+        ChunkPool pool = new ChunkPool(2);
+        pool.release(new byte[0]);
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testInvalidMaxPooled() {
+        assertThrows(IllegalArgumentException.class, () -> new ChunkPool(0));
+    }
+}
@@ -1,10 +1,16 @@
 package org.dstadler.audio.buffer;
 
+import org.apache.commons.io.FileUtils;
 import org.dstadler.commons.logging.jdk.LoggerFactory;
 import org.dstadler.commons.testing.TestHelpers;
 import org.dstadler.commons.testing.ThreadTestHelper;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import static org.dstadler.audio.buffer.CountingSeekableRingBufferImpl.DEFAULT_CHUNKS_PER_SECOND;
@@ -196,6 +202,41 @@ public class CountingSeekableRingBufferImplTest extends AbstractBlockingSeekable
         });
     }
 
+    @Test
+    public void testMetrics() {
+        getBuffer().add(new Chunk(new byte[] { 1, 2, 3 }, "", 0));
+        getBuffer().add(new Chunk(new byte[] { 1, 2, 3 }, "", 500));
+        getBuffer().addNoStats(new Chunk(new byte[] { 1 }, "", 1000));
+        assertNotNull(getBuffer().next());
+
+        Map<String, Number> metrics = ((CountingSeekableRingBufferImpl) getBuffer()).getMetrics();
+
+        // the metrics of the delegate are included
+        assertEquals(2, metrics.get("size"));
+        assertEquals(3L, metrics.get("chunksAdded"));
+
+        assertEquals(6L, metrics.get("bytesWrittenOverall"));
+        assertEquals(2L, metrics.get("chunksWrittenOverall"));
+        assertEquals(3L, metrics.get("bytesReadOverall"));
+        assertEquals(1L, metrics.get("chunksReadOverall"));
+        assertEquals(4.0, metrics.get("chunksWrittenPerSecond"));
+        assertEquals(4.0, metrics.get("chunksPerSecond"));
+    }
+
+    @Test
+    public void testMetricsOtherDelegate() {
+        SeekableRingBuffer<Chunk> delegate = new LockFreeSeekableRingBuffer(10);
+        try (CountingSeekableRingBufferImpl lBuffer = new CountingSeekableRingBufferImpl(delegate)) {
+            lBuffer.add(new Chunk(new byte[] { 1, 2, 3 }, "", 0));
+
+            Map<String, Number> metrics = lBuffer.getMetrics();
+            assertEquals(1, metrics.get("size"));
+            assertEquals(1, metrics.get("fill"));
+            assertEquals(1, metrics.get("bufferedForward"));
+            assertEquals(1L, metrics.get("chunksWrittenOverall"));
+        }
+    }
+
     @Test
     public void testGetChunksPerSecondBothInRange() {
         // When both written and read CPS are in the valid range [0.5, 5],
@@ -341,6 +382,165 @@ public class CountingSeekableRingBufferImplTest extends AbstractBlockingSeekable
                 "peek() should not advance the read position");
     }
 
+    @Test
+    public void testBytesAndSecondsBuffered() {
+        buffer.add(new Chunk(new byte[]{1, 2}, "", 1000));
+        buffer.add(new Chunk(new byte[]{1, 2, 3}, "", 3500));
+
+        assertEquals(5, buffer.bytesBuffered());
+        assertEquals(2.5, buffer.secondsBuffered(), 0.001);
+    }
+
+    @Test
+    public void testDurationWithoutFrames() {
+        buffer.add(new Chunk(new byte[]{1, 2}, "", 1000));
+        buffer.add(new Chunk(new byte[]{1, 2, 3}, "", 1000));
+
+        // estimated from the default rate
+        assertEquals(1 / DEFAULT_CHUNKS_PER_SECOND, getBuffer().secondsPerChunk(), 0.001);
+        assertEquals(2 / DEFAULT_CHUNKS_PER_SECOND, getBuffer().durationOf(0, 2), 0.001);
+        assertEquals(1 / DEFAULT_CHUNKS_PER_SECOND, getBuffer().durationOf(1, 5), 0.001);
+        assertEquals(0, getBuffer().durationOf(2, 1), 0.001);
+    }
+
+    @Test
+    public void testDurationFromFrames() throws IOException {
+        byte[] data = FileUtils.readFileToByteArray(new File("src/test/resources/10-minutes-of-silence.mp3"));
+        int chunks = (data.length + Chunk.CHUNK_SIZE - 1) / Chunk.CHUNK_SIZE;
+
+        try (CountingSeekableRingBufferImpl lBuffer = new CountingSeekableRingBufferImpl(new BlockingSeekableRingBuffer(100))) {
+            // all chunks arrive at the same time, so the rates cannot be used
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < chunks; i++) {
+                byte[] chunk = Arrays.copyOfRange(data, i * Chunk.CHUNK_SIZE, Math.min(data.length, (i + 1) * Chunk.CHUNK_SIZE));
+                lBuffer.add(new Chunk(chunk, i < 20 ? "first" : "second", now));
+            }
+
+            assertEquals(600.0 / chunks, lBuffer.secondsPerChunk(), 0.01);
+            assertEquals(chunks / 600.0, lBuffer.getChunksPerSecond(), 0.001);
+            assertEquals(600, lBuffer.secondsBuffered(), 0.1);
+            assertEquals(600, lBuffer.durationOf(0, chunks), 0.1);
+            assertEquals(600, lBuffer.durationOf(0, 10) + lBuffer.durationOf(10, chunks), 0.1);
+
+            // the first chunks only contain the ID3 tag
+            assertEquals(0, lBuffer.durationOf(0, 2), 0.0001);
+            assertEquals(16.4, lBuffer.durationOf(5, 6), 0.1);
+
+            List<MetadataRange> ranges = lBuffer.metadataRanges();
+            assertEquals(2, ranges.size());
+            assertEquals(600, lBuffer.durationOf(ranges.get(0)) + lBuffer.durationOf(ranges.get(1)), 0.1);
+            assertEquals(lBuffer.durationOf(0, 20), lBuffer.durationOf(ranges.get(0)), 0.0001);
+
+            assertEquals(600.0 / chunks, lBuffer.getMetrics().get("secondsPerChunk").doubleValue(), 0.01);
+
+            // the durations are not kept after a reset
+            lBuffer.reset();
+            assertEquals(1 / DEFAULT_CHUNKS_PER_SECOND, lBuffer.secondsPerChunk(), 0.001);
+        }
+    }
+
+    @Test
+    public void testDurationFromFramesFullBuffer() throws IOException {
+        byte[] data = FileUtils.readFileToByteArray(new File("src/test/resources/10-minutes-of-silence.mp3"));
+        int chunks = data.length / Chunk.CHUNK_SIZE;
+
+        try (CountingSeekableRingBufferImpl lBuffer = new CountingSeekableRingBufferImpl(new BlockingSeekableRingBuffer(10))) {
+            Chunk[] all = new Chunk[chunks];
+            for (int i = 0; i < chunks; i++) {
+                all[i] = new Chunk(Arrays.copyOfRange(data, i * Chunk.CHUNK_SIZE, (i + 1) * Chunk.CHUNK_SIZE), "", 0);
+            }
+            lBuffer.addAll(all, 0, chunks);
+
+            // only the last chunks are buffered, all of them have the same bitrate
+            int fill = lBuffer.fill();
+            assertEquals(9, fill);
+            assertEquals(fill * 16.4, lBuffer.secondsBuffered(), 1);
+            assertEquals(lBuffer.secondsBuffered(), lBuffer.durationOf(0, fill), 0.0001);
+            assertEquals(lBuffer.secondsPerChunk() * 4, lBuffer.durationOf(3, 7), 0.5);
+        }
+    }
+
+    @Test
+    public void testDurationWithCapacityLimit() {
+        // chunks with 2 to 5 frames, so the limit of bytes removes a varying number of chunks
+        CapacityLimit limit = CapacityLimit.ofBytes(5000);
+        try (CountingSeekableRingBufferImpl lBuffer = new CountingSeekableRingBufferImpl(
+                new BlockingSeekableRingBuffer(20, null, limit))) {
+            int[] frames = new int[50];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = i % 4 + 2;
+                lBuffer.add(new Chunk(frames(frames[i]), "", i));
+
+                // each position maps to the chunk which is still in the buffer there
+                int fill = lBuffer.fill();
+                assertTrue(fill < 20, "Chunks should be removed because of the limit, had: " + fill);
+                for (int pos = 0; pos < fill; pos++) {
+                    assertEquals(frames[i - fill + 1 + pos] * FRAME_DURATION, lBuffer.durationOf(pos, pos + 1), 0.000001,
+                            "Failed at chunk " + i + " and position " + pos);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDurationWithChunksAddedToDelegate() {
+        BlockingSeekableRingBuffer delegate = new BlockingSeekableRingBuffer(20);
+        try (CountingSeekableRingBufferImpl lBuffer = new CountingSeekableRingBufferImpl(delegate)) {
+            lBuffer.add(new Chunk(frames(2), "", 0));
+            lBuffer.add(new Chunk(frames(4), "", 0));
+            assertEquals(4 * FRAME_DURATION, lBuffer.durationOf(1, 2), 0.000001);
+
+            // positions cannot be mapped to the chunks any more, so the average is used
+            delegate.add(new Chunk(frames(10), "", 0));
+            assertEquals(3 * FRAME_DURATION, lBuffer.durationOf(1, 2), 0.000001);
+            assertEquals(9 * FRAME_DURATION, lBuffer.durationOf(0, 3), 0.000001);
+        }
+    }
+
+    @Test
+    public void testDurationWithUnknownChunks() {
+        try (CountingSeekableRingBufferImpl lBuffer = new CountingSeekableRingBufferImpl(new BlockingSeekableRingBuffer(6))) {
+            // no frames are found in the first chunks, so the average of the known chunks is used for them
+            lBuffer.add(new Chunk(new byte[] {1, 2}, "", 0));
+            lBuffer.add(new Chunk(new byte[] {1, 2}, "", 0));
+            lBuffer.add(new Chunk(frames(2), "", 0));
+            lBuffer.add(new Chunk(frames(4), "", 0));
+
+            assertEquals(3 * FRAME_DURATION, lBuffer.secondsPerChunk(), 0.000001);
+            assertEquals(12 * FRAME_DURATION, lBuffer.durationOf(0, 4), 0.000001);
+            assertEquals(5 * FRAME_DURATION, lBuffer.durationOf(1, 3), 0.000001);
+            assertEquals(6 * FRAME_DURATION, lBuffer.durationOf(2, 4), 0.000001);
+            assertEquals(0, lBuffer.durationOf(3, 3), 0.000001);
+
+            // the unknown chunks are overwritten, ranges wrap around the end of the stored durations
+            for (int i = 0; i < 20; i++) {
+                lBuffer.add(new Chunk(frames(i % 3 + 1), "", 0));
+            }
+
+            // the buffer holds the chunks with 1, 2, 3, 1, 2 frames
+            assertEquals(5, lBuffer.fill());
+            assertEquals(9 * FRAME_DURATION, lBuffer.durationOf(0, 5), 0.000001);
+            assertEquals(5 * FRAME_DURATION, lBuffer.durationOf(1, 3), 0.000001);
+            assertEquals(2 * FRAME_DURATION, lBuffer.durationOf(4, 10), 0.000001);
+        }
+    }
+
+    private static final double FRAME_DURATION = 1152.0 / 44100;
+
+    /**
+     * @return The given number of MPEG 1 Layer III frames with 128 kbit/s and 44.1 kHz
+     */
+    private static byte[] frames(int count) {
+        byte[] data = new byte[count * 417];
+        for (int i = 0; i < count; i++) {
+            data[i * 417] = (byte) 0xff;
+            data[i * 417 + 1] = (byte) 0xfb;
+            data[i * 417 + 2] = (byte) 0x90;
+            data[i * 417 + 3] = (byte) 0x64;
+        }
+        return data;
+    }
+
     @Test
     public void testNullDelegate() {
         //noinspection ConstantConditions,resource
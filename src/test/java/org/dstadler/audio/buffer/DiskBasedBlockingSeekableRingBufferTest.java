@@ -5,6 +5,7 @@ import org.apache.commons.lang3.RandomUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.dstadler.audio.stream.Stream;
 import org.dstadler.commons.logging.jdk.LoggerFactory;
+import org.dstadler.commons.testing.TestHelpers;
 import org.dstadler.commons.testing.ThreadTestHelper;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -13,6 +14,8 @@ import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -95,6 +98,114 @@ public class DiskBasedBlockingSeekableRingBufferTest extends AbstractBlockingSee
 		}
 	}
 
+	@Test
+	public void testPersistenceTimestamps() throws IOException {
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(10, 3, getDataDir())) {
+			for (byte i = 0; i < 15; i++) {
+				localBuffer.add(new Chunk(new byte[] { i }, "", i * 1000L));
+			}
+			assertEquals(4, localBuffer.positionOf(10500));
+
+			final BufferPersistenceDTO dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+			assertNotNull(dto.getTimestamps());
+			assertEquals(10, dto.getTimestamps().length);
+
+			try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto)) {
+				assertEquals(4, back.positionOf(10500));
+				assertEquals(8, back.positionOf(Long.MAX_VALUE));
+			}
+
+			// buffers persisted without timestamps read them from the files on disk
+			final BufferPersistenceDTO dtoWithout = BufferPersistenceDTO.builder().
+					buffer(null, dto.getNextGet(), dto.getNextAdd(), dto.getFill()).
+					data(dto.getNumberOfDiskChunks(), dto.getNumberOfDiskFiles(), dto.getDataDir()).
+					build();
+			assertNull(dtoWithout.getTimestamps());
+
+			try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dtoWithout)) {
+				assertEquals(4, back.positionOf(10500));
+				assertEquals(8, back.positionOf(Long.MAX_VALUE));
+
+				assertEquals(4, back.seekToTimestamp(10500));
+				assertArrayEquals(new byte[] { 10 }, back.next().getData());
+			}
+		}
+	}
+
+	@Test
+	public void testPersistenceLengths() throws IOException {
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(10, 3, getDataDir())) {
+			for (int i = 0; i < 15; i++) {
+				localBuffer.add(new Chunk(new byte[i + 1], "", 2000 + i * 1000L));
+			}
+			assertEquals(99, localBuffer.bytesBuffered());
+
+			final BufferPersistenceDTO dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+			assertNotNull(dto.getLengths());
+			assertEquals(10, dto.getLengths().length);
+
+			try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto)) {
+				assertEquals(99, back.bytesBuffered());
+				assertEquals(8.0, back.secondsBuffered(), 0.001);
+
+				// the oldest chunk with 7 bytes drops out
+				back.add(new Chunk(new byte[1], "", 17000));
+				assertEquals(93, back.bytesBuffered());
+			}
+
+			// buffers persisted without the lengths read them from the files on disk
+			final BufferPersistenceDTO dtoWithout = BufferPersistenceDTO.builder().
+					buffer(null, dto.getNextGet(), dto.getNextAdd(), dto.getFill()).
+					data(dto.getNumberOfDiskChunks(), dto.getNumberOfDiskFiles(), dto.getDataDir()).
+					timestamps(dto.getTimestamps()).
+					build();
+			assertNull(dtoWithout.getLengths());
+
+			try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dtoWithout)) {
+				assertEquals(99, back.bytesBuffered());
+				assertEquals(8.0, back.secondsBuffered(), 0.001);
+			}
+		}
+	}
+
+	@Test
+	public void testPersistenceMetadata() throws IOException {
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(10, 3, getDataDir())) {
+			for (byte i = 0; i < 15; i++) {
+				localBuffer.add(new Chunk(new byte[] { i }, i < 10 ? "B" : "C", 0));
+			}
+			final List<MetadataRange> expected = List.of(new MetadataRange(0, 4, "B"), new MetadataRange(4, 9, "C"));
+			assertEquals(expected, localBuffer.metadataRanges());
+
+			final BufferPersistenceDTO dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+			assertArrayEquals(new int[] { 0, 4 }, dto.getMetadataStarts());
+			assertArrayEquals(new String[] { "B", "C" }, dto.getMetadataValues());
+
+			try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto)) {
+				assertEquals(expected, back.metadataRanges());
+
+				// new chunks continue the last range
+				back.add(new Chunk(new byte[] { 15 }, "C", 0));
+				assertEquals(List.of(new MetadataRange(0, 3, "B"), new MetadataRange(3, 9, "C")),
+						back.metadataRanges());
+			}
+
+			// buffers persisted without the index read it from the files on disk
+			final BufferPersistenceDTO dtoWithout = BufferPersistenceDTO.builder().
+					buffer(null, dto.getNextGet(), dto.getNextAdd(), dto.getFill()).
+					data(dto.getNumberOfDiskChunks(), dto.getNumberOfDiskFiles(), dto.getDataDir()).
+					build();
+			assertNull(dtoWithout.getMetadataStarts());
+
+			try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dtoWithout)) {
+				assertEquals(expected, back.metadataRanges());
+
+				assertEquals(4, back.seekToNextMetadataChange());
+				assertArrayEquals(new byte[] { 10 }, back.next().getData());
+			}
+		}
+	}
+
 	@Test
 	public void testToStringBuffer() throws IOException {
 		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(10, 3, getDataDir())) {
@@ -135,20 +246,20 @@ public class DiskBasedBlockingSeekableRingBufferTest extends AbstractBlockingSee
 
 	@Test
 	public void testAddDiskBuffer() throws IOException {
-		String[] list = getDataDir().list();
+		String[] list = listBufferFiles();
 		assertNotNull(list);
 		assertEquals(0, list.length, "Should not have disk-files before");
 
 		buffer.add(new Chunk(new byte[] { 1 }, "", 0));
 
-		list = getDataDir().list();
+		list = listBufferFiles();
 		assertNotNull(list);
 		assertEquals(0, list.length, "Should not have disk-files until first flush");
 
 		buffer.add(new Chunk(new byte[] { 2 }, "", 0));
 		buffer.add(new Chunk(new byte[] { 3 }, "", 0));
 
-		list = getDataDir().list();
+		list = listBufferFiles();
 		assertNotNull(list);
 		assertEquals(1, list.length, "Should have disk files now");
 		assertTrue(list[0].startsWith(DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX));
@@ -157,7 +268,7 @@ public class DiskBasedBlockingSeekableRingBufferTest extends AbstractBlockingSee
 		buffer.add(new Chunk(new byte[] { 5 }, "", 0));
 		buffer.add(new Chunk(new byte[] { 6 }, "", 0));
 
-		list = getDataDir().list();
+		list = listBufferFiles();
 		assertNotNull(list);
 		assertEquals(2, list.length, "Should have disk files now");
 		assertTrue(list[1].startsWith(DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX));
@@ -166,14 +277,14 @@ public class DiskBasedBlockingSeekableRingBufferTest extends AbstractBlockingSee
 		buffer.add(new Chunk(new byte[] { 8 }, "", 0));
 		buffer.add(new Chunk(new byte[] { 9 }, "", 0));
 
-		list = getDataDir().list();
+		list = listBufferFiles();
 		assertNotNull(list);
 		assertEquals(3, list.length, "Should have disk files now");
 		assertTrue(list[2].startsWith(DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX));
 
 		buffer.add(new Chunk(new byte[] { 10 }, "", 0));
 
-		list = getDataDir().list();
+		list = listBufferFiles();
 		assertNotNull(list);
 		assertEquals(4, list.length, "Should have disk files now");
 		assertTrue(list[3].startsWith(DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX));
@@ -182,7 +293,7 @@ public class DiskBasedBlockingSeekableRingBufferTest extends AbstractBlockingSee
 		buffer.add(new Chunk(new byte[] { 12 }, "", 0));
 		buffer.add(new Chunk(new byte[] { 13 }, "", 0));
 
-		list = getDataDir().list();
+		list = listBufferFiles();
 		assertNotNull(list);
 		assertEquals(4, list.length, "Should have disk files now");
 
@@ -190,11 +301,16 @@ public class DiskBasedBlockingSeekableRingBufferTest extends AbstractBlockingSee
 		buffer.add(new Chunk(new byte[] { 15 }, "", 0));
 		buffer.add(new Chunk(new byte[] { 16 }, "", 0));
 
-		list = getDataDir().list();
+		list = listBufferFiles();
 		assertNotNull(list);
 		assertEquals(4, list.length, "Should not end up with more disk files than 4");
 	}
 
+	private String[] listBufferFiles() throws IOException {
+		// a checksum-file is written next to each file
+		return getDataDir().list((dir, name) -> name.endsWith(".bson"));
+	}
+
 	@Override
 	protected ThreadTestHelper createThreadTestHelper() {
 		return new ThreadTestHelper(20, 500);
@@ -221,6 +337,686 @@ public class DiskBasedBlockingSeekableRingBufferTest extends AbstractBlockingSee
 		}
 	}
 
+	@Test
+	public void testReadFromSegmentWhichIsStillWritten() throws IOException {
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(10, 3, getDataDir())) {
+			// the second segment is not persisted yet when the reader enters it
+			for (byte i = 0; i < 5; i++) {
+				localBuffer.add(new Chunk(new byte[] { i }, "", 0));
+			}
+
+			for (byte i = 0; i < 5; i++) {
+				assertArrayEquals(new byte[] { i }, localBuffer.next().getData(),
+						"Failed at chunk " + i + " with " + localBuffer);
+			}
+		}
+	}
+
+	@Test
+	public void testWriteBehind() throws IOException {
+		final BufferPersistenceDTO dto;
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, getDataDir(), true)) {
+			for (int i = 0; i < 250; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "meta" + (i / 50), i));
+			}
+
+			// read through all segments, including the ones which may still be queued for writing
+			assertEquals(99, localBuffer.size());
+			for (int i = 151; i < 250; i++) {
+				Chunk chunk = localBuffer.next();
+				assertEquals((byte) i, chunk.getData()[0], "Failed at " + i + " with " + localBuffer);
+				assertEquals("meta" + (i / 50), chunk.getMetaData());
+			}
+			assertTrue(localBuffer.empty());
+
+			assertEquals(-50, localBuffer.seek(-50));
+
+			// waits for the writes to finish
+			dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+		}
+
+		// the restored buffer reads all chunks from disk
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto, true)) {
+			assertEquals(50, back.size());
+			assertEquals(-49, back.seek(-100));
+			for (int i = 151; i < 250; i++) {
+				assertEquals((byte) i, back.next().getData()[0], "Failed at " + i + " with " + back);
+			}
+
+			TestHelpers.ToStringTest(back);
+		}
+	}
+
+	@Test
+	public void testWriteBehindKeepsOldestChunks() throws IOException {
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, getDataDir(), true)) {
+			for (int i = 0; i < 105; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			// the first segment is written again, but still holds chunks 6 to 9
+			// which are read in the background
+			assertEquals(99, localBuffer.size());
+			for (int i = 6; i < 105; i++) {
+				assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+			}
+
+			// after wrapping around again the data is correct as well
+			for (int i = 105; i < 205; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+			assertEquals(99, localBuffer.size());
+			for (int i = 106; i < 205; i++) {
+				assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+			}
+		}
+	}
+
+	@Test
+	public void testWriteBehindAfterClose() throws IOException {
+		final BufferPersistenceDTO dto;
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, getDataDir(), true)) {
+			localBuffer.setPrefetchFraction(0.5);
+			for (int i = 0; i < 55; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			// waits for the background threads, later buffers are written synchronously
+			localBuffer.close();
+
+			for (int i = 55; i < 80; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+			dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+		}
+
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto)) {
+			assertEquals(80, back.size());
+			for (int i = 0; i < 80; i++) {
+				assertEquals((byte) i, back.next().getData()[0], "Failed at " + i + " with " + back);
+			}
+		}
+	}
+
+	@Test
+	public void testWriteBehindFailingWrite() throws IOException {
+		File dir = new File(getDataDir(), "writeBehind");
+
+		// create directories so that writing and replacing the buffer-file fails
+		assertTrue(new File(dir, "AudioBuffer-0.bson").mkdirs());
+		assertTrue(new File(dir, "AudioBuffer-0.bson.tmp").mkdirs());
+
+		final BufferPersistenceDTO dto;
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir, true)) {
+			// the chunk is added even if the error of an earlier write is reported
+			IllegalStateException error = null;
+			for (int i = 0; i < 20; i++) {
+				try {
+					localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+				} catch (IllegalStateException e) {
+					error = e;
+				}
+			}
+
+			// the error is reported by toPersistence() at the latest
+			IllegalStateException e = error != null ? error : assertThrows(IllegalStateException.class,
+					() -> localBuffer.toPersistence(new Stream(), false, false, 0));
+			assertTrue(e.getMessage().contains("at position 0 "),
+					"Had: " + ExceptionUtils.getStackTrace(e));
+			assertInstanceOf(FileNotFoundException.class, e.getCause(), "Had: " + ExceptionUtils.getStackTrace(e));
+
+			// the failed write is not forgotten, persisting fails as long as it cannot be written
+			e = assertThrows(IllegalStateException.class,
+					() -> localBuffer.toPersistence(new Stream(), false, false, 0));
+			assertTrue(e.getMessage().contains("at position 0 "),
+					"Had: " + ExceptionUtils.getStackTrace(e));
+
+			// the data is still available in memory
+			assertEquals(20, localBuffer.size());
+			for (int i = 0; i < 20; i++) {
+				assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+			}
+
+			// the write is done when the disk works again
+			assertTrue(new File(dir, "AudioBuffer-0.bson").delete());
+			assertTrue(new File(dir, "AudioBuffer-0.bson.tmp").delete());
+			dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+		}
+
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto)) {
+			assertEquals(-20, back.seek(-20));
+			for (int i = 0; i < 20; i++) {
+				assertEquals((byte) i, back.next().getData()[0], "Failed at " + i + " with " + back);
+			}
+		}
+	}
+
+	@Test
+	public void testPrefetch() throws IOException {
+		File dir = new File(getDataDir(), "prefetch");
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			localBuffer.setPrefetchFraction(0.5);
+
+			for (int i = 0; i < 99; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			for (int i = 0; i < 99; i++) {
+				assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+			}
+
+			// all segments were read ahead in the background
+			assertEquals(0, localBuffer.getSynchronousReads(), "Had: " + localBuffer);
+
+			TestHelpers.ToStringTest(localBuffer);
+		}
+	}
+
+	@Test
+	public void testWithoutPrefetch() throws IOException {
+		File dir = new File(getDataDir(), "prefetch");
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			for (int i = 0; i < 99; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			for (int i = 0; i < 99; i++) {
+				assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+			}
+
+			// segments 10 to 80 are read from disk, 0 and 90 are still in memory
+			assertEquals(8, localBuffer.getSynchronousReads(), "Had: " + localBuffer);
+		}
+	}
+
+	@Test
+	public void testPrefetchDiscardedWhenOverwritten() throws IOException {
+		File dir = new File(getDataDir(), "prefetch");
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			localBuffer.setPrefetchFraction(0.5);
+
+			for (int i = 0; i < 95; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			// passing the middle of the last segment reads segment 0 in the background
+			for (int i = 0; i < 95; i++) {
+				assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+			}
+
+			// the writer replaces segment 0 before the reader reaches it
+			for (int i = 95; i < 115; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			for (int i = 95; i < 115; i++) {
+				assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+			}
+
+			// the outdated prefetched data was not used
+			assertEquals(1, localBuffer.getSynchronousReads(), "Had: " + localBuffer);
+		}
+	}
+
+	@Test
+	public void testPrefetchOnSeek() throws IOException {
+		File dir = new File(getDataDir(), "prefetch");
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			localBuffer.setPrefetchFraction(1);
+
+			for (int i = 0; i < 99; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			assertEquals(53, localBuffer.seek(53));
+			assertEquals((byte) 53, localBuffer.next().getData()[0]);
+
+			assertEquals(-30, localBuffer.seek(-30));
+			assertEquals((byte) 24, localBuffer.next().getData()[0]);
+
+			// the target segments were read before the seek was done
+			assertEquals(0, localBuffer.getSynchronousReads(), "Had: " + localBuffer);
+
+			// seeking within the segment does not read anything
+			assertEquals(3, localBuffer.seek(3));
+			assertEquals((byte) 28, localBuffer.next().getData()[0]);
+			assertEquals(0, localBuffer.getSynchronousReads(), "Had: " + localBuffer);
+		}
+	}
+
+	@Test
+	public void testSegmentCache() throws IOException {
+		File dir = new File(getDataDir(), "cache");
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			localBuffer.setSegmentCacheSize(3, Long.MAX_VALUE);
+
+			for (int i = 0; i < 99; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			// skip over some chunks and come back a few times
+			assertEquals(45, localBuffer.seek(45));
+			assertEquals((byte) 45, localBuffer.next().getData()[0]);
+			assertEquals(10, localBuffer.seek(10));
+			assertEquals((byte) 56, localBuffer.next().getData()[0]);
+			assertEquals(-12, localBuffer.seek(-12));
+			assertEquals((byte) 45, localBuffer.next().getData()[0]);
+			long misses = localBuffer.getCacheMisses();
+			long hits = localBuffer.getCacheHits();
+
+			for (int i = 0; i < 5; i++) {
+				assertEquals(10, localBuffer.seek(10));
+				assertEquals((byte) 56, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+				assertEquals(-12, localBuffer.seek(-12));
+				assertEquals((byte) 45, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+			}
+
+			// the segments are not read from disk again
+			assertEquals(misses, localBuffer.getCacheMisses(), "Had: " + localBuffer);
+			assertEquals(hits + 10, localBuffer.getCacheHits(), "Had: " + localBuffer);
+
+			TestHelpers.ToStringTest(localBuffer);
+		}
+	}
+
+	@Test
+	public void testMetrics() throws IOException {
+		File dir = new File(getDataDir(), "metrics");
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(20, 2, dir)) {
+			for (int i = 0; i < 15; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+			for (int i = 0; i < 3; i++) {
+				assertNotNull(localBuffer.next());
+			}
+
+			Map<String, Number> metrics = localBuffer.getMetrics();
+			assertEquals(12, metrics.get("size"));
+			assertEquals(15, metrics.get("fill"));
+			assertEquals(19, metrics.get("capacity"));
+			assertEquals(12, metrics.get("bufferedForward"));
+			assertEquals(3, metrics.get("bufferedBackward"));
+			assertEquals(15L, metrics.get("chunksAdded"));
+			assertEquals(3L, metrics.get("chunksRead"));
+			assertEquals(0L, metrics.get("chunksOverwrittenUnread"));
+			assertEquals(1, metrics.get("writeBufferSwaps"));
+
+			// overwrite some unread chunks
+			for (int i = 0; i < 10; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			metrics = localBuffer.getMetrics();
+			assertEquals(19, metrics.get("size"));
+			assertEquals(25L, metrics.get("chunksAdded"));
+			assertEquals(3L, metrics.get("chunksOverwrittenUnread"));
+		}
+	}
+
+	@Test
+	public void testLatencyStats() throws IOException, InterruptedException {
+		File dir = new File(getDataDir(), "latency");
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(20, 2, dir)) {
+			localBuffer.add(new Chunk(new byte[] { 1 }, "", 1));
+			assertNotNull(localBuffer.next());
+			assertEquals(0, localBuffer.getLatencyStats().getUnderruns());
+
+			Thread writer = new Thread(() -> {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+				localBuffer.add(new Chunk(new byte[] { 2 }, "", 2));
+			});
+			writer.start();
+
+			assertEquals(2, localBuffer.next().getData()[0]);
+			writer.join();
+
+			assertEquals(1, localBuffer.getLatencyStats().getUnderruns());
+			assertTrue(localBuffer.getLatencyStats().getBlocked().getMax() >= 150_000,
+					"Had: " + localBuffer.getLatencyStats());
+			assertEquals(1, localBuffer.getLatencyStats().getInterArrival().getCount());
+			assertEquals(1L, localBuffer.getMetrics().get("underruns"));
+		}
+	}
+
+	@Test
+	public void testSegmentCacheDisabled() throws IOException {
+		File dir = new File(getDataDir(), "cache");
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			for (int i = 0; i < 99; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			assertEquals(45, localBuffer.seek(45));
+			for (int i = 0; i < 5; i++) {
+				assertEquals(10, localBuffer.seek(10));
+				assertEquals(-10, localBuffer.seek(-10));
+			}
+			assertEquals((byte) 45, localBuffer.next().getData()[0]);
+
+			assertEquals(0, localBuffer.getCacheHits(), "Had: " + localBuffer);
+		}
+	}
+
+	@Test
+	public void testSegmentCacheSeesNewData() throws IOException {
+		File dir = new File(getDataDir(), "cache");
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			localBuffer.setSegmentCacheSize(10, Long.MAX_VALUE);
+
+			for (int i = 0; i < 99; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+			assertEquals(15, localBuffer.seek(15));
+			assertEquals((byte) 15, localBuffer.next().getData()[0]);
+
+			// overwrite the first segments, the cached segments are replaced with the new data
+			for (int i = 99; i < 130; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			for (int i = 31; i < 130; i++) {
+				assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i + " with " + localBuffer);
+			}
+		}
+	}
+
+	@Test
+	public void testDeltaFile() throws IOException {
+		File dir = new File(getDataDir(), "delta");
+		File bufferFile = new File(dir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + "10.bson");
+		File deltaFile = new File(dir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + "10.delta");
+
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			for (int i = 0; i < 15; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "meta" + i, i));
+			}
+
+			// the first flush of a file writes it fully
+			localBuffer.toPersistence(new Stream(), false, false, 0);
+			assertTrue(bufferFile.exists());
+			assertFalse(deltaFile.exists());
+			long length = bufferFile.length();
+
+			// afterwards only the new chunks are written
+			localBuffer.add(new Chunk(new byte[] { 15 }, "meta15", 15));
+			localBuffer.add(new Chunk(new byte[] { 16 }, "meta16", 16));
+			localBuffer.toPersistence(new Stream(), false, false, 0);
+			assertEquals(length, bufferFile.length());
+			assertTrue(deltaFile.exists());
+			long deltaLength = deltaFile.length();
+			assertTrue(deltaLength < length, "Had: " + deltaLength + " and " + length);
+
+			// nothing is written if nothing changed
+			localBuffer.toPersistence(new Stream(), false, false, 0);
+			assertEquals(deltaLength, deltaFile.length());
+
+			localBuffer.add(new Chunk(new byte[] { 17 }, "meta17", 17));
+			final BufferPersistenceDTO dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+			assertEquals(length, bufferFile.length());
+
+			try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto)) {
+				assertEquals(18, back.size());
+				for (int i = 0; i < 18; i++) {
+					Chunk chunk = back.next();
+					assertEquals((byte) i, chunk.getData()[0], "Failed at " + i + " with " + back);
+					assertEquals("meta" + i, chunk.getMetaData());
+					assertEquals(i, chunk.getTimestamp());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDeltaFileIsMerged() throws IOException {
+		File dir = new File(getDataDir(), "delta");
+		File deltaFile = new File(dir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + "0.delta");
+
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			boolean hadDelta = false;
+			for (int i = 0; i < 10; i++) {
+				localBuffer.add(new Chunk(new byte[200], "", i));
+				localBuffer.toPersistence(new Stream(), false, false, 0);
+
+				hadDelta |= deltaFile.exists();
+			}
+
+			// the delta-file grew too large at some point and the full file was written again,
+			// writing the last chunk of the file also writes the full file
+			assertTrue(hadDelta);
+			assertFalse(deltaFile.exists());
+
+			for (int i = 0; i < 10; i++) {
+				assertEquals(i, localBuffer.next().getTimestamp());
+			}
+		}
+	}
+
+	@Test
+	public void testDeltaFileIncomplete() throws IOException {
+		File dir = new File(getDataDir(), "delta");
+		File deltaFile = new File(dir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + "0.delta");
+
+		final BufferPersistenceDTO dto;
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+			for (int i = 0; i < 3; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+				localBuffer.toPersistence(new Stream(), false, false, 0);
+			}
+			dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+		}
+		assertTrue(deltaFile.exists());
+
+		// simulate a partially written entry
+		FileUtils.writeByteArrayToFile(deltaFile, new byte[] { 0, 0, 0, 5, 0, 0 }, true);
+
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto)) {
+			assertEquals(3, back.size());
+			for (int i = 0; i < 3; i++) {
+				assertEquals((byte) i, back.next().getData()[0], "Failed at " + i + " with " + back);
+			}
+		}
+	}
+
+	@Test
+	public void testJournal() throws IOException {
+		File dir = new File(getDataDir(), "journal");
+		JournalPolicy policy = new JournalPolicy(1, 0);
+
+		final BufferPersistenceDTO dto;
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir, false, policy)) {
+			for (int i = 0; i < 5; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "meta" + (i / 10), i));
+			}
+			dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+
+			// these chunks are only in the journal and in the files of the previous segments,
+			// closing does not persist them, the same as if the process was killed
+			for (int i = 5; i < 22; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "meta" + (i / 10), i));
+			}
+			assertTrue(localBuffer.toString().contains("journal=Journal{"), "Had: " + localBuffer);
+		}
+		assertTrue(new File(dir, Journal.FILE_NAME).exists());
+
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto, false, policy)) {
+			assertEquals(22, back.fill());
+			assertEquals(22, back.size());
+			assertEquals(List.of(new MetadataRange(0, 10, "meta0"), new MetadataRange(10, 20, "meta1"),
+					new MetadataRange(20, 22, "meta2")), back.metadataRanges());
+			assertEquals(12, back.positionOf(12));
+
+			for (int i = 0; i < 22; i++) {
+				Chunk chunk = back.next();
+				assertEquals((byte) i, chunk.getData()[0], "Failed at " + i + " with " + back);
+				assertEquals(i, chunk.getTimestamp());
+			}
+
+			// the replayed chunks were persisted, so adding continues normally
+			back.add(new Chunk(new byte[] { 22 }, "meta2", 22));
+			assertEquals((byte) 22, back.next().getData()[0]);
+		}
+	}
+
+	@Test
+	public void testJournalWriteBehind() throws IOException {
+		File dir = new File(getDataDir(), "journal");
+		JournalPolicy policy = new JournalPolicy(5, 1000);
+
+		final BufferPersistenceDTO dto;
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir, true, policy)) {
+			dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+
+			for (int i = 0; i < 35; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+		}
+
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto, true, policy)) {
+			assertEquals(35, back.size());
+			for (int i = 0; i < 35; i++) {
+				assertEquals((byte) i, back.next().getData()[0], "Failed at " + i + " with " + back);
+			}
+		}
+	}
+
+	@Test
+	public void testJournalWriteBehindStartsOver() throws IOException, InterruptedException {
+		File dir = new File(getDataDir(), "journal");
+		JournalPolicy policy = new JournalPolicy(5, 1000);
+
+		final BufferPersistenceDTO dto;
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir, true, policy)) {
+			dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+
+			for (int i = 0; i < 250; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+
+				// give the background thread time to write the previous buffer
+				if (i % 10 == 5) {
+					Thread.sleep(10);
+				}
+			}
+
+			// the journal started over after the buffers were written in the background,
+			// so it only holds the chunks of the current write-buffer and a few more
+			long offset = localBuffer.getJournal().getOffset();
+			assertTrue(offset < 20 * 100, "Had: " + offset + " for " + localBuffer.getJournal());
+		}
+
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto, true, policy)) {
+			assertEquals(99, back.size());
+			for (int i = 151; i < 250; i++) {
+				assertEquals((byte) i, back.next().getData()[0], "Failed at " + i + " with " + back);
+			}
+		}
+	}
+
+	@Test
+	public void testJournalSyncWithoutChunks() throws IOException, InterruptedException {
+		File dir = new File(getDataDir(), "journal");
+		JournalPolicy policy = new JournalPolicy(1000, 20);
+
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir, false, policy)) {
+			localBuffer.add(new Chunk(new byte[] { 1 }, "", 1));
+
+			// no more chunks arrive, the journal is synced in the background
+			for (int i = 0; i < 100 && localBuffer.getJournal().getUnsynced() > 0; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, localBuffer.getJournal().getUnsynced());
+		}
+	}
+
+	@Test
+	public void testJournalIncomplete() throws IOException {
+		File dir = new File(getDataDir(), "journal");
+		File journalFile = new File(dir, Journal.FILE_NAME);
+		JournalPolicy policy = new JournalPolicy(1, 0);
+
+		final BufferPersistenceDTO dto;
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir, false, policy)) {
+			dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+
+			for (int i = 0; i < 5; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+		}
+
+		// corrupt the data of the last record
+		byte[] bytes = FileUtils.readFileToByteArray(journalFile);
+		int last = bytes.length - 1;
+		while (bytes[last] == 0) {
+			last--;
+		}
+		bytes[last]++;
+		FileUtils.writeByteArrayToFile(journalFile, bytes);
+
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto, false, policy)) {
+			assertEquals(4, back.size());
+			for (int i = 0; i < 4; i++) {
+				assertEquals((byte) i, back.next().getData()[0], "Failed at " + i + " with " + back);
+			}
+		}
+	}
+
+	@Test
+	public void testJournalDiscarded() throws IOException {
+		File dir = new File(getDataDir(), "journal");
+		File journalFile = new File(dir, Journal.FILE_NAME);
+		JournalPolicy policy = new JournalPolicy(1, 0);
+
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir, false, policy)) {
+			for (int i = 0; i < 5; i++) {
+				localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+			}
+
+			// the journal starts over when the buffer is reset
+			localBuffer.reset();
+		}
+
+		final BufferPersistenceDTO dto = BufferPersistenceDTO.builder().
+				buffer(null, 5, 5, 0).
+				data(100, 10, dir).
+				build();
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto, false, policy)) {
+			assertTrue(back.empty());
+
+			back.close();
+
+			// persisting after close() removes the journal as it is not updated any more
+			back.toPersistence(new Stream(), false, false, 0);
+			assertFalse(journalFile.exists());
+		}
+
+		// a buffer without journal ignores the file and removes it when persisting
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir, false, policy)) {
+			localBuffer.add(new Chunk(new byte[] { 1 }, "", 1));
+		}
+		assertTrue(journalFile.exists());
+
+		try (DiskBasedBlockingSeekableRingBuffer back = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto)) {
+			assertTrue(back.empty());
+
+			back.toPersistence(new Stream(), false, false, 0);
+			assertFalse(journalFile.exists());
+		}
+	}
+
+	@Test
+	public void testInvalidPrefetchFraction() throws IOException {
+		try (DiskBasedBlockingSeekableRingBuffer localBuffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, getDataDir())) {
+			assertThrows(IllegalArgumentException.class, () -> localBuffer.setPrefetchFraction(1.5));
+
+			// disabling is possible at any time
+			localBuffer.setPrefetchFraction(0);
+			localBuffer.setPrefetchFraction(-1);
+		}
+	}
+
 	@Test
 	public void testInvalidDataDir() {
 		//noinspection resource
@@ -319,11 +1115,11 @@ public class DiskBasedBlockingSeekableRingBufferTest extends AbstractBlockingSee
                 data(100, 20, dir).
                 build();
 
-		// create a directory so that writing the buffer-file fails
-		File bufferFile = new File(dir, "AudioBuffer-5.bson");
-		assertTrue(bufferFile.mkdirs());
-		bufferFile = new File(dir, "AudioBuffer-25.bson");
-		assertTrue(bufferFile.mkdirs());
+		// create directories so that reading and writing the buffer-file fails
+		for (int position : new int[] { 5, 25 }) {
+			assertTrue(new File(dir, "AudioBuffer-" + position + ".bson").mkdirs());
+			assertTrue(new File(dir, "AudioBuffer-" + position + ".bson.tmp").mkdirs());
+		}
 
 		try (DiskBasedBlockingSeekableRingBuffer localBuffer = DiskBasedBlockingSeekableRingBuffer.fromPersistence(dto)) {
 			for (int i = 0; i < 150; i++) {
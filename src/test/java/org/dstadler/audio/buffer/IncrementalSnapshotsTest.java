@@ -0,0 +1,205 @@
+package org.dstadler.audio.buffer;
+
+import org.apache.commons.io.FileUtils;
+import org.dstadler.audio.stream.Stream;
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IncrementalSnapshotsTest {
+    private File dir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("IncrementalSnapshots").toFile();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static Chunk chunk(int value) {
+        byte[] data = new byte[1000];
+        data[0] = (byte) value;
+        return new Chunk(data, "meta" + (value / 3), value);
+    }
+
+    private static Stream stream() {
+        Stream stream = new Stream();
+        stream.setUrl("url1");
+        return stream;
+    }
+
+    private static void assertRestored(BlockingSeekableRingBuffer expected, BufferPersistenceDTO dto) throws IOException {
+        BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromPersistence(dto);
+
+        assertEquals(expected.fill(), back.fill());
+        assertEquals(expected.size(), back.size());
+        assertEquals(expected.bufferedBackward(), back.bufferedBackward());
+        assertEquals(expected.metadataRanges(), back.metadataRanges());
+
+        int size = expected.size();
+        for (int i = 0; i < size; i++) {
+            assertEquals(expected.next(), back.next());
+        }
+    }
+
+    @Test
+    public void testBaseAndDeltas() throws IOException {
+        IncrementalSnapshots snapshots = new IncrementalSnapshots(dir, 10);
+        assertFalse(snapshots.hasSnapshot());
+        assertThrows(IOException.class, snapshots::read);
+
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(100);
+        for (int i = 0; i < 50; i++) {
+            buffer.add(chunk(i));
+        }
+        buffer.seek(-20);
+
+        snapshots.checkpoint(buffer, stream(), true, false, 50);
+        assertTrue(snapshots.hasSnapshot());
+        assertEquals(1, snapshots.getGeneration());
+        assertEquals(0, snapshots.getDeltas());
+        long baseSize = new File(dir, "Snapshot-1.base").length();
+
+        for (int i = 50; i < 55; i++) {
+            buffer.add(chunk(i));
+        }
+        buffer.next();
+        snapshots.checkpoint(buffer, stream(), true, false, 55);
+
+        // positions only
+        buffer.next();
+        snapshots.checkpoint(buffer, stream(), false, true, 55);
+
+        // wrap around and overwrite
+        for (int i = 55; i < 130; i++) {
+            buffer.add(chunk(i));
+        }
+        snapshots.checkpoint(buffer, stream(), true, false, 130);
+
+        assertEquals(1, snapshots.getGeneration());
+        assertEquals(3, snapshots.getDeltas());
+        assertTrue(new File(dir, "Snapshot-1-1.delta").length() < baseSize / 5,
+                "Delta should only contain the added chunks, had " + new File(dir, "Snapshot-1-1.delta").length() + " and " + baseSize);
+
+        BufferPersistenceDTO dto = snapshots.read();
+        assertEquals("url1", dto.getStream().getUrl());
+        assertTrue(dto.isPlaying());
+        assertEquals(130, dto.getChunkCount());
+        assertRestored(buffer, dto);
+
+        TestHelpers.ToStringTest(snapshots);
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        IncrementalSnapshots snapshots = new IncrementalSnapshots(dir, 2);
+
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(20);
+        for (int round = 0; round < 4; round++) {
+            buffer.add(chunk(round));
+            snapshots.checkpoint(buffer, stream(), false, false, round);
+        }
+
+        // base, two deltas, new base
+        assertEquals(2, snapshots.getGeneration());
+        assertEquals(0, snapshots.getDeltas());
+        assertArrayEquals(new String[] {"Snapshot-2.base"}, dir.list());
+
+        assertRestored(buffer, snapshots.read());
+    }
+
+    @Test
+    public void testCompactionBySize() throws IOException {
+        IncrementalSnapshots snapshots = new IncrementalSnapshots(dir, 100);
+
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(10);
+        buffer.add(chunk(0));
+        snapshots.checkpoint(buffer, stream(), false, false, 0);
+
+        // overwrite all chunks, so the delta is as large as the base
+        for (int i = 1; i < 20; i++) {
+            buffer.add(chunk(i));
+        }
+        snapshots.checkpoint(buffer, stream(), false, false, 0);
+        assertEquals(1, snapshots.getDeltas());
+
+        buffer.add(chunk(20));
+        snapshots.checkpoint(buffer, stream(), false, false, 0);
+        assertEquals(2, snapshots.getGeneration());
+        assertEquals(0, snapshots.getDeltas());
+
+        assertRestored(buffer, snapshots.read());
+    }
+
+    @Test
+    public void testNewInstanceWritesBase() throws IOException {
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(20);
+        buffer.add(chunk(1));
+        new IncrementalSnapshots(dir, 10).checkpoint(buffer, stream(), false, false, 0);
+
+        buffer.add(chunk(2));
+        BufferPersistenceDTO dto = new IncrementalSnapshots(dir, 10).read();
+
+        // continue with the restored buffer, changes before are not tracked
+        BlockingSeekableRingBuffer back = BlockingSeekableRingBuffer.fromPersistence(dto);
+        back.add(chunk(3));
+
+        IncrementalSnapshots snapshots = new IncrementalSnapshots(dir, 10);
+        assertEquals(1, snapshots.getGeneration());
+        snapshots.checkpoint(back, stream(), false, false, 0);
+        assertEquals(2, snapshots.getGeneration());
+        assertEquals(0, snapshots.getDeltas());
+
+        assertRestored(back, snapshots.read());
+    }
+
+    @Test
+    public void testDeltaNotMatching() throws IOException {
+        IncrementalSnapshots snapshots = new IncrementalSnapshots(dir, 10);
+        snapshots.checkpoint(new BlockingSeekableRingBuffer(20), stream(), false, false, 0);
+
+        BufferPersistence.writeBufferToDisk(new File(dir, "Snapshot-1-1.delta"),
+                new BlockingSeekableRingBuffer(10).toPersistence(stream(), false, false, 0));
+
+        assertThrows(IOException.class, snapshots::read);
+    }
+
+    @Test
+    public void testFailedCheckpointWritesBase() throws IOException {
+        IncrementalSnapshots snapshots = new IncrementalSnapshots(dir, 10);
+
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(20);
+        buffer.add(chunk(1));
+        snapshots.checkpoint(buffer, stream(), false, false, 0);
+
+        // a directory in place of the file lets writing the delta fail
+        File blocker = new File(dir, "Snapshot-1-1.delta.tmp");
+        assertTrue(blocker.mkdir());
+
+        buffer.add(chunk(2));
+        assertThrows(IOException.class, () -> snapshots.checkpoint(buffer, stream(), false, false, 0));
+
+        assertTrue(blocker.delete());
+
+        // the changes of the failed checkpoint are not lost
+        snapshots.checkpoint(buffer, stream(), false, false, 0);
+        assertEquals(2, snapshots.getGeneration());
+        assertRestored(buffer, snapshots.read());
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(NullPointerException.class, () -> new IncrementalSnapshots(null, 1));
+        assertThrows(IllegalArgumentException.class, () -> new IncrementalSnapshots(dir, -1));
+    }
+}
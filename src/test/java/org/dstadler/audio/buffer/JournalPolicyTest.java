@@ -0,0 +1,30 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalPolicyTest {
+    @Test
+    public void testPolicy() {
+        JournalPolicy policy = new JournalPolicy(10, 500);
+        assertTrue(policy.isEnabled());
+        assertEquals(10, policy.getSyncChunks());
+        assertEquals(500, policy.getSyncMillis());
+        assertFalse(policy.isSyncNeeded(9, 499));
+        assertTrue(policy.isSyncNeeded(10, 0));
+        assertTrue(policy.isSyncNeeded(1, 500));
+
+        assertFalse(JournalPolicy.NONE.isEnabled());
+
+        TestHelpers.ToStringTest(policy);
+        TestHelpers.ToStringTest(JournalPolicy.NONE);
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> new JournalPolicy(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new JournalPolicy(1, -1));
+    }
+}
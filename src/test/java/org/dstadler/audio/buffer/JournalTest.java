@@ -0,0 +1,154 @@
+package org.dstadler.audio.buffer;
+
+import org.apache.commons.io.FileUtils;
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalTest {
+    private static final JournalPolicy POLICY = new JournalPolicy(2, 1000);
+
+    private File file;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = File.createTempFile("JournalTest", ".journal");
+        assertTrue(file.delete());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        assertTrue(!file.exists() || file.delete());
+    }
+
+    private List<Chunk> replay(Journal journal) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        journal.replay((position, chunk) -> chunks.add(chunk));
+        return chunks;
+    }
+
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            assertFalse(journal.hasState());
+            assertEquals(0, journal.replay((position, chunk) -> true));
+            assertEquals(1000, file.length());
+
+            journal.checkpoint(1, 2, 3);
+            journal.append(2, new Chunk(new byte[] { 1, 2 }, "meta", 123));
+            journal.append(3, new Chunk(new byte[0], "", 124));
+
+            TestHelpers.ToStringTest(journal);
+        }
+
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            assertTrue(journal.hasState());
+            assertEquals(1, journal.getNextGet());
+            assertEquals(2, journal.getNextAdd());
+            assertEquals(3, journal.getFill());
+
+            List<Integer> positions = new ArrayList<>();
+            List<Chunk> chunks = new ArrayList<>();
+            assertEquals(2, journal.replay((position, chunk) -> {
+                positions.add(position);
+                return chunks.add(chunk);
+            }));
+            assertEquals(List.of(2, 3), positions);
+            assertEquals(new Chunk(new byte[] { 1, 2 }, "meta", 123), chunks.get(0));
+            assertEquals("meta", chunks.get(0).getMetaData());
+            assertEquals(124, chunks.get(1).getTimestamp());
+
+            // appending continues after the replayed records
+            journal.append(4, new Chunk(new byte[] { 3 }, "", 125));
+        }
+
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            assertEquals(3, replay(journal).size());
+        }
+    }
+
+    @Test
+    public void testSyncIfNeeded() throws IOException {
+        try (Journal journal = new Journal(file, 1000, new JournalPolicy(100, 0))) {
+            journal.checkpoint(0, 0, 0);
+            assertEquals(0, journal.getUnsynced());
+
+            // synced right away as the time limit is zero
+            journal.append(0, new Chunk(new byte[] { 1 }, "", 1));
+            assertEquals(0, journal.getUnsynced());
+        }
+
+        try (Journal journal = new Journal(file, 1000, new JournalPolicy(100, 100_000))) {
+            journal.checkpoint(0, 0, 0);
+            journal.append(0, new Chunk(new byte[] { 1 }, "", 1));
+            assertEquals(1, journal.getUnsynced());
+
+            // the time limit is not reached yet
+            journal.syncIfNeeded();
+            assertEquals(1, journal.getUnsynced());
+        }
+    }
+
+    @Test
+    public void testCheckpointDiscardsRecords() throws IOException {
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            journal.checkpoint(0, 0, 0);
+            for (int i = 0; i < 5; i++) {
+                journal.append(i, new Chunk(new byte[] { (byte) i }, "", i));
+            }
+
+            // the older records after the new one are not replayed
+            journal.checkpoint(0, 5, 5);
+            journal.append(5, new Chunk(new byte[] { 5 }, "", 5));
+        }
+
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            assertEquals(5, journal.getNextAdd());
+            List<Chunk> chunks = replay(journal);
+            assertEquals(1, chunks.size());
+            assertEquals(5, chunks.get(0).getTimestamp());
+        }
+    }
+
+    @Test
+    public void testStopReplay() throws IOException {
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            journal.checkpoint(0, 0, 0);
+            for (int i = 0; i < 5; i++) {
+                journal.append(i, new Chunk(new byte[] { (byte) i }, "", i));
+            }
+        }
+
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            assertEquals(2, journal.replay((position, chunk) -> position < 2));
+        }
+    }
+
+    @Test
+    public void testInvalidHeader() throws IOException {
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            journal.checkpoint(1, 2, 3);
+        }
+
+        byte[] bytes = FileUtils.readFileToByteArray(file);
+        bytes[15]++;
+        FileUtils.writeByteArrayToFile(file, bytes);
+
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            assertFalse(journal.hasState());
+        }
+
+        FileUtils.writeByteArrayToFile(file, new byte[] { 1, 2, 3 });
+        try (Journal journal = new Journal(file, 1000, POLICY)) {
+            assertFalse(journal.hasState());
+        }
+    }
+}
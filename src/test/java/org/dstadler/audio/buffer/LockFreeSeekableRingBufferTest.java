@@ -0,0 +1,138 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.audio.util.RuntimeInterruptedException;
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LockFreeSeekableRingBufferTest extends AbstractBlockingSeekableRingBufferTester {
+    @Override
+    protected SeekableRingBuffer<Chunk> getBlockingSeekableRingBuffer() {
+        return new LockFreeSeekableRingBuffer(10);
+    }
+
+    @Test
+    public void testProducerConsumer() throws InterruptedException {
+        final int count = 100000;
+        try (LockFreeSeekableRingBuffer localBuffer = new LockFreeSeekableRingBuffer(count + 1)) {
+            AtomicReference<Throwable> exc = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        Chunk chunk = localBuffer.next();
+                        assertNotNull(chunk);
+                        assertEquals(i, chunk.getTimestamp(), "Chunks should be read in the order they are added");
+                    }
+                } catch (Throwable e) {
+                    exc.set(e);
+                }
+            }, "LockFreeTest: Reader thread");
+            reader.start();
+
+            for (int i = 0; i < count; i++) {
+                localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+            }
+
+            reader.join(60_000);
+            assertFalse(reader.isAlive(), "Reader should have finished");
+            assertNull(exc.get());
+
+            assertTrue(localBuffer.empty());
+            assertEquals(count, localBuffer.bufferedBackward());
+        }
+    }
+
+    @Test
+    public void testNextWakesUpOnAdd() throws InterruptedException {
+        try (LockFreeSeekableRingBuffer localBuffer = new LockFreeSeekableRingBuffer(10)) {
+            AtomicReference<Chunk> chunk = new AtomicReference<>();
+            Thread reader = new Thread(() -> chunk.set(localBuffer.next()), "LockFreeTest: Waiting reader");
+            reader.start();
+
+            // give the reader some time to start waiting
+            Thread.sleep(50);
+
+            Chunk added = new Chunk(new byte[] { 1, 2, 3 }, "", 0);
+            localBuffer.add(added);
+
+            reader.join(10_000);
+            assertFalse(reader.isAlive());
+            assertSame(added, chunk.get());
+        }
+    }
+
+    @Test
+    public void testNextWakesUpOnClose() throws InterruptedException {
+        LockFreeSeekableRingBuffer localBuffer = new LockFreeSeekableRingBuffer(10);
+        AtomicReference<Chunk> chunk = new AtomicReference<>(new Chunk(new byte[0], "", 0));
+        Thread reader = new Thread(() -> chunk.set(localBuffer.next()), "LockFreeTest: Waiting reader");
+        reader.start();
+
+        Thread.sleep(50);
+        localBuffer.close();
+
+        reader.join(10_000);
+        assertFalse(reader.isAlive());
+        assertNull(chunk.get());
+    }
+
+    @Test
+    public void testNextInterrupted() throws InterruptedException {
+        try (LockFreeSeekableRingBuffer localBuffer = new LockFreeSeekableRingBuffer(10)) {
+            AtomicReference<Throwable> exc = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    localBuffer.next();
+                } catch (Throwable e) {
+                    exc.set(e);
+                }
+            }, "LockFreeTest: Interrupted reader");
+            reader.start();
+
+            Thread.sleep(50);
+            reader.interrupt();
+
+            reader.join(10_000);
+            assertFalse(reader.isAlive());
+            assertInstanceOf(RuntimeInterruptedException.class, exc.get());
+        }
+    }
+
+    @Test
+    public void testPowerOfTwoSizes() {
+        for (int chunks : new int[] { 1, 2, 3, 8, 9, 16, 17, 1000 }) {
+            try (LockFreeSeekableRingBuffer localBuffer = new LockFreeSeekableRingBuffer(chunks)) {
+                assertEquals(chunks - 1, localBuffer.capacity());
+
+                for (int i = 0; i < chunks * 3; i++) {
+                    localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+                    assertEquals(Math.min(i + 1, chunks - 1), localBuffer.size(), "Failed for " + chunks + " and " + i);
+                }
+
+                if (chunks > 1) {
+                    // the oldest chunk which is still available
+                    assertEquals(chunks * 3L - (chunks - 1), localBuffer.peek().getTimestamp());
+                } else {
+                    assertNull(localBuffer.peek());
+                }
+                TestHelpers.ToStringTest(localBuffer);
+            }
+        }
+    }
+
+    @SuppressWarnings("resource")
+    @Test
+    public void testInvalidChunks() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new LockFreeSeekableRingBuffer(0));
+        assertThrows(IllegalArgumentException.class,
+                () -> new LockFreeSeekableRingBuffer(-1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new LockFreeSeekableRingBuffer(Integer.MIN_VALUE));
+        assertThrows(IllegalArgumentException.class,
+                () -> new LockFreeSeekableRingBuffer(Integer.MAX_VALUE));
+    }
+}
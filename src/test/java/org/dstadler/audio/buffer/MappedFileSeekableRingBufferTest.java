@@ -0,0 +1,309 @@
+package org.dstadler.audio.buffer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.dstadler.audio.stream.Stream;
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedFileSeekableRingBufferTest extends AbstractBlockingSeekableRingBufferTester {
+    private static File DATA_DIR;
+
+    @AfterEach
+    public void tearDownDataDir() throws IOException {
+        FileUtils.deleteDirectory(getDataDir());
+    }
+
+    private static File getDataDir() throws IOException {
+        if (DATA_DIR == null) {
+            DATA_DIR = File.createTempFile("MappedBuffer", ".dir");
+            assertTrue(DATA_DIR.delete());
+        }
+        return DATA_DIR;
+    }
+
+    @Override
+    protected SeekableRingBuffer<Chunk> getBlockingSeekableRingBuffer() {
+        try {
+            return new MappedFileSeekableRingBuffer(10, 16, getDataDir());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testFileIsPreallocated() throws IOException {
+        try (MappedFileSeekableRingBuffer localBuffer = new MappedFileSeekableRingBuffer(10, 100, getDataDir())) {
+            File file = new File(getDataDir(), MappedFileSeekableRingBuffer.FILE_NAME);
+            assertTrue(file.exists());
+            assertEquals(28 + 10 * 370, file.length());
+
+            localBuffer.add(new Chunk(new byte[100], "", 0));
+            assertEquals(28 + 10 * 370, file.length(), "File should not grow");
+
+            assertThrows(IllegalArgumentException.class,
+                    () -> localBuffer.add(new Chunk(new byte[101], "", 0)));
+
+            TestHelpers.ToStringTest(localBuffer);
+        }
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        final BufferPersistenceDTO dto;
+        try (MappedFileSeekableRingBuffer localBuffer = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            for (byte i = 0; i < 15; i++) {
+                localBuffer.add(new Chunk(new byte[] { i, i }, "meta" + (i / 5), i * 1000L));
+            }
+
+            Stream stream = new Stream();
+            stream.setUrl("url1");
+            stream.setStreamType(Stream.StreamType.live);
+
+            dto = localBuffer.toPersistence(stream, false, false, 2345);
+            assertNull(dto.getBuffer(), "Chunks are only stored in the file");
+            assertEquals(6, dto.getNextGet());
+            assertEquals(5, dto.getNextAdd());
+            assertEquals(9, dto.getFill());
+            assertEquals(10, dto.getNumberOfDiskChunks());
+            assertEquals(getDataDir(), dto.getDataDir());
+            assertEquals(2345, dto.getChunkCount());
+        }
+
+        try (MappedFileSeekableRingBuffer back = MappedFileSeekableRingBuffer.fromPersistence(dto)) {
+            assertEquals(9, back.fill());
+            assertEquals(9, back.size());
+
+            Chunk chunk = back.next();
+            assertArrayEquals(new byte[] { 6, 6 }, chunk.getData());
+            assertEquals("meta1", chunk.getMetaData());
+            assertEquals(6000L, chunk.getTimestamp());
+
+            assertEquals(2, back.metadataRanges().size());
+            assertEquals(new MetadataRange(4, 9, "meta2"), back.metadataRanges().get(1));
+            assertEquals(4, back.positionOf(10500));
+
+            // the restored buffer can be used as before
+            back.add(new Chunk(new byte[] { 15 }, "meta3", 15000L));
+            assertEquals(9, back.size());
+            assertEquals("meta3", back.metadataRanges().get(2).getMetaData());
+        }
+    }
+
+    @Test
+    public void testPersistenceWithoutMetadata() throws IOException {
+        final BufferPersistenceDTO dto;
+        try (MappedFileSeekableRingBuffer localBuffer = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            localBuffer.add(new Chunk(new byte[] { 1 }, "meta", 1000L));
+            localBuffer.add(new Chunk(new byte[] { 2 }, "meta", 2000L));
+
+            dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+        }
+
+        BufferPersistenceDTO legacy = BufferPersistenceDTO.builder().
+                buffer(null, dto.getNextGet(), dto.getNextAdd(), dto.getFill()).
+                stream(new Stream(), false, false).
+                data(10, 1, getDataDir()).
+                build();
+        // the meta-data is read from the file
+        try (MappedFileSeekableRingBuffer back = MappedFileSeekableRingBuffer.fromPersistence(legacy)) {
+            assertEquals(2, back.size());
+            assertEquals(new Chunk(new byte[] { 1 }, "meta", 1000L), back.next());
+            assertEquals(1, back.positionOf(2000L));
+        }
+    }
+
+    @Test
+    public void testRecoverWithoutPersistence() throws IOException {
+        try (MappedFileSeekableRingBuffer localBuffer = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            for (byte i = 0; i < 15; i++) {
+                localBuffer.add(new Chunk(new byte[] { i }, "meta" + (i / 5), i * 1000L));
+            }
+            assertEquals(6, localBuffer.next().getData()[0]);
+            assertEquals(7, localBuffer.next().getData()[0]);
+
+            // no call to toPersistence() or flush(), e.g. because the application crashed
+        }
+
+        // creating the buffer again recovers the data from the file
+        try (MappedFileSeekableRingBuffer back = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            assertEquals(9, back.fill());
+            assertEquals(7, back.size());
+            assertEquals(2, back.bufferedBackward());
+
+            Chunk chunk = back.next();
+            assertArrayEquals(new byte[] { 8 }, chunk.getData());
+            assertEquals("meta1", chunk.getMetaData());
+            assertEquals(8000L, chunk.getTimestamp());
+
+            assertEquals(2, back.metadataRanges().size());
+            assertEquals(new MetadataRange(0, 4, "meta1"), back.metadataRanges().get(0));
+            assertEquals(new MetadataRange(4, 9, "meta2"), back.metadataRanges().get(1));
+            assertEquals(2, back.positionOf(8500));
+        }
+
+        // a different slot size does not match the file, so a new buffer is created
+        try (MappedFileSeekableRingBuffer other = new MappedFileSeekableRingBuffer(10, 32, getDataDir())) {
+            assertEquals(0, other.fill());
+            assertTrue(other.empty());
+        }
+    }
+
+    @Test
+    public void testRecoverAfterSeekingBeforeOldestChunk() throws IOException {
+        try (MappedFileSeekableRingBuffer localBuffer = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            for (byte i = 0; i < 5; i++) {
+                localBuffer.add(new Chunk(new byte[] { i }, "meta", i * 1000L));
+            }
+
+            // the read-position moves into slots which were never written
+            assertEquals(-4, localBuffer.seek(-10));
+            assertEquals(9, localBuffer.size());
+            assertEquals(5, localBuffer.fill());
+        }
+
+        try (MappedFileSeekableRingBuffer back = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            assertEquals(5, back.fill());
+            assertEquals(5, back.size());
+            assertEquals(new Chunk(new byte[] { 0 }, "meta", 0L), back.next());
+        }
+
+        // restoring via the DTO does not fail either
+        BufferPersistenceDTO dto = BufferPersistenceDTO.builder().
+                buffer(null, 0, 0, 0).
+                data(10, 1, getDataDir()).
+                build();
+        try (MappedFileSeekableRingBuffer back = MappedFileSeekableRingBuffer.fromPersistence(dto)) {
+            assertEquals(5, back.fill());
+            assertEquals(4, back.size());
+        }
+    }
+
+    @Test
+    public void testInvalidPositionsKeepChunks() throws IOException {
+        try (MappedFileSeekableRingBuffer localBuffer = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            localBuffer.add(new Chunk(new byte[] { 1 }, "meta", 1000L));
+        }
+
+        // corrupt nextAdd in the header
+        File file = new File(getDataDir(), MappedFileSeekableRingBuffer.FILE_NAME);
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(5 * Integer.BYTES);
+            raf.writeInt(12345);
+        }
+
+        BufferPersistenceDTO dto = BufferPersistenceDTO.builder().
+                buffer(null, 0, 0, 0).
+                data(10, 1, getDataDir()).
+                build();
+        assertThrows(IOException.class, () -> MappedFileSeekableRingBuffer.fromPersistence(dto));
+
+        // the file is not re-created, only the positions start over
+        try (MappedFileSeekableRingBuffer back = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            assertEquals(length, file.length());
+            assertTrue(back.empty());
+            assertEquals(0, back.fill());
+        }
+    }
+
+    @Test
+    public void testFromPersistenceUsesPositionsOfFile() throws IOException {
+        final BufferPersistenceDTO dto;
+        try (MappedFileSeekableRingBuffer localBuffer = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            localBuffer.add(new Chunk(new byte[] { 1 }, "meta", 1000L));
+            localBuffer.add(new Chunk(new byte[] { 2 }, "meta", 2000L));
+            dto = localBuffer.toPersistence(new Stream(), false, false, 0);
+
+            // the buffer is used after the DTO was written
+            assertEquals(1, localBuffer.next().getData()[0]);
+            localBuffer.add(new Chunk(new byte[] { 3 }, "other", 3000L));
+        }
+
+        assertEquals(2, dto.getFill());
+        try (MappedFileSeekableRingBuffer back = MappedFileSeekableRingBuffer.fromPersistence(dto)) {
+            assertEquals(3, back.fill());
+            assertEquals(2, back.size());
+            assertEquals(new Chunk(new byte[] { 2 }, "meta", 2000L), back.next());
+            assertEquals(new Chunk(new byte[] { 3 }, "other", 3000L), back.next());
+        }
+    }
+
+    @Test
+    public void testLongMetadataIsTruncated() throws IOException {
+        String longMeta = StringUtils.repeat("\u00e4", 200);
+        try (MappedFileSeekableRingBuffer localBuffer = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            localBuffer.add(new Chunk(new byte[] { 1 }, longMeta, 1000L));
+
+            // the full meta-data is kept in memory
+            assertEquals(longMeta, localBuffer.peek().getMetaData());
+        }
+
+        try (MappedFileSeekableRingBuffer back = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            // two bytes per character, the value is cut without splitting a character
+            assertEquals(StringUtils.repeat("\u00e4", 128), back.next().getMetaData());
+        }
+    }
+
+    @Test
+    public void testBufferedBackwardNotNegative() throws IOException {
+        try (MappedFileSeekableRingBuffer localBuffer = new MappedFileSeekableRingBuffer(10, 16, getDataDir())) {
+            for (int i = 0; i < 25; i++) {
+                localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+                assertTrue(localBuffer.bufferedBackward() >= 0, "Failed at " + i + ": " + localBuffer);
+            }
+            assertEquals(0, localBuffer.bufferedBackward());
+        }
+    }
+
+    @Test
+    public void testFromPersistenceInvalid() throws IOException {
+        BufferPersistenceDTO noDir = BufferPersistenceDTO.builder().
+                buffer(null, 0, 0, 0).
+                stream(new Stream(), false, false).
+                build();
+        assertThrows(IOException.class, () -> MappedFileSeekableRingBuffer.fromPersistence(noDir));
+
+        // the buffer of the test-class created the file already
+        File file = new File(getDataDir(), MappedFileSeekableRingBuffer.FILE_NAME);
+        assertTrue(file.delete());
+
+        BufferPersistenceDTO noFile = BufferPersistenceDTO.builder().
+                buffer(null, 0, 0, 0).
+                stream(new Stream(), false, false).
+                data(10, 1, getDataDir()).
+                build();
+        assertThrows(IOException.class, () -> MappedFileSeekableRingBuffer.fromPersistence(noFile));
+
+        // different number of chunks
+        //noinspection EmptyTryBlock
+        try (MappedFileSeekableRingBuffer ignored = new MappedFileSeekableRingBuffer(20, 16, getDataDir())) {
+        }
+        assertThrows(IOException.class, () -> MappedFileSeekableRingBuffer.fromPersistence(noFile));
+
+        // not a buffer-file
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(12345);
+        }
+        assertThrows(IOException.class, () -> MappedFileSeekableRingBuffer.fromPersistence(noFile));
+    }
+
+    @Test
+    public void testInvalidConstructor() throws IOException {
+        File dataDir = getDataDir();
+
+        //noinspection resource
+        assertThrows(IllegalArgumentException.class, () -> new MappedFileSeekableRingBuffer(0, dataDir));
+        //noinspection resource
+        assertThrows(IllegalArgumentException.class, () -> new MappedFileSeekableRingBuffer(10, 0, dataDir));
+        //noinspection resource
+        assertThrows(NullPointerException.class, () -> new MappedFileSeekableRingBuffer(10, 16, null));
+    }
+}
@@ -0,0 +1,25 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetadataRangeTest {
+    @Test
+    public void test() {
+        MetadataRange range = new MetadataRange(1, 5, "song");
+        assertEquals(1, range.getStart());
+        assertEquals(5, range.getEnd());
+        assertEquals("song", range.getMetaData());
+
+        MetadataRange equal = new MetadataRange(1, 5, "song");
+        MetadataRange notEqual = new MetadataRange(1, 6, "song");
+        TestHelpers.EqualsTest(range, equal, notEqual);
+        TestHelpers.HashCodeTest(range, equal);
+        TestHelpers.ToStringTest(range);
+
+        assertNotEquals(range, new MetadataRange(0, 5, "song"));
+        assertNotEquals(range, new MetadataRange(1, 5, "other"));
+    }
+}
@@ -0,0 +1,228 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.audio.stream.Stream;
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapSeekableRingBufferTest extends AbstractBlockingSeekableRingBufferTester {
+    @Override
+    protected SeekableRingBuffer<Chunk> getBlockingSeekableRingBuffer() {
+        return new OffHeapSeekableRingBuffer(10);
+    }
+
+    @Test
+    public void testDataIsCopied() {
+        try (OffHeapSeekableRingBuffer localBuffer = new OffHeapSeekableRingBuffer(10, 5)) {
+            byte[] data = new byte[] { 1, 2, 3 };
+            localBuffer.add(new Chunk(data, "meta", 12345L));
+
+            // changing the array afterwards does not affect the buffer
+            data[0] = 9;
+
+            Chunk chunk = localBuffer.next();
+            assertArrayEquals(new byte[] { 1, 2, 3 }, chunk.getData());
+            assertEquals("meta", chunk.getMetaData());
+            assertEquals(12345L, chunk.getTimestamp());
+        }
+    }
+
+    @Test
+    public void testPeekData() {
+        try (OffHeapSeekableRingBuffer localBuffer = new OffHeapSeekableRingBuffer(10, 5)) {
+            assertNull(localBuffer.peekData());
+
+            localBuffer.add(new Chunk(new byte[] { 1, 2, 3 }, "", 0));
+            localBuffer.add(new Chunk(new byte[] { 4, 5, 6, 7, 8 }, "", 0));
+
+            ByteBuffer data = localBuffer.peekData();
+            assertNotNull(data);
+            assertTrue(data.isReadOnly());
+            assertEquals(3, data.remaining());
+            assertEquals(1, data.get(0));
+            assertEquals(3, data.get(2));
+            assertThrows(ReadOnlyBufferException.class, () -> data.put(0, (byte) 1));
+
+            assertEquals(1, localBuffer.seek(1));
+
+            ByteBuffer data2 = localBuffer.peekData();
+            assertNotNull(data2);
+            assertEquals(5, data2.remaining());
+            assertEquals(4, data2.get(0));
+
+            localBuffer.close();
+            assertNull(localBuffer.peekData());
+        }
+    }
+
+    @Test
+    public void testChunkLargerThanSlot() throws IOException {
+        try (OffHeapSeekableRingBuffer localBuffer = new OffHeapSeekableRingBuffer(5, 5)) {
+            byte[] data = new byte[] { 1, 2, 3, 4, 5, 6 };
+            localBuffer.add(new Chunk(data, "large", 1));
+            localBuffer.addAll(new Chunk[] { new Chunk(new byte[] { 7 }, "", 2), new Chunk(new byte[8], "", 3) }, 0, 2);
+
+            // changing the array afterwards does not affect the buffer
+            data[0] = 9;
+
+            assertEquals(3, localBuffer.size());
+
+            Chunk chunk = localBuffer.next();
+            assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, chunk.getData());
+            assertEquals(6, chunk.size());
+            assertEquals(6, chunk.asByteBuffer().remaining());
+            assertEquals("large", chunk.getMetaData());
+            assertEquals(1, chunk.getTimestamp());
+
+            assertArrayEquals(new byte[] { 7 }, localBuffer.next().getData());
+            assertEquals(8, localBuffer.next().size());
+
+            // overwriting the large chunks with small ones
+            for (byte i = 0; i < 4; i++) {
+                localBuffer.add(new Chunk(new byte[] { i }, "", i));
+            }
+            for (byte i = 0; i < 4; i++) {
+                assertArrayEquals(new byte[] { i }, localBuffer.next().getData());
+            }
+
+            // large chunks are persisted as well
+            localBuffer.add(new Chunk(new byte[20], "", 0));
+            try (OffHeapSeekableRingBuffer back = OffHeapSeekableRingBuffer.fromPersistence(
+                    localBuffer.toPersistence(new Stream(), false, false, 0))) {
+                assertEquals(20, back.next().size());
+            }
+        }
+    }
+
+    @Test
+    public void testNextDoesNotCopy() {
+        try (OffHeapSeekableRingBuffer localBuffer = new OffHeapSeekableRingBuffer(3, 5)) {
+            localBuffer.add(new Chunk(new byte[] { 1, 2, 3 }, "meta", 1));
+
+            Chunk peeked = localBuffer.peek();
+            Chunk chunk = localBuffer.next();
+            assertSame(peeked, chunk);
+            assertEquals(3, chunk.size());
+            assertEquals("meta", chunk.getMetaData());
+
+            ByteBuffer data = chunk.asByteBuffer();
+            assertTrue(data.isDirect());
+            assertTrue(data.isReadOnly());
+            assertEquals(3, data.remaining());
+            assertEquals(2, data.get(1));
+
+            assertEquals(new Chunk(new byte[] { 1, 2, 3 }, "", 0), chunk);
+            assertEquals(new Chunk(new byte[] { 1, 2, 3 }, "", 0).hashCode(), chunk.hashCode());
+            TestHelpers.ToStringTest(chunk);
+        }
+    }
+
+    @Test
+    public void testChunkKeepsDataWhenSlotIsOverwritten() {
+        try (OffHeapSeekableRingBuffer localBuffer = new OffHeapSeekableRingBuffer(3, 5)) {
+            localBuffer.add(new Chunk(new byte[] { 1, 2, 3 }, "meta", 1));
+            Chunk chunk = localBuffer.next();
+
+            // overwrite the slot of the chunk
+            for (byte i = 0; i < 3; i++) {
+                localBuffer.add(new Chunk(new byte[] { i, i }, "", i));
+            }
+
+            assertArrayEquals(new byte[] { 1, 2, 3 }, chunk.getData());
+            ByteBuffer data = chunk.asByteBuffer();
+            assertFalse(data.isDirect());
+            assertEquals(3, data.remaining());
+            assertEquals(1, data.get(0));
+
+            // the new data is provided for the slots
+            assertArrayEquals(new byte[] { 1, 1 }, localBuffer.next().getData());
+            assertArrayEquals(new byte[] { 2, 2 }, localBuffer.next().getData());
+        }
+    }
+
+    @Test
+    public void testInvalidConstructor() {
+        //noinspection resource
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapSeekableRingBuffer(0));
+        //noinspection resource
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapSeekableRingBuffer(10, 0));
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        try (OffHeapSeekableRingBuffer localBuffer = new OffHeapSeekableRingBuffer(10)) {
+            for (byte i = 0; i < 15; i++) {
+                localBuffer.add(new Chunk(new byte[]{i}, "meta" + i, i));
+            }
+
+            Stream stream = new Stream();
+            stream.setUrl("url1");
+            stream.setStreamType(Stream.StreamType.live);
+
+            final BufferPersistenceDTO dto = localBuffer.toPersistence(stream, false, false, 927834);
+            assertNotNull(dto);
+            assertEquals(6, dto.getNextGet());
+            assertEquals(5, dto.getNextAdd());
+            assertEquals(9, dto.getFill());
+            assertEquals(10, dto.getBuffer().length);
+            assertEquals(927834, dto.getChunkCount());
+
+            final Chunk next = localBuffer.next();
+            assertEquals(new Chunk(new byte[]{6}, "", 0), next);
+
+            try (OffHeapSeekableRingBuffer back = OffHeapSeekableRingBuffer.fromPersistence(dto)) {
+                assertEquals(9, back.fill());
+                assertEquals(9, back.size());
+
+                Chunk chunk = back.next();
+                assertEquals(next, chunk);
+                assertEquals("meta6", chunk.getMetaData());
+                assertEquals(6, chunk.getTimestamp());
+                assertEquals(9, back.metadataRanges().size());
+                assertEquals(new MetadataRange(0, 1, "meta6"), back.metadataRanges().get(0));
+                TestHelpers.ToStringTest(back);
+            }
+        }
+    }
+
+    @Test
+    public void testBufferedBackwardNotNegative() throws IOException {
+        Chunk[] chunks = new Chunk[10];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk(new byte[] { (byte) i }, "", i);
+        }
+
+        // more unread chunks than the fill reports
+        final BufferPersistenceDTO dto = BufferPersistenceDTO.builder().
+                buffer(chunks, 0, 5, 3).
+                stream(new Stream(), false, false).
+                build();
+        try (OffHeapSeekableRingBuffer back = OffHeapSeekableRingBuffer.fromPersistence(dto)) {
+            assertEquals(5, back.size());
+            assertEquals(3, back.fill());
+            assertEquals(0, back.bufferedBackward());
+        }
+
+        try (OffHeapSeekableRingBuffer localBuffer = new OffHeapSeekableRingBuffer(5, 5)) {
+            for (int i = 0; i < 12; i++) {
+                localBuffer.add(new Chunk(new byte[] { (byte) i }, "", i));
+                assertTrue(localBuffer.bufferedBackward() >= 0, "After " + i);
+            }
+            assertEquals(0, localBuffer.bufferedBackward());
+        }
+    }
+
+    @Test
+    public void testFromPersistenceWithoutBuffer() {
+        final BufferPersistenceDTO dto = BufferPersistenceDTO.builder().
+                buffer(null, 0, 0, 0).
+                stream(new Stream(), false, false).
+                build();
+        assertThrows(IOException.class, () -> OffHeapSeekableRingBuffer.fromPersistence(dto));
+    }
+}
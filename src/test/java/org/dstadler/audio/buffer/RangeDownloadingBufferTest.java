@@ -1,5 +1,6 @@
 package org.dstadler.audio.buffer;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.dstadler.audio.stream.Stream;
@@ -10,6 +11,7 @@ import org.dstadler.commons.testing.MockRESTServer;
 import org.dstadler.commons.testing.TestHelpers;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 
@@ -17,6 +19,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.logging.Logger;
@@ -306,6 +310,11 @@ public class RangeDownloadingBufferTest {
 
             assertThrows(IllegalStateException.class,
                     () -> buffer.next());
+
+            Map<String, Number> metrics = buffer.getMetrics();
+            assertEquals(18L, metrics.get("retries"));
+            assertEquals(2L, metrics.get("failures"));
+            assertEquals(0L, metrics.get("downloadedChunks"));
         }
     }
 
@@ -428,6 +437,29 @@ public class RangeDownloadingBufferTest {
         }
     }
 
+    @MethodSource("data")
+    @ParameterizedTest(name = "Sample: {0}, Chunks: {1}, Size: {2}/{3}, Meta: {4}")
+    public void testSeekToFraction(String sample, int expectedChunks, int fileSize, int ignoredFileSize2, Pair<String, Long> metaData) {
+        setUp(sample, metaData);
+        if (fileSize == 0) {
+            assertEquals(0, buffer.seekToFraction(0.5));
+            assertEquals(0, buffer.size());
+            return;
+        }
+
+        assertNotNull(buffer.next());
+        assertEquals(expectedChunks - 1, buffer.size());
+
+        assertEquals(expectedChunks / 2 - 1, buffer.seekToFraction(0.5));
+        assertEquals(expectedChunks - expectedChunks / 2, buffer.size());
+
+        assertEquals(-(expectedChunks / 2), buffer.seekToFraction(0));
+        assertEquals(expectedChunks, buffer.size());
+
+        assertEquals(expectedChunks, buffer.seekTo(expectedChunks));
+        assertEquals(0, buffer.size());
+    }
+
     @MethodSource("data")
     @ParameterizedTest(name = "Sample: {0}, Chunks: {1}, Size: {2}/{3}, Meta: {4}")
     public void addFails(String sample, int ignoredExpectedChunks, int ignoredFileSize, int ignoredFileSize2, Pair<String, Long> metaData) {
@@ -608,4 +640,95 @@ public class RangeDownloadingBufferTest {
         }
         assertTrue(buffer.empty(), "Should be at the end now");
     }
+
+    @MethodSource("data")
+    @ParameterizedTest(name = "Sample: {0}, Chunks: {1}, Size: {2}/{3}, Meta: {4}")
+    public void testMetrics(String sample, int expectedChunks, int fileSize, int ignoredFileSize2, Pair<String, Long> metaData) throws IOException {
+        setUp(sample, metaData);
+        Map<String, Number> metrics = buffer.getMetrics();
+        assertEquals(expectedChunks, metrics.get("size"));
+        assertEquals(0L, metrics.get("downloadPosition"));
+        assertEquals(fileSize == 0, metrics.get("downloadLength").longValue() == 0);
+        assertEquals(0L, metrics.get("downloadCount"));
+        assertEquals(0.0, metrics.get("downloadBytesPerSecond"));
+
+        int chunks = buffer.fillupBuffer(-1, 5);
+        assertEquals(fileSize == 0 ? 0 : 5, chunks);
+
+        metrics = buffer.getMetrics();
+        assertEquals((long) chunks, metrics.get("downloadedChunks"));
+        assertEquals((long) chunks * CHUNK_SIZE, metrics.get("downloadedBytes"));
+        assertEquals((long) chunks * CHUNK_SIZE, metrics.get("downloadPosition"));
+        assertEquals(fileSize == 0 ? 0L : 1L, metrics.get("downloadCount"));
+        assertEquals(0L, metrics.get("retries"));
+        assertEquals(0L, metrics.get("restarts"));
+        assertEquals(0L, metrics.get("failures"));
+        assertEquals(chunks, metrics.get("bufferedForward"));
+        assertEquals(0L, metrics.get("underruns"));
+
+        // reading the downloaded chunks does not wait
+        for (int i = 0; i < chunks; i++) {
+            assertNotNull(buffer.next());
+        }
+        assertEquals(0, buffer.getLatencyStats().getUnderruns());
+
+        // reading more needs to download synchronously
+        if (fileSize > 0) {
+            assertNotNull(buffer.next());
+            assertEquals(1, buffer.getLatencyStats().getUnderruns());
+            assertEquals(1, buffer.getLatencyStats().getInterArrival().getCount());
+        }
+    }
+
+    @Test
+    public void testPositionOf() throws IOException {
+        // one second per chunk, computed from the percentage of the position
+        buffer = new RangeDownloadingBuffer(SAMPLE_FILE, "", null, 10, CHUNK_SIZE,
+                p -> Pair.of("", Math.round(p * 587241 / CHUNK_SIZE) * 1000));
+
+        assertEquals(0, buffer.positionOf(-1));
+        assertEquals(0, buffer.positionOf(0));
+        assertEquals(5, buffer.positionOf(5500));
+        assertEquals(35, buffer.positionOf(35000));
+        assertEquals(35, buffer.positionOf(Long.MAX_VALUE));
+
+        // looking up positions does not download anything
+        assertEquals(0L, buffer.getMetrics().get("downloadedBytes"));
+
+        assertEquals(10, buffer.seekToTimestamp(10000));
+        byte[] expected = Arrays.copyOfRange(FileUtils.readFileToByteArray(new File(SAMPLE_FILE)),
+                10 * CHUNK_SIZE, 11 * CHUNK_SIZE);
+        assertArrayEquals(expected, buffer.next().getData());
+
+        assertEquals(-11, buffer.seekToTimestamp(0));
+        assertEquals(0, buffer.fill() - buffer.size());
+    }
+
+    @Test
+    public void testMetadata() throws IOException {
+        // three songs, computed from the percentage of the position
+        buffer = new RangeDownloadingBuffer(SAMPLE_FILE, "", null, 10, CHUNK_SIZE, p -> {
+            long position = Math.round(p * 587241 / CHUNK_SIZE);
+            return Pair.of(position < 10 ? "A" : position < 25 ? "B" : "C", 0L);
+        });
+
+        assertEquals(List.of(new MetadataRange(0, 10, "A"), new MetadataRange(10, 25, "B"),
+                new MetadataRange(25, 36, "C")), buffer.metadataRanges());
+        assertEquals(0, buffer.seekToPreviousMetadataChange(), "At start of file");
+
+        assertEquals(10, buffer.seekToNextMetadataChange());
+        byte[] expected = Arrays.copyOfRange(FileUtils.readFileToByteArray(new File(SAMPLE_FILE)),
+                10 * CHUNK_SIZE, 11 * CHUNK_SIZE);
+        assertArrayEquals(expected, buffer.next().getData());
+
+        // first go to the start of the current song, then to the previous one
+        assertEquals(-1, buffer.seekToPreviousMetadataChange());
+        assertEquals(-10, buffer.seekToPreviousMetadataChange());
+        assertEquals(0, buffer.seekToPreviousMetadataChange());
+
+        assertEquals(10, buffer.seekToNextMetadataChange());
+        assertEquals(15, buffer.seekToNextMetadataChange());
+        assertEquals(0, buffer.seekToNextMetadataChange(), "No more changes");
+        assertEquals(25, buffer.fill() - buffer.size());
+    }
 }
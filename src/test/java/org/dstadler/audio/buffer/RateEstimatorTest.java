@@ -0,0 +1,198 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+import org.dstadler.commons.metrics.MovingAverage;
+import org.dstadler.commons.testing.TestHelpers;
+import org.dstadler.commons.testing.ThreadTestHelper;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateEstimatorTest {
+    private final static Logger log = LoggerFactory.make();
+
+    /**
+     * The previous implementation which walked the whole window for every query
+     */
+    private static double computeWithMovingAverage(MovingAverage chunksPerSecond) {
+        if(chunksPerSecond.getFill() == 0) {
+            return 0;
+        }
+
+        long durationAdjust = 0;
+        long countAdjust = 0;
+        long[] window = chunksPerSecond.getWindow();
+        long prevValue = window[0];
+        for (long value : window) {
+            if(value - prevValue >= 5000) {
+                durationAdjust += (value - prevValue);
+                countAdjust++;
+            }
+            prevValue = value;
+        }
+
+        double durationInSec = ((double) chunksPerSecond.getLast() - chunksPerSecond.getFirst() - durationAdjust)/1000;
+        return (chunksPerSecond.getFill() - countAdjust) / durationInSec;
+    }
+
+    @Test
+    public void testEmpty() {
+        RateEstimator estimator = new RateEstimator(10);
+        assertEquals(0, estimator.getPerSecond(), 0);
+
+        estimator.add(1000);
+        assertTrue(Double.isInfinite(estimator.getPerSecond()));
+
+        TestHelpers.ToStringTest(estimator);
+    }
+
+    @Test
+    public void testRate() {
+        RateEstimator estimator = new RateEstimator(5);
+        for (int i = 0; i < 5; i++) {
+            estimator.add(i * 250L);
+        }
+        assertEquals(5.0, estimator.getPerSecond(), 0.0001);
+
+        // the window moves on to a slower rate
+        for (int i = 0; i < 5; i++) {
+            estimator.add(2000 + i * 1000L);
+        }
+        assertEquals(1.25, estimator.getPerSecond(), 0.0001);
+    }
+
+    @Test
+    public void testGapLeavesWindow() {
+        RateEstimator estimator = new RateEstimator(3);
+        estimator.add(0);
+        estimator.add(10000);
+        estimator.add(11000);
+
+        // one gap of 10 seconds is excluded
+        assertEquals(2.0, estimator.getPerSecond(), 0.0001);
+
+        // the gap is now before the oldest timestamp in the window
+        estimator.add(12000);
+        assertEquals(1.5, estimator.getPerSecond(), 0.0001);
+
+        estimator.add(13000);
+        assertEquals(1.5, estimator.getPerSecond(), 0.0001);
+    }
+
+    @Test
+    public void testWindowOfOne() {
+        RateEstimator estimator = new RateEstimator(1);
+        estimator.add(0);
+        estimator.add(10000);
+        assertTrue(Double.isInfinite(estimator.getPerSecond()));
+    }
+
+    @Test
+    public void testSameAsMovingAverage() {
+        Random random = new Random(2342);
+        for (int window : new int[] { 1, 2, 7, 50, 300 }) {
+            RateEstimator estimator = new RateEstimator(window);
+            MovingAverage average = new MovingAverage(window);
+
+            long timestamp = 1_000_000;
+            for (int i = 0; i < 5000; i++) {
+                // mostly regular intervals, some large gaps and some jumps back in time
+                int kind = random.nextInt(100);
+                if (kind < 3) {
+                    timestamp += 5000 + random.nextInt(60000);
+                } else if (kind < 5) {
+                    timestamp -= random.nextInt(10000);
+                } else if (kind < 6) {
+                    timestamp += 5000;
+                } else {
+                    timestamp += random.nextInt(1000);
+                }
+
+                estimator.add(timestamp);
+                average.add(timestamp);
+
+                assertEquals(computeWithMovingAverage(average), estimator.getPerSecond(), 0.000001,
+                        "At " + i + " with window " + window + ": " + estimator);
+            }
+        }
+    }
+
+    @Test
+    public void testThreaded() throws Throwable {
+        RateEstimator estimator = new RateEstimator(50);
+
+        ThreadTestHelper helper = new ThreadTestHelper(10, 10000);
+        helper.executeTest(new ThreadTestHelper.TestRunnable() {
+            @Override
+            public void doEnd(int threadNum) {
+                // nothing to do
+            }
+
+            @Override
+            public void run(int threadNum, int iter) {
+                if (iter % 2 == 0) {
+                    double perSecond = estimator.getPerSecond();
+                    assertFalse(Double.isNaN(perSecond), "Had: " + perSecond);
+                } else {
+                    estimator.add(iter * 10L + (iter % 1000 == 1 ? 10000 : 0));
+                }
+            }
+        });
+
+        // after concurrent updates the running values match the window again
+        for (int i = 0; i < 50; i++) {
+            estimator.add(1_000_000 + i * 500L);
+        }
+        assertEquals(2.0408163, estimator.getPerSecond(), 0.0001, "Had: " + estimator);
+    }
+
+    @Test
+    public void testInvalidWindow() {
+        assertThrows(IllegalArgumentException.class, () -> new RateEstimator(0));
+    }
+
+    @Test
+    void testMicroBenchmark() {
+        // a simple comparison with the previous implementation, which
+        // synchronized on a MovingAverage and walked the whole window
+        // for every query, both add and query like the tempo-strategy does
+        final int window = 300;
+        final int iterations = 2_000_000;
+
+        for (int run = 0; run < 3; run++) {
+            MovingAverage average = new MovingAverage(window);
+            double sum = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                synchronized (average) {
+                    average.add(i * 26L);
+                }
+                if (i % 10 == 0) {
+                    synchronized (average) {
+                        sum += computeWithMovingAverage(average);
+                    }
+                }
+            }
+            long movingAverageTime = System.nanoTime() - start;
+
+            RateEstimator estimator = new RateEstimator(window);
+            double sumEstimator = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                estimator.add(i * 26L);
+                if (i % 10 == 0) {
+                    sumEstimator += estimator.getPerSecond();
+                }
+            }
+            long estimatorTime = System.nanoTime() - start;
+
+            assertEquals(sum, sumEstimator, sum / 1_000_000);
+
+            log.info("Run " + run + ": MovingAverage: " + (movingAverageTime / iterations) + "ns per chunk, " +
+                    "RateEstimator: " + (estimatorTime / iterations) + "ns per chunk");
+        }
+    }
+}
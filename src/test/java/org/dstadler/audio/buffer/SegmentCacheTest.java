@@ -0,0 +1,138 @@
+package org.dstadler.audio.buffer;
+
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentCacheTest {
+    private static Chunk[] segment(int value, int bytes) {
+        return new Chunk[] { new Chunk(new byte[bytes], "meta" + value, value) };
+    }
+
+    @Test
+    public void testDisabled() {
+        SegmentCache cache = new SegmentCache();
+
+        cache.putRead(0, segment(0, 1), cache.stamp());
+        cache.putWritten(10, segment(10, 1), false);
+
+        assertNull(cache.get(0));
+        assertNull(cache.get(10));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        TestHelpers.ToStringTest(cache);
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() {
+        SegmentCache cache = new SegmentCache();
+        cache.setLimits(2, Long.MAX_VALUE);
+
+        cache.putRead(0, segment(0, 1), cache.stamp());
+        cache.putRead(10, segment(10, 1), cache.stamp());
+
+        // access the first one so the second one is evicted
+        assertNotNull(cache.get(0));
+        cache.putRead(20, segment(20, 1), cache.stamp());
+
+        assertEquals("meta0", cache.get(0)[0].getMetaData());
+        assertNull(cache.get(10));
+        assertEquals("meta20", cache.get(20)[0].getMetaData());
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // reducing the limit evicts more
+        cache.setLimits(1, Long.MAX_VALUE);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(20));
+    }
+
+    @Test
+    public void testBytes() {
+        SegmentCache cache = new SegmentCache();
+        cache.setLimits(10, 100);
+
+        cache.putRead(0, segment(0, 60), cache.stamp());
+        cache.putRead(10, segment(10, 30), cache.stamp());
+        assertEquals(90, cache.getBytes());
+
+        cache.putRead(20, segment(20, 30), cache.stamp());
+        assertEquals(60, cache.getBytes());
+        assertNull(cache.get(0));
+
+        // replacing a segment updates the bytes
+        cache.putWritten(10, segment(10, 10), false);
+        assertEquals(40, cache.getBytes());
+    }
+
+    @Test
+    public void testCopy() {
+        SegmentCache cache = new SegmentCache();
+        cache.setLimits(1, Long.MAX_VALUE);
+
+        cache.putRead(0, segment(0, 1), cache.stamp());
+
+        Chunk[] chunks = cache.get(0);
+        chunks[0] = null;
+
+        assertNotNull(cache.get(0)[0]);
+    }
+
+    @Test
+    public void testDirty() {
+        SegmentCache cache = new SegmentCache();
+
+        Chunk[] dirty = segment(0, 1);
+        cache.putWritten(0, dirty, true);
+
+        // dirty segments are kept even if caching is disabled
+        assertEquals("meta0", cache.get(0)[0].getMetaData());
+        assertEquals(1, cache.getDirty());
+
+        // only the instance which was added is marked clean
+        cache.markClean(0, segment(0, 1));
+        assertEquals(1, cache.getDirty());
+        assertNotNull(cache.get(0));
+
+        cache.markClean(0, dirty);
+        assertEquals(0, cache.getDirty());
+        assertNull(cache.get(0));
+        assertEquals(0, cache.getBytes());
+
+        // marking a segment which is not cached does nothing
+        cache.markClean(10, dirty);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testReadDoesNotReplaceWrittenData() {
+        SegmentCache cache = new SegmentCache();
+        cache.setLimits(10, Long.MAX_VALUE);
+
+        // a segment is written while it is read from disk
+        long stamp = cache.stamp();
+        cache.putWritten(0, segment(1, 1), false);
+        cache.putRead(0, segment(0, 1), stamp);
+        assertEquals("meta1", cache.get(0)[0].getMetaData());
+
+        // also when written to another segment, as it might have been evicted already
+        cache.putRead(10, segment(10, 1), stamp);
+        assertNull(cache.get(10));
+
+        // existing segments are not replaced by a read
+        cache.putRead(0, segment(0, 1), cache.stamp());
+        assertEquals("meta1", cache.get(0)[0].getMetaData());
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        SegmentCache cache = new SegmentCache();
+
+        assertThrows(IllegalArgumentException.class, () -> cache.setLimits(-1, 0));
+        assertThrows(IllegalArgumentException.class, () -> cache.setLimits(0, -1));
+    }
+}
@@ -0,0 +1,203 @@
+package org.dstadler.audio.buffer;
+
+import org.apache.commons.io.FileUtils;
+import org.dstadler.audio.stream.Stream;
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentRecoveryTest {
+    private File dir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("SegmentRecovery").toFile();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * 100 chunks in 10 files, chunks 1 to 45 are available
+     */
+    private BufferPersistenceDTO createBuffer() throws IOException {
+        try (DiskBasedBlockingSeekableRingBuffer buffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+            for (int i = 1; i <= 45; i++) {
+                buffer.add(new Chunk(new byte[] {(byte) i}, "meta" + i, i));
+            }
+
+            return buffer.toPersistence(new Stream(), false, false, 0);
+        }
+    }
+
+    private File file(int position, String extension) {
+        return new File(dir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + position + extension);
+    }
+
+    @Test
+    public void testValid() throws IOException {
+        BufferPersistenceDTO dto = createBuffer();
+        assertTrue(file(0, ".crc").exists());
+
+        SegmentRecovery.Result result = SegmentRecovery.recover(dto, 4);
+        assertTrue(result.isValid());
+        assertSame(dto, result.getDTO());
+        assertEquals(10, result.getFiles());
+        assertEquals(Collections.emptyList(), result.getQuarantined());
+        assertEquals(Collections.emptyList(), result.getRepaired());
+        assertEquals(1, result.getOldestTimestamp());
+        assertEquals(45, result.getNewestTimestamp());
+        TestHelpers.ToStringTest(result);
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        BufferPersistenceDTO dto = createBuffer();
+        try (RandomAccessFile raf = new RandomAccessFile(file(10, ".bson"), "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        SegmentRecovery.Result result = SegmentRecovery.recover(dto, 4);
+        assertFalse(result.isValid());
+        assertEquals(List.of(10), result.getQuarantined());
+        assertEquals(1, result.getOldestTimestamp());
+        assertEquals(45, result.getNewestTimestamp());
+        assertFalse(file(10, ".bson").exists());
+        assertFalse(file(10, ".crc").exists());
+        assertEquals(2, new File(dir, SegmentRecovery.QUARANTINE_DIR).list().length);
+
+        // the indexes are read from the files again
+        assertNull(result.getDTO().getTimestamps());
+        assertEquals(dto.getNextAdd(), result.getDTO().getNextAdd());
+
+        try (DiskBasedBlockingSeekableRingBuffer buffer = DiskBasedBlockingSeekableRingBuffer.fromPersistence(result.getDTO())) {
+            assertEquals(45, buffer.size());
+            for (int i = 1; i <= 45; i++) {
+                Chunk chunk = buffer.next();
+                if (i > 10 && i <= 20) {
+                    // the chunks of the quarantined file are empty
+                    assertEquals(0, chunk.getData().length, "At " + i);
+                } else {
+                    assertEquals(i, chunk.getTimestamp(), "At " + i);
+                }
+            }
+        }
+
+        // the next run does not find problems
+        assertTrue(SegmentRecovery.recover(result.getDTO(), 1).isValid());
+    }
+
+    @Test
+    public void testFirstFileLost() throws IOException {
+        BufferPersistenceDTO dto = createBuffer();
+        try (RandomAccessFile raf = new RandomAccessFile(file(0, ".bson"), "rw")) {
+            raf.setLength(3);
+        }
+
+        SegmentRecovery.Result result = SegmentRecovery.recover(dto, 2);
+        assertEquals(List.of(0), result.getQuarantined());
+
+        // the valid time-range starts at the next file
+        assertEquals(11, result.getOldestTimestamp());
+        assertEquals(45, result.getNewestTimestamp());
+    }
+
+    @Test
+    public void testOutdatedChecksum() throws IOException {
+        BufferPersistenceDTO dto = createBuffer();
+        long length = file(20, ".crc").length();
+        SegmentRecovery.writeChecksum(dir, 20, 1234, 5678, false);
+        assertTrue(file(30, ".crc").delete());
+
+        // the files are valid, so only the checksums are written again
+        SegmentRecovery.Result result = SegmentRecovery.recover(dto, 3);
+        assertTrue(result.isValid(), "Had: " + result);
+        assertEquals(length, file(20, ".crc").length());
+        assertTrue(file(30, ".crc").exists());
+    }
+
+    @Test
+    public void testCorruptedContent() throws IOException {
+        BufferPersistenceDTO dto = createBuffer();
+        try (RandomAccessFile raf = new RandomAccessFile(file(20, ".bson"), "rw")) {
+            raf.seek(0);
+            raf.writeInt(-1);
+            raf.writeInt(-1);
+        }
+
+        SegmentRecovery.Result result = SegmentRecovery.recover(dto, 3);
+        assertEquals(List.of(20), result.getQuarantined(), "Had: " + result);
+    }
+
+    @Test
+    public void testDeltaFile() throws IOException {
+        File deltaFile = file(40, ".delta");
+        BufferPersistenceDTO dto;
+        try (DiskBasedBlockingSeekableRingBuffer buffer = new DiskBasedBlockingSeekableRingBuffer(100, 10, dir)) {
+            for (int i = 1; i <= 45; i++) {
+                buffer.add(new Chunk(new byte[] {(byte) i}, "meta" + i, i));
+            }
+            buffer.toPersistence(new Stream(), false, false, 0);
+
+            buffer.add(new Chunk(new byte[] {46}, "meta46", 46));
+            buffer.add(new Chunk(new byte[] {47}, "meta47", 47));
+            dto = buffer.toPersistence(new Stream(), false, false, 0);
+        }
+        assertTrue(deltaFile.exists());
+        long length = deltaFile.length();
+
+        // an entry with an invalid slot and an incomplete entry
+        try (RandomAccessFile raf = new RandomAccessFile(deltaFile, "rw")) {
+            raf.seek(length);
+            raf.writeInt(1000);
+            raf.writeLong(48);
+            raf.writeInt(0);
+            raf.writeInt(0);
+            raf.writeInt(8);
+        }
+
+        SegmentRecovery.Result result = SegmentRecovery.recover(dto, 2);
+        assertEquals(List.of(40), result.getRepaired());
+        assertEquals(Collections.emptyList(), result.getQuarantined());
+        assertEquals(47, result.getNewestTimestamp());
+        assertEquals(length, deltaFile.length());
+
+        // the chunks of the delta-file are kept when the file itself is lost
+        try (RandomAccessFile raf = new RandomAccessFile(file(40, ".bson"), "rw")) {
+            raf.setLength(10);
+        }
+        result = SegmentRecovery.recover(dto, 2);
+        assertEquals(List.of(40), result.getQuarantined());
+        assertEquals(47, result.getNewestTimestamp());
+
+        try (DiskBasedBlockingSeekableRingBuffer buffer = DiskBasedBlockingSeekableRingBuffer.fromPersistence(result.getDTO())) {
+            assertEquals(47, buffer.size());
+            for (int i = 1; i <= 47; i++) {
+                Chunk chunk = buffer.next();
+                if (i > 40 && i <= 45) {
+                    assertEquals(0, chunk.getData().length, "At " + i);
+                } else {
+                    assertEquals(i, chunk.getTimestamp(), "At " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(IOException.class, () -> SegmentRecovery.recover(BufferPersistenceDTO.builder().build(), 1));
+        assertThrows(IllegalArgumentException.class, () -> SegmentRecovery.recover(BufferPersistenceDTO.builder().build(), 0));
+    }
+}
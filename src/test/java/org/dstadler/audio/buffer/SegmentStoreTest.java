@@ -0,0 +1,185 @@
+package org.dstadler.audio.buffer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentStoreTest {
+    private File dir;
+    private SegmentStore store;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("SegmentStore").toFile();
+
+        // 10 chunks in files of 4 chunks, the last file is shorter
+        store = new SegmentStore(dir, 10, 4);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private File file(int position, String extension) {
+        return new File(dir, DiskBasedBlockingSeekableRingBuffer.FILE_PREFIX + position + extension);
+    }
+
+    private static Chunk[] createBuffer(int start) {
+        Chunk[] buffer = new Chunk[4];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = new Chunk(new byte[] {(byte) (start + i), 1}, "meta" + (start + i), start + i);
+        }
+        return buffer;
+    }
+
+    private static BitSet all(int length) {
+        BitSet dirty = new BitSet();
+        dirty.set(0, length);
+        return dirty;
+    }
+
+    @Test
+    public void testReadMissing() throws IOException {
+        Chunk[] buffer = store.read(0);
+        assertEquals(4, buffer.length);
+        for (Chunk chunk : buffer) {
+            assertEquals(0, chunk.size());
+            assertEquals("", chunk.getMetaData());
+            assertEquals(0, chunk.getTimestamp());
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        store.write(4, createBuffer(4), all(4), false);
+        assertTrue(file(4, ".bson").exists());
+        assertTrue(file(4, ".crc").exists());
+        assertFalse(file(4, ".delta").exists());
+
+        Chunk[] buffer = store.read(4);
+        assertEquals(4, buffer.length);
+        for (int i = 0; i < buffer.length; i++) {
+            assertArrayEquals(new byte[] {(byte) (4 + i), 1}, buffer[i].getData());
+            assertEquals("meta" + (4 + i), buffer[i].getMetaData());
+            assertEquals(4 + i, buffer[i].getTimestamp());
+        }
+    }
+
+    @Test
+    public void testDelta() throws IOException {
+        Chunk[] buffer = createBuffer(0);
+        store.write(0, buffer, all(4), true);
+
+        buffer[2] = new Chunk(new byte[] {22}, "changed", 22);
+        BitSet dirty = new BitSet();
+        dirty.set(2);
+        store.write(0, buffer, dirty, true);
+        assertTrue(file(0, ".delta").exists());
+
+        // a second change of the same position is appended, the last one wins
+        buffer[2] = new Chunk(new byte[] {33}, "changed again", 33);
+        store.write(0, buffer, dirty, false);
+
+        Chunk[] read = store.read(0);
+        assertArrayEquals(new byte[] {0, 1}, read[0].getData());
+        assertArrayEquals(new byte[] {33}, read[2].getData());
+        assertEquals("changed again", read[2].getMetaData());
+        assertEquals(33, read[2].getTimestamp());
+
+        // writing all chunks replaces the delta-file
+        store.write(0, buffer, all(4), false);
+        assertFalse(file(0, ".delta").exists());
+
+        read = store.read(0);
+        assertArrayEquals(new byte[] {33}, read[2].getData());
+        assertEquals("changed again", read[2].getMetaData());
+    }
+
+    @Test
+    public void testFailedWriteKeepsPreviousFiles() throws IOException {
+        Chunk[] buffer = createBuffer(0);
+        store.write(0, buffer, all(4), false);
+
+        buffer[1] = new Chunk(new byte[] {11}, "changed", 11);
+        BitSet dirty = new BitSet();
+        dirty.set(1);
+        store.write(0, buffer, dirty, false);
+        assertTrue(file(0, ".delta").exists());
+
+        // a directory in place of the temporary file lets the next full write fail
+        assertTrue(file(0, ".bson.tmp").mkdir());
+        assertThrows(IOException.class, () -> store.write(0, createBuffer(4), all(4), false));
+
+        // the previous file and its delta-file are still there
+        assertTrue(file(0, ".delta").exists());
+        Chunk[] read = store.read(0);
+        assertArrayEquals(new byte[] {0, 1}, read[0].getData());
+        assertArrayEquals(new byte[] {11}, read[1].getData());
+        assertEquals("changed", read[1].getMetaData());
+
+        assertTrue(file(0, ".bson.tmp").delete());
+        store.write(0, createBuffer(4), all(4), false);
+        assertFalse(file(0, ".delta").exists());
+        assertFalse(file(0, ".bson.tmp").exists());
+        assertEquals("meta5", store.read(0)[1].getMetaData());
+    }
+
+    @Test
+    public void testDeltaWithoutBufferFile() throws IOException {
+        BitSet dirty = new BitSet();
+        dirty.set(1);
+
+        // without a file there is nothing to apply a delta to
+        store.write(0, createBuffer(0), dirty, false);
+        assertTrue(file(0, ".bson").exists());
+        assertFalse(file(0, ".delta").exists());
+    }
+
+    @Test
+    public void testShortLastFile() throws IOException {
+        // only 2 chunks of the last file are used, so writing them is a full write
+        store.write(8, createBuffer(8), all(2), false);
+        assertTrue(file(8, ".bson").exists());
+
+        store.write(8, createBuffer(8), all(2), false);
+        assertFalse(file(8, ".delta").exists());
+    }
+
+    @Test
+    public void testReadIndexes() throws IOException {
+        store.write(0, createBuffer(0), all(4), false);
+        store.write(8, createBuffer(8), all(2), false);
+
+        long[] timestamps = new long[10];
+        String[] metaData = new String[10];
+        int[] lengths = new int[10];
+        store.readIndexes(timestamps, metaData, lengths);
+
+        assertArrayEquals(new long[] {0, 1, 2, 3, 0, 0, 0, 0, 8, 9}, timestamps);
+        assertArrayEquals(new String[] {"meta0", "meta1", "meta2", "meta3", "", "", "", "", "meta8", "meta9"}, metaData);
+        assertArrayEquals(new int[] {2, 2, 2, 2, 0, 0, 0, 0, 2, 2}, lengths);
+    }
+
+    @Test
+    public void testJournal() throws IOException {
+        File journalFile = new File(dir, Journal.FILE_NAME);
+
+        // nothing to delete
+        store.deleteJournal();
+
+        store.openJournal(JournalPolicy.NONE).close();
+        assertTrue(journalFile.exists());
+
+        store.deleteJournal();
+        assertFalse(journalFile.exists());
+    }
+}
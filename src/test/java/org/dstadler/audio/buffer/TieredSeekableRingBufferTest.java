@@ -0,0 +1,162 @@
+package org.dstadler.audio.buffer;
+
+import org.apache.commons.io.FileUtils;
+import org.dstadler.commons.logging.jdk.LoggerFactory;
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TieredSeekableRingBufferTest extends AbstractBlockingSeekableRingBufferTester {
+    private static File DATA_DIR;
+
+    @BeforeAll
+    public static void beforeClass() {
+        LoggerFactory.initLogging();
+    }
+
+    @AfterEach
+    public void tearDownDataDir() throws IOException {
+        // stop the background thread, testMemoryLeaks() closes and unsets the buffer itself
+        if (buffer != null) {
+            buffer.close();
+        }
+
+        FileUtils.deleteDirectory(getDataDir());
+    }
+
+    private static File getDataDir() throws IOException {
+        if (DATA_DIR == null) {
+            DATA_DIR = File.createTempFile("TieredBuffer", ".dir");
+            assertTrue(DATA_DIR.delete());
+        }
+        return DATA_DIR;
+    }
+
+    @Override
+    protected SeekableRingBuffer<Chunk> getBlockingSeekableRingBuffer() {
+        try {
+            return new TieredSeekableRingBuffer(10, 3, 2, getDataDir());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testHotSegmentsStayInMemory() throws IOException {
+        try (TieredSeekableRingBuffer localBuffer = new TieredSeekableRingBuffer(100, 10, 2, getDataDir())) {
+            for (byte i = 0; i < 20; i++) {
+                localBuffer.add(new Chunk(new byte[] { i }, "", 0));
+            }
+            localBuffer.flush();
+
+            assertEquals(2, localBuffer.getSegmentsInMemory());
+            assertFalse(new File(getDataDir(), TieredSeekableRingBuffer.FILE_PREFIX + "0.bson").exists(),
+                    "Nothing should be written while all segments are hot");
+
+            // entering the third segment writes the first one to disk
+            localBuffer.add(new Chunk(new byte[] { 20 }, "", 0));
+            localBuffer.flush();
+
+            assertEquals(2, localBuffer.getSegmentsInMemory());
+            assertTrue(new File(getDataDir(), TieredSeekableRingBuffer.FILE_PREFIX + "0.bson").exists());
+
+            TestHelpers.ToStringTest(localBuffer);
+        }
+    }
+
+    @Test
+    public void testSeekBackReadsFromDisk() throws IOException {
+        try (TieredSeekableRingBuffer localBuffer = new TieredSeekableRingBuffer(100, 10, 2, getDataDir())) {
+            for (byte i = 0; i < 99; i++) {
+                localBuffer.add(new Chunk(new byte[] { i }, "meta" + (i / 30), i * 1000L));
+                assertEquals(i, localBuffer.next().getData()[0]);
+            }
+            localBuffer.flush();
+
+            assertEquals(2, localBuffer.getSegmentsInMemory());
+            assertEquals(99, localBuffer.fill());
+
+            // seeking back pages in the segments from disk
+            assertEquals(-99, localBuffer.seekTo(0));
+            for (byte i = 0; i < 99; i++) {
+                Chunk chunk = localBuffer.next();
+                assertEquals(i, chunk.getData()[0]);
+                assertEquals("meta" + (i / 30), chunk.getMetaData());
+                assertEquals(i * 1000L, chunk.getTimestamp());
+            }
+            assertTrue(localBuffer.empty());
+
+            // the indexes are kept in memory
+            assertEquals(4, localBuffer.metadataRanges().size());
+            assertEquals(-55, localBuffer.seekToTimestamp(44500));
+            assertEquals(44, localBuffer.peek().getData()[0]);
+        }
+    }
+
+    @Test
+    public void testWrapAround() throws IOException {
+        try (TieredSeekableRingBuffer localBuffer = new TieredSeekableRingBuffer(100, 10, 3, getDataDir())) {
+            for (int i = 0; i < 250; i++) {
+                localBuffer.add(new Chunk(new byte[] { (byte) i }, "", 0));
+                if (i % 25 == 0) {
+                    localBuffer.flush();
+                }
+            }
+            localBuffer.flush();
+
+            assertEquals(3, localBuffer.getSegmentsInMemory());
+            assertTrue(localBuffer.full());
+
+            // the oldest chunks are in segments which were written to disk and
+            // read back when the writer entered them again
+            for (int i = 151; i < 250; i++) {
+                assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i);
+            }
+            assertTrue(localBuffer.empty());
+        }
+    }
+
+    @Test
+    public void testWrapAroundMidSegment() throws IOException {
+        try (TieredSeekableRingBuffer localBuffer = new TieredSeekableRingBuffer(100, 10, 3, getDataDir())) {
+            for (int i = 0; i < 245; i++) {
+                localBuffer.add(new Chunk(new byte[] { (byte) i }, "", 0));
+                if (i % 25 == 0) {
+                    localBuffer.flush();
+                }
+            }
+            localBuffer.flush();
+
+            assertTrue(localBuffer.full());
+
+            // the writer stopped in the middle of a segment which was written
+            // to disk before, the rest of it still holds the oldest chunks
+            for (int i = 146; i < 245; i++) {
+                assertEquals((byte) i, localBuffer.next().getData()[0], "Failed at " + i);
+            }
+            assertTrue(localBuffer.empty());
+        }
+    }
+
+    @Test
+    public void testInvalidConstructor() throws IOException {
+        File dataDir = getDataDir();
+
+        //noinspection resource
+        assertThrows(IllegalArgumentException.class, () -> new TieredSeekableRingBuffer(1, 1, 1, dataDir));
+        //noinspection resource
+        assertThrows(IllegalArgumentException.class, () -> new TieredSeekableRingBuffer(10, 10, 1, dataDir));
+        //noinspection resource
+        assertThrows(IllegalArgumentException.class, () -> new TieredSeekableRingBuffer(10, 0, 1, dataDir));
+        //noinspection resource
+        assertThrows(IllegalArgumentException.class, () -> new TieredSeekableRingBuffer(10, 3, 0, dataDir));
+        //noinspection resource
+        assertThrows(NullPointerException.class, () -> new TieredSeekableRingBuffer(10, 3, 1, null));
+    }
+}
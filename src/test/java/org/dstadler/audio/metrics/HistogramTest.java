@@ -0,0 +1,97 @@
+package org.dstadler.audio.metrics;
+
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistogramTest {
+    @Test
+    public void testEmpty() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getTotal());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        TestHelpers.ToStringTest(histogram);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(50, histogram.getCount());
+        assertEquals(1275, histogram.getTotal());
+        assertEquals(25.5, histogram.getMean(), 0.0001);
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(25, histogram.getValueAtPercentile(50));
+        assertEquals(45, histogram.getValueAtPercentile(90));
+        assertEquals(50, histogram.getValueAtPercentile(100));
+        TestHelpers.ToStringTest(histogram);
+    }
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (long value : new long[] { 0, 1, 63, 64, 65, 66, 127, 128, 1000, 123_456_789, Long.MAX_VALUE / 3, Long.MAX_VALUE }) {
+            int index = Histogram.index(value);
+            assertTrue(Histogram.highestValue(index) >= value, "At " + value);
+            if (index > 0) {
+                assertTrue(Histogram.highestValue(index - 1) < value, "At " + value);
+            }
+
+            // the error is at most about 3 percent
+            assertTrue(Histogram.highestValue(index) - value <= value / 32, "At " + value);
+
+            assertTrue(index > previous || value == 65, "At " + value);
+            previous = index;
+        }
+
+        assertEquals(Long.MAX_VALUE, Histogram.highestValue(Histogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        Random random = new Random(2342);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (random.nextDouble() * random.nextDouble() * 10_000_000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : new double[] { 1, 10, 50, 90, 99, 99.9 }) {
+            long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long actual = histogram.getValueAtPercentile(percentile);
+            assertTrue(actual >= expected && actual <= expected + expected / 32 + 1,
+                    "Percentile " + percentile + ": expected " + expected + ", but had " + actual);
+        }
+
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testNegative() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testInvalidPercentile() {
+        Histogram histogram = new Histogram();
+        assertThrows(IllegalArgumentException.class, () -> histogram.getValueAtPercentile(-1));
+        assertThrows(IllegalArgumentException.class, () -> histogram.getValueAtPercentile(100.1));
+    }
+}
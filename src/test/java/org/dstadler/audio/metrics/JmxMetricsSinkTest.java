@@ -0,0 +1,97 @@
+package org.dstadler.audio.metrics;
+
+import org.dstadler.audio.buffer.BlockingSeekableRingBuffer;
+import org.dstadler.audio.buffer.Chunk;
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JmxMetricsSinkTest {
+    @Test
+    public void testRegister() throws JMException {
+        JmxMetricsSink sink = new JmxMetricsSink();
+        ObjectName name = sink.getObjectName("test-buffer");
+        assertEquals(JmxMetricsSink.DEFAULT_DOMAIN, name.getDomain());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        BlockingSeekableRingBuffer buffer = new BlockingSeekableRingBuffer(10);
+        sink.register("test-buffer", buffer);
+        try {
+            assertTrue(server.isRegistered(name));
+            assertEquals(0, server.getAttribute(name, "size"));
+
+            buffer.add(new Chunk(new byte[] { 1 }, "", 0));
+            assertEquals(1, server.getAttribute(name, "size"));
+            assertEquals(1L, server.getAttribute(name, "chunksAdded"));
+
+            // the attributes are described with their type
+            MBeanAttributeInfo[] attributes = server.getMBeanInfo(name).getAttributes();
+            assertEquals(buffer.getMetrics().size(), attributes.length);
+            assertEquals("size", attributes[0].getName());
+            assertEquals(Integer.class.getName(), attributes[0].getType());
+            assertTrue(attributes[0].isReadable());
+            assertFalse(attributes[0].isWritable());
+
+            AttributeList list = server.getAttributes(name, new String[] { "fill", "chunksRead", "invalid" });
+            assertEquals(2, list.size());
+            assertEquals(1, ((Attribute) list.get(0)).getValue());
+            assertEquals(0L, ((Attribute) list.get(1)).getValue());
+
+            assertThrows(AttributeNotFoundException.class, () -> server.getAttribute(name, "invalid"));
+            assertThrows(AttributeNotFoundException.class, () -> server.setAttribute(name, new Attribute("size", 1)));
+            assertTrue(server.setAttributes(name, new AttributeList()).isEmpty());
+            assertThrows(JMException.class, () -> server.invoke(name, "reset", null, null));
+        } finally {
+            sink.unregister("test-buffer");
+        }
+
+        assertFalse(server.isRegistered(name));
+
+        // unregistering again does not fail
+        sink.unregister("test-buffer");
+
+        TestHelpers.ToStringTest(sink);
+    }
+
+    @Test
+    public void testReplace() throws JMException {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        JmxMetricsSink sink = new JmxMetricsSink(server, "test");
+
+        Map<String, Number> first = new LinkedHashMap<>();
+        first.put("value", 1);
+        Map<String, Number> second = new LinkedHashMap<>();
+        second.put("value", 2.5);
+
+        sink.register("source \"quoted\", with=chars", () -> first);
+        ObjectName name = sink.getObjectName("source \"quoted\", with=chars");
+        assertEquals(1, server.getAttribute(name, "value"));
+
+        sink.register("source \"quoted\", with=chars", () -> second);
+        assertEquals(2.5, server.getAttribute(name, "value"));
+        assertEquals(Double.class.getName(), server.getMBeanInfo(name).getAttributes()[0].getType());
+
+        sink.unregister("source \"quoted\", with=chars");
+        assertEquals(0, server.queryNames(new ObjectName("test:*"), null).size());
+    }
+
+    @Test
+    public void testInvalid() {
+        assertThrows(NullPointerException.class, () -> new JmxMetricsSink(null, "test"));
+        assertThrows(NullPointerException.class, () -> new JmxMetricsSink().register("test", null));
+        assertThrows(IllegalArgumentException.class, () -> new JmxMetricsSink(MBeanServerFactory.newMBeanServer(), "a:b").getObjectName("x"));
+    }
+}
@@ -0,0 +1,64 @@
+package org.dstadler.audio.metrics;
+
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyStatsTest {
+    @Test
+    public void testUnderruns() {
+        LatencyStats stats = new LatencyStats();
+        assertEquals(0, stats.getUnderruns());
+        TestHelpers.ToStringTest(stats);
+
+        stats.recordUnderrun(2_000_000);
+        stats.recordUnderrun(50_000_000);
+
+        assertEquals(2, stats.getUnderruns());
+        assertEquals(2, stats.getBlocked().getCount());
+        assertEquals(50_000, stats.getBlocked().getMax());
+        assertEquals(52_000, stats.getBlocked().getTotal());
+
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        stats.addTo(metrics);
+        assertEquals(2L, metrics.get("underruns"));
+        assertEquals(52L, metrics.get("blockedTotalMillis"));
+        assertEquals(50.0, metrics.get("blockedMaxMillis"));
+        assertEquals(50.0, metrics.get("blockedP99Millis"));
+        TestHelpers.ToStringTest(stats);
+    }
+
+    @Test
+    public void testArrivals() {
+        LatencyStats stats = new LatencyStats();
+
+        // the first arrival only starts measuring
+        stats.recordArrival(-1_000_000_000);
+        assertEquals(0, stats.getInterArrival().getCount());
+
+        // constant intervals do not cause jitter
+        for (int i = 1; i <= 10; i++) {
+            stats.recordArrival(-1_000_000_000 + i * 100_000_000L);
+        }
+        assertEquals(10, stats.getInterArrival().getCount());
+        assertEquals(100_000, stats.getInterArrival().getMax());
+        assertEquals(0, stats.getJitterMillis(), 0);
+
+        // one interval is 80ms longer, the next one 80ms shorter
+        stats.recordArrival(180_000_000);
+        assertEquals(5.0, stats.getJitterMillis(), 0.0001);
+        stats.recordArrival(200_000_000);
+        assertEquals(5.0 + (160 - 5.0) / 16, stats.getJitterMillis(), 0.0001);
+
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        stats.addTo(metrics);
+        // percentiles are reported with the upper bound of the bucket
+        assertEquals(100.0, metrics.get("interArrivalP50Millis").doubleValue(), 100.0 / 32);
+        assertEquals(180.0, metrics.get("interArrivalMaxMillis"));
+        assertEquals(stats.getJitterMillis(), metrics.get("jitterMillis"));
+    }
+}
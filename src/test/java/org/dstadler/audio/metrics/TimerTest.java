@@ -0,0 +1,36 @@
+package org.dstadler.audio.metrics;
+
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimerTest {
+    @Test
+    public void testTimer() {
+        Timer timer = new Timer();
+        assertEquals(0, timer.getCount());
+        assertEquals(0, timer.getMeanMillis(), 0);
+        TestHelpers.ToStringTest(timer);
+
+        timer.record(5_000_000);
+        timer.record(25_000_000);
+        timer.record(3_000_000);
+
+        assertEquals(3, timer.getCount());
+        assertEquals(33, timer.getTotalMillis());
+        assertEquals(25, timer.getMaxMillis());
+        assertEquals(11.0, timer.getMeanMillis(), 0.0001);
+
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        timer.addTo(metrics, "download");
+        assertEquals(3L, metrics.get("downloadCount"));
+        assertEquals(33L, metrics.get("downloadTotalMillis"));
+        assertEquals(25L, metrics.get("downloadMaxMillis"));
+        assertEquals(11.0, metrics.get("downloadMeanMillis"));
+        TestHelpers.ToStringTest(timer);
+    }
+}
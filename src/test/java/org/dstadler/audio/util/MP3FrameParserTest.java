@@ -0,0 +1,209 @@
+package org.dstadler.audio.util;
+
+import org.apache.commons.io.FileUtils;
+import org.dstadler.commons.testing.TestHelpers;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MP3FrameParserTest {
+    // MPEG 1 Layer III, 128 kbit/s, 44.1 kHz, 1152 samples in 417 or 418 bytes
+    private static final int MPEG1_L3_128_44100 = 0xfffb9064;
+    private static final double MPEG1_L3_DURATION = 1152.0 / 44100;
+
+    // MPEG 2 Layer III, 64 kbit/s, 22.05 kHz, 576 samples in 208 bytes
+    private static final int MPEG2_L3_64_22050 = 0xfff38064;
+
+    // MPEG 1 Layer II, 192 kbit/s, 48 kHz, 1152 samples in 576 bytes
+    private static final int MPEG1_L2_192_48000 = 0xfffda404;
+
+    // MPEG 1 Layer I, 128 kbit/s, 32 kHz, 384 samples in 192 bytes
+    private static final int MPEG1_L1_128_32000 = 0xffff4804;
+
+    @Test
+    public void testFrameLength() {
+        assertEquals(417, MP3FrameParser.frameLength(MPEG1_L3_128_44100));
+        assertEquals(418, MP3FrameParser.frameLength(MPEG1_L3_128_44100 | 0x200));
+        assertEquals(208, MP3FrameParser.frameLength(MPEG2_L3_64_22050));
+        assertEquals(576, MP3FrameParser.frameLength(MPEG1_L2_192_48000));
+        assertEquals(192, MP3FrameParser.frameLength(MPEG1_L1_128_32000));
+        assertEquals(196, MP3FrameParser.frameLength(MPEG1_L1_128_32000 | 0x200));
+
+        assertEquals(MPEG1_L3_DURATION, MP3FrameParser.duration(MPEG1_L3_128_44100), 0.0000001);
+        assertEquals(576.0 / 22050, MP3FrameParser.duration(MPEG2_L3_64_22050), 0.0000001);
+        assertEquals(1152.0 / 48000, MP3FrameParser.duration(MPEG1_L2_192_48000), 0.0000001);
+        assertEquals(384.0 / 32000, MP3FrameParser.duration(MPEG1_L1_128_32000), 0.0000001);
+    }
+
+    @Test
+    public void testInvalidHeaders() {
+        // no frame-sync
+        assertEquals(0, MP3FrameParser.frameLength(0));
+        assertEquals(0, MP3FrameParser.frameLength(0xffdb9064));
+        // reserved version
+        assertEquals(0, MP3FrameParser.frameLength(0xffeb9064));
+        // reserved layer
+        assertEquals(0, MP3FrameParser.frameLength(0xfff99064));
+        // free-format and invalid bitrate
+        assertEquals(0, MP3FrameParser.frameLength(0xfffb0064));
+        assertEquals(0, MP3FrameParser.frameLength(0xfffbf064));
+        // reserved sample-rate
+        assertEquals(0, MP3FrameParser.frameLength(0xfffb9c64));
+    }
+
+    @Test
+    public void testEmpty() {
+        MP3FrameParser parser = new MP3FrameParser();
+        TestHelpers.ToStringTest(parser);
+
+        assertEquals(0, parser.parse(new byte[0]), 0);
+        assertFalse(parser.isSynced());
+        assertEquals(0, parser.getFrames());
+        assertEquals(0, parser.getSeconds(), 0);
+    }
+
+    @Test
+    public void testFrames() throws IOException {
+        byte[] data = frames(MPEG1_L3_128_44100, 100);
+
+        MP3FrameParser parser = new MP3FrameParser();
+        assertEquals(100 * MPEG1_L3_DURATION, parser.parse(data), 0.000001);
+        assertTrue(parser.isSynced());
+        assertEquals(100, parser.getFrames());
+        assertEquals(100 * MPEG1_L3_DURATION, parser.getSeconds(), 0.000001);
+        TestHelpers.ToStringTest(parser);
+
+        parser.reset();
+        assertFalse(parser.isSynced());
+        assertEquals(0, parser.getFrames());
+        assertEquals(0, parser.getSeconds(), 0);
+    }
+
+    @Test
+    public void testOtherFormats() throws IOException {
+        for (int header : new int[] { MPEG2_L3_64_22050, MPEG1_L2_192_48000, MPEG1_L1_128_32000 }) {
+            MP3FrameParser parser = new MP3FrameParser();
+            assertEquals(50 * MP3FrameParser.duration(header), parser.parse(frames(header, 50)), 0.000001,
+                    "Header " + Integer.toHexString(header));
+            assertEquals(50, parser.getFrames());
+        }
+    }
+
+    @Test
+    public void testSplitAcrossChunks() throws IOException {
+        byte[] data = frames(MPEG1_L3_128_44100, 100);
+
+        // chunk sizes which split headers at every possible position
+        for (int chunkSize : new int[] { 1, 2, 3, 5, 417, 1000, 16384 }) {
+            MP3FrameParser parser = new MP3FrameParser();
+            double seconds = 0;
+            for (int pos = 0; pos < data.length; pos += chunkSize) {
+                seconds += parser.parse(data, pos, Math.min(chunkSize, data.length - pos));
+            }
+
+            assertEquals(100, parser.getFrames(), "Chunk size " + chunkSize);
+            assertEquals(100 * MPEG1_L3_DURATION, seconds, 0.000001, "Chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    public void testID3Tag() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // tag of 300 bytes which contains something that looks like a frame header
+        byte[] tag = new byte[310];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 4;
+        tag[8] = 2;
+        tag[9] = 44;
+        System.arraycopy(frames(MPEG2_L3_64_22050, 1), 0, tag, 20, 4);
+        out.write(tag);
+        out.write(frames(MPEG1_L3_128_44100, 10));
+
+        MP3FrameParser parser = new MP3FrameParser();
+        assertEquals(10 * MPEG1_L3_DURATION, parser.parse(out.toByteArray()), 0.000001);
+        assertEquals(10, parser.getFrames());
+    }
+
+    @Test
+    public void testGarbage() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // garbage with a single valid header
+        byte[] garbage = new byte[1000];
+        Arrays.fill(garbage, (byte) 0x55);
+        System.arraycopy(frames(MPEG1_L2_192_48000, 1), 0, garbage, 100, 4);
+        out.write(garbage);
+        out.write(frames(MPEG1_L3_128_44100, 10));
+
+        // garbage in the middle of the stream
+        out.write(new byte[] { 0x12, 0x34, (byte) 0xff, 0x00 });
+        out.write(frames(MPEG1_L3_128_44100, 10));
+
+        MP3FrameParser parser = new MP3FrameParser();
+        assertEquals(20 * MPEG1_L3_DURATION, parser.parse(out.toByteArray()), 0.000001);
+        assertEquals(20, parser.getFrames());
+        assertTrue(parser.isSynced());
+    }
+
+    @Test
+    public void testRandomData() {
+        Random random = new Random(3423);
+        byte[] data = new byte[1024 * 1024];
+        random.nextBytes(data);
+
+        // random data very rarely contains two matching frames
+        MP3FrameParser parser = new MP3FrameParser();
+        parser.parse(data);
+        assertTrue(parser.getFrames() < 10, "Had: " + parser);
+    }
+
+    @Test
+    public void testInvalidRange() {
+        MP3FrameParser parser = new MP3FrameParser();
+        assertThrows(IndexOutOfBoundsException.class, () -> parser.parse(new byte[10], 5, 6));
+        assertThrows(IndexOutOfBoundsException.class, () -> parser.parse(new byte[10], -1, 2));
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        MP3FrameParser parser = new MP3FrameParser();
+        parser.parse(FileUtils.readFileToByteArray(new File("src/test/resources/10-minutes-of-silence.mp3")));
+
+        assertEquals(600, parser.getSeconds(), 0.2, "Had: " + parser);
+
+        // the size of the ID3 tag is off by one in this file and an ID3v1 tag follows
+        // at the end, so only a few frames at the start and the end are not found
+        parser = new MP3FrameParser();
+        parser.parse(FileUtils.readFileToByteArray(new File("src/test/resources/1-second-of-silence.mp3")));
+
+        assertEquals(1, parser.getSeconds(), 0.2, "Had: " + parser);
+    }
+
+    /**
+     * @return The given number of frames with the given header, alternately with and
+     *      without padding, the data of the frames is filled with zeros
+     */
+    static byte[] frames(int header, int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            int frameHeader = i % 2 == 0 ? header : header | 0x200;
+            byte[] frame = new byte[MP3FrameParser.frameLength(frameHeader)];
+            frame[0] = (byte) (frameHeader >>> 24);
+            frame[1] = (byte) (frameHeader >>> 16);
+            frame[2] = (byte) (frameHeader >>> 8);
+            frame[3] = (byte) frameHeader;
+            out.write(frame);
+        }
+
+        return out.toByteArray();
+    }
+}